@@ -64,4 +64,12 @@ public interface ContentUrlConsistencyDAO
      *     the content URLs for which to invalidate cache entries
      */
     void invalidateCachedContentUrlEntities(Collection<String> contentUrls);
+
+    /**
+     * Invalidates cache entries for a collection of content URL entities.
+     *
+     * @param contentUrlIds
+     *     the IDs of the content URL entities for which to invalidate cache entries
+     */
+    void invalidateCachedContentUrlEntitiesById(Collection<Long> contentUrlIds);
 }
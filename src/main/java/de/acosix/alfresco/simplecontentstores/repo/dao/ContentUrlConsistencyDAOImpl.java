@@ -164,6 +164,22 @@ public class ContentUrlConsistencyDAOImpl implements ContentUrlConsistencyDAO, I
         });
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invalidateCachedContentUrlEntitiesById(final Collection<Long> contentUrlIds)
+    {
+        ParameterCheck.mandatoryCollection("contentUrlIds", contentUrlIds);
+
+        this.withTxnCacheContext(() -> {
+            for (final Long contentUrlId : contentUrlIds)
+            {
+                this.contentUrlCache.removeByKey(contentUrlId);
+            }
+        });
+    }
+
     private void withTxnCacheContext(final Runnable run)
     {
         // remove in afterCommit does not do anything since TransactionalCache blocks it as it already ran through its sync
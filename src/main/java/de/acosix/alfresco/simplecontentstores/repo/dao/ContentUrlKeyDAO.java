@@ -15,16 +15,18 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.dao;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
 import org.alfresco.repo.domain.contentdata.ContentDataDAO;
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
 import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.MasterKeyReference;
 
 /**
- * Instances of this interface provide more fine-grained, read-only access to persisted content URL encryption keys than is possible via the
+ * Instances of this interface provide more fine-grained access to persisted content URL encryption keys than is possible via the
  * {@link ContentDataDAO default content data DAO}. Specifically, instances support querying not only on encryption key aliases, but also
  * keystore IDs, a data attribute already collected in {@link ContentUrlKeyEntity the content URL key entity} in Alfresco but omitted in
  * e.g. {@link ContentDataDAO#countSymmetricKeysForMasterKeyAlias(String) counting keys per alias}.
@@ -63,4 +65,46 @@ public interface ContentUrlKeyDAO
      * @return the page of entities
      */
     List<ContentUrlKeyEntity> getSymmetricKeys(MasterKeyReference masterKey, Long fromId, Integer maxResults);
+
+    /**
+     * Updates a batch of symmetric key entities which have been re-encrypted with a different master encryption key. All updates are sent
+     * to the database as a single JDBC batch. Only entities which are still encrypted by the specified (previous) master key are updated,
+     * so that concurrent modifications are not overwritten.
+     *
+     * Note: this operation bypasses the {@link ContentDataDAO default content data DAO} and any cached content URL entities need to be
+     * invalidated by the caller.
+     *
+     * @param masterKey
+     *            the identity of the master key by which the symmetric keys were previously encrypted
+     * @param reEncryptedKeys
+     *            the re-encrypted symmetric key entities - each entity must have its ID set
+     * @return the number of updated entities, which may be an estimate if the database driver does not report exact update counts for
+     *         batched statements
+     */
+    int updateSymmetricKeys(MasterKeyReference masterKey, List<ContentUrlKeyEntity> reEncryptedKeys);
+
+    /**
+     * Inserts a batch of symmetric key entities for content URL entities which do not yet have an associated key. All inserts are sent to
+     * the database as a single JDBC batch.
+     *
+     * Note: this operation bypasses the {@link ContentDataDAO default content data DAO} and any cached content URL entities need to be
+     * invalidated by the caller.
+     *
+     * @param keys
+     *            the symmetric key entities to insert - each entity must have its content URL ID set
+     * @return the number of inserted entities, which may be an estimate if the database driver does not report exact update counts for
+     *         batched statements
+     */
+    int insertSymmetricKeys(List<ContentUrlKeyEntity> keys);
+
+    /**
+     * Retrieves the content URL entities and any associated symmetric key entities for a collection of content URLs. In contrast to
+     * {@link ContentDataDAO#getContentUrl(String) the default lookup}, entities are retrieved in as few queries as possible, and neither
+     * read from nor put into any cache.
+     *
+     * @param contentUrls
+     *            the content URLs for which to retrieve the entities
+     * @return the content URL entities keyed by content URL - URLs without a persisted entity will not be contained in the result
+     */
+    Map<String, ContentUrlEntity> getContentUrlsWithKeys(Collection<String> contentUrls);
 }
@@ -15,13 +15,22 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.dao;
 
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
 import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
 import org.alfresco.util.ParameterCheck;
 import org.alfresco.util.PropertyCheck;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.session.ExecutorType;
 import org.mybatis.spring.SqlSessionTemplate;
 import org.springframework.beans.factory.InitializingBean;
 
@@ -39,8 +48,19 @@ public class ContentUrlKeyDAOImpl implements ContentUrlKeyDAO, InitializingBean
 
     private static final String SELECT_SYMMETRIC_KEYS_FOR_MASTER_KEY = "contentUrlKey.select_SymmetricKeysForMasterKey";
 
+    private static final String UPDATE_SYMMETRIC_KEY_FOR_MASTER_KEY = "contentUrlKey.update_SymmetricKeyForMasterKey";
+
+    private static final String INSERT_SYMMETRIC_KEY = "contentUrlKey.insert_SymmetricKey";
+
+    private static final String SELECT_CONTENT_URLS_WITH_KEYS = "contentUrlKey.select_ContentUrlsWithKeys";
+
+    // keep number of bind parameters per query well below limits of any supported database (e.g. 2100 for SQL Server)
+    private static final int MAX_CONTENT_URLS_PER_QUERY = 250;
+
     protected SqlSessionTemplate sqlSessionTemplate;
 
+    protected SqlSessionTemplate batchSqlSessionTemplate;
+
     /**
      * @param sqlSessionTemplate
      *            The SQL session template to set
@@ -50,6 +70,15 @@ public class ContentUrlKeyDAOImpl implements ContentUrlKeyDAO, InitializingBean
         this.sqlSessionTemplate = sqlSessionTemplate;
     }
 
+    /**
+     * @param batchSqlSessionTemplate
+     *            The SQL session template using a {@link ExecutorType#BATCH batch executor} to set
+     */
+    public void setBatchSqlSessionTemplate(final SqlSessionTemplate batchSqlSessionTemplate)
+    {
+        this.batchSqlSessionTemplate = batchSqlSessionTemplate;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -57,6 +86,12 @@ public class ContentUrlKeyDAOImpl implements ContentUrlKeyDAO, InitializingBean
     public void afterPropertiesSet()
     {
         PropertyCheck.mandatory(this, "sqlSessionTemplate", this.sqlSessionTemplate);
+        PropertyCheck.mandatory(this, "batchSqlSessionTemplate", this.batchSqlSessionTemplate);
+
+        if (this.batchSqlSessionTemplate.getExecutorType() != ExecutorType.BATCH)
+        {
+            throw new IllegalStateException("batchSqlSessionTemplate must use the BATCH executor type");
+        }
     }
 
     /**
@@ -105,4 +140,127 @@ public class ContentUrlKeyDAOImpl implements ContentUrlKeyDAO, InitializingBean
         return entities;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int updateSymmetricKeys(final MasterKeyReference masterKey, final List<ContentUrlKeyEntity> reEncryptedKeys)
+    {
+        ParameterCheck.mandatory("masterKey", masterKey);
+        ParameterCheck.mandatory("reEncryptedKeys", reEncryptedKeys);
+
+        int updated = 0;
+        if (!reEncryptedKeys.isEmpty())
+        {
+            for (final ContentUrlKeyEntity reEncryptedKey : reEncryptedKeys)
+            {
+                ParameterCheck.mandatory("reEncryptedKey.id", reEncryptedKey.getId());
+
+                final KeyUpdate update = new KeyUpdate();
+                update.setMasterKey(masterKey);
+                update.setContentUrlKey(reEncryptedKey);
+                this.batchSqlSessionTemplate.update(UPDATE_SYMMETRIC_KEY_FOR_MASTER_KEY, update);
+            }
+
+            updated = this.flushBatchStatements();
+        }
+        return updated;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int insertSymmetricKeys(final List<ContentUrlKeyEntity> keys)
+    {
+        ParameterCheck.mandatory("keys", keys);
+
+        int inserted = 0;
+        if (!keys.isEmpty())
+        {
+            for (final ContentUrlKeyEntity key : keys)
+            {
+                ParameterCheck.mandatory("key.contentUrlId", key.getContentUrlId());
+                this.batchSqlSessionTemplate.insert(INSERT_SYMMETRIC_KEY, key);
+            }
+
+            inserted = this.flushBatchStatements();
+        }
+        return inserted;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, ContentUrlEntity> getContentUrlsWithKeys(final Collection<String> contentUrls)
+    {
+        ParameterCheck.mandatory("contentUrls", contentUrls);
+
+        final Set<String> uniqueContentUrls = new LinkedHashSet<>(contentUrls);
+        final Map<String, ContentUrlEntity> entities = new HashMap<>();
+        final List<ContentUrlEntity> lookups = new ArrayList<>(Math.min(uniqueContentUrls.size(), MAX_CONTENT_URLS_PER_QUERY));
+        for (final String contentUrl : uniqueContentUrls)
+        {
+            ParameterCheck.mandatoryString("contentUrl", contentUrl);
+
+            // same as in ContentUrlConsistencyDAOImpl - short URL is used case-insensitive for lookup
+            final ContentUrlEntity lookup = new ContentUrlEntity();
+            lookup.setContentUrl(contentUrl);
+            if (lookup.getContentUrlShort() != null)
+            {
+                lookup.setContentUrlShort(lookup.getContentUrlShort().toLowerCase(Locale.getDefault()));
+            }
+            lookups.add(lookup);
+
+            if (lookups.size() == MAX_CONTENT_URLS_PER_QUERY)
+            {
+                this.selectContentUrlsWithKeys(lookups, uniqueContentUrls, entities);
+                lookups.clear();
+            }
+        }
+
+        if (!lookups.isEmpty())
+        {
+            this.selectContentUrlsWithKeys(lookups, uniqueContentUrls, entities);
+        }
+        return entities;
+    }
+
+    protected int flushBatchStatements()
+    {
+        int updated = 0;
+        final List<BatchResult> results = this.batchSqlSessionTemplate.flushStatements();
+        for (final BatchResult result : results)
+        {
+            for (final int updateCount : result.getUpdateCounts())
+            {
+                if (updateCount > 0)
+                {
+                    updated += updateCount;
+                }
+                else if (updateCount == Statement.SUCCESS_NO_INFO)
+                {
+                    // some drivers (e.g. older Oracle drivers) do not report counts for batched statements
+                    updated++;
+                }
+            }
+        }
+        return updated;
+    }
+
+    protected void selectContentUrlsWithKeys(final List<ContentUrlEntity> lookups, final Set<String> contentUrls,
+            final Map<String, ContentUrlEntity> entities)
+    {
+        final List<ContentUrlEntity> results = this.sqlSessionTemplate.selectList(SELECT_CONTENT_URLS_WITH_KEYS, lookups);
+        for (final ContentUrlEntity result : results)
+        {
+            // short URL + CRC may (theoretically) collide, so only exact matches of the full URL are considered
+            if (contentUrls.contains(result.getContentUrl()))
+            {
+                entities.put(result.getContentUrl(), result);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.dao;
+
+import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.MasterKeyReference;
+
+/**
+ * @author Axel Faust
+ */
+public class KeyUpdate
+{
+
+    private MasterKeyReference masterKey;
+
+    private ContentUrlKeyEntity contentUrlKey;
+
+    /**
+     * @return the masterKey
+     */
+    public MasterKeyReference getMasterKey()
+    {
+        return this.masterKey;
+    }
+
+    /**
+     * @param masterKey
+     *            the masterKey to set
+     */
+    public void setMasterKey(final MasterKeyReference masterKey)
+    {
+        this.masterKey = masterKey;
+    }
+
+    /**
+     * @return the contentUrlKey
+     */
+    public ContentUrlKeyEntity getContentUrlKey()
+    {
+        return this.contentUrlKey;
+    }
+
+    /**
+     * @param contentUrlKey
+     *            the contentUrlKey to set
+     */
+    public void setContentUrlKey(final ContentUrlKeyEntity contentUrlKey)
+    {
+        this.contentUrlKey = contentUrlKey;
+    }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.Provider;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class pool cipher instances per transformation to avoid the costs of the JCA provider lookup and cipher construction
+ * for every encryption / decryption of content or symmetric keys. The provider selected by the JCA for the first cipher of a transformation
+ * is remembered, so that any further cipher instances can be constructed without going through the provider selection again.
+ *
+ * Pooled ciphers are always re-initialised by the caller before use, which fully resets their state. Since the JCA uses delayed provider
+ * selection based on the type of key, pools are separated by the class of key the ciphers are used with.
+ *
+ * An initialised cipher holds the key schedule derived from its key. Ciphers used with short-lived symmetric content keys should
+ * therefore be {@link #releaseScrubbed(Cipher, Key) released scrubbed}, so that idle ciphers do not retain key material of content keys
+ * which have otherwise been zeroed.
+ *
+ * @author Axel Faust
+ */
+public class CipherPool
+{
+
+    protected final Map<String, TransformationPool> pools = new ConcurrentHashMap<>();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong discards = new AtomicLong();
+
+    protected volatile int maxPooledPerTransformation;
+
+    /**
+     * Creates a new instance of this pool.
+     *
+     * @param maxPooledPerTransformation
+     *     the maximum number of idle cipher instances to keep per transformation and key class - if {@code 0} or less, cipher instances
+     *     are not pooled at all
+     */
+    public CipherPool(final int maxPooledPerTransformation)
+    {
+        this.maxPooledPerTransformation = maxPooledPerTransformation;
+    }
+
+    /**
+     * Acquires a cipher instance for a specific transformation. The cipher must be initialised by the caller and should be
+     * {@link #release(Cipher, Key) released} once it is no longer used.
+     *
+     * @param transformation
+     *     the transformation of the cipher
+     * @param key
+     *     the key with which the cipher will be initialised
+     * @return the cipher instance
+     * @throws GeneralSecurityException
+     *     if the cipher cannot be constructed
+     */
+    public Cipher acquire(final String transformation, final Key key) throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("transformation", transformation);
+        ParameterCheck.mandatory("key", key);
+
+        final TransformationPool pool = this.pools.computeIfAbsent(toPoolKey(transformation, key),
+                k -> new TransformationPool(transformation));
+
+        Cipher cipher = pool.idleCiphers.poll();
+        if (cipher != null)
+        {
+            pool.idleCount.decrementAndGet();
+            this.hits.incrementAndGet();
+        }
+        else
+        {
+            this.misses.incrementAndGet();
+            final Provider provider = pool.provider;
+            cipher = provider != null ? Cipher.getInstance(transformation, provider) : Cipher.getInstance(transformation);
+        }
+        return cipher;
+    }
+
+    /**
+     * Releases a cipher instance back to this pool. The cipher retains the key schedule of its key while pooled, so this operation should
+     * only be used for ciphers initialised with long-lived keys, e.g. master keys.
+     *
+     * @param cipher
+     *     the cipher to release - may be {@code null} in which case this operation does nothing
+     * @param key
+     *     the key with which the cipher has been initialised
+     */
+    public void release(final Cipher cipher, final Key key)
+    {
+        if (cipher != null && key != null)
+        {
+            final TransformationPool pool = this.pools.get(toPoolKey(cipher.getAlgorithm(), key));
+            if (pool != null)
+            {
+                if (pool.provider == null)
+                {
+                    // provider of an initialised cipher is final
+                    pool.provider = cipher.getProvider();
+                }
+
+                if (pool.idleCount.incrementAndGet() <= this.maxPooledPerTransformation)
+                {
+                    pool.idleCiphers.offer(cipher);
+                }
+                else
+                {
+                    pool.idleCount.decrementAndGet();
+                    this.discards.incrementAndGet();
+                }
+            }
+            else
+            {
+                this.discards.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Releases a cipher instance back to this pool after re-initialising it with a fixed dummy key of the same algorithm and size, so that
+     * the pooled cipher no longer holds the key schedule of the key it was used with. If the cipher cannot be re-initialised, it is
+     * discarded.
+     *
+     * @param cipher
+     *     the cipher to release - may be {@code null} in which case this operation does nothing
+     * @param key
+     *     the key with which the cipher has been initialised
+     */
+    public void releaseScrubbed(final Cipher cipher, final Key key)
+    {
+        if (cipher != null && key != null)
+        {
+            final byte[] keyBytes = key.getEncoded();
+            boolean scrubbed = false;
+            if (keyBytes != null && keyBytes.length > 0)
+            {
+                // only the length of the key is relevant
+                Arrays.fill(keyBytes, (byte) 0);
+                final SecretKeySpec dummyKey = new SecretKeySpec(keyBytes, key.getAlgorithm());
+                try
+                {
+                    // decrypt mode avoids any checks against parameter reuse, e.g. for GCM
+                    cipher.init(Cipher.DECRYPT_MODE, dummyKey, cipher.getParameters());
+                    scrubbed = true;
+                }
+                catch (final GeneralSecurityException | IllegalArgumentException e)
+                {
+                    // cannot be reused without retaining the key schedule
+                }
+            }
+
+            if (scrubbed)
+            {
+                this.release(cipher, key);
+            }
+            else
+            {
+                this.discards.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all idle cipher instances from this pool. Remembered providers are retained.
+     */
+    public void clear()
+    {
+        this.pools.values().forEach(pool -> {
+            while (pool.idleCiphers.poll() != null)
+            {
+                pool.idleCount.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @param maxPooledPerTransformation
+     *     the maximum number of idle cipher instances to keep per transformation and key class
+     */
+    public void setMaxPooledPerTransformation(final int maxPooledPerTransformation)
+    {
+        this.maxPooledPerTransformation = maxPooledPerTransformation;
+        if (maxPooledPerTransformation <= 0)
+        {
+            this.clear();
+        }
+    }
+
+    /**
+     * @return the maximum number of idle cipher instances to keep per transformation and key class
+     */
+    public int getMaxPooledPerTransformation()
+    {
+        return this.maxPooledPerTransformation;
+    }
+
+    /**
+     * @return the number of currently idle cipher instances across all transformations
+     */
+    public int size()
+    {
+        return this.pools.values().stream().mapToInt(pool -> Math.max(0, pool.idleCount.get())).sum();
+    }
+
+    /**
+     * @return the number of distinct transformation / key class combinations for which ciphers have been requested
+     */
+    public int getTransformationCount()
+    {
+        return this.pools.size();
+    }
+
+    /**
+     * @return the number of acquisitions which were served with an idle cipher instance
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of acquisitions which required the construction of a new cipher instance
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of released cipher instances which were not pooled as the pool was full
+     */
+    public long getDiscards()
+    {
+        return this.discards.get();
+    }
+
+    protected static String toPoolKey(final String transformation, final Key key)
+    {
+        return transformation + "#" + key.getClass().getName();
+    }
+
+    /**
+     *
+     * @author Axel Faust
+     */
+    protected static class TransformationPool
+    {
+
+        protected final String transformation;
+
+        protected final Queue<Cipher> idleCiphers = new ConcurrentLinkedQueue<>();
+
+        protected final AtomicInteger idleCount = new AtomicInteger();
+
+        protected volatile Provider provider;
+
+        protected TransformationPool(final String transformation)
+        {
+            this.transformation = transformation;
+        }
+    }
+}
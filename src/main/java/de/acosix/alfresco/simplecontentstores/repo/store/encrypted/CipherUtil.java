@@ -15,14 +15,21 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
 
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.alfresco.util.ParameterCheck;
 
@@ -49,19 +56,72 @@ public class CipherUtil
         PADDINGS_BY_ALGORITHM = Collections.unmodifiableMap(paddings);
     }
 
+    private static final String SEEKABLE_MODE = "CTR/NoPadding";
+
+    /**
+     * The key wrap mode for AES key wrap as specified in RFC 3394, applicable to keys with a length that is a multiple of 8 bytes and at
+     * least 16 bytes.
+     */
+    protected static final String KEY_WRAP_MODE = "KW";
+
+    /**
+     * The key wrap mode for AES key wrap with padding as specified in RFC 5649, applicable to keys of any length.
+     */
+    protected static final String KEY_WRAP_PADDED_MODE = "KWP";
+
+    private static final Map<String, String> KEY_WRAP_TRANSFORMATIONS_BY_MODE;
+    static
+    {
+        final Map<String, String> transformations = new HashMap<>();
+        transformations.put(KEY_WRAP_MODE, "AESWrap");
+        transformations.put(KEY_WRAP_PADDED_MODE, "AESWrapPad");
+        KEY_WRAP_TRANSFORMATIONS_BY_MODE = Collections.unmodifiableMap(transformations);
+    }
+
+    // availability of key wrap transformations differs between JVMs, e.g. AESWrapPad is only provided by default as of Java 17
+    private static final Map<String, Boolean> KEY_WRAP_MODE_AVAILABILITY = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_MAX_POOLED_CIPHERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final CipherPool CIPHER_POOL = new CipherPool(DEFAULT_MAX_POOLED_CIPHERS);
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // buffers need to be able to hold a few cipher blocks and the header prefix in any case
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    private static final DirectBufferPool BUFFER_POOL = new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED_CIPHERS);
+
+    // block size of the default transformation for an algorithm - determines the effective transformation (with / without padding)
+    private static final Map<String, Integer> BLOCK_SIZES_BY_ALGORITHM = new ConcurrentHashMap<>();
+
     private CipherUtil()
     {
         // NO-OP
     }
 
+    /**
+     * Retrieves an initialised cipher to encrypt / decrypt content in the legacy format or symmetric content keys. The cipher should be
+     * {@link #releaseCipher(Cipher, Key) released} (or {@link #releaseKeyEncryptionCipher(Cipher, Key) released as a key encryption
+     * cipher} if initialised with a master key) once it is no longer used.
+     *
+     * @param key
+     *     the key to use for encryption / decryption
+     * @param encrypt
+     *     {@code true} if the cipher should be initialised for encryption, {@code false} for decryption
+     * @return the initialised cipher
+     * @throws GeneralSecurityException
+     *     if the cipher cannot be resolved / initialised
+     */
     protected static Cipher getInitialisedCipher(final Key key, final boolean encrypt) throws GeneralSecurityException
     {
         ParameterCheck.mandatory("key", key);
 
         String algorithm = key.getAlgorithm();
-        Cipher cipher = Cipher.getInstance(algorithm);
-        if (cipher.getBlockSize() == 0)
+        final Cipher cipher;
+        if (getBlockSize(algorithm) == 0)
         {
+            cipher = CIPHER_POOL.acquire(algorithm, key);
             cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key);
         }
         else
@@ -70,10 +130,336 @@ public class CipherUtil
             {
                 algorithm = algorithm + "/" + PADDINGS_BY_ALGORITHM.get(algorithm);
             }
-            cipher = Cipher.getInstance(algorithm);
+            cipher = CIPHER_POOL.acquire(algorithm, key);
             // no way to record/transport iv for each key in Alfresco (also symmetric keys are only used for one encryption)
             cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new IvParameterSpec(new byte[cipher.getBlockSize()]));
         }
         return cipher;
     }
+
+    /**
+     * Releases a cipher used to encrypt / decrypt content which is no longer used so that it may be reused for subsequent operations. The
+     * cipher is scrubbed of the key schedule of the symmetric content key before it is pooled.
+     *
+     * @param cipher
+     *     the cipher to release - may be {@code null}
+     * @param key
+     *     the key with which the cipher has been initialised
+     */
+    protected static void releaseCipher(final Cipher cipher, final Key key)
+    {
+        CIPHER_POOL.releaseScrubbed(cipher, key);
+    }
+
+    /**
+     * Releases a cipher used to encrypt / decrypt symmetric content keys with a master key which is no longer used so that it may be reused
+     * for subsequent operations.
+     *
+     * @param cipher
+     *     the cipher to release - may be {@code null}
+     * @param keyEncryptionKey
+     *     the master key with which the cipher has been initialised
+     */
+    protected static void releaseKeyEncryptionCipher(final Cipher cipher, final Key keyEncryptionKey)
+    {
+        CIPHER_POOL.release(cipher, keyEncryptionKey);
+    }
+
+    /**
+     * Checks whether a key can be used as a key-encryption key to wrap / unwrap symmetric content keys via AES key wrap.
+     *
+     * @param keyEncryptionKey
+     *     the key-encryption key
+     * @return {@code true} if the key is a symmetric AES key, {@code false} otherwise
+     */
+    protected static boolean supportsKeyWrap(final Key keyEncryptionKey)
+    {
+        ParameterCheck.mandatory("keyEncryptionKey", keyEncryptionKey);
+        return keyEncryptionKey instanceof SecretKey && "AES".equalsIgnoreCase(keyEncryptionKey.getAlgorithm());
+    }
+
+    /**
+     * Determines the key wrap mode to use for wrapping a specific key.
+     *
+     * @param key
+     *     the key to wrap
+     * @return the key wrap mode
+     */
+    protected static String getKeyWrapMode(final Key key)
+    {
+        ParameterCheck.mandatory("key", key);
+        return getKeyWrapMode(key.getEncoded().length);
+    }
+
+    /**
+     * Determines the key wrap mode to use for wrapping keys of a specific length.
+     *
+     * @param keyLength
+     *     the length of the encoded key in bytes
+     * @return the key wrap mode
+     */
+    protected static String getKeyWrapMode(final int keyLength)
+    {
+        return keyLength >= 16 && keyLength % 8 == 0 ? KEY_WRAP_MODE : KEY_WRAP_PADDED_MODE;
+    }
+
+    /**
+     * Checks whether a key wrap mode is supported by the security providers of the current JVM.
+     *
+     * @param wrapMode
+     *     the key wrap mode to check
+     * @return {@code true} if the key wrap mode is supported, {@code false} otherwise
+     */
+    protected static boolean isKeyWrapModeSupported(final String wrapMode)
+    {
+        ParameterCheck.mandatoryString("wrapMode", wrapMode);
+
+        final String transformation = KEY_WRAP_TRANSFORMATIONS_BY_MODE.get(wrapMode);
+        boolean supported = false;
+        if (transformation != null)
+        {
+            supported = KEY_WRAP_MODE_AVAILABILITY.computeIfAbsent(wrapMode, mode -> {
+                try
+                {
+                    Cipher.getInstance(transformation);
+                    return Boolean.TRUE;
+                }
+                catch (final GeneralSecurityException e)
+                {
+                    return Boolean.FALSE;
+                }
+            }).booleanValue();
+        }
+        return supported;
+    }
+
+    /**
+     * Wraps a symmetric key via AES key wrap.
+     *
+     * @param keyEncryptionKey
+     *     the AES key-encryption key
+     * @param key
+     *     the key to wrap
+     * @param wrapMode
+     *     the key wrap mode to use
+     * @return the wrapped key
+     * @throws GeneralSecurityException
+     *     if the key cannot be wrapped
+     */
+    protected static byte[] wrapKey(final Key keyEncryptionKey, final Key key, final String wrapMode) throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("key", key);
+
+        final Cipher cipher = getInitialisedKeyWrapCipher(keyEncryptionKey, wrapMode, true);
+        try
+        {
+            return cipher.wrap(key);
+        }
+        finally
+        {
+            CIPHER_POOL.release(cipher, keyEncryptionKey);
+        }
+    }
+
+    /**
+     * Unwraps a symmetric key previously {@link #wrapKey(Key, Key, String) wrapped} via AES key wrap.
+     *
+     * @param keyEncryptionKey
+     *     the AES key-encryption key
+     * @param wrappedKey
+     *     the wrapped key
+     * @param algorithm
+     *     the algorithm of the wrapped key
+     * @param wrapMode
+     *     the key wrap mode used to wrap the key
+     * @return the unwrapped key
+     * @throws GeneralSecurityException
+     *     if the key cannot be unwrapped, e.g. due to a failed integrity check
+     */
+    protected static SecretKeySpec unwrapKey(final Key keyEncryptionKey, final byte[] wrappedKey, final String algorithm,
+            final String wrapMode) throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("wrappedKey", wrappedKey);
+        ParameterCheck.mandatoryString("algorithm", algorithm);
+
+        final Cipher cipher = getInitialisedKeyWrapCipher(keyEncryptionKey, wrapMode, false);
+        try
+        {
+            final Key key = cipher.unwrap(wrappedKey, algorithm, Cipher.SECRET_KEY);
+            return new SecretKeySpec(key.getEncoded(), algorithm);
+        }
+        finally
+        {
+            CIPHER_POOL.release(cipher, keyEncryptionKey);
+        }
+    }
+
+    /**
+     * Sets the maximum number of idle cipher instances to keep per transformation.
+     *
+     * @param maxPooledCiphers
+     *     the maximum number of idle cipher instances - if {@code 0} or less, cipher instances are not pooled at all
+     */
+    protected static void setMaxPooledCiphers(final int maxPooledCiphers)
+    {
+        CIPHER_POOL.setMaxPooledPerTransformation(maxPooledCiphers);
+    }
+
+    /**
+     * Retrieves the statistics of the pool of cipher instances.
+     *
+     * @return the current statistics (size, transformations, hits, misses, discards) keyed by name
+     */
+    protected static Map<String, Long> getCipherPoolStatistics()
+    {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("size", Long.valueOf(CIPHER_POOL.size()));
+        statistics.put("maxSizePerTransformation", Long.valueOf(CIPHER_POOL.getMaxPooledPerTransformation()));
+        statistics.put("transformations", Long.valueOf(CIPHER_POOL.getTransformationCount()));
+        statistics.put("hits", Long.valueOf(CIPHER_POOL.getHits()));
+        statistics.put("misses", Long.valueOf(CIPHER_POOL.getMisses()));
+        statistics.put("discards", Long.valueOf(CIPHER_POOL.getDiscards()));
+        return statistics;
+    }
+
+    /**
+     * Acquires a direct buffer for use by encryption / decryption channels. The buffer should be {@link #releaseBuffer(ByteBuffer)
+     * released} once it is no longer used.
+     *
+     * @return the cleared buffer
+     */
+    protected static ByteBuffer acquireBuffer()
+    {
+        return BUFFER_POOL.acquire();
+    }
+
+    /**
+     * Releases a direct buffer which is no longer used so that it may be reused by other encryption / decryption channels.
+     *
+     * @param buffer
+     *     the buffer to release - may be {@code null}
+     */
+    protected static void releaseBuffer(final ByteBuffer buffer)
+    {
+        BUFFER_POOL.release(buffer);
+    }
+
+    /**
+     * Configures the pool of direct buffers for use by encryption / decryption channels.
+     *
+     * @param bufferSize
+     *     the size of buffers in bytes
+     * @param maxIdleBuffers
+     *     the maximum number of idle buffers to keep - if {@code 0} or less, buffers are not pooled at all
+     */
+    protected static void configureBufferPool(final int bufferSize, final int maxIdleBuffers)
+    {
+        BUFFER_POOL.configure(Math.max(MIN_BUFFER_SIZE, bufferSize), maxIdleBuffers);
+    }
+
+    /**
+     * Retrieves the statistics of the pool of direct buffers.
+     *
+     * @return the current statistics (size, maxSize, bufferSize, hits, misses, discards) keyed by name
+     */
+    protected static Map<String, Long> getBufferPoolStatistics()
+    {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("size", Long.valueOf(BUFFER_POOL.size()));
+        statistics.put("maxSize", Long.valueOf(BUFFER_POOL.getMaxIdleBuffers()));
+        statistics.put("bufferSize", Long.valueOf(BUFFER_POOL.getBufferSize()));
+        statistics.put("hits", Long.valueOf(BUFFER_POOL.getHits()));
+        statistics.put("misses", Long.valueOf(BUFFER_POOL.getMisses()));
+        statistics.put("discards", Long.valueOf(BUFFER_POOL.getDiscards()));
+        return statistics;
+    }
+
+    /**
+     * Retrieves the block size of the cipher used to encrypt / decrypt content in a {@link EncryptedContentHeader seekable format} with a
+     * specific key.
+     *
+     * @param key
+     *     the key to use for encryption / decryption
+     * @return the block size of the cipher, or {@code 0} if the key does not use a block cipher and cannot be used for seekable encryption
+     * @throws GeneralSecurityException
+     *     if the cipher cannot be resolved
+     */
+    protected static int getSeekableCipherBlockSize(final Key key) throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("key", key);
+
+        return getBlockSize(key.getAlgorithm());
+    }
+
+    /**
+     * Retrieves an initialised cipher to encrypt / decrypt content in a {@link EncryptedContentHeader seekable format}, using the block
+     * cipher in counter mode. As counter mode turns the block cipher into a stream cipher, encrypting / decrypting can start at the start
+     * of any block by offsetting the initial counter value. The cipher should be {@link #releaseCipher(Cipher, Key) released} once it is no
+     * longer used.
+     *
+     * @param key
+     *     the key to use for encryption / decryption
+     * @param encrypt
+     *     {@code true} if the cipher should be initialised for encryption, {@code false} for decryption
+     * @param iv
+     *     the initial counter value for the first block of the content
+     * @param blockOffset
+     *     the index of the block from which to start encrypting / decrypting
+     * @return the initialised cipher
+     * @throws GeneralSecurityException
+     *     if the cipher cannot be resolved / initialised
+     */
+    protected static Cipher getInitialisedSeekableCipher(final Key key, final boolean encrypt, final byte[] iv, final long blockOffset)
+            throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("key", key);
+        ParameterCheck.mandatory("iv", iv);
+
+        final Cipher cipher = CIPHER_POOL.acquire(key.getAlgorithm() + "/" + SEEKABLE_MODE, key);
+        if (cipher.getBlockSize() != iv.length)
+        {
+            throw new GeneralSecurityException("Initial counter value does not match cipher block size");
+        }
+
+        byte[] counter = iv;
+        if (blockOffset > 0)
+        {
+            // counter mode increments the whole block as a big-endian integer, wrapping around on overflow
+            final byte[] offsetCounter = new BigInteger(1, iv).add(BigInteger.valueOf(blockOffset)).toByteArray();
+            counter = new byte[iv.length];
+            final int copyLength = Math.min(offsetCounter.length, counter.length);
+            System.arraycopy(offsetCounter, offsetCounter.length - copyLength, counter, counter.length - copyLength, copyLength);
+        }
+
+        cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter));
+        return cipher;
+    }
+
+    private static int getBlockSize(final String algorithm) throws GeneralSecurityException
+    {
+        Integer blockSize = BLOCK_SIZES_BY_ALGORITHM.get(algorithm);
+        if (blockSize == null)
+        {
+            blockSize = Integer.valueOf(Cipher.getInstance(algorithm).getBlockSize());
+            BLOCK_SIZES_BY_ALGORITHM.put(algorithm, blockSize);
+        }
+        return blockSize.intValue();
+    }
+
+    private static Cipher getInitialisedKeyWrapCipher(final Key keyEncryptionKey, final String wrapMode, final boolean wrap)
+            throws GeneralSecurityException
+    {
+        ParameterCheck.mandatory("keyEncryptionKey", keyEncryptionKey);
+        ParameterCheck.mandatoryString("wrapMode", wrapMode);
+
+        final String transformation = KEY_WRAP_TRANSFORMATIONS_BY_MODE.get(wrapMode);
+        if (transformation == null)
+        {
+            throw new NoSuchAlgorithmException("Unsupported key wrap mode " + wrapMode);
+        }
+
+        final Cipher cipher = CIPHER_POOL.acquire(transformation, keyEncryptionKey);
+        cipher.init(wrap ? Cipher.WRAP_MODE : Cipher.UNWRAP_MODE, keyEncryptionKey);
+        return cipher;
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class capture a bounded window from the start of the unencrypted content passing through to an encrypting channel, so
+ * that mimetype / encoding detection can be run on the captured bytes instead of having to decrypt the content again after it has been
+ * written. The window is allocated lazily and only grows as content is written, so that small content does not require a buffer of the
+ * full window size.
+ *
+ * @author Axel Faust
+ */
+public class ContentWindowCapturingChannel implements WritableByteChannel
+{
+
+    protected final WritableByteChannel delegateChannel;
+
+    protected final int windowSize;
+
+    protected byte[] window = new byte[0];
+
+    protected int windowLength;
+
+    protected boolean truncated;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param delegateChannel
+     *     the channel to which to write the unencrypted content
+     * @param windowSize
+     *     the maximum number of bytes to capture
+     */
+    public ContentWindowCapturingChannel(final WritableByteChannel delegateChannel, final int windowSize)
+    {
+        ParameterCheck.mandatory("delegateChannel", delegateChannel);
+        if (windowSize <= 0)
+        {
+            throw new IllegalArgumentException("windowSize must be a positive integer");
+        }
+
+        this.delegateChannel = delegateChannel;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return this.delegateChannel.isOpen();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.delegateChannel.close();
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException
+    {
+        // capture from a duplicate as the delegate may consume the buffer in any number of steps
+        final ByteBuffer captureSrc = src.duplicate();
+        final int bytesWritten = this.delegateChannel.write(src);
+
+        if (bytesWritten > 0)
+        {
+            final int capturable = Math.min(bytesWritten, this.windowSize - this.windowLength);
+            if (capturable > 0)
+            {
+                final int requiredLength = this.windowLength + capturable;
+                if (requiredLength > this.window.length)
+                {
+                    // grow geometrically to avoid repeated copies with many small writes
+                    final int newLength = Math.min(this.windowSize, Math.max(requiredLength, 2 * this.window.length));
+                    this.window = Arrays.copyOf(this.window, newLength);
+                }
+                captureSrc.get(this.window, this.windowLength, capturable);
+                this.windowLength += capturable;
+            }
+            this.truncated = this.truncated || capturable < bytesWritten;
+        }
+
+        return bytesWritten;
+    }
+
+    /**
+     * @return the captured bytes from the start of the content
+     */
+    public byte[] getWindow()
+    {
+        return this.windowLength == this.window.length ? this.window : Arrays.copyOf(this.window, this.windowLength);
+    }
+
+    /**
+     * @return {@code true} if the content was larger than the captured window, {@code false} if the window contains the complete content
+     */
+    public boolean isTruncated()
+    {
+        return this.truncated;
+    }
+}
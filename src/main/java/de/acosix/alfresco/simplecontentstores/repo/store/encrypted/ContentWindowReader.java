@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.alfresco.repo.content.AbstractContentReader;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.ByteBufferByteChannel;
+
+/**
+ * Instances of this class provide read access to a {@link ContentWindowCapturingChannel captured window} of unencrypted content, solely
+ * for the purpose of running mimetype detection without decrypting the written content again.
+ *
+ * @author Axel Faust
+ */
+public class ContentWindowReader extends AbstractContentReader
+{
+
+    protected final byte[] window;
+
+    protected final long lastModified = System.currentTimeMillis();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param contentUrl
+     *     the URL of the content from which the window was captured
+     * @param window
+     *     the captured bytes
+     */
+    public ContentWindowReader(final String contentUrl, final byte[] window)
+    {
+        super(contentUrl);
+        ParameterCheck.mandatory("window", window);
+        this.window = window;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean exists()
+    {
+        return true;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize()
+    {
+        return this.window.length;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastModified()
+    {
+        return this.lastModified;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected ContentReader createReader() throws ContentIOException
+    {
+        return new ContentWindowReader(this.getContentUrl(), this.window);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    protected ReadableByteChannel getDirectReadableChannel() throws ContentIOException
+    {
+        return new ByteBufferByteChannel(ByteBuffer.wrap(this.window).asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class provide a size- and time-bounded, strictly node-local cache of decrypted symmetric content encryption keys,
+ * keyed by the ID of the content URL key entity from which they were decrypted. This cache must never be replaced with an Alfresco
+ * {@link org.alfresco.repo.cache.SimpleCache} as those may be distributed / replicated in a cluster, exposing plain key material.
+ *
+ * Only the raw key bytes are held by this cache, so that they can be zeroed when an entry is evicted or the cache is cleared. Each hit
+ * constructs a new {@link SecretKeySpec} instance for use by the caller.
+ *
+ * @author Axel Faust
+ */
+public class DecryptedKeyCache
+{
+
+    protected final int maxItems;
+
+    protected final long timeToLiveMillis;
+
+    protected final Map<Long, CachedKey> entries;
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong evictions = new AtomicLong();
+
+    protected long lastPurge;
+
+    /**
+     * Creates a new instance of this cache.
+     *
+     * @param maxItems
+     *     the maximum number of keys to keep - if {@code 0} or less, no keys will be cached at all
+     * @param timeToLiveSeconds
+     *     the number of seconds a key may be kept after it has been put into the cache - if {@code 0} or less, keys are only evicted
+     *     based on the size limit
+     */
+    public DecryptedKeyCache(final int maxItems, final int timeToLiveSeconds)
+    {
+        this.maxItems = maxItems;
+        this.timeToLiveMillis = timeToLiveSeconds > 0 ? timeToLiveSeconds * 1000L : 0;
+        this.entries = new LinkedHashMap<Long, CachedKey>(Math.max(16, Math.min(maxItems, 1024)), 0.75f, true)
+        {
+
+            private static final long serialVersionUID = -2811426045584567717L;
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, CachedKey> eldest)
+            {
+                final boolean remove = this.size() > DecryptedKeyCache.this.maxItems;
+                if (remove)
+                {
+                    eldest.getValue().destroy();
+                    DecryptedKeyCache.this.evictions.incrementAndGet();
+                }
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * Retrieves a cached key.
+     *
+     * @param keyEntityId
+     *     the ID of the content URL key entity
+     * @return the cached key or {@code null} if no key is cached for the entity ID
+     */
+    public SecretKeySpec get(final Long keyEntityId)
+    {
+        ParameterCheck.mandatory("keyEntityId", keyEntityId);
+
+        SecretKeySpec key = null;
+        if (this.maxItems > 0)
+        {
+            synchronized (this.entries)
+            {
+                final CachedKey cachedKey = this.entries.get(keyEntityId);
+                if (cachedKey != null)
+                {
+                    if (cachedKey.isExpired(System.currentTimeMillis()))
+                    {
+                        this.entries.remove(keyEntityId);
+                        cachedKey.destroy();
+                        this.evictions.incrementAndGet();
+                    }
+                    else
+                    {
+                        key = cachedKey.toKeySpec();
+                    }
+                }
+            }
+        }
+
+        if (key != null)
+        {
+            this.hits.incrementAndGet();
+        }
+        else
+        {
+            this.misses.incrementAndGet();
+        }
+        return key;
+    }
+
+    /**
+     * Puts a key into this cache.
+     *
+     * @param keyEntityId
+     *     the ID of the content URL key entity
+     * @param key
+     *     the decrypted key
+     */
+    public void put(final Long keyEntityId, final SecretKeySpec key)
+    {
+        ParameterCheck.mandatory("keyEntityId", keyEntityId);
+        ParameterCheck.mandatory("key", key);
+
+        if (this.maxItems > 0)
+        {
+            final long expiresAt = this.timeToLiveMillis > 0 ? System.currentTimeMillis() + this.timeToLiveMillis : Long.MAX_VALUE;
+            // getEncoded() always provides a copy, so we exclusively own the bytes
+            final CachedKey cachedKey = new CachedKey(key.getEncoded(), key.getAlgorithm(), expiresAt);
+            synchronized (this.entries)
+            {
+                final CachedKey replacedKey = this.entries.put(keyEntityId, cachedKey);
+                if (replacedKey != null)
+                {
+                    replacedKey.destroy();
+                }
+                this.purgeExpired(System.currentTimeMillis());
+            }
+        }
+    }
+
+    /**
+     * Removes a key from this cache, zeroing its bytes.
+     *
+     * @param keyEntityId
+     *     the ID of the content URL key entity
+     */
+    public void remove(final Long keyEntityId)
+    {
+        ParameterCheck.mandatory("keyEntityId", keyEntityId);
+
+        synchronized (this.entries)
+        {
+            final CachedKey removedKey = this.entries.remove(keyEntityId);
+            if (removedKey != null)
+            {
+                removedKey.destroy();
+            }
+        }
+    }
+
+    /**
+     * Clears this cache, zeroing the bytes of all contained keys.
+     */
+    public void clear()
+    {
+        synchronized (this.entries)
+        {
+            this.entries.values().forEach(CachedKey::destroy);
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of currently cached keys
+     */
+    public int size()
+    {
+        synchronized (this.entries)
+        {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return the number of lookups which were served from this cache
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups which could not be served from this cache
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of keys which have been evicted due to size or time-to-live constraints
+     */
+    public long getEvictions()
+    {
+        return this.evictions.get();
+    }
+
+    /**
+     * Purges expired entries from this cache. This operation must be called while holding the monitor of {@link #entries}.
+     *
+     * @param now
+     *     the current time in milliseconds
+     */
+    protected void purgeExpired(final long now)
+    {
+        // limit full scans to at most once per second
+        if (this.timeToLiveMillis > 0 && now - this.lastPurge >= 1000)
+        {
+            this.lastPurge = now;
+            // with access order, the first entries are the least recently used, not necessarily the oldest - full scan is limited by size
+            final Iterator<CachedKey> iterator = this.entries.values().iterator();
+            while (iterator.hasNext())
+            {
+                final CachedKey cachedKey = iterator.next();
+                if (cachedKey.isExpired(now))
+                {
+                    iterator.remove();
+                    cachedKey.destroy();
+                    this.evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @author Axel Faust
+     */
+    protected static class CachedKey
+    {
+
+        protected final byte[] keyBytes;
+
+        protected final String algorithm;
+
+        protected final long expiresAt;
+
+        protected CachedKey(final byte[] keyBytes, final String algorithm, final long expiresAt)
+        {
+            this.keyBytes = keyBytes;
+            this.algorithm = algorithm;
+            this.expiresAt = expiresAt;
+        }
+
+        protected boolean isExpired(final long now)
+        {
+            return now >= this.expiresAt;
+        }
+
+        protected SecretKeySpec toKeySpec()
+        {
+            return new SecretKeySpec(this.keyBytes, this.algorithm);
+        }
+
+        protected void destroy()
+        {
+            Arrays.fill(this.keyBytes, (byte) 0);
+        }
+    }
+}
@@ -15,15 +15,25 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.facade.ContentReaderFacade;
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.SeekableChannelInputStream;
 
 /**
  * @author Axel Faust
@@ -31,17 +41,33 @@ import de.acosix.alfresco.simplecontentstores.repo.store.facade.ContentReaderFac
 public class DecryptingContentReaderFacade extends ContentReaderFacade
 {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(DecryptingContentReaderFacade.class);
+
+    /**
+     * The value for the unencrypted size of content if it is not known in advance and should be determined from the content itself.
+     */
+    public static final long UNKNOWN_SIZE = -1;
+
     protected final Key key;
 
     protected long unencryptedSize;
 
+    protected final ParallelCipherSettings parallelCipherSettings;
+
     protected DecryptingContentReaderFacade(final ContentReader delegate, final Key key, final long unencryptedSize)
+    {
+        this(delegate, key, unencryptedSize, null);
+    }
+
+    protected DecryptingContentReaderFacade(final ContentReader delegate, final Key key, final long unencryptedSize,
+            final ParallelCipherSettings parallelCipherSettings)
     {
         super(delegate);
 
         ParameterCheck.mandatory("key", key);
         this.key = key;
         this.unencryptedSize = unencryptedSize;
+        this.parallelCipherSettings = parallelCipherSettings;
     }
 
     /**
@@ -50,6 +76,10 @@ public class DecryptingContentReaderFacade extends ContentReaderFacade
     @Override
     public long getSize()
     {
+        if (this.unencryptedSize == UNKNOWN_SIZE)
+        {
+            this.unencryptedSize = this.determineUnencryptedSize();
+        }
         return this.unencryptedSize;
     }
 
@@ -61,7 +91,7 @@ public class DecryptingContentReaderFacade extends ContentReaderFacade
     {
         final ContentData contentData = super.getContentData();
         // correct size
-        final ContentData updatedData = new ContentData(contentData.getContentUrl(), contentData.getMimetype(), this.unencryptedSize,
+        final ContentData updatedData = new ContentData(contentData.getContentUrl(), contentData.getMimetype(), this.getSize(),
                 contentData.getEncoding(), contentData.getLocale());
         return updatedData;
     }
@@ -72,7 +102,7 @@ public class DecryptingContentReaderFacade extends ContentReaderFacade
     @Override
     public ContentReader getReader() throws ContentIOException
     {
-        return new DecryptingContentReaderFacade(super.getReader(), this.key, this.unencryptedSize);
+        return new DecryptingContentReaderFacade(super.getReader(), this.key, this.unencryptedSize, this.parallelCipherSettings);
     }
 
     /**
@@ -82,7 +112,92 @@ public class DecryptingContentReaderFacade extends ContentReaderFacade
     public ReadableByteChannel getReadableChannel() throws ContentIOException
     {
         final ReadableByteChannel channel = super.getReadableChannel();
-        final ReadableByteChannel eChannel = new DecryptingReadableByteChannel(channel, this.key);
+        final ReadableByteChannel eChannel;
+        try
+        {
+            final ByteBuffer prefix = ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH);
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(channel, prefix);
+            if (header == null)
+            {
+                // legacy format without header - bytes read for detection are actual content
+                eChannel = new DecryptingReadableByteChannel(channel, this.key, prefix);
+            }
+            else if (!header.matchesKey(this.key))
+            {
+                throw new IOException("Symmetric content key does not match the key check value recorded in the content header");
+            }
+            else if (channel instanceof SeekableByteChannel && this.parallelCipherSettings != null)
+            {
+                eChannel = new ParallelDecryptingFileChannel((SeekableByteChannel) channel, this.key, header, this.parallelCipherSettings);
+            }
+            else if (channel instanceof SeekableByteChannel)
+            {
+                eChannel = new DecryptingFileChannel((SeekableByteChannel) channel, this.key, header);
+            }
+            else
+            {
+                eChannel = new DecryptingReadableByteChannel(channel, this.key, header.getInitialisedCipher(this.key, false, 0));
+            }
+        }
+        catch (final IOException | GeneralSecurityException e)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (final IOException ignore)
+            {
+                // NO-OP
+            }
+            throw new ContentIOException("Failed to initialise decryption of content", e);
+        }
         return eChannel;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getContentInputStream() throws ContentIOException
+    {
+        final ReadableByteChannel channel = this.getReadableChannel();
+        final InputStream is;
+        if (channel instanceof SeekableByteChannel)
+        {
+            // support efficient skipping, e.g. for HTTP range requests
+            is = new BufferedInputStream(new SeekableChannelInputStream((SeekableByteChannel) channel));
+        }
+        else
+        {
+            is = new BufferedInputStream(Channels.newInputStream(channel));
+        }
+        return is;
+    }
+
+    protected long determineUnencryptedSize()
+    {
+        final long encryptedSize = super.getSize();
+        long size;
+        // use a separate reader as our delegate only supports opening a single channel
+        try (ReadableByteChannel channel = super.getReader().getReadableChannel())
+        {
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(channel,
+                    ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+            if (header != null)
+            {
+                size = header.getPlaintextLength(encryptedSize);
+            }
+            else
+            {
+                // legacy format uses padding - without decrypting, the encrypted size is the best available approximation
+                LOGGER.debug("Unencrypted size of content {} in legacy format is unknown - using encrypted size", this.getContentUrl());
+                size = encryptedSize;
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new ContentIOException("Failed to determine unencrypted size of content", e);
+        }
+        return size;
+    }
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class provide read-only, random access to content encrypted in the {@link EncryptedContentHeader versioned, seekable
+ * format}. Only the blocks covering the requested range are read and decrypted from the backing channel, so that the cost of reading at an
+ * arbitrary position does not depend on the position itself.
+ *
+ * @author Axel Faust
+ */
+public class DecryptingFileChannel extends FileChannel
+{
+
+    protected final SeekableByteChannel delegateChannel;
+
+    protected final Key key;
+
+    protected final EncryptedContentHeader header;
+
+    protected ByteBuffer readBuffer = CipherUtil.acquireBuffer();
+
+    // lazily acquired as only transferTo needs an intermediary buffer for decrypted content
+    protected ByteBuffer transferBuffer;
+
+    protected Cipher cipher;
+
+    protected long position;
+
+    // the position of the unencrypted content the cipher is currently aligned to, -1 if the cipher requires (re-)initialisation
+    protected long cipherPosition = -1;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param delegateChannel
+     *     the channel providing the encrypted content, including the header
+     * @param key
+     *     the symmetric content decryption key
+     * @param header
+     *     the header read from the content
+     */
+    public DecryptingFileChannel(final SeekableByteChannel delegateChannel, final Key key, final EncryptedContentHeader header)
+    {
+        ParameterCheck.mandatory("delegateChannel", delegateChannel);
+        ParameterCheck.mandatory("key", key);
+        ParameterCheck.mandatory("header", header);
+
+        this.delegateChannel = delegateChannel;
+        this.key = key;
+        this.header = header;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException
+    {
+        final int bytesRead = this.readImpl(dst, this.position);
+        if (bytesRead > 0)
+        {
+            this.position += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException
+    {
+        long totalBytesRead = 0;
+        for (int idx = offset; idx < offset + length; idx++)
+        {
+            while (dsts[idx].hasRemaining())
+            {
+                final int bytesRead = this.read(dsts[idx]);
+                if (bytesRead == -1)
+                {
+                    return totalBytesRead == 0 ? -1 : totalBytesRead;
+                }
+                totalBytesRead += bytesRead;
+            }
+        }
+        return totalBytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst, final long position) throws IOException
+    {
+        if (position < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        return this.readImpl(dst, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src, final long position) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long position() throws IOException
+    {
+        this.ensureOpen();
+        return this.position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized FileChannel position(final long newPosition) throws IOException
+    {
+        this.ensureOpen();
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long size() throws IOException
+    {
+        this.ensureOpen();
+        // counter mode does not use any padding, so encrypted content is just as large as unencrypted content
+        return Math.max(0, this.delegateChannel.size() - this.header.getLength());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel truncate(final long size) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force(final boolean metaData) throws IOException
+    {
+        this.ensureOpen();
+        // NO-OP - read-only channel
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException
+    {
+        this.ensureOpen();
+        if (this.transferBuffer == null)
+        {
+            this.transferBuffer = CipherUtil.acquireBuffer();
+        }
+
+        final ByteBuffer buffer = this.transferBuffer;
+        long transferred = 0;
+        while (transferred < count)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            final int bytesRead = this.readImpl(buffer, position + transferred);
+            if (bytesRead <= 0)
+            {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                target.write(buffer);
+            }
+            transferred += bytesRead;
+        }
+        return transferred;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException
+    {
+        throw new UnsupportedOperationException("Encrypted content cannot be memory-mapped");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new UnsupportedOperationException("Encrypted content cannot be locked");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new UnsupportedOperationException("Encrypted content cannot be locked");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        synchronized (this)
+        {
+            CipherUtil.releaseCipher(this.cipher, this.key);
+            this.cipher = null;
+            this.cipherPosition = -1;
+
+            CipherUtil.releaseBuffer(this.readBuffer);
+            CipherUtil.releaseBuffer(this.transferBuffer);
+            this.readBuffer = null;
+            this.transferBuffer = null;
+        }
+        this.delegateChannel.close();
+    }
+
+    protected int readImpl(final ByteBuffer dst, final long position) throws IOException
+    {
+        this.ensureOpen();
+
+        final long size = this.size();
+        int bytesRead;
+        if (position >= size)
+        {
+            bytesRead = -1;
+        }
+        else if (!dst.hasRemaining())
+        {
+            bytesRead = 0;
+        }
+        else
+        {
+            this.alignCipher(position);
+
+            this.readBuffer.clear();
+            this.readBuffer.limit((int) Math.min(Math.min(this.readBuffer.capacity(), dst.remaining()), size - position));
+
+            this.delegateChannel.position(this.header.getLength() + position);
+            int delegateBytesRead = 0;
+            while (this.readBuffer.hasRemaining() && delegateBytesRead != -1)
+            {
+                delegateBytesRead = this.delegateChannel.read(this.readBuffer);
+            }
+            this.readBuffer.flip();
+
+            try
+            {
+                // counter mode is a stream mode, so all input is processed immediately without buffering
+                bytesRead = this.cipher.update(this.readBuffer, dst);
+            }
+            catch (final ShortBufferException e)
+            {
+                throw new IOException("Unexpected decryption error", e);
+            }
+            this.cipherPosition = position + bytesRead;
+
+            if (bytesRead == 0)
+            {
+                bytesRead = -1;
+            }
+        }
+        return bytesRead;
+    }
+
+    protected void alignCipher(final long position) throws IOException
+    {
+        if (this.cipherPosition != position)
+        {
+            final int blockSize = this.header.getBlockSize();
+            final long blockOffset = position / blockSize;
+            final int blockRemainder = (int) (position % blockSize);
+
+            try
+            {
+                CipherUtil.releaseCipher(this.cipher, this.key);
+                this.cipher = null;
+                this.cipher = this.header.getInitialisedCipher(this.key, false, blockOffset);
+                if (blockRemainder > 0)
+                {
+                    // consume the key stream up to the position within the block
+                    this.cipher.update(new byte[blockRemainder]);
+                }
+            }
+            catch (final GeneralSecurityException e)
+            {
+                throw new IOException("Error initialising cipher", e);
+            }
+
+            this.cipherPosition = position;
+        }
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (!this.isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -35,21 +35,45 @@ import org.alfresco.service.cmr.repository.ContentIOException;
 public class DecryptingReadableByteChannel implements ReadableByteChannel
 {
 
+    private static final ByteBuffer EMPTY_INPUT = ByteBuffer.allocate(0);
+
     protected final ReadableByteChannel delegateChannel;
 
+    protected final Key key;
+
     protected final Cipher cipher;
 
     protected ByteBuffer decryptedInputBuffer;
 
-    protected final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+    protected ByteBuffer readBuffer = CipherUtil.acquireBuffer();
+
+    protected final ByteBuffer pendingInput;
 
     protected volatile boolean open = true;
 
     protected volatile boolean readToEnd = false;
 
     public DecryptingReadableByteChannel(final ReadableByteChannel delegateChannel, final Key key)
+    {
+        this(delegateChannel, key, (ByteBuffer) null);
+    }
+
+    /**
+     * Creates a new instance of this class for content in the legacy format.
+     *
+     * @param delegateChannel
+     *     the channel from which to read the encrypted content
+     * @param key
+     *     the symmetric content decryption key
+     * @param pendingInput
+     *     the encrypted bytes which have already been read from the start of the delegate channel, e.g. to check for a
+     *     {@link EncryptedContentHeader header} - may be {@code null}
+     */
+    public DecryptingReadableByteChannel(final ReadableByteChannel delegateChannel, final Key key, final ByteBuffer pendingInput)
     {
         this.delegateChannel = delegateChannel;
+        this.pendingInput = pendingInput;
+        this.key = key;
 
         try
         {
@@ -61,6 +85,39 @@ public class DecryptingReadableByteChannel implements ReadableByteChannel
         }
     }
 
+    /**
+     * Creates a new instance of this class using a specific, pre-initialised cipher.
+     *
+     * @param delegateChannel
+     *     the channel from which to read the encrypted content
+     * @param cipher
+     *     the cipher initialised for decryption from the current position of the delegate channel
+     */
+    public DecryptingReadableByteChannel(final ReadableByteChannel delegateChannel, final Cipher cipher)
+    {
+        this(delegateChannel, null, cipher);
+    }
+
+    /**
+     * Creates a new instance of this class using a specific, pre-initialised cipher which will be released for reuse when this channel is
+     * closed.
+     *
+     * @param delegateChannel
+     *     the channel from which to read the encrypted content
+     * @param key
+     *     the symmetric content decryption key with which the cipher has been initialised - may be {@code null} if the cipher should not
+     *     be released for reuse
+     * @param cipher
+     *     the cipher initialised for decryption from the current position of the delegate channel
+     */
+    public DecryptingReadableByteChannel(final ReadableByteChannel delegateChannel, final Key key, final Cipher cipher)
+    {
+        this.delegateChannel = delegateChannel;
+        this.key = key;
+        this.cipher = cipher;
+        this.pendingInput = null;
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -82,8 +139,13 @@ public class DecryptingReadableByteChannel implements ReadableByteChannel
             return;
         }
 
-        this.delegateChannel.close();
         this.open = false;
+        CipherUtil.releaseCipher(this.cipher, this.key);
+        CipherUtil.releaseBuffer(this.readBuffer);
+        CipherUtil.releaseBuffer(this.decryptedInputBuffer);
+        this.readBuffer = null;
+        this.decryptedInputBuffer = null;
+        this.delegateChannel.close();
     }
 
     /**
@@ -140,6 +202,13 @@ public class DecryptingReadableByteChannel implements ReadableByteChannel
         if (!this.readToEnd)
         {
             this.readBuffer.clear();
+            // leave room for any block buffered in the cipher so that decrypted output always fits the (pooled) buffer
+            this.readBuffer.limit(this.readBuffer.capacity() - 2 * this.cipher.getBlockSize());
+
+            if (this.pendingInput != null && this.pendingInput.hasRemaining())
+            {
+                this.readBuffer.put(this.pendingInput);
+            }
 
             int bytesRead = 0;
             while (this.readBuffer.hasRemaining() && bytesRead != -1)
@@ -150,8 +219,15 @@ public class DecryptingReadableByteChannel implements ReadableByteChannel
             this.readBuffer.flip();
             final int expectedDecryptedSize = this.cipher.getOutputSize(this.readBuffer.limit());
 
-            if (this.decryptedInputBuffer == null || this.decryptedInputBuffer.capacity() < expectedDecryptedSize)
+            if (this.decryptedInputBuffer == null)
+            {
+                this.decryptedInputBuffer = CipherUtil.acquireBuffer();
+            }
+
+            if (this.decryptedInputBuffer.capacity() < expectedDecryptedSize)
             {
+                // should not occur with pooled buffers - released buffer will be discarded by pool due to mismatched capacity
+                CipherUtil.releaseBuffer(this.decryptedInputBuffer);
                 this.decryptedInputBuffer = ByteBuffer.allocateDirect(expectedDecryptedSize);
             }
             else
@@ -166,8 +242,7 @@ public class DecryptingReadableByteChannel implements ReadableByteChannel
 
                 if (bytesRead == -1)
                 {
-                    final ByteBuffer finalInput = ByteBuffer.allocate(0);
-                    this.cipher.doFinal(finalInput, this.decryptedInputBuffer);
+                    this.cipher.doFinal(EMPTY_INPUT, this.decryptedInputBuffer);
 
                     this.readToEnd = true;
                 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instances of this class pool direct byte buffers of a uniform size for use by the encryption / decryption channels. Allocating and
+ * releasing direct buffers per channel puts pressure on the limit for direct memory and relies on the garbage collector to run the
+ * cleaners of unreachable buffers, so buffers are instead kept for reuse up to a configurable number of idle buffers. As buffers may hold
+ * decrypted content, they are zeroed when released, so that no content is leaked to the next user of a buffer or lingers in memory.
+ *
+ * @author Axel Faust
+ */
+public class DirectBufferPool
+{
+
+    protected final Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<>();
+
+    protected final AtomicInteger idleCount = new AtomicInteger();
+
+    protected final AtomicLong hits = new AtomicLong();
+
+    protected final AtomicLong misses = new AtomicLong();
+
+    protected final AtomicLong discards = new AtomicLong();
+
+    protected volatile int bufferSize;
+
+    protected volatile int maxIdleBuffers;
+
+    /**
+     * Creates a new instance of this pool.
+     *
+     * @param bufferSize
+     *     the size of buffers in bytes
+     * @param maxIdleBuffers
+     *     the maximum number of idle buffers to keep - if {@code 0} or less, buffers are not pooled at all
+     */
+    public DirectBufferPool(final int bufferSize, final int maxIdleBuffers)
+    {
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize must be a positive integer");
+        }
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /**
+     * Acquires a buffer from this pool. The buffer is cleared and should be {@link #release(ByteBuffer) released} once it is no longer
+     * used.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer buffer = this.idleBuffers.poll();
+        if (buffer != null)
+        {
+            this.idleCount.decrementAndGet();
+            this.hits.incrementAndGet();
+            buffer.clear();
+        }
+        else
+        {
+            this.misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Releases a buffer back to this pool. The buffer is zeroed before it is either pooled or discarded. Buffers not matching the currently
+     * configured buffer size are discarded.
+     *
+     * @param buffer
+     *     the buffer to release - may be {@code null} in which case this operation does nothing
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if (buffer != null)
+        {
+            zero(buffer);
+
+            if (buffer.isDirect() && buffer.capacity() == this.bufferSize && this.idleCount.incrementAndGet() <= this.maxIdleBuffers)
+            {
+                this.idleBuffers.offer(buffer);
+            }
+            else
+            {
+                if (buffer.isDirect() && buffer.capacity() == this.bufferSize)
+                {
+                    this.idleCount.decrementAndGet();
+                }
+                this.discards.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Overwrites the entire content of a buffer with zeros.
+     *
+     * @param buffer
+     *     the buffer to zero
+     */
+    protected static void zero(final ByteBuffer buffer)
+    {
+        buffer.clear();
+        while (buffer.remaining() >= Long.BYTES)
+        {
+            buffer.putLong(0L);
+        }
+        while (buffer.hasRemaining())
+        {
+            buffer.put((byte) 0);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Removes all idle buffers from this pool.
+     */
+    public void clear()
+    {
+        while (this.idleBuffers.poll() != null)
+        {
+            this.idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reconfigures this pool. Any idle buffers are discarded if the buffer size changes.
+     *
+     * @param bufferSize
+     *     the size of buffers in bytes
+     * @param maxIdleBuffers
+     *     the maximum number of idle buffers to keep - if {@code 0} or less, buffers are not pooled at all
+     */
+    public void configure(final int bufferSize, final int maxIdleBuffers)
+    {
+        if (bufferSize <= 0)
+        {
+            throw new IllegalArgumentException("bufferSize must be a positive integer");
+        }
+
+        final boolean sizeChanged = bufferSize != this.bufferSize;
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+        if (sizeChanged || maxIdleBuffers <= 0)
+        {
+            this.clear();
+        }
+    }
+
+    /**
+     * @return the size of buffers in bytes
+     */
+    public int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return the maximum number of idle buffers to keep
+     */
+    public int getMaxIdleBuffers()
+    {
+        return this.maxIdleBuffers;
+    }
+
+    /**
+     * @return the number of currently idle buffers
+     */
+    public int size()
+    {
+        return Math.max(0, this.idleCount.get());
+    }
+
+    /**
+     * @return the number of acquisitions which were served with an idle buffer
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of acquisitions which required the allocation of a new buffer
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of released buffers which were not pooled as the pool was full or the buffer size did not match
+     */
+    public long getDiscards()
+    {
+        return this.discards.get();
+    }
+}
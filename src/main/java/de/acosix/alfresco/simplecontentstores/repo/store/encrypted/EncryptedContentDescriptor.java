@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.util.Optional;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold all the details of a (potentially) encrypted content which have been resolved from the database in a
+ * single lookup, so that these details can be passed along the read path without requiring repeated lookups of the content URL entity.
+ *
+ * @author Axel Faust
+ */
+public class EncryptedContentDescriptor
+{
+
+    protected final String contentUrl;
+
+    protected final ContentUrlEntity contentUrlEntity;
+
+    protected SecretKeySpec decryptionKey;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param contentUrl
+     *     the URL of the content
+     * @param contentUrlEntity
+     *     the content URL entity resolved for the URL
+     */
+    public EncryptedContentDescriptor(final String contentUrl, final ContentUrlEntity contentUrlEntity)
+    {
+        ParameterCheck.mandatoryString("contentUrl", contentUrl);
+        ParameterCheck.mandatory("contentUrlEntity", contentUrlEntity);
+
+        this.contentUrl = contentUrl;
+        this.contentUrlEntity = contentUrlEntity;
+    }
+
+    /**
+     * @return the contentUrl
+     */
+    public String getContentUrl()
+    {
+        return this.contentUrl;
+    }
+
+    /**
+     * @return the contentUrlEntity
+     */
+    public ContentUrlEntity getContentUrlEntity()
+    {
+        return this.contentUrlEntity;
+    }
+
+    /**
+     * @return the content URL key entity associated with the content, or {@code null} if the content is not encrypted
+     */
+    public ContentUrlKeyEntity getContentUrlKeyEntity()
+    {
+        return this.contentUrlEntity.getContentUrlKey();
+    }
+
+    /**
+     * @return {@code true} if the content is encrypted, {@code false} otherwise
+     */
+    public boolean isEncrypted()
+    {
+        return this.contentUrlEntity.getContentUrlKey() != null;
+    }
+
+    /**
+     * @return the size of the content in its unencrypted form, or {@code null} if the content is not encrypted
+     */
+    public Long getUnencryptedSize()
+    {
+        final ContentUrlKeyEntity contentUrlKey = this.contentUrlEntity.getContentUrlKey();
+        return contentUrlKey != null ? contentUrlKey.getUnencryptedFileSize() : null;
+    }
+
+    /**
+     * Retrieves the decryption key previously resolved for the content.
+     *
+     * @return the decryption key if it has already been resolved, otherwise an unresolved value
+     */
+    public Optional<SecretKeySpec> getDecryptionKey()
+    {
+        return Optional.ofNullable(this.decryptionKey);
+    }
+
+    /**
+     * @param decryptionKey
+     *     the decryptionKey to set
+     */
+    public void setDecryptionKey(final SecretKeySpec decryptionKey)
+    {
+        this.decryptionKey = decryptionKey;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("EncryptedContentDescriptor [contentUrl=");
+        builder.append(this.contentUrl);
+        builder.append(", encrypted=");
+        builder.append(this.isEncrypted());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class represent the header of encrypted content stored in the versioned, seekable format. Content in the legacy format
+ * (block cipher in CBC mode with a zero initialisation vector) does not have any header and is identified by the lack of the
+ * {@link #MAGIC magic bytes} at the start of the content.
+ *
+ * The header is structured as follows:
+ * <ol>
+ * <li>{@link #MAGIC magic bytes}</li>
+ * <li>one byte for the format version</li>
+ * <li>one byte for the length of the initial counter value</li>
+ * <li>the initial counter value, equal in length to the cipher block size</li>
+ * </ol>
+ *
+ * In the {@link #VERSION_CTR_SELF_DESCRIBING self-describing version 2}, the header additionally contains:
+ * <ol>
+ * <li>eight bytes for the length of the unencrypted content, or {@code -1} if the length could not be recorded</li>
+ * <li>a {@link #KEY_CHECK_VALUE_LENGTH four byte} check value of the symmetric content key</li>
+ * <li>two bytes for the size of the symmetric content key in bits</li>
+ * <li>one byte for the length of the key algorithm name, followed by the name in US-ASCII</li>
+ * </ol>
+ * These details allow size queries and integrity checks (e.g. detecting truncated content or content / key mismatches) to be performed on
+ * the content alone, without having to look up the content URL key entity in the database. The ID of that entity is not recorded, as the
+ * header is written before any content, while the entity is only created once all content has been written - the check value links the
+ * content to its key instead.
+ *
+ * In both versions, the content following the header is encrypted using the block cipher of the symmetric content key in counter mode
+ * without padding, so that the encrypted content is exactly as long as the unencrypted content and decryption may start at any block.
+ *
+ * @author Axel Faust
+ */
+public class EncryptedContentHeader
+{
+
+    /**
+     * The magic bytes identifying content in the versioned format. Using eight bytes makes accidental matches with the start of random-like
+     * legacy content negligible.
+     */
+    protected static final byte[] MAGIC = { 'A', 'C', 'S', 'X', 'E', 'N', 'C', 0x1A };
+
+    /**
+     * The format version for content encrypted with a block cipher in counter mode.
+     */
+    public static final int VERSION_CTR = 1;
+
+    /**
+     * The format version for content encrypted with a block cipher in counter mode, including details about the content and key.
+     */
+    public static final int VERSION_CTR_SELF_DESCRIBING = 2;
+
+    /**
+     * The number of bytes which need to be read from the start of content to determine if it is in the versioned format and how long the
+     * header is.
+     */
+    public static final int PREFIX_LENGTH = MAGIC.length + 2;
+
+    /**
+     * The length of the key check value in the self-describing version of the format.
+     */
+    public static final int KEY_CHECK_VALUE_LENGTH = 4;
+
+    /**
+     * The value for the length of unencrypted content if it could not be recorded in the self-describing version of the format.
+     */
+    public static final long UNKNOWN_LENGTH = -1;
+
+    // length of unencrypted content, key check value, key size and length of key algorithm
+    private static final int SELF_DESCRIBING_FIXED_LENGTH = 8 + KEY_CHECK_VALUE_LENGTH + 2 + 1;
+
+    private static final String KEY_CHECK_VALUE_MAC_ALGORITHM = "HmacSHA256";
+
+    private static final byte[] KEY_CHECK_VALUE_LABEL = "acosix-simple-content-stores/keyCheckValue".getBytes(StandardCharsets.US_ASCII);
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    protected final int version;
+
+    protected final byte[] iv;
+
+    protected final long plaintextLength;
+
+    protected final byte[] keyCheckValue;
+
+    protected final int keySize;
+
+    protected final String keyAlgorithm;
+
+    protected EncryptedContentHeader(final int version, final byte[] iv)
+    {
+        this(version, iv, UNKNOWN_LENGTH, null, 0, null);
+    }
+
+    protected EncryptedContentHeader(final int version, final byte[] iv, final long plaintextLength, final byte[] keyCheckValue,
+            final int keySize, final String keyAlgorithm)
+    {
+        this.version = version;
+        this.iv = iv;
+        this.plaintextLength = plaintextLength;
+        this.keyCheckValue = keyCheckValue;
+        this.keySize = keySize;
+        this.keyAlgorithm = keyAlgorithm;
+    }
+
+    /**
+     * Creates a new header for content to be encrypted with a specific key.
+     *
+     * @param key
+     *     the symmetric content encryption key
+     * @return the new header
+     * @throws ContentIOException
+     *     if the key does not use a block cipher
+     */
+    public static EncryptedContentHeader newHeader(final Key key)
+    {
+        return newHeader(key, false);
+    }
+
+    /**
+     * Creates a new header for content to be encrypted with a specific key.
+     *
+     * @param key
+     *     the symmetric content encryption key
+     * @param selfDescribing
+     *     {@code true} if the header should use the {@link #VERSION_CTR_SELF_DESCRIBING self-describing version} of the format
+     * @return the new header
+     * @throws ContentIOException
+     *     if the key does not use a block cipher
+     */
+    public static EncryptedContentHeader newHeader(final Key key, final boolean selfDescribing)
+    {
+        ParameterCheck.mandatory("key", key);
+
+        final int blockSize;
+        try
+        {
+            blockSize = CipherUtil.getSeekableCipherBlockSize(key);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new ContentIOException("Error resolving cipher", e);
+        }
+
+        if (blockSize <= 0 || blockSize > 255)
+        {
+            throw new ContentIOException("Key algorithm " + key.getAlgorithm() + " does not support the seekable encryption format");
+        }
+
+        final byte[] iv = new byte[blockSize];
+        RNG.nextBytes(iv);
+
+        final EncryptedContentHeader header;
+        if (selfDescribing)
+        {
+            final byte[] algorithm = key.getAlgorithm().getBytes(StandardCharsets.US_ASCII);
+            if (algorithm.length > 255)
+            {
+                throw new ContentIOException("Key algorithm " + key.getAlgorithm() + " is too long to be recorded in the content header");
+            }
+            header = new EncryptedContentHeader(VERSION_CTR_SELF_DESCRIBING, iv, UNKNOWN_LENGTH, computeKeyCheckValue(key),
+                    key.getEncoded().length * 8, key.getAlgorithm());
+        }
+        else
+        {
+            header = new EncryptedContentHeader(VERSION_CTR, iv);
+        }
+        return header;
+    }
+
+    /**
+     * Computes the check value of a symmetric content key as recorded in the {@link #VERSION_CTR_SELF_DESCRIBING self-describing version}
+     * of the format. The check value is derived from the key using a keyed hash function, so that it neither reveals the key nor any part
+     * of the key stream used to encrypt the content.
+     *
+     * @param key
+     *     the symmetric content key
+     * @return the check value
+     */
+    public static byte[] computeKeyCheckValue(final Key key)
+    {
+        ParameterCheck.mandatory("key", key);
+        try
+        {
+            final Mac mac = Mac.getInstance(KEY_CHECK_VALUE_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key.getEncoded(), KEY_CHECK_VALUE_MAC_ALGORITHM));
+            return Arrays.copyOf(mac.doFinal(KEY_CHECK_VALUE_LABEL), KEY_CHECK_VALUE_LENGTH);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new ContentIOException("Error computing key check value", e);
+        }
+    }
+
+    /**
+     * Reads the header from the start of a content channel. The prefix used to detect the header is always read from the channel and
+     * provided via the {@code prefix} buffer, so that callers can process legacy content without the header.
+     *
+     * @param channel
+     *     the channel from which to read
+     * @param prefix
+     *     the buffer into which to read the prefix - must have a capacity of at least {@link #PREFIX_LENGTH} bytes and will be ready for
+     *     reading any bytes not consumed as part of the header upon return
+     * @return the header or {@code null} if the content is not in the versioned format
+     * @throws IOException
+     *     if an error occurs reading from the channel or the content is in an unsupported version of the format
+     */
+    public static EncryptedContentHeader readHeader(final ReadableByteChannel channel, final ByteBuffer prefix) throws IOException
+    {
+        ParameterCheck.mandatory("channel", channel);
+        ParameterCheck.mandatory("prefix", prefix);
+
+        prefix.clear();
+        prefix.limit(PREFIX_LENGTH);
+        readFully(channel, prefix);
+        prefix.flip();
+
+        EncryptedContentHeader header = null;
+        if (prefix.remaining() == PREFIX_LENGTH)
+        {
+            final byte[] magic = new byte[MAGIC.length];
+            prefix.mark();
+            prefix.get(magic);
+            if (Arrays.equals(MAGIC, magic))
+            {
+                final int version = prefix.get() & 0xFF;
+                final int ivLength = prefix.get() & 0xFF;
+                if (version != VERSION_CTR && version != VERSION_CTR_SELF_DESCRIBING)
+                {
+                    throw new IOException("Unsupported encrypted content format version " + version);
+                }
+
+                final ByteBuffer ivBuffer = ByteBuffer.allocate(ivLength);
+                readFully(channel, ivBuffer, true);
+
+                if (version == VERSION_CTR_SELF_DESCRIBING)
+                {
+                    final ByteBuffer detailsBuffer = ByteBuffer.allocate(SELF_DESCRIBING_FIXED_LENGTH);
+                    readFully(channel, detailsBuffer, true);
+                    detailsBuffer.flip();
+
+                    final long plaintextLength = detailsBuffer.getLong();
+                    final byte[] keyCheckValue = new byte[KEY_CHECK_VALUE_LENGTH];
+                    detailsBuffer.get(keyCheckValue);
+                    final int keySize = detailsBuffer.getShort() & 0xFFFF;
+                    final ByteBuffer algorithmBuffer = ByteBuffer.allocate(detailsBuffer.get() & 0xFF);
+                    readFully(channel, algorithmBuffer, true);
+
+                    header = new EncryptedContentHeader(version, ivBuffer.array(), plaintextLength, keyCheckValue, keySize,
+                            new String(algorithmBuffer.array(), StandardCharsets.US_ASCII));
+                }
+                else
+                {
+                    header = new EncryptedContentHeader(version, ivBuffer.array());
+                }
+            }
+            else
+            {
+                prefix.reset();
+            }
+        }
+
+        return header;
+    }
+
+    /**
+     * @return the version of the format
+     */
+    public int getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * @return the length of the header in bytes
+     */
+    public int getLength()
+    {
+        int length = PREFIX_LENGTH + this.iv.length;
+        if (this.version == VERSION_CTR_SELF_DESCRIBING)
+        {
+            length += SELF_DESCRIBING_FIXED_LENGTH + this.keyAlgorithm.length();
+        }
+        return length;
+    }
+
+    /**
+     * @return {@code true} if this header uses the {@link #VERSION_CTR_SELF_DESCRIBING self-describing version} of the format
+     */
+    public boolean isSelfDescribing()
+    {
+        return this.version == VERSION_CTR_SELF_DESCRIBING;
+    }
+
+    /**
+     * Retrieves the length of the unencrypted content as recorded in this header. Since the format does not use padding, the length can
+     * always be determined from the length of the encrypted content, even if it has not been recorded.
+     *
+     * @param encryptedLength
+     *     the length of the encrypted content, including this header
+     * @return the length of the unencrypted content
+     */
+    public long getPlaintextLength(final long encryptedLength)
+    {
+        return this.plaintextLength != UNKNOWN_LENGTH ? this.plaintextLength : Math.max(0, encryptedLength - this.getLength());
+    }
+
+    /**
+     * @return the length of the unencrypted content as recorded in this header, or {@link #UNKNOWN_LENGTH} if it has not been recorded
+     */
+    public long getRecordedPlaintextLength()
+    {
+        return this.plaintextLength;
+    }
+
+    /**
+     * @return the check value of the symmetric content key, or {@code null} if this header is not self-describing
+     */
+    public byte[] getKeyCheckValue()
+    {
+        return this.keyCheckValue != null ? this.keyCheckValue.clone() : null;
+    }
+
+    /**
+     * @return the size of the symmetric content key in bits, or {@code 0} if this header is not self-describing
+     */
+    public int getKeySize()
+    {
+        return this.keySize;
+    }
+
+    /**
+     * @return the algorithm of the symmetric content key, or {@code null} if this header is not self-describing
+     */
+    public String getKeyAlgorithm()
+    {
+        return this.keyAlgorithm;
+    }
+
+    /**
+     * Checks whether a symmetric content key matches the key check value recorded in this header.
+     *
+     * @param key
+     *     the key to check
+     * @return {@code true} if the key matches or this header is not self-describing, {@code false} otherwise
+     */
+    public boolean matchesKey(final Key key)
+    {
+        ParameterCheck.mandatory("key", key);
+        return this.keyCheckValue == null || (this.keyAlgorithm.equals(key.getAlgorithm())
+                && Arrays.equals(this.keyCheckValue, computeKeyCheckValue(key)));
+    }
+
+    /**
+     * Records the length of the unencrypted content in a header already written to a channel. This is only possible if the header is
+     * self-describing and the channel supports writing at absolute positions, as the length is not known when the header is written at
+     * the start of the content.
+     *
+     * @param channel
+     *     the channel to which the header and content have been written
+     * @param plaintextLength
+     *     the length of the unencrypted content
+     * @return {@code true} if the length has been recorded, {@code false} otherwise
+     * @throws IOException
+     *     if an error occurs writing to the channel
+     */
+    public boolean recordPlaintextLength(final WritableByteChannel channel, final long plaintextLength) throws IOException
+    {
+        ParameterCheck.mandatory("channel", channel);
+
+        boolean recorded = false;
+        if (this.version == VERSION_CTR_SELF_DESCRIBING && channel instanceof FileChannel)
+        {
+            final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+            lengthBuffer.putLong(plaintextLength);
+            lengthBuffer.flip();
+
+            long position = PREFIX_LENGTH + this.iv.length;
+            while (lengthBuffer.hasRemaining())
+            {
+                position += ((FileChannel) channel).write(lengthBuffer, position);
+            }
+            recorded = true;
+        }
+        return recorded;
+    }
+
+    /**
+     * @return the block size of the cipher used to encrypt the content
+     */
+    public int getBlockSize()
+    {
+        return this.iv.length;
+    }
+
+    /**
+     * Retrieves an initialised cipher to encrypt / decrypt the content starting at a specific block.
+     *
+     * @param key
+     *     the symmetric content key
+     * @param encrypt
+     *     {@code true} if the cipher should be initialised for encryption, {@code false} for decryption
+     * @param blockOffset
+     *     the index of the block from which to start encrypting / decrypting
+     * @return the initialised cipher
+     * @throws GeneralSecurityException
+     *     if the cipher cannot be resolved / initialised
+     */
+    public Cipher getInitialisedCipher(final Key key, final boolean encrypt, final long blockOffset) throws GeneralSecurityException
+    {
+        return CipherUtil.getInitialisedSeekableCipher(key, encrypt, this.iv, blockOffset);
+    }
+
+    /**
+     * @return a new buffer containing the binary form of this header, ready to be read / written to a channel
+     */
+    public ByteBuffer toByteBuffer()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(this.getLength());
+        buffer.put(MAGIC);
+        buffer.put((byte) this.version);
+        buffer.put((byte) this.iv.length);
+        buffer.put(this.iv);
+        if (this.version == VERSION_CTR_SELF_DESCRIBING)
+        {
+            buffer.putLong(this.plaintextLength);
+            buffer.put(this.keyCheckValue);
+            buffer.putShort((short) this.keySize);
+            buffer.put((byte) this.keyAlgorithm.length());
+            buffer.put(this.keyAlgorithm.getBytes(StandardCharsets.US_ASCII));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    protected static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer) throws IOException
+    {
+        readFully(channel, buffer, false);
+    }
+
+    protected static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer, final boolean failOnTruncation)
+            throws IOException
+    {
+        int bytesRead = 0;
+        while (buffer.hasRemaining() && bytesRead != -1)
+        {
+            bytesRead = channel.read(buffer);
+        }
+
+        if (failOnTruncation && buffer.hasRemaining())
+        {
+            throw new IOException("Truncated encrypted content header");
+        }
+    }
+}
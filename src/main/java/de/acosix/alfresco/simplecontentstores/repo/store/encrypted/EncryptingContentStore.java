@@ -15,20 +15,26 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.security.Key;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.spec.SecretKeySpec;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.domain.contentdata.ContentDataDAO;
-import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
+import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.util.PropertyCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
 import de.acosix.alfresco.simplecontentstores.repo.store.facade.CommonFacadingContentStore;
@@ -36,9 +42,13 @@ import de.acosix.alfresco.simplecontentstores.repo.store.facade.CommonFacadingCo
 /**
  * @author Axel Faust
  */
-public class EncryptingContentStore extends CommonFacadingContentStore
+public class EncryptingContentStore extends CommonFacadingContentStore implements DisposableBean
 {
 
+    private static final int DEFAULT_PARALLEL_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final int DEFAULT_CONTENT_WINDOW_SIZE = 64 * 1024;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(EncryptingContentStore.class);
 
     protected final String uuid = UUID.randomUUID().toString();
@@ -51,6 +61,22 @@ public class EncryptingContentStore extends CommonFacadingContentStore
 
     protected int keySize;
 
+    protected boolean seekableFormat;
+
+    protected boolean selfDescribingFormat;
+
+    protected int parallelCipherThreads;
+
+    protected int parallelCipherSegmentSize = DEFAULT_PARALLEL_SEGMENT_SIZE;
+
+    protected int parallelCipherMaxSegmentsInFlight;
+
+    protected int contentWindowSize = DEFAULT_CONTENT_WINDOW_SIZE;
+
+    protected ExecutorService parallelCipherExecutor;
+
+    protected ParallelCipherSettings parallelCipherSettings;
+
     /**
      *
      * {@inheritDoc}
@@ -63,9 +89,43 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         PropertyCheck.mandatory(this, "encryptingContentStoreManager", this.encryptingContentStoreManager);
         PropertyCheck.mandatory(this, "contentDataDAO", this.contentDataDAO);
 
+        if (this.selfDescribingFormat && !this.seekableFormat)
+        {
+            LOGGER.warn("The self-describing format has been configured for store {} without enabling the seekable format - "
+                    + "it will not be used for newly written content", this);
+        }
+
+        if (this.parallelCipherThreads > 1)
+        {
+            if (!this.seekableFormat)
+            {
+                LOGGER.warn("Parallel encryption has been configured for store {} without enabling the seekable format - "
+                        + "it will only apply to reading content already in the seekable format", this);
+            }
+
+            // fork-join workers are daemon threads, so an undisposed store will not block shutdown
+            this.parallelCipherExecutor = new ForkJoinPool(this.parallelCipherThreads);
+            this.parallelCipherSettings = new ParallelCipherSettings(this.parallelCipherExecutor, this.parallelCipherSegmentSize,
+                    this.parallelCipherMaxSegmentsInFlight > 0 ? this.parallelCipherMaxSegmentsInFlight : 2 * this.parallelCipherThreads);
+        }
+
         this.encryptingContentStoreManager.activate();
     }
 
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.parallelCipherExecutor != null)
+        {
+            this.parallelCipherExecutor.shutdown();
+            this.parallelCipherExecutor = null;
+        }
+    }
+
     /**
      * @param encryptingContentStoreManager
      *     the encryptingContentStoreManager to set
@@ -102,6 +162,60 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         this.keySize = keySize;
     }
 
+    /**
+     * @param seekableFormat
+     *     the seekableFormat to set
+     */
+    public void setSeekableFormat(final boolean seekableFormat)
+    {
+        this.seekableFormat = seekableFormat;
+    }
+
+    /**
+     * @param selfDescribingFormat
+     *     the selfDescribingFormat to set
+     */
+    public void setSelfDescribingFormat(final boolean selfDescribingFormat)
+    {
+        this.selfDescribingFormat = selfDescribingFormat;
+    }
+
+    /**
+     * @param parallelCipherThreads
+     *     the parallelCipherThreads to set
+     */
+    public void setParallelCipherThreads(final int parallelCipherThreads)
+    {
+        this.parallelCipherThreads = parallelCipherThreads;
+    }
+
+    /**
+     * @param parallelCipherSegmentSize
+     *     the parallelCipherSegmentSize to set
+     */
+    public void setParallelCipherSegmentSize(final int parallelCipherSegmentSize)
+    {
+        this.parallelCipherSegmentSize = parallelCipherSegmentSize;
+    }
+
+    /**
+     * @param parallelCipherMaxSegmentsInFlight
+     *     the parallelCipherMaxSegmentsInFlight to set
+     */
+    public void setParallelCipherMaxSegmentsInFlight(final int parallelCipherMaxSegmentsInFlight)
+    {
+        this.parallelCipherMaxSegmentsInFlight = parallelCipherMaxSegmentsInFlight;
+    }
+
+    /**
+     * @param contentWindowSize
+     *     the contentWindowSize to set
+     */
+    public void setContentWindowSize(final int contentWindowSize)
+    {
+        this.contentWindowSize = contentWindowSize;
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -114,13 +228,16 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         {
             final ContentReader backingReader = super.getReader(contentUrl);
             exists = backingReader != null;
-            if (exists)
+            // self-describing header can only have been written by an encrypting store, so no need to check the database
+            // content in any other format / written before the format was enabled still requires the check
+            final boolean selfDescribing = exists && this.selfDescribingFormat
+                    && this.readContentHeader(backingReader, contentUrl).filter(EncryptedContentHeader::isSelfDescribing).isPresent();
+            if (exists && !selfDescribing)
             {
                 // check if backing URL entity actually exists
                 // cannot be an existing encrypted content without entity required for associated key
                 final String effectiveContentUrl = backingReader.getContentUrl();
-                final ContentUrlEntity contentUrlEntity = this.contentDataDAO.getContentUrl(effectiveContentUrl);
-                exists = contentUrlEntity != null;
+                exists = this.encryptingContentStoreManager.getContentDescriptor(effectiveContentUrl).isPresent();
             }
         }
         return exists;
@@ -137,49 +254,39 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         if (backingReader != null && backingReader.exists())
         {
             final String effectiveContentUrl = backingReader.getContentUrl();
-            final Optional<SecretKeySpec> decryiptionKey;
-            boolean validReader = true;
-            if (contentUrl.startsWith(StoreConstants.WILDCARD_PROTOCOL))
-            {
-                // check if backing URL entity actually exists
-                // cannot be an existing encrypted content without entity required for associated key
-                final ContentUrlEntity contentUrlEntity = this.contentDataDAO.getContentUrl(effectiveContentUrl);
-                if (contentUrlEntity != null)
-                {
-                    decryiptionKey = this.encryptingContentStoreManager.getDecryiptionKey(effectiveContentUrl);
-                }
-                else
-                {
-                    decryiptionKey = Optional.empty();
-                    validReader = false;
-                }
-            }
-            else
-            {
-                decryiptionKey = this.encryptingContentStoreManager.getDecryiptionKey(effectiveContentUrl);
-            }
+            // single lookup of URL entity (and associated key entity) for all subsequent checks
+            final Optional<EncryptedContentDescriptor> descriptor = this.encryptingContentStoreManager
+                    .getContentDescriptor(effectiveContentUrl);
 
-            if (decryiptionKey.isPresent())
+            if (descriptor.isPresent() && descriptor.get().isEncrypted())
             {
                 LOGGER.debug("Returning decrypting reader for content URL {}", effectiveContentUrl);
 
+                final SecretKeySpec decryiptionKey = this.encryptingContentStoreManager.getDecryiptionKey(descriptor.get())
+                        .orElseThrow(() -> new ContentIOException("Failed to resolve decryption key for " + effectiveContentUrl));
                 // unfortunately, in contrast to mimetype / locale / encoding, the size is not set for readers in e.g.
                 // ContentServiceImpl.getReader(NodeRef, QName)
                 // and even if, it would use the raw file size from content URL entity, not the unencrypted file size from content URL key
                 // entity
-                final Long fileSize = this.contentDataDAO.getContentUrl(effectiveContentUrl).getContentUrlKey().getUnencryptedFileSize();
-                reader = new DecryptingContentReaderFacade(backingReader, decryiptionKey.get(), fileSize);
+                final Long fileSize = descriptor.get().getUnencryptedSize();
+                reader = new DecryptingContentReaderFacade(backingReader, decryiptionKey,
+                        fileSize != null ? fileSize.longValue() : DecryptingContentReaderFacade.UNKNOWN_SIZE, this.parallelCipherSettings);
             }
-            else if (validReader)
+            else if (descriptor.isPresent())
             {
                 LOGGER.debug("Content URL {} has no associated encryption key", effectiveContentUrl);
                 reader = backingReader;
             }
-            else
+            else if (contentUrl.startsWith(StoreConstants.WILDCARD_PROTOCOL))
             {
+                // cannot be an existing encrypted content without entity required for associated key
                 LOGGER.debug("Content URL {} has no associated URL entity", effectiveContentUrl);
                 reader = null;
             }
+            else
+            {
+                throw new ContentIOException("Missing content URL entity for " + effectiveContentUrl);
+            }
         }
         else
         {
@@ -209,6 +316,36 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         return writer;
     }
 
+    /**
+     * Reads the header of content stored in the seekable format directly from the backing store, without looking up the content URL key
+     * entity in the database. This is primarily intended for tooling, e.g. to scan stored content for integrity issues.
+     *
+     * @param contentUrl
+     *     the URL of the content for which to read the header
+     * @return the header of the content, or an unresolved value if the content does not exist or is not stored in the seekable format
+     */
+    public Optional<EncryptedContentHeader> readContentHeader(final String contentUrl)
+    {
+        return this.readContentHeader(super.getReader(contentUrl), contentUrl);
+    }
+
+    protected Optional<EncryptedContentHeader> readContentHeader(final ContentReader backingReader, final String contentUrl)
+    {
+        EncryptedContentHeader header = null;
+        if (backingReader != null && backingReader.exists())
+        {
+            try (ReadableByteChannel channel = backingReader.getReadableChannel())
+            {
+                header = EncryptedContentHeader.readHeader(channel, ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to read header of content " + contentUrl, e);
+            }
+        }
+        return Optional.ofNullable(header);
+    }
+
     protected ContentWriter getWriterImpl(final ContentContext context)
     {
         final ContentReader existingContentReader;
@@ -236,7 +373,7 @@ public class EncryptingContentStore extends CommonFacadingContentStore
         final Key key = this.keyAlgorithm != null ? this.encryptingContentStoreManager.createEncryptionKey(this.keySize, this.keyAlgorithm)
                 : this.encryptingContentStoreManager.createEncryptionKey(this.keySize);
         final EncryptingContentWriterFacade facadeWriter = new EncryptingContentWriterFacade(backingWriter, context, key,
-                existingContentReader);
+                existingContentReader, this.seekableFormat, this.parallelCipherSettings, this.selfDescribingFormat, this.contentWindowSize);
 
         LOGGER.debug("Created content writer for context {} with (preliminary) content URL {}", context, facadeWriter.getContentUrl());
 
@@ -15,6 +15,9 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  *
  * @author Axel Faust
@@ -23,10 +26,57 @@ public interface EncryptingContentStoreManager
 {
 
     /**
-     * Triggers the re-encryption of any remaining symmetric content encryption keys for a particular master key.
+     * Triggers the re-encryption of any remaining symmetric content encryption keys for a particular master key. If a previous
+     * re-encryption for the same master key was interrupted, e.g. by a restart of the server, processing resumes from its last persisted
+     * checkpoint.
      *
      * @param masterKey
      *            the key for which to re-encrypt symmetric content encryption keys
      */
     void reEncryptSymmetricKeys(MasterKeyReference masterKey);
+
+    /**
+     * Prefetches the symmetric content decryption keys for a batch of content objects which are about to be read, e.g. by bulk
+     * transformation, thumbnail or export processes. The content URL entities and associated key entities for all URLs are loaded in as
+     * few queries as possible, and the keys are decrypted into the node-local cache of decrypted keys. Within an active transaction, the
+     * loaded entities are also memoised, so that subsequent reads of the content within the same transaction do not require any further
+     * lookups.
+     *
+     * @param contentUrls
+     *            the URLs of the content objects which are about to be read
+     * @return the number of content objects for which a decryption key has been prefetched - content objects not encrypted, unknown or
+     *         already resolved in the current transaction are not counted
+     */
+    int prefetchDecryptionKeys(Collection<String> contentUrls);
+
+    /**
+     * Retrieves the statistics of the node-local cache of decrypted symmetric content encryption keys.
+     *
+     * @return the current statistics (size, hits, misses, evictions) keyed by name
+     */
+    Map<String, Long> getDecryptedKeyCacheStatistics();
+
+    /**
+     * Retrieves the statistics of the node-local pool of cipher instances used for encryption / decryption of content and symmetric
+     * content encryption keys.
+     *
+     * @return the current statistics (size, maxSizePerTransformation, transformations, hits, misses, discards) keyed by name
+     */
+    Map<String, Long> getCipherPoolStatistics();
+
+    /**
+     * Retrieves the statistics of the node-local pool of direct buffers used by channels for encryption / decryption of content.
+     *
+     * @return the current statistics (size, maxSize, bufferSize, hits, misses, discards) keyed by name
+     */
+    Map<String, Long> getBufferPoolStatistics();
+
+    /**
+     * Retrieves the progress / throughput statistics of the currently running or last completed re-encryption of symmetric content
+     * encryption keys on this node.
+     *
+     * @return the current statistics (running, estimatedTotal, processed, reEncrypted, failed, resumedFromId, checkpointId, elapsedMillis,
+     *         keysPerSecond) keyed by name, or an empty map if no re-encryption has been run since the start of this node
+     */
+    Map<String, Long> getReEncryptionStatistics();
 }
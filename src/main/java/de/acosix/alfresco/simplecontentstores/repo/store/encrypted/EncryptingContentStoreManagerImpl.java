@@ -19,33 +19,51 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.alfresco.repo.batch.BatchProcessWorkProvider;
-import org.alfresco.repo.batch.BatchProcessor;
-import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorker;
-import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
 import org.alfresco.repo.domain.contentdata.ContentDataDAO;
 import org.alfresco.repo.domain.contentdata.ContentUrlEntity;
 import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
 import org.alfresco.repo.domain.contentdata.EncryptedKey;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.transaction.TransactionService;
 import org.alfresco.util.Pair;
 import org.alfresco.util.ParameterCheck;
 import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.alfresco.util.transaction.TransactionSupportUtil;
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.logging.LogFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 
+import de.acosix.alfresco.simplecontentstores.repo.dao.ContentUrlConsistencyDAO;
 import de.acosix.alfresco.simplecontentstores.repo.dao.ContentUrlKeyDAO;
 
 /**
@@ -60,24 +78,75 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
 
     private static final int DEFAULT_KEY_SIZE = 128;
 
+    private static final int DEFAULT_DECRYPTED_KEY_CACHE_MAX_ITEMS = 1000;
+
+    private static final int DEFAULT_DECRYPTED_KEY_CACHE_TTL_SECONDS = 300;
+
+    private static final int DEFAULT_CIPHER_POOL_MAX_PER_TRANSFORMATION = 32;
+
+    private static final int DEFAULT_BUFFER_POOL_BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_BUFFER_POOL_MAX_IDLE_BUFFERS = 64;
+
+    // limited by the column size in the Alfresco database schema
+    private static final int MAX_KEY_ALGORITHM_LENGTH = 10;
+
+    private static final char KEY_WRAP_MODE_SEPARATOR = '/';
+
+    private static final String TXN_CONTENT_DESCRIPTORS = EncryptingContentStoreManagerImpl.class.getName() + "-contentDescriptors";
+
+    private static final String TXN_PENDING_ENCRYPTION_KEYS = EncryptingContentStoreManagerImpl.class.getName() + "-pendingEncryptionKeys";
+
+    private static final String TXN_PENDING_ENCRYPTION_KEYS_FLUSHED = EncryptingContentStoreManagerImpl.class.getName()
+            + "-pendingEncryptionKeysFlushed";
+
+    private static final String ATTR_KEY_RE_ENCRYPTION_CHECKPOINTS = "acosix/alfresco-simple-content-stores/keyReEncryptionCheckpoints";
+
+    // copied from AlfrescoTransactionSupport as the most appropriate listener priority and due to accessibility restrictions
+    private static final int COMMIT_ORDER_DAO = 3;
+
     protected ContentDataDAO contentDataDAO;
 
     protected ContentUrlKeyDAO contentUrlKeyDAO;
 
     protected TransactionService transactionService;
 
+    protected AttributeService attributeService;
+
+    protected ContentUrlConsistencyDAO contentUrlConsistencyDAO;
+
     protected InternalMasterKeyManager masterKeyManager;
 
     protected String defaultKeyAlgorithm = DEFAULT_KEY_ALGORITHM;
 
     protected int defaultKeySize = DEFAULT_KEY_SIZE;
 
+    protected boolean useKeyWrapForSymmetricMasterKeys;
+
     protected int reEncryptionThreadCount;
 
     protected int reEncryptionBatchSize;
 
     protected int reEncryptionLogInterval;
 
+    protected int reEncryptionMaxKeysPerSecond;
+
+    protected final AtomicReference<ReEncryptionProgress> reEncryptionProgress = new AtomicReference<>();
+
+    protected int decryptedKeyCacheMaxItems = DEFAULT_DECRYPTED_KEY_CACHE_MAX_ITEMS;
+
+    protected int decryptedKeyCacheTimeToLiveSeconds = DEFAULT_DECRYPTED_KEY_CACHE_TTL_SECONDS;
+
+    protected DecryptedKeyCache decryptedKeyCache;
+
+    protected int cipherPoolMaxPerTransformation = DEFAULT_CIPHER_POOL_MAX_PER_TRANSFORMATION;
+
+    protected int bufferPoolBufferSize = DEFAULT_BUFFER_POOL_BUFFER_SIZE;
+
+    protected int bufferPoolMaxIdleBuffers = DEFAULT_BUFFER_POOL_MAX_IDLE_BUFFERS;
+
+    protected final PendingEncryptionKeyFlusher pendingEncryptionKeyFlusher = new PendingEncryptionKeyFlusher();
+
     /**
      * @param contentDataDAO
      *            the contentDataDAO to set
@@ -105,6 +174,24 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         this.transactionService = transactionService;
     }
 
+    /**
+     * @param attributeService
+     *            the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param contentUrlConsistencyDAO
+     *            the contentUrlConsistencyDAO to set
+     */
+    public void setContentUrlConsistencyDAO(final ContentUrlConsistencyDAO contentUrlConsistencyDAO)
+    {
+        this.contentUrlConsistencyDAO = contentUrlConsistencyDAO;
+    }
+
     /**
      * @param masterKeyManager
      *            the masterKeyManager to set
@@ -132,6 +219,15 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         this.defaultKeySize = defaultKeySize;
     }
 
+    /**
+     * @param useKeyWrapForSymmetricMasterKeys
+     *            the useKeyWrapForSymmetricMasterKeys to set
+     */
+    public void setUseKeyWrapForSymmetricMasterKeys(final boolean useKeyWrapForSymmetricMasterKeys)
+    {
+        this.useKeyWrapForSymmetricMasterKeys = useKeyWrapForSymmetricMasterKeys;
+    }
+
     /**
      * @param reEncryptionThreadCount
      *            the reEncryptionThreadCount to set
@@ -159,6 +255,60 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         this.reEncryptionLogInterval = reEncryptionLogInterval;
     }
 
+    /**
+     * @param reEncryptionMaxKeysPerSecond
+     *            the reEncryptionMaxKeysPerSecond to set
+     */
+    public void setReEncryptionMaxKeysPerSecond(final int reEncryptionMaxKeysPerSecond)
+    {
+        this.reEncryptionMaxKeysPerSecond = reEncryptionMaxKeysPerSecond;
+    }
+
+    /**
+     * @param decryptedKeyCacheMaxItems
+     *            the decryptedKeyCacheMaxItems to set
+     */
+    public void setDecryptedKeyCacheMaxItems(final int decryptedKeyCacheMaxItems)
+    {
+        this.decryptedKeyCacheMaxItems = decryptedKeyCacheMaxItems;
+    }
+
+    /**
+     * @param decryptedKeyCacheTimeToLiveSeconds
+     *            the decryptedKeyCacheTimeToLiveSeconds to set
+     */
+    public void setDecryptedKeyCacheTimeToLiveSeconds(final int decryptedKeyCacheTimeToLiveSeconds)
+    {
+        this.decryptedKeyCacheTimeToLiveSeconds = decryptedKeyCacheTimeToLiveSeconds;
+    }
+
+    /**
+     * @param cipherPoolMaxPerTransformation
+     *            the cipherPoolMaxPerTransformation to set
+     */
+    public void setCipherPoolMaxPerTransformation(final int cipherPoolMaxPerTransformation)
+    {
+        this.cipherPoolMaxPerTransformation = cipherPoolMaxPerTransformation;
+    }
+
+    /**
+     * @param bufferPoolBufferSize
+     *            the bufferPoolBufferSize to set
+     */
+    public void setBufferPoolBufferSize(final int bufferPoolBufferSize)
+    {
+        this.bufferPoolBufferSize = bufferPoolBufferSize;
+    }
+
+    /**
+     * @param bufferPoolMaxIdleBuffers
+     *            the bufferPoolMaxIdleBuffers to set
+     */
+    public void setBufferPoolMaxIdleBuffers(final int bufferPoolMaxIdleBuffers)
+    {
+        this.bufferPoolMaxIdleBuffers = bufferPoolMaxIdleBuffers;
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -169,8 +319,29 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         PropertyCheck.mandatory(this, "contentDataDAO", this.contentDataDAO);
         PropertyCheck.mandatory(this, "contentUrlKeyDAO", this.contentUrlKeyDAO);
         PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+        PropertyCheck.mandatory(this, "contentUrlConsistencyDAO", this.contentUrlConsistencyDAO);
         PropertyCheck.mandatory(this, "masterKeyManager", this.masterKeyManager);
         PropertyCheck.mandatory(this, "defaultKeyAlgorithm", this.defaultKeyAlgorithm);
+
+        if (this.useKeyWrapForSymmetricMasterKeys)
+        {
+            final String defaultWrapMode = CipherUtil.getKeyWrapMode(this.defaultKeySize / 8);
+            if (!CipherUtil.isKeyWrapModeSupported(CipherUtil.KEY_WRAP_MODE) || !CipherUtil.isKeyWrapModeSupported(defaultWrapMode))
+            {
+                throw new IllegalStateException("AES key wrap mode " + defaultWrapMode + " required for symmetric keys of size "
+                        + this.defaultKeySize + " is not supported by this JVM - useKeyWrapForSymmetricMasterKeys must be disabled");
+            }
+        }
+
+        this.decryptedKeyCache = new DecryptedKeyCache(this.decryptedKeyCacheMaxItems, this.decryptedKeyCacheTimeToLiveSeconds);
+        CipherUtil.setMaxPooledCiphers(this.cipherPoolMaxPerTransformation);
+        CipherUtil.configureBufferPool(this.bufferPoolBufferSize, this.bufferPoolMaxIdleBuffers);
+        // any change in master key state (e.g. disablement) is an administrative security action - drop all decrypted key material
+        this.masterKeyManager.addMasterKeyStateListener(masterKey -> {
+            LOGGER.debug("Clearing cache of decrypted symmetric content encryption keys due to state change of master key {}", masterKey);
+            this.decryptedKeyCache.clear();
+        });
     }
 
     /**
@@ -190,26 +361,181 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
     {
         ParameterCheck.mandatoryString("contentUrl", contentUrl);
 
-        LOGGER.debug("Checking if content URL {} is associated with an encryption key", contentUrl);
-
-        final ContentUrlEntity urlEntity = this.contentDataDAO.getContentUrl(contentUrl);
-        if (urlEntity == null)
+        final Optional<EncryptedContentDescriptor> descriptor = this.getContentDescriptor(contentUrl);
+        if (!descriptor.isPresent())
         {
             throw new ContentIOException("Missing content URL entity for " + contentUrl);
         }
 
-        Optional<SecretKeySpec> decryptionKey = Optional.empty();
+        return this.getDecryiptionKey(descriptor.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<EncryptedContentDescriptor> getContentDescriptor(final String contentUrl)
+    {
+        ParameterCheck.mandatoryString("contentUrl", contentUrl);
+
+        final Map<String, EncryptedContentDescriptor> txnDescriptors = this.getTxnContentDescriptors();
+
+        EncryptedContentDescriptor descriptor = txnDescriptors != null ? txnDescriptors.get(contentUrl) : null;
+        if (descriptor == null && txnDescriptors != null)
+        {
+            final PendingEncryptionKey pendingKey = this.getTxnPendingEncryptionKeys().get(contentUrl);
+            if (pendingKey != null)
+            {
+                LOGGER.trace("Using pending content encryption key for content URL {}", contentUrl);
+                descriptor = pendingKey.toDescriptor();
+            }
+        }
+
+        if (descriptor == null)
+        {
+            LOGGER.debug("Checking if content URL {} is associated with an encryption key", contentUrl);
 
-        final ContentUrlKeyEntity urlKeyEntity = urlEntity.getContentUrlKey();
-        if (urlKeyEntity != null)
+            final ContentUrlEntity urlEntity = this.contentDataDAO.getContentUrl(contentUrl);
+            if (urlEntity != null)
+            {
+                descriptor = new EncryptedContentDescriptor(contentUrl, urlEntity);
+                // only positive results are memoised - URL entity may still be created later in the transaction
+                if (txnDescriptors != null)
+                {
+                    txnDescriptors.put(contentUrl, descriptor);
+                }
+            }
+        }
+        else
         {
-            LOGGER.debug("Content URL {} has an associated encryption key", contentUrl);
-            decryptionKey = Optional.of(this.getKeyForKeyEntity(urlKeyEntity));
+            LOGGER.trace("Using transactionally memoised descriptor for content URL {}", contentUrl);
+        }
+
+        return Optional.ofNullable(descriptor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Optional<SecretKeySpec> getDecryiptionKey(final EncryptedContentDescriptor descriptor)
+    {
+        ParameterCheck.mandatory("descriptor", descriptor);
+
+        Optional<SecretKeySpec> decryptionKey = descriptor.getDecryptionKey();
+        if (!decryptionKey.isPresent())
+        {
+            final ContentUrlKeyEntity urlKeyEntity = descriptor.getContentUrlKeyEntity();
+            if (urlKeyEntity != null)
+            {
+                LOGGER.debug("Content URL {} has an associated encryption key", descriptor.getContentUrl());
+                final SecretKeySpec key = this.getCachedKeyForKeyEntity(urlKeyEntity);
+                descriptor.setDecryptionKey(key);
+                decryptionKey = Optional.of(key);
+            }
         }
 
         return decryptionKey;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int prefetchDecryptionKeys(final Collection<String> contentUrls)
+    {
+        ParameterCheck.mandatory("contentUrls", contentUrls);
+
+        final Map<String, EncryptedContentDescriptor> txnDescriptors = this.getTxnContentDescriptors();
+        final Map<String, PendingEncryptionKey> pendingKeys = this.getTxnPendingEncryptionKeys();
+
+        final Set<String> contentUrlsToFetch = new LinkedHashSet<>();
+        for (final String contentUrl : contentUrls)
+        {
+            if ((txnDescriptors == null || !txnDescriptors.containsKey(contentUrl)) && !pendingKeys.containsKey(contentUrl))
+            {
+                contentUrlsToFetch.add(contentUrl);
+            }
+        }
+
+        int prefetched = 0;
+        if (!contentUrlsToFetch.isEmpty())
+        {
+            LOGGER.debug("Prefetching content URL entities and encryption keys for {} content URLs", contentUrlsToFetch.size());
+
+            final Map<String, ContentUrlEntity> urlEntities = this.contentUrlKeyDAO.getContentUrlsWithKeys(contentUrlsToFetch);
+            for (final Map.Entry<String, ContentUrlEntity> urlEntityEntry : urlEntities.entrySet())
+            {
+                final EncryptedContentDescriptor descriptor = new EncryptedContentDescriptor(urlEntityEntry.getKey(),
+                        urlEntityEntry.getValue());
+                if (descriptor.isEncrypted())
+                {
+                    try
+                    {
+                        this.getDecryiptionKey(descriptor);
+                        prefetched++;
+                    }
+                    catch (final ContentIOException e)
+                    {
+                        // don't fail the whole batch - reading the affected content will fail with the same error
+                        LOGGER.debug("Failed to prefetch decryption key for content URL {}", urlEntityEntry.getKey(), e);
+                    }
+                }
+
+                if (txnDescriptors != null)
+                {
+                    txnDescriptors.put(urlEntityEntry.getKey(), descriptor);
+                }
+            }
+
+            LOGGER.debug("Prefetched {} decryption keys for {} content URL entities found for {} content URLs", prefetched,
+                    urlEntities.size(), contentUrlsToFetch.size());
+        }
+        return prefetched;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getDecryptedKeyCacheStatistics()
+    {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("size", Long.valueOf(this.decryptedKeyCache.size()));
+        statistics.put("hits", Long.valueOf(this.decryptedKeyCache.getHits()));
+        statistics.put("misses", Long.valueOf(this.decryptedKeyCache.getMisses()));
+        statistics.put("evictions", Long.valueOf(this.decryptedKeyCache.getEvictions()));
+        return statistics;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getCipherPoolStatistics()
+    {
+        return CipherUtil.getCipherPoolStatistics();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getBufferPoolStatistics()
+    {
+        return CipherUtil.getBufferPoolStatistics();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Long> getReEncryptionStatistics()
+    {
+        final ReEncryptionProgress progress = this.reEncryptionProgress.get();
+        return progress != null ? progress.toStatistics() : Collections.emptyMap();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -265,27 +591,36 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
 
         final EncryptedKey eKey = this.encryptKey(encryptionKey);
 
-        // note: we could set file size on content URL entity to (proper) encrypted file size by doing getOrCreateContentUrl
-        // unfortunately Alfresco takes this value for ContentData construction (no regard for content URL key entity unencrypted file size)
-        // and for some code (like result set sorting by size) it needs to be the unencrypted size
-        // so we just use updateContentUrlKey (which lazily creates a content URL entity with the unencrypted file size)
-        // (one of those cases of "broken by design" in Alfresco)
-        this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
-            final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
-            urlKeyEntity.setEncryptedKey(eKey);
-            urlKeyEntity.setUnencryptedFileSize(fileSize);
+        // any memoised descriptor is outdated now
+        final Map<String, EncryptedContentDescriptor> txnDescriptors = this.getTxnContentDescriptors();
+        if (txnDescriptors != null)
+        {
+            txnDescriptors.remove(contentUrl);
+        }
 
-            final boolean updated = this.contentDataDAO.updateContentUrlKey(contentUrl, urlKeyEntity);
-            if (!updated)
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_READ_WRITE
+                && AlfrescoTransactionSupport.getResource(TXN_PENDING_ENCRYPTION_KEYS_FLUSHED) == null)
+        {
+            final Map<String, PendingEncryptionKey> pendingKeys = TransactionalResourceHelper.getMap(TXN_PENDING_ENCRYPTION_KEYS);
+            if (pendingKeys.isEmpty())
             {
-                LOGGER.error("Failed to store content encryption key for content URL {}", contentUrl);
-                throw new ContentIOException("Failed to link symmetric encryption key with content URL");
+                // may cause ConcurrentModificationException when already in beforeCommit and this priority is being processed
+                // writes during the DAO priority phase are not reasonably expected
+                TransactionSupportUtil.bindListener(this.pendingEncryptionKeyFlusher, COMMIT_ORDER_DAO);
             }
+            pendingKeys.put(contentUrl, new PendingEncryptionKey(contentUrl, fileSize, encryptionKey, eKey));
 
-            return null;
-        }, false, false);
+            LOGGER.debug("Deferred storing content encryption key for content URL {} until commit of transaction", contentUrl);
+        }
+        else
+        {
+            this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+                this.persistEncryptionKey(contentUrl, fileSize, eKey);
+                return null;
+            }, false, false);
 
-        LOGGER.debug("Stored content encryption key for content URL {}", contentUrl);
+            LOGGER.debug("Stored content encryption key for content URL {}", contentUrl);
+        }
     }
 
     /**
@@ -307,23 +642,162 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
                     "Specified master key is not available for re-encryption of symmetric content encryption keys");
         }
 
-        final BatchProcessWorkProvider<ContentUrlKeyEntity> workProvider = new ReEncryptionWorkProvider(masterKey);
-        final BatchProcessWorker<ContentUrlKeyEntity> worker = new ReEncryptionWorker();
-        final BatchProcessor<ContentUrlKeyEntity> processor = new BatchProcessor<>("ReEncryptSymmetricKeys",
-                this.transactionService.getRetryingTransactionHelper(), workProvider, this.reEncryptionThreadCount,
-                this.reEncryptionBatchSize, null, LogFactory.getLog(EncryptingContentStoreManagerImpl.class), this.reEncryptionLogInterval);
-        processor.process(worker, true);
+        final ReEncryptionProgress progress = new ReEncryptionProgress(masterKey);
+        final ReEncryptionProgress previousProgress = this.reEncryptionProgress.get();
+        if ((previousProgress != null && previousProgress.isRunning())
+                || !this.reEncryptionProgress.compareAndSet(previousProgress, progress))
+        {
+            throw new IllegalStateException("A re-encryption of symmetric content encryption keys is already running");
+        }
 
-        final String lastError = processor.getLastError();
+        try
+        {
+            new ReEncryptionProcess(masterKey, progress).run();
+        }
+        finally
+        {
+            progress.complete();
+            this.decryptedKeyCache.clear();
+        }
+
+        LOGGER.info("Completed re-encryption of symmetric content encryption keys for master key {} - {} processed, {} re-encrypted",
+                masterKey, progress.getProcessed(), progress.getReEncrypted());
+
+        final String lastError = progress.getLastError();
         if (lastError != null)
         {
             LOGGER.warn("Encountered {} errors in re-encryption of symmetric content encryption keys for master key {}",
-                    processor.getTotalErrors(), masterKey);
-            throw new ContentIOException("Re-encryption of symmetric content encryption keys (partially) failed - "
-                    + processor.getTotalErrors() + " errors, last: [" + lastError + "], affecting: " + processor.getLastErrorEntryId());
+                    progress.getFailed(), masterKey);
+            throw new ContentIOException("Re-encryption of symmetric content encryption keys (partially) failed - " + progress.getFailed()
+                    + " errors, last: [" + lastError + "], affecting: " + progress.getLastErrorEntryId());
         }
     }
 
+    /**
+     * Retrieves the content descriptors memoised in the current transaction.
+     *
+     * @return the mutable map of memoised descriptors keyed by content URL, or {@code null} if no transaction is active
+     */
+    protected Map<String, EncryptedContentDescriptor> getTxnContentDescriptors()
+    {
+        Map<String, EncryptedContentDescriptor> txnDescriptors = null;
+        if (AlfrescoTransactionSupport.getTransactionReadState() != TxnReadState.TXN_NONE)
+        {
+            txnDescriptors = TransactionalResourceHelper.getMap(TXN_CONTENT_DESCRIPTORS);
+        }
+        return txnDescriptors;
+    }
+
+    /**
+     * Retrieves the content encryption keys pending to be stored in the current transaction.
+     *
+     * @return the mutable map of pending keys keyed by content URL, or an empty map if no keys are pending
+     */
+    protected Map<String, PendingEncryptionKey> getTxnPendingEncryptionKeys()
+    {
+        Map<String, PendingEncryptionKey> pendingKeys;
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_READ_WRITE
+                && TransactionalResourceHelper.isResourcePresent(TXN_PENDING_ENCRYPTION_KEYS))
+        {
+            pendingKeys = TransactionalResourceHelper.getMap(TXN_PENDING_ENCRYPTION_KEYS);
+        }
+        else
+        {
+            pendingKeys = Collections.emptyMap();
+        }
+        return pendingKeys;
+    }
+
+    /**
+     * Stores all content encryption keys pending in the current transaction. Keys of content URL entities already created in the
+     * transaction, e.g. by content data referencing the content, are inserted via a single batched statement. Keys of any other content
+     * are stored individually via the {@link ContentDataDAO default content data DAO}, which also creates the content URL entity.
+     */
+    protected void flushPendingEncryptionKeys()
+    {
+        // any key stored after this point can no longer be deferred
+        AlfrescoTransactionSupport.bindResource(TXN_PENDING_ENCRYPTION_KEYS_FLUSHED, Boolean.TRUE);
+
+        final Map<String, PendingEncryptionKey> pendingKeys = this.getTxnPendingEncryptionKeys();
+        if (!pendingKeys.isEmpty())
+        {
+            LOGGER.debug("Storing {} pending content encryption keys before commit of transaction", pendingKeys.size());
+
+            final Map<String, ContentUrlEntity> urlEntities = this.contentUrlKeyDAO.getContentUrlsWithKeys(pendingKeys.keySet());
+            final List<ContentUrlKeyEntity> urlKeyEntities = new ArrayList<>(pendingKeys.size());
+            final List<Long> contentUrlIds = new ArrayList<>(pendingKeys.size());
+            for (final PendingEncryptionKey pendingKey : pendingKeys.values())
+            {
+                final ContentUrlEntity urlEntity = urlEntities.get(pendingKey.contentUrl);
+                if (urlEntity != null && urlEntity.getContentUrlKey() == null)
+                {
+                    final ContentUrlKeyEntity urlKeyEntity = pendingKey.toKeyEntity();
+                    urlKeyEntity.setContentUrlId(urlEntity.getId());
+                    urlKeyEntities.add(urlKeyEntity);
+                    contentUrlIds.add(urlEntity.getId());
+                }
+                else
+                {
+                    this.persistEncryptionKey(pendingKey.contentUrl, pendingKey.fileSize, pendingKey.encryptedKey);
+                }
+            }
+
+            if (!urlKeyEntities.isEmpty())
+            {
+                final int inserted = this.contentUrlKeyDAO.insertSymmetricKeys(urlKeyEntities);
+                if (inserted < urlKeyEntities.size())
+                {
+                    LOGGER.error("Failed to store {} of {} content encryption keys in batch", urlKeyEntities.size() - inserted,
+                            urlKeyEntities.size());
+                    throw new ContentIOException("Failed to link symmetric encryption keys with content URLs");
+                }
+                // inserts bypass ContentDataDAO, so cached entities without the key need to be dropped
+                this.contentUrlConsistencyDAO.invalidateCachedContentUrlEntitiesById(contentUrlIds);
+            }
+
+            LOGGER.debug("Stored {} pending content encryption keys, {} of them in batch", pendingKeys.size(), urlKeyEntities.size());
+            pendingKeys.clear();
+        }
+    }
+
+    protected void persistEncryptionKey(final String contentUrl, final long fileSize, final EncryptedKey eKey)
+    {
+        // note: we could set file size on content URL entity to (proper) encrypted file size by doing getOrCreateContentUrl
+        // unfortunately Alfresco takes this value for ContentData construction (no regard for content URL key entity unencrypted file size)
+        // and for some code (like result set sorting by size) it needs to be the unencrypted size
+        // so we just use updateContentUrlKey (which lazily creates a content URL entity with the unencrypted file size)
+        // (one of those cases of "broken by design" in Alfresco)
+        final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
+        urlKeyEntity.setEncryptedKey(eKey);
+        urlKeyEntity.setUnencryptedFileSize(fileSize);
+
+        final boolean updated = this.contentDataDAO.updateContentUrlKey(contentUrl, urlKeyEntity);
+        if (!updated)
+        {
+            LOGGER.error("Failed to store content encryption key for content URL {}", contentUrl);
+            throw new ContentIOException("Failed to link symmetric encryption key with content URL");
+        }
+    }
+
+    protected SecretKeySpec getCachedKeyForKeyEntity(final ContentUrlKeyEntity urlKeyEntity)
+    {
+        final Long keyEntityId = urlKeyEntity.getId();
+        SecretKeySpec key = keyEntityId != null ? this.decryptedKeyCache.get(keyEntityId) : null;
+        if (key == null)
+        {
+            key = this.getKeyForKeyEntity(urlKeyEntity);
+            if (keyEntityId != null)
+            {
+                this.decryptedKeyCache.put(keyEntityId, key);
+            }
+        }
+        else
+        {
+            LOGGER.trace("Using cached symmetric content encryption key for content URL key entity {}", keyEntityId);
+        }
+        return key;
+    }
+
     protected SecretKeySpec getKeyForKeyEntity(final ContentUrlKeyEntity urlKeyEntity)
     {
         final SecretKeySpec key;
@@ -349,12 +823,43 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
                     "Content encryption key was encrypted with an unavailable master key (different key store or alias)");
         }
 
+        // key wrap mode is recorded as a suffix of the key algorithm - keys without suffix use the legacy cipher-based encryption
+        final String recordedAlgorithm = encryptedKey.getAlgorithm();
+        final int wrapModeSeparatorIdx = recordedAlgorithm.indexOf(KEY_WRAP_MODE_SEPARATOR);
+        if (wrapModeSeparatorIdx != -1)
+        {
+            final String algorithm = recordedAlgorithm.substring(0, wrapModeSeparatorIdx);
+            final String wrapMode = recordedAlgorithm.substring(wrapModeSeparatorIdx + 1);
+            final ByteBuffer wrappedKeyBuffer = encryptedKey.getByteBuffer();
+            final byte[] wrappedKey = new byte[wrappedKeyBuffer.remaining()];
+            wrappedKeyBuffer.get(wrappedKey);
+            try
+            {
+                key = CipherUtil.unwrapKey(keyDecryptionKey.get(), wrappedKey, algorithm, wrapMode);
+            }
+            catch (final GeneralSecurityException e)
+            {
+                LOGGER.warn("Failed to unwrap symmetric content encryption key from content URL key entity {}", urlKeyEntity.getId());
+                throw new ContentIOException("Error unwrapping symmetric content encryption key", e);
+            }
+        }
+        else
+        {
+            key = this.decryptKey(urlKeyEntity, encryptedKey, keyDecryptionKey.get());
+        }
+        return key;
+    }
+
+    protected SecretKeySpec decryptKey(final ContentUrlKeyEntity urlKeyEntity, final EncryptedKey encryptedKey, final Key keyDecryptionKey)
+    {
+        final SecretKeySpec key;
         final ByteBuffer sourceBuffer = encryptedKey.getByteBuffer();
+        Cipher cipher = null;
         try
         {
-            final Cipher cipher = CipherUtil.getInitialisedCipher(keyDecryptionKey.get(), false);
+            cipher = CipherUtil.getInitialisedCipher(keyDecryptionKey, false);
             final int targetBufferSize = cipher.getOutputSize(sourceBuffer.remaining());
-            final ByteBuffer targetBuffer = ByteBuffer.allocateDirect(targetBufferSize);
+            final ByteBuffer targetBuffer = ByteBuffer.allocate(targetBufferSize);
             cipher.doFinal(sourceBuffer, targetBuffer);
             targetBuffer.flip();
 
@@ -367,6 +872,10 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
             LOGGER.warn("Failed to decrypt symmetric content encryption key from content URL key entity {}", urlKeyEntity.getId());
             throw new ContentIOException("Error decrypting symmetric content encryption key", e);
         }
+        finally
+        {
+            CipherUtil.releaseKeyEncryptionCipher(cipher, keyDecryptionKey);
+        }
         return key;
     }
 
@@ -376,12 +885,44 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         final Pair<MasterKeyReference, Key> keyEncryptionKeyPair = this.masterKeyManager.getRandomActiveEncryptionKey();
         final MasterKeyReference keyEncryptionKeyRef = keyEncryptionKeyPair.getFirst();
         final Key keyEncryptionKey = keyEncryptionKeyPair.getSecond();
+
+        if (this.useKeyWrapForSymmetricMasterKeys && CipherUtil.supportsKeyWrap(keyEncryptionKey))
+        {
+            final String wrapMode = CipherUtil.getKeyWrapMode(encryptionKey);
+            final String recordedAlgorithm = encryptionKey.getAlgorithm() + KEY_WRAP_MODE_SEPARATOR + wrapMode;
+            // keys of non-default size may require a padded key wrap mode not supported by this JVM
+            if (!CipherUtil.isKeyWrapModeSupported(wrapMode))
+            {
+                LOGGER.debug("Using legacy encryption for symmetric content encryption key as key wrap mode {} is not supported", wrapMode);
+            }
+            else if (recordedAlgorithm.length() <= MAX_KEY_ALGORITHM_LENGTH)
+            {
+                try
+                {
+                    final byte[] wrappedKey = CipherUtil.wrapKey(keyEncryptionKey, encryptionKey, wrapMode);
+                    return new EncryptedKey(keyEncryptionKeyRef.getKeystoreId(), keyEncryptionKeyRef.getAlias(), recordedAlgorithm,
+                            ByteBuffer.wrap(wrappedKey));
+                }
+                catch (final GeneralSecurityException e)
+                {
+                    throw new ContentIOException("Error wrapping symmetric content encryption key", e);
+                }
+            }
+            else
+            {
+                LOGGER.debug(
+                        "Using legacy encryption for symmetric content encryption key as algorithm {} cannot be recorded with key wrap mode",
+                        encryptionKey.getAlgorithm());
+            }
+        }
+
         final ByteBuffer sourceBuffer = ByteBuffer.wrap(encryptionKey.getEncoded());
+        Cipher cipher = null;
         try
         {
-            final Cipher cipher = CipherUtil.getInitialisedCipher(keyEncryptionKey, true);
+            cipher = CipherUtil.getInitialisedCipher(keyEncryptionKey, true);
             final int targetBufferSize = cipher.getOutputSize(sourceBuffer.remaining());
-            final ByteBuffer targetBuffer = ByteBuffer.allocateDirect(targetBufferSize);
+            final ByteBuffer targetBuffer = ByteBuffer.allocate(targetBufferSize);
             cipher.doFinal(sourceBuffer, targetBuffer);
             targetBuffer.flip();
 
@@ -392,6 +933,10 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
         {
             throw new ContentIOException("Error encrypting symmetric content encryption key", e);
         }
+        finally
+        {
+            CipherUtil.releaseKeyEncryptionCipher(cipher, keyEncryptionKey);
+        }
         return eKey;
     }
 
@@ -399,104 +944,321 @@ public class EncryptingContentStoreManagerImpl implements InternalEncryptingCont
      *
      * @author Axel Faust
      */
-    protected class ReEncryptionWorkProvider implements BatchProcessWorkProvider<ContentUrlKeyEntity>
+    protected class PendingEncryptionKeyFlusher extends TransactionListenerAdapter
     {
 
-        private final MasterKeyReference masterKey;
-
-        private Long lastId;
-
-        protected ReEncryptionWorkProvider(final MasterKeyReference masterKey)
-        {
-            this.masterKey = masterKey;
-        }
-
-        /**
-         * Get an estimate of the total number of objects that will be provided by this instance.
-         * Instances can provide accurate answers on each call, but only if the answer can be
-         * provided quickly and efficiently; usually it is enough to to cache the result after
-         * providing an initial estimate.
-         *
-         * @return a total work size estimate
-         */
-        public long getTotalEstimatedWorkSizeLong()
-        {
-            return this.getTotalEstimatedWorkSize();
-        }
-
         /**
          *
          * {@inheritDoc}
          */
         @Override
-        public int getTotalEstimatedWorkSize()
+        public void beforeCommit(final boolean readOnly)
         {
-            return EncryptingContentStoreManagerImpl.this.transactionService.getRetryingTransactionHelper().doInTransaction(
-                    () -> EncryptingContentStoreManagerImpl.this.contentUrlKeyDAO.countSymmetricKeys(this.masterKey), true, false);
+            EncryptingContentStoreManagerImpl.this.flushPendingEncryptionKeys();
         }
+    }
 
-        /**
-         *
-         */
-        @Override
-        public Collection<ContentUrlKeyEntity> getNextWork()
+    /**
+     *
+     * @author Axel Faust
+     */
+    protected static class PendingEncryptionKey
+    {
+
+        protected final String contentUrl;
+
+        protected final long fileSize;
+
+        protected final Key key;
+
+        protected final EncryptedKey encryptedKey;
+
+        protected PendingEncryptionKey(final String contentUrl, final long fileSize, final Key key, final EncryptedKey encryptedKey)
         {
-            final List<ContentUrlKeyEntity> nextWork = EncryptingContentStoreManagerImpl.this.transactionService
-                    .getRetryingTransactionHelper().doInTransaction(() -> EncryptingContentStoreManagerImpl.this.contentUrlKeyDAO
-                            .getSymmetricKeys(this.masterKey, this.lastId, EncryptingContentStoreManagerImpl.this.reEncryptionBatchSize),
-                            true, false);
+            this.contentUrl = contentUrl;
+            this.fileSize = fileSize;
+            this.key = key;
+            this.encryptedKey = encryptedKey;
+        }
 
-            if (!nextWork.isEmpty())
-            {
-                this.lastId = nextWork.get(nextWork.size() - 1).getId();
-            }
-            return nextWork;
+        protected ContentUrlKeyEntity toKeyEntity()
+        {
+            final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
+            urlKeyEntity.setEncryptedKey(this.encryptedKey);
+            urlKeyEntity.setUnencryptedFileSize(this.fileSize);
+            return urlKeyEntity;
         }
 
+        protected EncryptedContentDescriptor toDescriptor()
+        {
+            // mirrors the entities which will exist once the key has been flushed
+            final ContentUrlEntity urlEntity = new ContentUrlEntity();
+            urlEntity.setContentUrl(this.contentUrl);
+            urlEntity.setSize(this.fileSize);
+            urlEntity.setContentUrlKey(this.toKeyEntity());
+
+            final EncryptedContentDescriptor descriptor = new EncryptedContentDescriptor(this.contentUrl, urlEntity);
+            descriptor.setDecryptionKey(new SecretKeySpec(this.key.getEncoded(), this.key.getAlgorithm()));
+            return descriptor;
+        }
     }
 
     /**
+     * Instances of this class re-encrypt all symmetric content encryption keys of a single master key. Keys are read in keyset-paginated
+     * batches by the calling thread, re-encrypted by parallel workers and updated via batched statements, each batch in its own
+     * transaction. The ID of the last key up to which all batches have been processed is periodically persisted as a checkpoint, so that
+     * an interrupted process can be resumed without scanning already processed keys again. The checkpoint never advances beyond a batch in
+     * which any key failed to be re-encrypted, so that a resumed process retries these keys.
      *
      * @author Axel Faust
      */
-    protected class ReEncryptionWorker extends BatchProcessWorkerAdaptor<ContentUrlKeyEntity>
+    protected class ReEncryptionProcess
     {
 
-        /**
-         *
-         * {@inheritDoc}
-         */
-        @Override
-        public String getIdentifier(final ContentUrlKeyEntity entry)
+        private final MasterKeyReference masterKey;
+
+        private final ReEncryptionProgress progress;
+
+        private final RetryingTransactionHelper txnHelper;
+
+        private final Deque<Pair<Long, Future<Boolean>>> pendingBatches = new ArrayDeque<>();
+
+        private long nextLogThreshold;
+
+        private boolean failedBatchCompleted;
+
+        protected ReEncryptionProcess(final MasterKeyReference masterKey, final ReEncryptionProgress progress)
         {
-            return entry.toString();
+            this.masterKey = masterKey;
+            this.progress = progress;
+            this.txnHelper = EncryptingContentStoreManagerImpl.this.transactionService.getRetryingTransactionHelper();
         }
 
-        /**
-         *
-         * {@inheritDoc}
-         */
-        @Override
-        public void process(final ContentUrlKeyEntity entry) throws Throwable
+        protected void run()
         {
-            final SecretKeySpec key = EncryptingContentStoreManagerImpl.this.getKeyForKeyEntity(entry);
-            final EncryptedKey reEncryptedKey = EncryptingContentStoreManagerImpl.this.encryptKey(key);
+            final int threadCount = Math.max(1, EncryptingContentStoreManagerImpl.this.reEncryptionThreadCount);
+            final int batchSize = Math.max(1, EncryptingContentStoreManagerImpl.this.reEncryptionBatchSize);
+            final int maxBatchesInFlight = 2 * threadCount;
+            final int logInterval = Math.max(1, EncryptingContentStoreManagerImpl.this.reEncryptionLogInterval);
 
-            final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
-            // critical: contentDataDAO.updateContentUrlKey does not ensure proper ID is passed to ibatis SQL mapping unless we set it
-            urlKeyEntity.setId(entry.getId());
-            urlKeyEntity.setEncryptedKey(reEncryptedKey);
-            urlKeyEntity.setUnencryptedFileSize(entry.getUnencryptedFileSize());
-
-            final boolean updated = EncryptingContentStoreManagerImpl.this.contentDataDAO.updateContentUrlKey(entry.getContentUrlId(),
-                    urlKeyEntity);
-            if (!updated)
+            final int estimatedTotal = this.txnHelper.doInTransaction(
+                    () -> EncryptingContentStoreManagerImpl.this.contentUrlKeyDAO.countSymmetricKeys(this.masterKey), true, false);
+            this.progress.setEstimatedTotal(estimatedTotal);
+            this.nextLogThreshold = logInterval;
+
+            Long lastId = this.txnHelper.doInTransaction(
+                    () -> (Long) EncryptingContentStoreManagerImpl.this.attributeService.getAttribute(ATTR_KEY_RE_ENCRYPTION_CHECKPOINTS,
+                            this.masterKey.getKeystoreId(), this.masterKey.getAlias()),
+                    true, false);
+            if (lastId != null)
+            {
+                LOGGER.info("Resuming re-encryption of symmetric content encryption keys for master key {} after checkpoint ID {}",
+                        this.masterKey, lastId);
+                this.progress.setResumedFromId(lastId);
+                this.progress.setCheckpointId(lastId);
+            }
+            else
+            {
+                LOGGER.info("Starting re-encryption of approximately {} symmetric content encryption keys for master key {}",
+                        estimatedTotal, this.masterKey);
+            }
+
+            final AtomicInteger threadIndex = new AtomicInteger();
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+                final Thread thread = new Thread(runnable, "ReEncryptSymmetricKeys-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try
+            {
+                final long startNanos = System.nanoTime();
+                long keysSubmitted = 0;
+                List<ContentUrlKeyEntity> batch;
+                do
+                {
+                    final Long fromId = lastId;
+                    batch = this.txnHelper.doInTransaction(() -> EncryptingContentStoreManagerImpl.this.contentUrlKeyDAO
+                            .getSymmetricKeys(this.masterKey, fromId, batchSize), true, false);
+
+                    if (!batch.isEmpty())
+                    {
+                        lastId = batch.get(batch.size() - 1).getId();
+                        keysSubmitted += batch.size();
+                        this.throttle(startNanos, keysSubmitted);
+
+                        while (this.pendingBatches.size() >= maxBatchesInFlight)
+                        {
+                            this.completeOldestBatch(logInterval);
+                        }
+
+                        final List<ContentUrlKeyEntity> workBatch = batch;
+                        this.pendingBatches.add(new Pair<>(lastId, executor.submit(() -> this.reEncryptBatch(workBatch))));
+                    }
+                }
+                while (!batch.isEmpty());
+
+                while (!this.pendingBatches.isEmpty())
+                {
+                    this.completeOldestBatch(logInterval);
+                }
+
+                // a complete run needs no checkpoint - any keys that failed will be picked up again by the next run
+                this.txnHelper.doInTransaction(() -> {
+                    EncryptingContentStoreManagerImpl.this.attributeService.removeAttribute(ATTR_KEY_RE_ENCRYPTION_CHECKPOINTS,
+                            this.masterKey.getKeystoreId(), this.masterKey.getAlias());
+                    return null;
+                }, false, true);
+            }
+            finally
+            {
+                this.pendingBatches.forEach(pendingBatch -> pendingBatch.getSecond().cancel(true));
+                this.pendingBatches.clear();
+                executor.shutdownNow();
+            }
+        }
+
+        protected void throttle(final long startNanos, final long keysSubmitted)
+        {
+            final int maxKeysPerSecond = EncryptingContentStoreManagerImpl.this.reEncryptionMaxKeysPerSecond;
+            if (maxKeysPerSecond > 0)
+            {
+                final long dueNanos = startNanos + keysSubmitted * TimeUnit.SECONDS.toNanos(1) / maxKeysPerSecond;
+                final long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new ContentIOException("Interrupted during re-encryption of symmetric content encryption keys", e);
+                    }
+                }
+            }
+        }
+
+        protected void completeOldestBatch(final int logInterval)
+        {
+            final Pair<Long, Future<Boolean>> batch = this.pendingBatches.poll();
+            final boolean batchSucceeded;
+            try
+            {
+                batchSucceeded = Boolean.TRUE.equals(batch.getSecond().get());
+            }
+            catch (final InterruptedException e)
             {
+                Thread.currentThread().interrupt();
+                throw new ContentIOException("Interrupted during re-encryption of symmetric content encryption keys", e);
+            }
+            catch (final ExecutionException e)
+            {
+                // workers handle their own errors, so this should only ever be an unexpected error
+                throw new ContentIOException("Unexpected error during re-encryption of symmetric content encryption keys", e.getCause());
+            }
+
+            if (!batchSucceeded && !this.failedBatchCompleted)
+            {
+                LOGGER.info(
+                        "Failed to re-encrypt some symmetric content encryption keys up to ID {} - checkpoint will not advance beyond ID {}",
+                        batch.getFirst(), this.progress.getCheckpointId());
+                this.failedBatchCompleted = true;
+            }
+
+            // batches complete in order, so all keys up to the last key of this batch have been processed
+            // keys that failed are not re-encrypted and must be retried when resuming, so the checkpoint must stay before them
+            if (!this.failedBatchCompleted)
+            {
+                this.progress.setCheckpointId(batch.getFirst());
+            }
+            final long checkpointId = this.progress.getCheckpointId();
+
+            final long processed = this.progress.getProcessed();
+            if (processed >= this.nextLogThreshold)
+            {
+                this.nextLogThreshold = (processed / logInterval + 1) * logInterval;
+
+                if (!this.failedBatchCompleted)
+                {
+                    this.txnHelper.doInTransaction(() -> {
+                        EncryptingContentStoreManagerImpl.this.attributeService.setAttribute(Long.valueOf(checkpointId),
+                                ATTR_KEY_RE_ENCRYPTION_CHECKPOINTS, this.masterKey.getKeystoreId(), this.masterKey.getAlias());
+                        return null;
+                    }, false, true);
+                }
+
                 LOGGER.info(
-                        "Failed to update / store re-encrypted symmetric content encryption key for content URL entity {} - URL or key entity may have been concurrently deleted",
-                        entry.getContentUrlId());
+                        "Re-encryption of symmetric content encryption keys for master key {}: {} of ~{} processed, {} re-encrypted, {} failed, {} keys/s, checkpoint ID {}",
+                        this.masterKey, processed, this.progress.getEstimatedTotal(), this.progress.getReEncrypted(),
+                        this.progress.getFailed(), this.progress.getKeysPerSecond(), checkpointId);
             }
         }
 
+        protected boolean reEncryptBatch(final List<ContentUrlKeyEntity> batch)
+        {
+            boolean succeeded = true;
+            final List<ContentUrlKeyEntity> reEncryptedKeys = new ArrayList<>(batch.size());
+            final List<Long> contentUrlIds = new ArrayList<>(batch.size());
+            for (final ContentUrlKeyEntity entry : batch)
+            {
+                try
+                {
+                    final SecretKeySpec key = EncryptingContentStoreManagerImpl.this.getKeyForKeyEntity(entry);
+                    final EncryptedKey reEncryptedKey = EncryptingContentStoreManagerImpl.this.encryptKey(key);
+
+                    final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
+                    urlKeyEntity.setId(entry.getId());
+                    urlKeyEntity.setContentUrlId(entry.getContentUrlId());
+                    urlKeyEntity.setEncryptedKey(reEncryptedKey);
+                    urlKeyEntity.setUnencryptedFileSize(entry.getUnencryptedFileSize());
+
+                    reEncryptedKeys.add(urlKeyEntity);
+                    contentUrlIds.add(entry.getContentUrlId());
+                }
+                catch (final RuntimeException e)
+                {
+                    LOGGER.warn("Failed to re-encrypt symmetric content encryption key {}", entry, e);
+                    this.progress.recordFailure(1, entry.toString(), e);
+                    succeeded = false;
+                }
+            }
+
+            if (!reEncryptedKeys.isEmpty())
+            {
+                try
+                {
+                    final int updated = this.txnHelper.doInTransaction(() -> {
+                        final int count = EncryptingContentStoreManagerImpl.this.contentUrlKeyDAO.updateSymmetricKeys(this.masterKey,
+                                reEncryptedKeys);
+                        // updates bypass ContentDataDAO, so cached entities with the previous key need to be dropped
+                        EncryptingContentStoreManagerImpl.this.contentUrlConsistencyDAO
+                                .invalidateCachedContentUrlEntitiesById(contentUrlIds);
+                        return count;
+                    }, false, true);
+
+                    // keys decrypted via the old master key must not outlive its re-encryption in this node-local cache
+                    reEncryptedKeys.forEach(
+                            urlKeyEntity -> EncryptingContentStoreManagerImpl.this.decryptedKeyCache.remove(urlKeyEntity.getId()));
+
+                    this.progress.recordReEncrypted(updated);
+                    if (updated < reEncryptedKeys.size())
+                    {
+                        LOGGER.info(
+                                "Failed to update {} of {} re-encrypted symmetric content encryption keys - URL or key entities may have been concurrently deleted",
+                                reEncryptedKeys.size() - updated, reEncryptedKeys.size());
+                    }
+                }
+                catch (final RuntimeException e)
+                {
+                    LOGGER.warn("Failed to update batch of {} re-encrypted symmetric content encryption keys", reEncryptedKeys.size(), e);
+                    this.progress.recordFailure(reEncryptedKeys.size(), reEncryptedKeys.get(0).toString(), e);
+                    succeeded = false;
+                }
+            }
+
+            this.progress.recordProcessed(batch.size());
+            return succeeded;
+        }
     }
 }
@@ -15,11 +15,16 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.security.Key;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.EmptyContentReader;
@@ -34,6 +39,7 @@ import org.alfresco.util.ParameterCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingWritableByteChannel.EncryptionListener;
 import de.acosix.alfresco.simplecontentstores.repo.store.facade.ContentWriterFacade;
 
 /**
@@ -44,10 +50,25 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EncryptingContentWriterFacade.class);
 
+    // container formats which can only be reliably detected from the complete content, not from a truncated window
+    private static final Set<String> CONTAINER_MIMETYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(MimetypeMap.MIMETYPE_ZIP,
+            "application/x-tika-ooxml", "application/x-tika-ooxml-protected", "application/x-tika-msoffice", "application/x-tar",
+            MimetypeMap.MIMETYPE_BINARY)));
+
     protected final ContentContext context;
 
     protected final Key key;
 
+    protected final boolean seekableFormat;
+
+    protected final ParallelCipherSettings parallelCipherSettings;
+
+    protected final boolean selfDescribingFormat;
+
+    protected final int contentWindowSize;
+
+    protected ContentWindowCapturingChannel contentWindowChannel;
+
     protected MimetypeService mimetypeService;
 
     protected boolean completedWrite = false;
@@ -64,6 +85,25 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
 
     protected EncryptingContentWriterFacade(final ContentWriter delegate, final ContentContext context, final Key key,
             final ContentReader existingContentReader)
+    {
+        this(delegate, context, key, existingContentReader, false);
+    }
+
+    protected EncryptingContentWriterFacade(final ContentWriter delegate, final ContentContext context, final Key key,
+            final ContentReader existingContentReader, final boolean seekableFormat)
+    {
+        this(delegate, context, key, existingContentReader, seekableFormat, null);
+    }
+
+    protected EncryptingContentWriterFacade(final ContentWriter delegate, final ContentContext context, final Key key,
+            final ContentReader existingContentReader, final boolean seekableFormat, final ParallelCipherSettings parallelCipherSettings)
+    {
+        this(delegate, context, key, existingContentReader, seekableFormat, parallelCipherSettings, false, 0);
+    }
+
+    protected EncryptingContentWriterFacade(final ContentWriter delegate, final ContentContext context, final Key key,
+            final ContentReader existingContentReader, final boolean seekableFormat, final ParallelCipherSettings parallelCipherSettings,
+            final boolean selfDescribingFormat, final int contentWindowSize)
     {
         super(delegate, existingContentReader);
 
@@ -88,6 +128,10 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
 
         this.context = context;
         this.key = key;
+        this.seekableFormat = seekableFormat;
+        this.parallelCipherSettings = parallelCipherSettings;
+        this.selfDescribingFormat = selfDescribingFormat;
+        this.contentWindowSize = contentWindowSize;
     }
 
     /**
@@ -161,7 +205,7 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
         final ContentReader reader;
         if (this.completedWrite)
         {
-            reader = new DecryptingContentReaderFacade(super.getReader(), this.key, this.unencryptedSize);
+            reader = new DecryptingContentReaderFacade(super.getReader(), this.key, this.unencryptedSize, this.parallelCipherSettings);
         }
         else
         {
@@ -178,14 +222,38 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
     public WritableByteChannel getWritableChannel() throws ContentIOException
     {
         final WritableByteChannel channel = super.getWritableChannel();
-        final EncryptingWritableByteChannel eChannel = new EncryptingWritableByteChannel(channel, this.key);
-
-        eChannel.addListener((bytesRead, bytesWritten) -> {
+        final EncryptionListener listener = (bytesRead, bytesWritten) -> {
             EncryptingContentWriterFacade.this.unencryptedSize += bytesRead;
             EncryptingContentWriterFacade.this.encryptedSize += bytesWritten;
-        });
+        };
+
+        final EncryptedContentHeader header = this.seekableFormat ? EncryptedContentHeader.newHeader(this.key, this.selfDescribingFormat)
+                : null;
+
+        WritableByteChannel result;
+        if (header != null && this.parallelCipherSettings != null)
+        {
+            final ParallelEncryptingWritableByteChannel eChannel = new ParallelEncryptingWritableByteChannel(channel, this.key, header,
+                    this.parallelCipherSettings);
+            eChannel.addListener(listener);
+            result = eChannel;
+        }
+        else
+        {
+            final EncryptingWritableByteChannel eChannel = header != null ? new EncryptingWritableByteChannel(channel, this.key, header)
+                    : new EncryptingWritableByteChannel(channel, this.key);
+            eChannel.addListener(listener);
+            result = eChannel;
+        }
+
+        if (this.contentWindowSize > 0)
+        {
+            // capture plaintext for mimetype / encoding detection as it passes through, regardless of how encryption is handled
+            this.contentWindowChannel = new ContentWindowCapturingChannel(result, this.contentWindowSize);
+            result = this.contentWindowChannel;
+        }
 
-        return eChannel;
+        return result;
     }
 
     /**
@@ -207,8 +275,9 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
 
             final ContentCharsetFinder charsetFinder = this.mimetypeService.getContentCharsetFinder();
 
-            final ContentReader reader = this.getReader();
-            final InputStream is = reader.getContentInputStream();
+            // charset finders only ever inspect a limited number of leading bytes, so the captured window is always sufficient
+            final InputStream is = this.contentWindowChannel != null ? new ByteArrayInputStream(this.contentWindowChannel.getWindow())
+                    : this.getReader().getContentInputStream();
             final Charset charset = charsetFinder.getCharset(is, this.getMimetype());
             try
             {
@@ -252,6 +321,18 @@ public class EncryptingContentWriterFacade extends ContentWriterFacade
             {
                 mimetype = MimetypeMap.MIMETYPE_APPLEFILE;
             }
+            else if (this.contentWindowChannel != null)
+            {
+                final ContentReader windowReader = new ContentWindowReader(this.getContentUrl(), this.contentWindowChannel.getWindow());
+                mimetype = this.mimetypeService.guessMimetype(filename, windowReader);
+
+                if (this.contentWindowChannel.isTruncated() && (mimetype == null || CONTAINER_MIMETYPES.contains(mimetype)))
+                {
+                    LOGGER.debug("Content window only yielded mimetype {} for writer for URL {} - re-reading complete content", mimetype,
+                            this.getContentUrl());
+                    mimetype = this.mimetypeService.guessMimetype(filename, this.getReader());
+                }
+            }
             else
             {
                 mimetype = this.mimetypeService.guessMimetype(filename, this.getReader());
@@ -37,19 +37,30 @@ import org.alfresco.error.AlfrescoRuntimeException;
 public class EncryptingWritableByteChannel implements WritableByteChannel
 {
 
+    private static final ByteBuffer EMPTY_INPUT = ByteBuffer.allocate(0);
+
     protected final WritableByteChannel delegateChannel;
 
+    protected final Key key;
+
     protected final Cipher cipher;
 
-    protected ByteBuffer writeBuffer = ByteBuffer.allocateDirect(8192);
+    protected ByteBuffer writeBuffer = CipherUtil.acquireBuffer();
 
     protected volatile boolean open = true;
 
     protected Collection<EncryptionListener> listeners;
 
+    protected ByteBuffer pendingHeader;
+
+    protected EncryptedContentHeader header;
+
+    protected long plaintextLength;
+
     public EncryptingWritableByteChannel(final WritableByteChannel delegateChannel, final Key key)
     {
         this.delegateChannel = delegateChannel;
+        this.key = key;
 
         try
         {
@@ -61,6 +72,33 @@ public class EncryptingWritableByteChannel implements WritableByteChannel
         }
     }
 
+    /**
+     * Creates a new instance of this class to encrypt content in the versioned, seekable format.
+     *
+     * @param delegateChannel
+     *            the channel to which to write the encrypted content
+     * @param key
+     *            the symmetric content encryption key
+     * @param header
+     *            the header to write before the encrypted content
+     */
+    public EncryptingWritableByteChannel(final WritableByteChannel delegateChannel, final Key key, final EncryptedContentHeader header)
+    {
+        this.delegateChannel = delegateChannel;
+        this.header = header;
+        this.pendingHeader = header.toByteBuffer();
+        this.key = key;
+
+        try
+        {
+            this.cipher = header.getInitialisedCipher(key, true, 0);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException("Error initialising cipher", e);
+        }
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -85,15 +123,16 @@ public class EncryptingWritableByteChannel implements WritableByteChannel
 
         try
         {
-            final int expectedOutputSize = this.cipher.getOutputSize(0);
-            if (this.writeBuffer.capacity() < expectedOutputSize)
-            {
-                this.writeBuffer = ByteBuffer.allocateDirect(expectedOutputSize);
-            }
-            this.cipher.doFinal(ByteBuffer.allocate(0), this.writeBuffer);
+            this.writeBuffer.clear();
+            this.cipher.doFinal(EMPTY_INPUT, this.writeBuffer);
 
             this.writeBuffer.flip();
-            final int bytesWritten = this.delegateChannel.write(this.writeBuffer);
+            final int bytesWritten = this.writePendingHeader() + this.writeFully(this.writeBuffer);
+
+            if (this.header != null)
+            {
+                this.header.recordPlaintextLength(this.delegateChannel, this.plaintextLength);
+            }
 
             if (this.listeners != null)
             {
@@ -109,9 +148,13 @@ public class EncryptingWritableByteChannel implements WritableByteChannel
         }
         finally
         {
+            this.open = false;
+            CipherUtil.releaseCipher(this.cipher, this.key);
+            CipherUtil.releaseBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+
             // this'll trigger the listeners on the backing channel
             this.delegateChannel.close();
-            this.open = false;
         }
     }
 
@@ -128,24 +171,33 @@ public class EncryptingWritableByteChannel implements WritableByteChannel
         }
 
         final int bytesRead = src.remaining();
+        int bytesWritten = this.writePendingHeader();
+        this.plaintextLength += bytesRead;
 
-        final int expectedOutputSize = this.cipher.getOutputSize(bytesRead);
-        if (this.writeBuffer.capacity() < expectedOutputSize)
-        {
-            this.writeBuffer = ByteBuffer.allocateDirect(expectedOutputSize);
-        }
+        // process input in chunks so that encrypted output (including any block buffered in the cipher) always fits the write buffer
+        final int maxChunkSize = this.writeBuffer.capacity() - 2 * this.cipher.getBlockSize();
+        final int srcLimit = src.limit();
         try
         {
-            this.cipher.update(src, this.writeBuffer);
+            while (src.position() < srcLimit)
+            {
+                src.limit(src.position() + Math.min(srcLimit - src.position(), maxChunkSize));
+                this.writeBuffer.clear();
+                this.cipher.update(src, this.writeBuffer);
+                src.limit(srcLimit);
+
+                this.writeBuffer.flip();
+                bytesWritten += this.writeFully(this.writeBuffer);
+            }
         }
         catch (final ShortBufferException e)
         {
             throw new IOException("Unexpected encryption error", e);
         }
-
-        this.writeBuffer.flip();
-        final int bytesWritten = this.delegateChannel.write(this.writeBuffer);
-        this.writeBuffer.clear();
+        finally
+        {
+            src.limit(srcLimit);
+        }
 
         if (this.listeners != null)
         {
@@ -159,6 +211,30 @@ public class EncryptingWritableByteChannel implements WritableByteChannel
         return bytesRead;
     }
 
+    protected int writeFully(final ByteBuffer buffer) throws IOException
+    {
+        int bytesWritten = 0;
+        while (buffer.hasRemaining())
+        {
+            bytesWritten += this.delegateChannel.write(buffer);
+        }
+        return bytesWritten;
+    }
+
+    protected int writePendingHeader() throws IOException
+    {
+        int bytesWritten = 0;
+        if (this.pendingHeader != null)
+        {
+            while (this.pendingHeader.hasRemaining())
+            {
+                bytesWritten += this.delegateChannel.write(this.pendingHeader);
+            }
+            this.pendingHeader = null;
+        }
+        return bytesWritten;
+    }
+
     public void addListener(final EncryptionListener listener)
     {
         if (this.listeners == null)
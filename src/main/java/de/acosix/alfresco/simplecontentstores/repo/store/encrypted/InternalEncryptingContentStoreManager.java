@@ -45,6 +45,28 @@ public interface InternalEncryptingContentStoreManager extends EncryptingContent
      */
     Optional<SecretKeySpec> getDecryiptionKey(String contentUrl);
 
+    /**
+     * Resolves the descriptor for a particular content URL, using a single lookup of the content URL entity. Within an active transaction,
+     * resolved descriptors are memoised so that repeated reads of the same content do not require additional lookups.
+     *
+     * @param contentUrl
+     *            the URL of the content object for which to resolve the descriptor
+     * @return the descriptor of the content object, or an unresolved value if the URL is not associated with any stored content
+     */
+    Optional<EncryptedContentDescriptor> getContentDescriptor(String contentUrl);
+
+    /**
+     * Retrieves the symmetric content decryption key for a particular content descriptor. The resolved key is retained in the descriptor
+     * for subsequent calls.
+     *
+     * @param descriptor
+     *            the descriptor of the content object for which to retrieve the decryption key
+     * @return the decryption key to use if the particular content is actually encrypted, otherwise an unresolved value
+     * @throws ContentIOException
+     *             if the stored key was encrypted with an unavailable master key
+     */
+    Optional<SecretKeySpec> getDecryiptionKey(EncryptedContentDescriptor descriptor);
+
     /**
      * Creates a new symmetric content encryption key.
      *
@@ -52,4 +52,29 @@ public interface InternalMasterKeyManager extends MasterKeyManager
      * @return the master decryption key
      */
     Optional<Key> getDecryptionKey(MasterKeyReference masterKey);
+
+    /**
+     * Registers a listener to be notified about any state changes of master keys performed via this instance.
+     *
+     * @param listener
+     *            the listener to register
+     */
+    void addMasterKeyStateListener(MasterKeyStateListener listener);
+
+    /**
+     *
+     * @author Axel Faust
+     */
+    @FunctionalInterface
+    interface MasterKeyStateListener
+    {
+
+        /**
+         * Notifies the listener that the state of a specific master key has been changed, e.g. it has been enabled or disabled.
+         *
+         * @param masterKey
+         *            the master key which has been changed
+         */
+        void masterKeyStateChanged(MasterKeyReference masterKey);
+    }
 }
@@ -37,11 +37,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
@@ -105,8 +109,19 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
 
     protected final Map<MasterKeyReference, Key> encryptionKeys = new HashMap<>();
 
+    // immutable snapshot of encryptionKeys published after activation for lock-free access when picking encryption keys
+    protected volatile Map<MasterKeyReference, Key> encryptionKeysSnapshot = Collections.emptyMap();
+
+    // keys for which the check value recorded in the database has been verified by this node
+    protected final Set<MasterKeyReference> verifiedCheckValueKeys = ConcurrentHashMap.newKeySet();
+
+    // active keys as last observed when picking encryption keys, used to detect state changes made by other cluster servers
+    protected volatile Set<MasterKeyReference> lastObservedActiveKeys = Collections.emptySet();
+
     protected final Map<MasterKeyReference, Key> decryptionKeys = new HashMap<>();
 
+    protected final List<MasterKeyStateListener> masterKeyStateListeners = new CopyOnWriteArrayList<>();
+
     protected ApplicationContext applicationContext;
 
     protected ContentUrlKeyDAO contentUrlKeyDAO;
@@ -479,6 +494,8 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
         {
             this.stateLock.readLock().unlock();
         }
+
+        this.notifyMasterKeyStateChanged(masterKey);
     }
 
     /**
@@ -519,6 +536,8 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
         {
             this.stateLock.readLock().unlock();
         }
+
+        this.notifyMasterKeyStateChanged(masterKey);
     }
 
     /**
@@ -594,6 +613,7 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
             if (this.checkValues.isEmpty())
             {
                 this.initKeys();
+                this.encryptionKeysSnapshot = Collections.unmodifiableMap(new HashMap<>(this.encryptionKeys));
             }
         }
         finally
@@ -707,36 +727,45 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
     @Override
     public Pair<MasterKeyReference, Key> getRandomActiveEncryptionKey()
     {
-        this.stateLock.readLock().lock();
-        try
+        // lock-free on purpose - this is called for every new encrypted content, and only relies on the immutable snapshot and cluster
+        // caches, which are safe for concurrent access
+        final Map<MasterKeyReference, Key> encryptionKeys = this.encryptionKeysSnapshot;
+        final List<MasterKeyReference> activeKeys = encryptionKeys.keySet().stream()
+                .filter(key -> !this.blockedMasterKeyCache.contains(key)).filter(key -> !this.disabledMasterKeyCache.contains(key))
+                .collect(Collectors.toList());
+        if (activeKeys.isEmpty())
         {
-            final List<MasterKeyReference> activeKeys = this.getActiveKeys();
-            if (activeKeys.isEmpty())
-            {
-                throw new IllegalStateException("Master key manager has not been activated / initialised");
-            }
-            final MasterKeyReference selectedKey = activeKeys.get(RNG.nextInt(activeKeys.size()));
+            throw new IllegalStateException("Master key manager has not been activated / initialised");
+        }
 
-            LOGGER.debug("Randomly picked key with alias {} from key store {}", selectedKey.getAlias(), selectedKey.getKeystoreId());
+        final Set<MasterKeyReference> activeKeySet = new HashSet<>(activeKeys);
+        if (!activeKeySet.equals(this.lastObservedActiveKeys))
+        {
+            // cluster caches provide no events, so a change in active keys is the only indicator of a state change on other servers
+            LOGGER.debug("Set of active master keys changed from {} to {} - check values will be re-verified", this.lastObservedActiveKeys,
+                    activeKeySet);
+            this.lastObservedActiveKeys = Collections.unmodifiableSet(activeKeySet);
+            this.verifiedCheckValueKeys.clear();
+        }
 
-            this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
-                final Serializable usedMasterKeyCheckValue = this.attributeService.getAttribute(ATTR_KEY_MASTER_KEY_CHECK_VALUES,
-                        selectedKey.getKeystoreId(), selectedKey.getAlias());
-                final String checkValue = this.checkValues.get(selectedKey);
-                if (!EqualsHelper.nullSafeEquals(usedMasterKeyCheckValue, checkValue))
-                {
-                    this.attributeService.setAttribute(checkValue, ATTR_KEY_MASTER_KEY_CHECK_VALUES, selectedKey.getKeystoreId(),
-                            selectedKey.getAlias());
-                }
-                return null;
-            }, false, false);
+        final MasterKeyReference selectedKey = activeKeys.get(RNG.nextInt(activeKeys.size()));
 
-            return new Pair<>(selectedKey, this.encryptionKeys.get(selectedKey));
-        }
-        finally
+        LOGGER.debug("Randomly picked key with alias {} from key store {}", selectedKey.getAlias(), selectedKey.getKeystoreId());
+
+        if (this.verifiedCheckValueKeys.add(selectedKey))
         {
-            this.stateLock.readLock().unlock();
+            try
+            {
+                this.verifyUsedMasterKeyCheckValue(selectedKey);
+            }
+            catch (final RuntimeException e)
+            {
+                this.verifiedCheckValueKeys.remove(selectedKey);
+                throw e;
+            }
         }
+
+        return new Pair<>(selectedKey, encryptionKeys.get(selectedKey));
     }
 
     /**
@@ -758,6 +787,51 @@ public class MasterKeyManagerImpl implements InternalMasterKeyManager, Applicati
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addMasterKeyStateListener(final MasterKeyStateListener listener)
+    {
+        ParameterCheck.mandatory("listener", listener);
+        this.masterKeyStateListeners.add(listener);
+    }
+
+    protected void notifyMasterKeyStateChanged(final MasterKeyReference masterKey)
+    {
+        this.verifiedCheckValueKeys.remove(masterKey);
+
+        for (final MasterKeyStateListener listener : this.masterKeyStateListeners)
+        {
+            listener.masterKeyStateChanged(masterKey);
+        }
+    }
+
+    /**
+     * Verifies that the check value of a master key recorded in the database as having been used to encrypt symmetric keys matches the
+     * check value of the currently loaded key, updating the recorded check value if necessary.
+     *
+     * @param masterKey
+     *     the master key to verify
+     */
+    protected void verifyUsedMasterKeyCheckValue(final MasterKeyReference masterKey)
+    {
+        LOGGER.debug("Verifying recorded check value of key with alias {} from key store {}", masterKey.getAlias(),
+                masterKey.getKeystoreId());
+
+        this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+            final Serializable usedMasterKeyCheckValue = this.attributeService.getAttribute(ATTR_KEY_MASTER_KEY_CHECK_VALUES,
+                    masterKey.getKeystoreId(), masterKey.getAlias());
+            final String checkValue = this.checkValues.get(masterKey);
+            if (!EqualsHelper.nullSafeEquals(usedMasterKeyCheckValue, checkValue))
+            {
+                this.attributeService.setAttribute(checkValue, ATTR_KEY_MASTER_KEY_CHECK_VALUES, masterKey.getKeystoreId(),
+                        masterKey.getAlias());
+            }
+            return null;
+        }, false, false);
+    }
+
     /**
      * Loads the contents of {@link #keystoreIds configured keystores}, initialising the set of available master keys. This operation must
      * be called within {@link #stateLock an active write lock}.
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the settings for parallel, segment-based encryption / decryption of content in the
+ * {@link EncryptedContentHeader seekable format}. Since counter mode allows encryption / decryption to start at any block, content can be
+ * split into fixed-size segments which are processed independently on multiple threads and reassembled in order.
+ *
+ * @author Axel Faust
+ */
+public class ParallelCipherSettings
+{
+
+    protected final ExecutorService executor;
+
+    protected final int segmentSize;
+
+    protected final int maxSegmentsInFlight;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param executor
+     *     the executor on which to process segments
+     * @param segmentSize
+     *     the size of individual segments in bytes - will be rounded down to a multiple of the cipher block size when used
+     * @param maxSegmentsInFlight
+     *     the maximum number of segments being processed / buffered at any time for a single content, limiting memory use to
+     *     {@code segmentSize * maxSegmentsInFlight}
+     */
+    public ParallelCipherSettings(final ExecutorService executor, final int segmentSize, final int maxSegmentsInFlight)
+    {
+        ParameterCheck.mandatory("executor", executor);
+        if (segmentSize <= 0)
+        {
+            throw new IllegalArgumentException("segmentSize must be a positive integer");
+        }
+        if (maxSegmentsInFlight <= 0)
+        {
+            throw new IllegalArgumentException("maxSegmentsInFlight must be a positive integer");
+        }
+
+        this.executor = executor;
+        this.segmentSize = segmentSize;
+        this.maxSegmentsInFlight = maxSegmentsInFlight;
+    }
+
+    /**
+     * @return the executor
+     */
+    public ExecutorService getExecutor()
+    {
+        return this.executor;
+    }
+
+    /**
+     * @return the segmentSize
+     */
+    public int getSegmentSize()
+    {
+        return this.segmentSize;
+    }
+
+    /**
+     * Retrieves the effective segment size for a specific content, aligned to the block size of the cipher.
+     *
+     * @param header
+     *     the header of the content
+     * @return the segment size
+     */
+    public int getSegmentSize(final EncryptedContentHeader header)
+    {
+        final int blockSize = header.getBlockSize();
+        return Math.max(blockSize, this.segmentSize - this.segmentSize % blockSize);
+    }
+
+    /**
+     * @return the maxSegmentsInFlight
+     */
+    public int getMaxSegmentsInFlight()
+    {
+        return this.maxSegmentsInFlight;
+    }
+
+    /**
+     * Submits the processing of a single segment to the executor. If the executor rejects the task, e.g. because it is being shut down,
+     * the segment is processed on the calling thread instead.
+     *
+     * @param task
+     *     the task processing the segment
+     * @return the future result of the task
+     */
+    protected Future<ByteBuffer> submitSegment(final Callable<ByteBuffer> task)
+    {
+        Future<ByteBuffer> future;
+        try
+        {
+            future = this.executor.submit(task);
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            final CompletableFuture<ByteBuffer> inline = new CompletableFuture<>();
+            try
+            {
+                inline.complete(task.call());
+            }
+            catch (final Exception e)
+            {
+                inline.completeExceptionally(e);
+            }
+            future = inline;
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the result of processing a single segment.
+     *
+     * @param future
+     *     the future result of the segment
+     * @return the processed segment
+     * @throws IOException
+     *     if the processing failed or the calling thread was interrupted while waiting
+     */
+    protected static ByteBuffer awaitSegment(final Future<ByteBuffer> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for segment to be processed");
+            iioe.initCause(e);
+            throw iioe;
+        }
+        catch (final ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unexpected error processing segment", cause);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class extend the random access decryption of content in the {@link EncryptedContentHeader versioned, seekable format}
+ * with a parallel read-ahead for sequential reads. Encrypted segments following the current position are read from the backing channel
+ * and decrypted on multiple threads, bounded by the {@link ParallelCipherSettings settings}. Repositioning the channel outside of the
+ * segments already read ahead discards them, and absolute reads via {@link #read(ByteBuffer, long)} or {@link #transferTo(long, long,
+ * java.nio.channels.WritableByteChannel) transferTo} do not use the read-ahead at all.
+ *
+ * @author Axel Faust
+ */
+public class ParallelDecryptingFileChannel extends DecryptingFileChannel
+{
+
+    protected final ParallelCipherSettings settings;
+
+    protected final int segmentSize;
+
+    protected final Deque<Segment> segments = new ArrayDeque<>();
+
+    protected long nextSegmentPosition;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param delegateChannel
+     *     the channel providing the encrypted content, including the header
+     * @param key
+     *     the symmetric content decryption key
+     * @param header
+     *     the header read from the content
+     * @param settings
+     *     the settings for parallel decryption
+     */
+    public ParallelDecryptingFileChannel(final SeekableByteChannel delegateChannel, final Key key, final EncryptedContentHeader header,
+            final ParallelCipherSettings settings)
+    {
+        super(delegateChannel, key, header);
+        ParameterCheck.mandatory("settings", settings);
+
+        this.settings = settings;
+        this.segmentSize = settings.getSegmentSize(header);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException
+    {
+        this.ensureOpen();
+
+        final long size = this.size();
+        int bytesRead;
+        if (this.position >= size)
+        {
+            bytesRead = -1;
+        }
+        else if (!dst.hasRemaining())
+        {
+            bytesRead = 0;
+        }
+        else
+        {
+            this.alignSegments(this.position, size);
+
+            final Segment segment = this.segments.peekFirst();
+            final ByteBuffer decrypted = ParallelCipherSettings.awaitSegment(segment.decrypted).duplicate();
+            final int segmentOffset = (int) (this.position - segment.position);
+            if (segmentOffset >= decrypted.limit())
+            {
+                // segment is short as backing channel ended prematurely (e.g. truncated content) - end of content as in sequential reads
+                bytesRead = -1;
+            }
+            else
+            {
+                decrypted.position(segmentOffset);
+                if (decrypted.remaining() > dst.remaining())
+                {
+                    decrypted.limit(decrypted.position() + dst.remaining());
+                }
+
+                bytesRead = decrypted.remaining();
+                dst.put(decrypted);
+                this.position += bytesRead;
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        synchronized (this)
+        {
+            this.discardSegments();
+        }
+        super.implCloseChannel();
+    }
+
+    protected void alignSegments(final long position, final long size) throws IOException
+    {
+        // drop segments already consumed by sequential reads
+        while (!this.segments.isEmpty() && this.segments.peekFirst().position + this.segmentSize <= position)
+        {
+            this.segments.pollFirst().decrypted.cancel(false);
+        }
+
+        if (this.segments.isEmpty() || this.segments.peekFirst().position > position)
+        {
+            this.discardSegments();
+            this.nextSegmentPosition = position - position % this.segmentSize;
+        }
+
+        while (this.segments.size() < this.settings.getMaxSegmentsInFlight() && this.nextSegmentPosition < size)
+        {
+            this.submitSegment(this.nextSegmentPosition, (int) Math.min(this.segmentSize, size - this.nextSegmentPosition));
+            this.nextSegmentPosition += this.segmentSize;
+        }
+    }
+
+    protected void submitSegment(final long segmentPosition, final int length) throws IOException
+    {
+        // I/O on the delegate channel is kept on the calling thread as channel position is shared state
+        final ByteBuffer segment = ByteBuffer.allocate(length);
+        this.delegateChannel.position(this.header.getLength() + segmentPosition);
+        int delegateBytesRead = 0;
+        while (segment.hasRemaining() && delegateBytesRead != -1)
+        {
+            delegateBytesRead = this.delegateChannel.read(segment);
+        }
+        segment.flip();
+
+        final long blockOffset = segmentPosition / this.header.getBlockSize();
+        final Future<ByteBuffer> decrypted = this.settings.submitSegment(() -> {
+            Cipher cipher = null;
+            try
+            {
+                cipher = this.header.getInitialisedCipher(this.key, false, blockOffset);
+                // counter mode is a stream mode without padding, so decryption can be done in-place
+                cipher.doFinal(segment.array(), 0, segment.limit(), segment.array(), 0);
+            }
+            catch (final GeneralSecurityException e)
+            {
+                throw new IOException("Unexpected decryption error", e);
+            }
+            finally
+            {
+                CipherUtil.releaseCipher(cipher, this.key);
+            }
+            return segment;
+        });
+        this.segments.add(new Segment(segmentPosition, decrypted));
+    }
+
+    protected void discardSegments()
+    {
+        this.segments.forEach(segment -> segment.decrypted.cancel(false));
+        this.segments.clear();
+    }
+
+    /**
+     *
+     * @author Axel Faust
+     */
+    protected static class Segment
+    {
+
+        protected final long position;
+
+        protected final Future<ByteBuffer> decrypted;
+
+        protected Segment(final long position, final Future<ByteBuffer> decrypted)
+        {
+            this.position = position;
+            this.decrypted = decrypted;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import org.alfresco.util.ParameterCheck;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingWritableByteChannel.EncryptionListener;
+
+/**
+ * Instances of this class encrypt content in the {@link EncryptedContentHeader versioned, seekable format} using multiple threads. Written
+ * content is collected into fixed-size segments, each of which is encrypted by a cipher initialised to the counter value of its first
+ * block, so that the result is identical to sequential encryption. Encrypted segments are written to the delegate channel in order, and
+ * the number of segments being encrypted / waiting to be written is bounded by the {@link ParallelCipherSettings settings}.
+ *
+ * @author Axel Faust
+ */
+public class ParallelEncryptingWritableByteChannel implements WritableByteChannel
+{
+
+    protected final WritableByteChannel delegateChannel;
+
+    protected final Key key;
+
+    protected final EncryptedContentHeader header;
+
+    protected final ParallelCipherSettings settings;
+
+    protected final int segmentSize;
+
+    protected final Deque<Future<ByteBuffer>> pendingSegments = new ArrayDeque<>();
+
+    protected ByteBuffer currentSegment;
+
+    protected long currentSegmentPosition;
+
+    protected ByteBuffer pendingHeader;
+
+    protected volatile boolean open = true;
+
+    protected Collection<EncryptionListener> listeners;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param delegateChannel
+     *     the channel to which to write the encrypted content
+     * @param key
+     *     the symmetric content encryption key
+     * @param header
+     *     the header to write before the encrypted content
+     * @param settings
+     *     the settings for parallel encryption
+     */
+    public ParallelEncryptingWritableByteChannel(final WritableByteChannel delegateChannel, final Key key,
+            final EncryptedContentHeader header, final ParallelCipherSettings settings)
+    {
+        ParameterCheck.mandatory("delegateChannel", delegateChannel);
+        ParameterCheck.mandatory("key", key);
+        ParameterCheck.mandatory("header", header);
+        ParameterCheck.mandatory("settings", settings);
+
+        this.delegateChannel = delegateChannel;
+        this.key = key;
+        this.header = header;
+        this.settings = settings;
+        this.segmentSize = settings.getSegmentSize(header);
+        this.pendingHeader = header.toByteBuffer();
+        this.currentSegment = ByteBuffer.allocate(this.segmentSize);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return this.open;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!this.open)
+        {
+            return;
+        }
+
+        try
+        {
+            if (this.currentSegment.position() > 0)
+            {
+                this.submitCurrentSegment();
+            }
+
+            int bytesWritten = this.writePendingHeader();
+            while (!this.pendingSegments.isEmpty())
+            {
+                bytesWritten += this.writeSegment(this.pendingSegments.poll());
+            }
+
+            // all content has been submitted as segments at this point
+            this.header.recordPlaintextLength(this.delegateChannel, this.currentSegmentPosition);
+
+            this.notifyListeners(0, bytesWritten);
+        }
+        finally
+        {
+            this.pendingSegments.forEach(segment -> segment.cancel(false));
+            this.pendingSegments.clear();
+
+            // this'll trigger the listeners on the backing channel
+            this.delegateChannel.close();
+            this.open = false;
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException
+    {
+        if (!this.open)
+        {
+            throw new ClosedChannelException();
+        }
+
+        final int bytesRead = src.remaining();
+        int bytesWritten = 0;
+
+        while (src.hasRemaining())
+        {
+            final int length = Math.min(src.remaining(), this.currentSegment.remaining());
+            final int srcLimit = src.limit();
+            src.limit(src.position() + length);
+            this.currentSegment.put(src);
+            src.limit(srcLimit);
+
+            if (!this.currentSegment.hasRemaining())
+            {
+                if (this.pendingSegments.size() >= this.settings.getMaxSegmentsInFlight())
+                {
+                    bytesWritten += this.writePendingHeader();
+                    bytesWritten += this.writeSegment(this.pendingSegments.poll());
+                }
+                this.submitCurrentSegment();
+            }
+        }
+
+        this.notifyListeners(bytesRead, bytesWritten);
+
+        // needs to be the bytes we read from input because segment buffering is an internal detail
+        return bytesRead;
+    }
+
+    public void addListener(final EncryptionListener listener)
+    {
+        if (this.listeners == null)
+        {
+            this.listeners = new ArrayList<>();
+        }
+        this.listeners.add(listener);
+    }
+
+    protected void submitCurrentSegment()
+    {
+        final ByteBuffer segment = this.currentSegment;
+        final long blockOffset = this.currentSegmentPosition / this.header.getBlockSize();
+        segment.flip();
+
+        this.pendingSegments.add(this.settings.submitSegment(() -> {
+            Cipher cipher = null;
+            try
+            {
+                cipher = this.header.getInitialisedCipher(this.key, true, blockOffset);
+                // counter mode is a stream mode without padding, so encryption can be done in-place
+                cipher.doFinal(segment.array(), 0, segment.limit(), segment.array(), 0);
+            }
+            catch (final GeneralSecurityException e)
+            {
+                throw new IOException("Unexpected encryption error", e);
+            }
+            finally
+            {
+                CipherUtil.releaseCipher(cipher, this.key);
+            }
+            return segment;
+        }));
+
+        this.currentSegmentPosition += segment.remaining();
+        this.currentSegment = ByteBuffer.allocate(this.segmentSize);
+    }
+
+    protected int writeSegment(final Future<ByteBuffer> future) throws IOException
+    {
+        final ByteBuffer segment = ParallelCipherSettings.awaitSegment(future);
+        int bytesWritten = 0;
+        while (segment.hasRemaining())
+        {
+            bytesWritten += this.delegateChannel.write(segment);
+        }
+        return bytesWritten;
+    }
+
+    protected int writePendingHeader() throws IOException
+    {
+        int bytesWritten = 0;
+        if (this.pendingHeader != null)
+        {
+            while (this.pendingHeader.hasRemaining())
+            {
+                bytesWritten += this.delegateChannel.write(this.pendingHeader);
+            }
+            this.pendingHeader = null;
+        }
+        return bytesWritten;
+    }
+
+    protected void notifyListeners(final int bytesRead, final int bytesWritten)
+    {
+        if (this.listeners != null)
+        {
+            for (final EncryptionListener listener : this.listeners)
+            {
+                listener.bytesProcessed(bytesRead, bytesWritten);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class track the progress and throughput of a single process re-encrypting the symmetric content encryption keys of a
+ * master encryption key. All operations are thread-safe, so that progress can be recorded by parallel workers and inspected at any time
+ * while the process is running.
+ *
+ * @author Axel Faust
+ */
+public class ReEncryptionProgress
+{
+
+    protected final MasterKeyReference masterKey;
+
+    protected final long startTime = System.currentTimeMillis();
+
+    protected final AtomicLong processed = new AtomicLong();
+
+    protected final AtomicLong reEncrypted = new AtomicLong();
+
+    protected final AtomicLong failed = new AtomicLong();
+
+    protected volatile long estimatedTotal;
+
+    protected volatile long resumedFromId;
+
+    protected volatile long checkpointId;
+
+    protected volatile long endTime = -1;
+
+    protected volatile String lastError;
+
+    protected volatile String lastErrorEntryId;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param masterKey
+     *     the master key for which symmetric keys are being re-encrypted
+     */
+    public ReEncryptionProgress(final MasterKeyReference masterKey)
+    {
+        ParameterCheck.mandatory("masterKey", masterKey);
+        this.masterKey = masterKey;
+    }
+
+    /**
+     * @return the master key for which symmetric keys are being re-encrypted
+     */
+    public MasterKeyReference getMasterKey()
+    {
+        return this.masterKey;
+    }
+
+    /**
+     * @return {@code true} if the process is still running, {@code false} otherwise
+     */
+    public boolean isRunning()
+    {
+        return this.endTime == -1;
+    }
+
+    /**
+     * Marks the process as completed.
+     */
+    public void complete()
+    {
+        this.endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @param estimatedTotal
+     *     the estimated total number of symmetric keys to process
+     */
+    public void setEstimatedTotal(final long estimatedTotal)
+    {
+        this.estimatedTotal = estimatedTotal;
+    }
+
+    /**
+     * @param resumedFromId
+     *     the ID of the persisted checkpoint from which the process has been resumed
+     */
+    public void setResumedFromId(final long resumedFromId)
+    {
+        this.resumedFromId = resumedFromId;
+    }
+
+    /**
+     * @param checkpointId
+     *     the ID of the last symmetric key entity up to which all keys have been processed
+     */
+    public void setCheckpointId(final long checkpointId)
+    {
+        this.checkpointId = checkpointId;
+    }
+
+    /**
+     * @return the estimated total number of symmetric keys to process
+     */
+    public long getEstimatedTotal()
+    {
+        return this.estimatedTotal;
+    }
+
+    /**
+     * @return the ID of the persisted checkpoint from which the process has been resumed, or {@code 0} if the process has not been resumed
+     */
+    public long getResumedFromId()
+    {
+        return this.resumedFromId;
+    }
+
+    /**
+     * @return the ID of the last symmetric key entity up to which all keys have been processed
+     */
+    public long getCheckpointId()
+    {
+        return this.checkpointId;
+    }
+
+    /**
+     * Records the number of symmetric keys processed, regardless of outcome.
+     *
+     * @param count
+     *     the number of processed keys
+     * @return the total number of processed keys
+     */
+    public long recordProcessed(final int count)
+    {
+        return this.processed.addAndGet(count);
+    }
+
+    /**
+     * Records the number of symmetric keys successfully re-encrypted and updated in the database.
+     *
+     * @param count
+     *     the number of re-encrypted keys
+     */
+    public void recordReEncrypted(final int count)
+    {
+        this.reEncrypted.addAndGet(count);
+    }
+
+    /**
+     * Records the failure to re-encrypt / update symmetric keys.
+     *
+     * @param count
+     *     the number of affected keys
+     * @param entryId
+     *     the identifier of the (first) affected key
+     * @param error
+     *     the error
+     */
+    public void recordFailure(final int count, final String entryId, final Throwable error)
+    {
+        this.failed.addAndGet(count);
+        this.lastErrorEntryId = entryId;
+        this.lastError = error.getMessage() != null ? error.getMessage() : error.getClass().getName();
+    }
+
+    /**
+     * @return the total number of processed keys
+     */
+    public long getProcessed()
+    {
+        return this.processed.get();
+    }
+
+    /**
+     * @return the total number of re-encrypted keys
+     */
+    public long getReEncrypted()
+    {
+        return this.reEncrypted.get();
+    }
+
+    /**
+     * @return the total number of keys which failed to be re-encrypted
+     */
+    public long getFailed()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the message of the last error, or {@code null} if no error occurred
+     */
+    public String getLastError()
+    {
+        return this.lastError;
+    }
+
+    /**
+     * @return the identifier of the key affected by the last error, or {@code null} if no error occurred
+     */
+    public String getLastErrorEntryId()
+    {
+        return this.lastErrorEntryId;
+    }
+
+    /**
+     * @return the average number of processed keys per second
+     */
+    public long getKeysPerSecond()
+    {
+        final long elapsedMillis = this.getElapsedMillis();
+        return elapsedMillis > 0 ? this.processed.get() * 1000 / elapsedMillis : 0;
+    }
+
+    /**
+     * @return the number of milliseconds the process has been running / did run
+     */
+    public long getElapsedMillis()
+    {
+        final long endTime = this.endTime;
+        return (endTime == -1 ? System.currentTimeMillis() : endTime) - this.startTime;
+    }
+
+    /**
+     * @return the statistics of the process
+     */
+    public Map<String, Long> toStatistics()
+    {
+        final Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("running", Long.valueOf(this.isRunning() ? 1 : 0));
+        statistics.put("estimatedTotal", Long.valueOf(this.estimatedTotal));
+        statistics.put("processed", Long.valueOf(this.processed.get()));
+        statistics.put("reEncrypted", Long.valueOf(this.reEncrypted.get()));
+        statistics.put("failed", Long.valueOf(this.failed.get()));
+        statistics.put("resumedFromId", Long.valueOf(this.resumedFromId));
+        statistics.put("checkpointId", Long.valueOf(this.checkpointId));
+        statistics.put("elapsedMillis", Long.valueOf(this.getElapsedMillis()));
+        statistics.put("keysPerSecond", Long.valueOf(this.getKeysPerSecond()));
+        return statistics;
+    }
+}
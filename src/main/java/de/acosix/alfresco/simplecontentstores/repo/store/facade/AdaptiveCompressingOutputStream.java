@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.CompressionStatistics.MimetypeStatistics;
+
+/**
+ * Instances of this class buffer a sample from the start of content and decide based on the compressibility of the sample whether the
+ * content should be stored compressed or as-is. The decision is recorded in a {@link CompressedContentHeader header} written to the
+ * target stream before any content, so that readers can skip decompression of content stored as-is.
+ *
+ * @author Axel Faust
+ */
+public class AdaptiveCompressingOutputStream extends OutputStream
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveCompressingOutputStream.class);
+
+    protected final OutputStream targetStream;
+
+    protected final CompressionCodec codec;
+
+    protected final AdaptiveCompressionSettings settings;
+
+    protected final MimetypeStatistics statistics;
+
+    protected final boolean recordUncompressedLength;
+
+    protected final long expectedUncompressedLength;
+
+    protected byte[] sample;
+
+    protected int sampleLength;
+
+    protected OutputStream contentStream;
+
+    protected Boolean compressed;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write the header and the (compressed) content
+     * @param codec
+     *     the codec to compress content with
+     * @param settings
+     *     the settings for adaptive compression
+     * @param mimetype
+     *     the mimetype of the content, used to predict the decision and record statistics - may be {@code null}
+     */
+    public AdaptiveCompressingOutputStream(final OutputStream targetStream, final CompressionCodec codec,
+            final AdaptiveCompressionSettings settings, final String mimetype)
+    {
+        this(targetStream, codec, settings, mimetype, false, CompressedContentHeader.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write the header and the (compressed) content
+     * @param codec
+     *     the codec to compress content with
+     * @param settings
+     *     the settings for adaptive compression
+     * @param mimetype
+     *     the mimetype of the content, used to predict the decision and record statistics - may be {@code null}
+     * @param recordUncompressedLength
+     *     {@code true} if the header should include a field for the length of the uncompressed content
+     * @param expectedUncompressedLength
+     *     the length of the uncompressed content if known in advance, or {@link CompressedContentHeader#UNKNOWN_LENGTH}
+     */
+    public AdaptiveCompressingOutputStream(final OutputStream targetStream, final CompressionCodec codec,
+            final AdaptiveCompressionSettings settings, final String mimetype, final boolean recordUncompressedLength,
+            final long expectedUncompressedLength)
+    {
+        ParameterCheck.mandatory("targetStream", targetStream);
+        ParameterCheck.mandatory("codec", codec);
+        ParameterCheck.mandatory("settings", settings);
+
+        this.targetStream = targetStream;
+        this.codec = codec;
+        this.settings = settings;
+        this.statistics = settings.getStatistics().getStatistics(mimetype);
+        this.recordUncompressedLength = recordUncompressedLength;
+        this.expectedUncompressedLength = expectedUncompressedLength;
+
+        final Boolean predictedDecision = this.statistics.predictDecision(settings.getMinCompressionRatio(),
+                settings.getStatisticsMinSamples());
+        if (predictedDecision != null)
+        {
+            LOGGER.trace("Using decision to {} content predicted from statistics of mimetype {}",
+                    predictedDecision.booleanValue() ? "compress" : "not compress", mimetype);
+            this.compressed = predictedDecision;
+        }
+        else
+        {
+            this.sample = new byte[settings.getSampleSize()];
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException
+    {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        int offset = off;
+        int length = len;
+        if (this.contentStream == null && this.sample != null)
+        {
+            final int sampled = Math.min(length, this.sample.length - this.sampleLength);
+            System.arraycopy(b, offset, this.sample, this.sampleLength, sampled);
+            this.sampleLength += sampled;
+            offset += sampled;
+            length -= sampled;
+        }
+
+        if (length > 0 || (this.sample != null && this.sampleLength == this.sample.length))
+        {
+            this.ensureContentStream();
+        }
+
+        if (length > 0)
+        {
+            this.contentStream.write(b, offset, length);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        // don't force a decision on a partial sample
+        if (this.contentStream != null)
+        {
+            this.contentStream.flush();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            this.ensureContentStream();
+        }
+        finally
+        {
+            if (this.contentStream != null)
+            {
+                this.contentStream.close();
+            }
+            else
+            {
+                this.targetStream.close();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the decision whether content has been stored compressed. The decision is only available once the sample has been
+     * completely buffered or the stream has been closed.
+     *
+     * @return {@link Boolean#TRUE true} if content has been stored compressed, {@link Boolean#FALSE false} if content has been stored
+     *         as-is, or {@code null} if the decision has not been made yet
+     */
+    public Boolean isCompressed()
+    {
+        return this.contentStream != null ? this.compressed : null;
+    }
+
+    protected void ensureContentStream() throws IOException
+    {
+        if (this.contentStream == null)
+        {
+            if (this.compressed == null)
+            {
+                final long compressedLength = this.trialCompress();
+                if (this.sampleLength > 0)
+                {
+                    this.statistics.recordSample(this.sampleLength, compressedLength);
+                }
+                this.compressed = Boolean.valueOf(this.settings.isCompressible(this.sampleLength, compressedLength));
+                LOGGER.trace("Trial compression of sample of {} bytes yielded {} bytes - content will {}be compressed", this.sampleLength,
+                        compressedLength, this.compressed.booleanValue() ? "" : "not ");
+            }
+            this.statistics.recordDecision(this.compressed.booleanValue());
+
+            final boolean compressed = this.compressed.booleanValue();
+            final CompressedContentHeader header;
+            if (this.recordUncompressedLength)
+            {
+                header = compressed ? this.codec.newHeader(CompressedContentHeader.NO_BLOCKS, this.expectedUncompressedLength)
+                        : CompressedContentHeader.newUncompressedHeader(this.expectedUncompressedLength);
+            }
+            else
+            {
+                header = compressed ? this.codec.newHeader() : CompressedContentHeader.newUncompressedHeader();
+            }
+            header.writeTo(this.targetStream);
+
+            if (compressed)
+            {
+                try
+                {
+                    this.contentStream = this.codec.createCompressorOutputStream(this.targetStream);
+                }
+                catch (final CompressorException ex)
+                {
+                    throw new IOException("Error initialising compression of content", ex);
+                }
+            }
+            else
+            {
+                this.contentStream = this.targetStream;
+            }
+
+            if (this.sampleLength > 0)
+            {
+                this.contentStream.write(this.sample, 0, this.sampleLength);
+            }
+            this.sample = null;
+        }
+    }
+
+    protected long trialCompress() throws IOException
+    {
+        long compressedLength = 0;
+        if (this.sampleLength > 0)
+        {
+            final CountingOutputStream countingStream = new CountingOutputStream();
+            try (OutputStream compressingStream = this.codec.createCompressorOutputStream(countingStream))
+            {
+                compressingStream.write(this.sample, 0, this.sampleLength);
+            }
+            catch (final CompressorException ex)
+            {
+                throw new IOException("Error initialising trial compression of sample", ex);
+            }
+            compressedLength = countingStream.count;
+        }
+        return compressedLength;
+    }
+
+    /**
+     * Instances of this class discard any bytes written to them, only counting the number of bytes.
+     *
+     * @author Axel Faust
+     */
+    protected static class CountingOutputStream extends OutputStream
+    {
+
+        protected long count;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b)
+        {
+            this.count++;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+            this.count += len;
+        }
+    }
+}
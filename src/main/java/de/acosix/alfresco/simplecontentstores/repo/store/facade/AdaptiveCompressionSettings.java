@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the settings for adaptive compression, in which a sample from the start of each content is
+ * trial-compressed to decide whether the content as a whole should be stored compressed or as-is, e.g. to avoid wasting CPU time on
+ * content which is already compressed (ZIP-based office formats, media files, encrypted payloads).
+ *
+ * @author Axel Faust
+ */
+public class AdaptiveCompressionSettings
+{
+
+    protected final int sampleSize;
+
+    protected final double minCompressionRatio;
+
+    protected final int statisticsMinSamples;
+
+    protected final CompressionStatistics statistics;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param sampleSize
+     *     the size of the sample to trial-compress in bytes
+     * @param minCompressionRatio
+     *     the minimum ratio of uncompressed to compressed length of the sample for content to be stored compressed
+     * @param statisticsMinSamples
+     *     the minimum number of samples of a mimetype before decisions may be predicted from the collected statistics without
+     *     trial-compressing - if {@code 0} or less, every content will be sampled
+     * @param statistics
+     *     the statistics to record samples / decisions in and to predict decisions from
+     */
+    public AdaptiveCompressionSettings(final int sampleSize, final double minCompressionRatio, final int statisticsMinSamples,
+            final CompressionStatistics statistics)
+    {
+        ParameterCheck.mandatory("statistics", statistics);
+        if (sampleSize <= 0)
+        {
+            throw new IllegalArgumentException("sampleSize must be a positive integer");
+        }
+        if (minCompressionRatio < 1)
+        {
+            throw new IllegalArgumentException("minCompressionRatio must not be less than 1");
+        }
+
+        this.sampleSize = sampleSize;
+        this.minCompressionRatio = minCompressionRatio;
+        this.statisticsMinSamples = statisticsMinSamples;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the sampleSize
+     */
+    public int getSampleSize()
+    {
+        return this.sampleSize;
+    }
+
+    /**
+     * @return the minCompressionRatio
+     */
+    public double getMinCompressionRatio()
+    {
+        return this.minCompressionRatio;
+    }
+
+    /**
+     * @return the statisticsMinSamples
+     */
+    public int getStatisticsMinSamples()
+    {
+        return this.statisticsMinSamples;
+    }
+
+    /**
+     * @return the statistics
+     */
+    public CompressionStatistics getStatistics()
+    {
+        return this.statistics;
+    }
+
+    /**
+     * Checks whether a sample is sufficiently compressible for the content to be stored compressed.
+     *
+     * @param sampleLength
+     *     the length of the sample
+     * @param compressedLength
+     *     the length of the compressed sample
+     * @return {@code true} if the content should be compressed, {@code false} otherwise
+     */
+    public boolean isCompressible(final long sampleLength, final long compressedLength)
+    {
+        return sampleLength > 0 && compressedLength > 0 && ((double) sampleLength / compressedLength) >= this.minCompressionRatio;
+    }
+}
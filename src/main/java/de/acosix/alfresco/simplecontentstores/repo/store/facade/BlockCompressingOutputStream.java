@@ -0,0 +1,393 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.compress.compressors.CompressorException;
+
+/**
+ * Instances of this class compress content in independent blocks of a fixed (uncompressed) size, so that content can be read from any
+ * position by only decompressing the blocks covering the requested range. The content is structured as follows:
+ * <ol>
+ * <li>a {@link CompressedContentHeader header} recording the block size and - if known in advance - the total uncompressed length</li>
+ * <li>for each block, four bytes for the uncompressed length, four bytes for the stored length and the stored bytes - if the stored length
+ * is less than the uncompressed length, the block has been compressed, otherwise it has been stored as-is as it did not compress</li>
+ * <li>eight zero bytes terminating the sequence of blocks, allowing for sequential reads without the block index</li>
+ * <li>the block index, consisting of eight bytes for the position of each block relative to the start of the content</li>
+ * <li>a fixed-size trailer, consisting of eight bytes for the total uncompressed length, eight bytes for the position of the block index
+ * and four bytes for the number of blocks</li>
+ * </ol>
+ *
+ * If {@link ParallelCompressionSettings parallel compression settings} are provided, blocks are compressed concurrently and written in
+ * order, producing the same structure as sequential compression.
+ *
+ * @author Axel Faust
+ */
+public class BlockCompressingOutputStream extends OutputStream
+{
+
+    /**
+     * The length of the trailer at the end of content in the block-indexed format.
+     */
+    public static final int TRAILER_LENGTH = 20;
+
+    /**
+     * The length of the entry preceding each block in the block-indexed format.
+     */
+    public static final int BLOCK_ENTRY_LENGTH = 8;
+
+    protected final PositionTrackingOutputStream positionTrackingStream;
+
+    protected final DataOutputStream targetStream;
+
+    protected final CompressionCodec codec;
+
+    protected final int blockSize;
+
+    protected final ParallelCompressionSettings parallelSettings;
+
+    protected final boolean recordUncompressedLength;
+
+    protected final long expectedUncompressedLength;
+
+    protected final Deque<Future<Block>> pendingBlocks = new ArrayDeque<>();
+
+    protected final List<Long> blockPositions = new ArrayList<>();
+
+    protected Block currentBlock;
+
+    // only used for sequential compression
+    protected ByteArrayOutputStream compressedBlock;
+
+    protected long uncompressedLength;
+
+    protected boolean headerWritten;
+
+    protected boolean closed;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write the header, compressed blocks and block index
+     * @param codec
+     *     the codec to compress each block with
+     * @param blockSize
+     *     the size of blocks in bytes
+     */
+    public BlockCompressingOutputStream(final OutputStream targetStream, final CompressionCodec codec, final int blockSize)
+    {
+        this(targetStream, codec, blockSize, null);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write the header, compressed blocks and block index
+     * @param codec
+     *     the codec to compress each block with
+     * @param blockSize
+     *     the size of blocks in bytes
+     * @param parallelSettings
+     *     the settings for compressing blocks in parallel, or {@code null} if blocks should be compressed on the calling thread
+     */
+    public BlockCompressingOutputStream(final OutputStream targetStream, final CompressionCodec codec, final int blockSize,
+            final ParallelCompressionSettings parallelSettings)
+    {
+        this(targetStream, codec, blockSize, parallelSettings, false, CompressedContentHeader.UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write the header, compressed blocks and block index
+     * @param codec
+     *     the codec to compress each block with
+     * @param blockSize
+     *     the size of blocks in bytes
+     * @param parallelSettings
+     *     the settings for compressing blocks in parallel, or {@code null} if blocks should be compressed on the calling thread
+     * @param recordUncompressedLength
+     *     {@code true} if the header should include a field for the length of the uncompressed content
+     * @param expectedUncompressedLength
+     *     the length of the uncompressed content if known in advance, or {@link CompressedContentHeader#UNKNOWN_LENGTH}
+     */
+    public BlockCompressingOutputStream(final OutputStream targetStream, final CompressionCodec codec, final int blockSize,
+            final ParallelCompressionSettings parallelSettings, final boolean recordUncompressedLength,
+            final long expectedUncompressedLength)
+    {
+        ParameterCheck.mandatory("targetStream", targetStream);
+        ParameterCheck.mandatory("codec", codec);
+        if (blockSize <= 0)
+        {
+            throw new IllegalArgumentException("blockSize must be a positive integer");
+        }
+
+        this.positionTrackingStream = new PositionTrackingOutputStream(targetStream);
+        this.targetStream = new DataOutputStream(this.positionTrackingStream);
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.parallelSettings = parallelSettings;
+        this.recordUncompressedLength = recordUncompressedLength;
+        this.expectedUncompressedLength = expectedUncompressedLength;
+        this.currentBlock = new Block(blockSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException
+    {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        this.ensureOpen();
+
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0)
+        {
+            final Block block = this.currentBlock;
+            final int buffered = Math.min(remaining, block.data.length - block.length);
+            System.arraycopy(b, offset, block.data, block.length, buffered);
+            block.length += buffered;
+            offset += buffered;
+            remaining -= buffered;
+
+            if (block.length == block.data.length)
+            {
+                this.completeCurrentBlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        // partial blocks are only written on close
+        this.targetStream.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!this.closed)
+        {
+            try
+            {
+                if (this.currentBlock.length > 0)
+                {
+                    this.completeCurrentBlock();
+                }
+                this.ensureHeader();
+                while (!this.pendingBlocks.isEmpty())
+                {
+                    this.writeBlock(ParallelCompressionSettings.awaitBlock(this.pendingBlocks.poll()));
+                }
+
+                // terminator
+                this.targetStream.writeInt(0);
+                this.targetStream.writeInt(0);
+
+                final long indexPosition = this.positionTrackingStream.position;
+                for (final Long blockPosition : this.blockPositions)
+                {
+                    this.targetStream.writeLong(blockPosition.longValue());
+                }
+
+                this.targetStream.writeLong(this.uncompressedLength);
+                this.targetStream.writeLong(indexPosition);
+                this.targetStream.writeInt(this.blockPositions.size());
+            }
+            finally
+            {
+                this.pendingBlocks.forEach(block -> block.cancel(false));
+                this.pendingBlocks.clear();
+
+                this.closed = true;
+                this.targetStream.close();
+            }
+        }
+    }
+
+    protected void completeCurrentBlock() throws IOException
+    {
+        final Block block = this.currentBlock;
+        if (this.parallelSettings != null)
+        {
+            if (this.pendingBlocks.size() >= this.parallelSettings.getMaxBlocksInFlight())
+            {
+                this.ensureHeader();
+                this.writeBlock(ParallelCompressionSettings.awaitBlock(this.pendingBlocks.poll()));
+            }
+            this.pendingBlocks.add(this.parallelSettings.submitBlock(() -> {
+                this.compressBlock(block, new ByteArrayOutputStream(this.blockSize));
+                return block;
+            }));
+            this.currentBlock = new Block(this.blockSize);
+        }
+        else
+        {
+            if (this.compressedBlock == null)
+            {
+                this.compressedBlock = new ByteArrayOutputStream(this.blockSize);
+            }
+            this.compressedBlock.reset();
+            this.compressBlock(block, this.compressedBlock);
+
+            this.ensureHeader();
+            this.writeBlock(block);
+
+            block.length = 0;
+            block.compressed = null;
+        }
+    }
+
+    protected void compressBlock(final Block block, final ByteArrayOutputStream compressedBlock) throws IOException
+    {
+        try (OutputStream compressingStream = this.codec.createCompressorOutputStream(compressedBlock))
+        {
+            compressingStream.write(block.data, 0, block.length);
+        }
+        catch (final CompressorException ex)
+        {
+            throw new IOException("Error initialising compression of block", ex);
+        }
+
+        // blocks which do not compress are stored as-is
+        block.compressed = compressedBlock.size() < block.length ? compressedBlock : null;
+    }
+
+    protected void writeBlock(final Block block) throws IOException
+    {
+        this.blockPositions.add(Long.valueOf(this.positionTrackingStream.position));
+        this.targetStream.writeInt(block.length);
+        if (block.compressed != null)
+        {
+            this.targetStream.writeInt(block.compressed.size());
+            block.compressed.writeTo(this.targetStream);
+        }
+        else
+        {
+            this.targetStream.writeInt(block.length);
+            this.targetStream.write(block.data, 0, block.length);
+        }
+
+        this.uncompressedLength += block.length;
+    }
+
+    protected void ensureHeader() throws IOException
+    {
+        if (!this.headerWritten)
+        {
+            final CompressedContentHeader header = this.recordUncompressedLength
+                    ? this.codec.newHeader(this.blockSize, this.expectedUncompressedLength)
+                    : this.codec.newHeader(this.blockSize);
+            header.writeTo(this.targetStream);
+            this.headerWritten = true;
+        }
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (this.closed)
+        {
+            throw new IOException("Stream has already been closed");
+        }
+    }
+
+    /**
+     * Instances of this class hold the uncompressed data of a single block and - once compressed - its compressed data.
+     *
+     * @author Axel Faust
+     */
+    protected static class Block
+    {
+
+        protected final byte[] data;
+
+        protected int length;
+
+        protected ByteArrayOutputStream compressed;
+
+        protected Block(final int blockSize)
+        {
+            this.data = new byte[blockSize];
+        }
+    }
+
+    /**
+     * Instances of this class track the position in the target stream, as {@link DataOutputStream#size()} is limited to 2 GiB.
+     *
+     * @author Axel Faust
+     */
+    protected static class PositionTrackingOutputStream extends FilterOutputStream
+    {
+
+        protected long position;
+
+        protected PositionTrackingOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b) throws IOException
+        {
+            this.out.write(b);
+            this.position++;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            this.out.write(b, off, len);
+            this.position += len;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.compress.compressors.CompressorException;
+
+/**
+ * Instances of this class provide read-only, random access to content compressed in the {@link BlockCompressingOutputStream block-indexed
+ * format}. Only the blocks covering the requested range are read and decompressed from the backing channel, so that the cost of reading
+ * at an arbitrary position does not depend on the position itself.
+ *
+ * @author Axel Faust
+ */
+public class BlockDecompressingFileChannel extends FileChannel
+{
+
+    protected final SeekableByteChannel delegateChannel;
+
+    protected final CompressedContentHeader header;
+
+    protected final CompressionCodec codec;
+
+    protected final byte[] block;
+
+    protected byte[] storedBlock;
+
+    protected long[] blockPositions;
+
+    protected long uncompressedLength = -1;
+
+    protected long position;
+
+    // the index of the block currently held in the block buffer, -1 if no block has been loaded yet
+    protected long loadedBlockIndex = -1;
+
+    protected int loadedBlockLength;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param delegateChannel
+     *     the channel providing the compressed content, including the header
+     * @param header
+     *     the header read from the content
+     * @param codec
+     *     the codec to decompress each block with
+     */
+    public BlockDecompressingFileChannel(final SeekableByteChannel delegateChannel, final CompressedContentHeader header,
+            final CompressionCodec codec)
+    {
+        ParameterCheck.mandatory("delegateChannel", delegateChannel);
+        ParameterCheck.mandatory("header", header);
+        ParameterCheck.mandatory("codec", codec);
+        if (!header.isBlockIndexed())
+        {
+            throw new IllegalArgumentException("Content has not been compressed in the block-indexed format");
+        }
+
+        this.delegateChannel = delegateChannel;
+        this.header = header;
+        this.codec = codec;
+        this.block = new byte[header.getBlockSize()];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst) throws IOException
+    {
+        final int bytesRead = this.readImpl(dst, this.position);
+        if (bytesRead > 0)
+        {
+            this.position += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException
+    {
+        long totalBytesRead = 0;
+        for (int idx = offset; idx < offset + length; idx++)
+        {
+            while (dsts[idx].hasRemaining())
+            {
+                final int bytesRead = this.read(dsts[idx]);
+                if (bytesRead == -1)
+                {
+                    return totalBytesRead == 0 ? -1 : totalBytesRead;
+                }
+                totalBytesRead += bytesRead;
+            }
+        }
+        return totalBytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int read(final ByteBuffer dst, final long position) throws IOException
+    {
+        if (position < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        return this.readImpl(dst, position);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src, final long position) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long position() throws IOException
+    {
+        this.ensureOpen();
+        return this.position;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized FileChannel position(final long newPosition) throws IOException
+    {
+        this.ensureOpen();
+        if (newPosition < 0)
+        {
+            throw new IllegalArgumentException("Position must not be negative");
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long size() throws IOException
+    {
+        this.ensureOpen();
+        this.ensureIndex();
+        return this.uncompressedLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel truncate(final long size) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void force(final boolean metaData) throws IOException
+    {
+        this.ensureOpen();
+        // NO-OP - read-only channel
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long transferTo(final long position, final long count, final WritableByteChannel target) throws IOException
+    {
+        this.ensureOpen();
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count, this.block.length));
+        long transferred = 0;
+        while (transferred < count)
+        {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+            final int bytesRead = this.readImpl(buffer, position + transferred);
+            if (bytesRead <= 0)
+            {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                target.write(buffer);
+            }
+            transferred += bytesRead;
+        }
+        return transferred;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long transferFrom(final ReadableByteChannel src, final long position, final long count) throws IOException
+    {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException
+    {
+        throw new UnsupportedOperationException("Compressed content cannot be memory-mapped");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock lock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new UnsupportedOperationException("Compressed content cannot be locked");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException
+    {
+        throw new UnsupportedOperationException("Compressed content cannot be locked");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        this.delegateChannel.close();
+    }
+
+    protected int readImpl(final ByteBuffer dst, final long position) throws IOException
+    {
+        this.ensureOpen();
+        this.ensureIndex();
+
+        int bytesRead;
+        if (position >= this.uncompressedLength)
+        {
+            bytesRead = -1;
+        }
+        else if (!dst.hasRemaining())
+        {
+            bytesRead = 0;
+        }
+        else
+        {
+            final long blockIndex = position / this.block.length;
+            this.loadBlock(blockIndex);
+
+            final int blockOffset = (int) (position - blockIndex * this.block.length);
+            bytesRead = Math.min(dst.remaining(), this.loadedBlockLength - blockOffset);
+            if (bytesRead <= 0)
+            {
+                throw new IOException("Block " + blockIndex + " is shorter than expected from the block index");
+            }
+            dst.put(this.block, blockOffset, bytesRead);
+        }
+        return bytesRead;
+    }
+
+    protected void ensureIndex() throws IOException
+    {
+        if (this.blockPositions == null)
+        {
+            final long contentLength = this.delegateChannel.size();
+            if (contentLength < this.header.getLength() + BlockCompressingOutputStream.BLOCK_ENTRY_LENGTH
+                    + BlockCompressingOutputStream.TRAILER_LENGTH)
+            {
+                throw new IOException("Content is too short for the block-indexed format");
+            }
+
+            final ByteBuffer trailer = ByteBuffer.allocate(BlockCompressingOutputStream.TRAILER_LENGTH);
+            this.readFully(trailer, contentLength - BlockCompressingOutputStream.TRAILER_LENGTH);
+            final long uncompressedLength = trailer.getLong();
+            final long indexPosition = trailer.getLong();
+            final int blockCount = trailer.getInt();
+
+            if (blockCount < 0 || uncompressedLength < 0
+                    || indexPosition + blockCount * 8L + BlockCompressingOutputStream.TRAILER_LENGTH != contentLength
+                    || uncompressedLength > blockCount * (long) this.block.length)
+            {
+                throw new IOException("Block index trailer of compressed content is inconsistent");
+            }
+
+            final ByteBuffer index = ByteBuffer.allocate(blockCount * 8);
+            this.readFully(index, indexPosition);
+            final long[] blockPositions = new long[blockCount];
+            for (int idx = 0; idx < blockCount; idx++)
+            {
+                blockPositions[idx] = index.getLong();
+            }
+
+            this.uncompressedLength = uncompressedLength;
+            this.blockPositions = blockPositions;
+        }
+    }
+
+    protected void loadBlock(final long blockIndex) throws IOException
+    {
+        if (this.loadedBlockIndex != blockIndex)
+        {
+            this.loadedBlockIndex = -1;
+
+            final ByteBuffer entry = ByteBuffer.allocate(BlockCompressingOutputStream.BLOCK_ENTRY_LENGTH);
+            final long blockPosition = this.blockPositions[(int) blockIndex];
+            this.readFully(entry, blockPosition);
+            final int uncompressedLength = entry.getInt();
+            final int storedLength = entry.getInt();
+            if (uncompressedLength <= 0 || uncompressedLength > this.block.length || storedLength <= 0 || storedLength > uncompressedLength)
+            {
+                throw new IOException("Entry of block " + blockIndex + " is inconsistent");
+            }
+
+            if (storedLength < uncompressedLength)
+            {
+                if (this.storedBlock == null || this.storedBlock.length < storedLength)
+                {
+                    this.storedBlock = new byte[Math.max(storedLength, this.block.length / 2)];
+                }
+                this.readFully(ByteBuffer.wrap(this.storedBlock, 0, storedLength), blockPosition + entry.capacity());
+                try (InputStream decompressingStream = this.codec
+                        .createCompressorInputStream(new ByteArrayInputStream(this.storedBlock, 0, storedLength)))
+                {
+                    int offset = 0;
+                    int bytesRead = 0;
+                    while (offset < uncompressedLength && bytesRead != -1)
+                    {
+                        bytesRead = decompressingStream.read(this.block, offset, uncompressedLength - offset);
+                        if (bytesRead > 0)
+                        {
+                            offset += bytesRead;
+                        }
+                    }
+                    if (offset != uncompressedLength)
+                    {
+                        throw new IOException("Block " + blockIndex + " decompressed to fewer bytes than expected");
+                    }
+                }
+                catch (final CompressorException ex)
+                {
+                    throw new IOException("Error initialising decompression of block", ex);
+                }
+            }
+            else
+            {
+                this.readFully(ByteBuffer.wrap(this.block, 0, uncompressedLength), blockPosition + entry.capacity());
+            }
+
+            this.loadedBlockIndex = blockIndex;
+            this.loadedBlockLength = uncompressedLength;
+        }
+    }
+
+    protected void readFully(final ByteBuffer buffer, final long position) throws IOException
+    {
+        this.delegateChannel.position(position);
+        while (buffer.hasRemaining())
+        {
+            if (this.delegateChannel.read(buffer) == -1)
+            {
+                throw new EOFException("Unexpected end of compressed content");
+            }
+        }
+        buffer.flip();
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (!this.isOpen())
+        {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.compress.compressors.CompressorException;
+
+/**
+ * Instances of this class sequentially decompress content in the {@link BlockCompressingOutputStream block-indexed format} from a source
+ * which does not support random access. The block index is not used, but {@link #skip(long) skipping} still avoids decompressing any
+ * blocks which are skipped entirely.
+ *
+ * @author Axel Faust
+ */
+public class BlockDecompressingInputStream extends InputStream
+{
+
+    protected final DataInputStream sourceStream;
+
+    protected final CompressionCodec codec;
+
+    protected final byte[] block;
+
+    protected byte[] storedBlock;
+
+    protected int blockLength;
+
+    protected int blockOffset;
+
+    protected boolean endOfBlocks;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param sourceStream
+     *     the stream providing the compressed content, positioned directly after the header
+     * @param codec
+     *     the codec to decompress each block with
+     * @param blockSize
+     *     the size of blocks in bytes as recorded in the header
+     */
+    public BlockDecompressingInputStream(final InputStream sourceStream, final CompressionCodec codec, final int blockSize)
+    {
+        ParameterCheck.mandatory("sourceStream", sourceStream);
+        ParameterCheck.mandatory("codec", codec);
+        if (blockSize <= 0)
+        {
+            throw new IllegalArgumentException("blockSize must be a positive integer");
+        }
+
+        this.sourceStream = new DataInputStream(sourceStream);
+        this.codec = codec;
+        this.block = new byte[blockSize];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] b = new byte[1];
+        final int bytesRead = this.read(b, 0, 1);
+        return bytesRead == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        int bytesRead;
+        if (len == 0)
+        {
+            bytesRead = 0;
+        }
+        else if (this.blockOffset == this.blockLength && !this.nextBlock(true))
+        {
+            bytesRead = -1;
+        }
+        else
+        {
+            bytesRead = Math.min(len, this.blockLength - this.blockOffset);
+            System.arraycopy(this.block, this.blockOffset, b, off, bytesRead);
+            this.blockOffset += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        long skipped = 0;
+        while (skipped < n)
+        {
+            if (this.blockOffset == this.blockLength)
+            {
+                // only decompress the next block if it is not skipped entirely
+                if (!this.nextBlock(n - skipped < this.block.length))
+                {
+                    break;
+                }
+            }
+
+            final int blockSkipped = (int) Math.min(n - skipped, this.blockLength - this.blockOffset);
+            this.blockOffset += blockSkipped;
+            skipped += blockSkipped;
+        }
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available()
+    {
+        return this.blockLength - this.blockOffset;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.sourceStream.close();
+    }
+
+    protected boolean nextBlock(final boolean decompress) throws IOException
+    {
+        if (!this.endOfBlocks)
+        {
+            final int uncompressedLength;
+            final int storedLength;
+            try
+            {
+                uncompressedLength = this.sourceStream.readInt();
+                storedLength = this.sourceStream.readInt();
+            }
+            catch (final EOFException eofEx)
+            {
+                throw new IOException("Truncated block entry in compressed content", eofEx);
+            }
+
+            if (uncompressedLength == 0 && storedLength == 0)
+            {
+                this.endOfBlocks = true;
+            }
+            else if (uncompressedLength < 0 || uncompressedLength > this.block.length || storedLength <= 0
+                    || storedLength > uncompressedLength)
+            {
+                throw new IOException("Block entry in compressed content is inconsistent");
+            }
+            else
+            {
+                if (!decompress)
+                {
+                    this.skipFully(storedLength);
+                }
+                else if (storedLength < uncompressedLength)
+                {
+                    if (this.storedBlock == null || this.storedBlock.length < storedLength)
+                    {
+                        this.storedBlock = new byte[Math.max(storedLength, this.block.length / 2)];
+                    }
+                    this.sourceStream.readFully(this.storedBlock, 0, storedLength);
+                    this.decompressBlock(storedLength, uncompressedLength);
+                }
+                else
+                {
+                    this.sourceStream.readFully(this.block, 0, uncompressedLength);
+                }
+
+                this.blockLength = uncompressedLength;
+                this.blockOffset = 0;
+            }
+        }
+        return !this.endOfBlocks;
+    }
+
+    protected void decompressBlock(final int storedLength, final int uncompressedLength) throws IOException
+    {
+        try (InputStream decompressingStream = this.codec
+                .createCompressorInputStream(new ByteArrayInputStream(this.storedBlock, 0, storedLength)))
+        {
+            int offset = 0;
+            int bytesRead = 0;
+            while (offset < uncompressedLength && bytesRead != -1)
+            {
+                bytesRead = decompressingStream.read(this.block, offset, uncompressedLength - offset);
+                if (bytesRead > 0)
+                {
+                    offset += bytesRead;
+                }
+            }
+            if (offset != uncompressedLength)
+            {
+                throw new IOException("Block decompressed to fewer bytes than expected");
+            }
+        }
+        catch (final CompressorException ex)
+        {
+            throw new IOException("Error initialising decompression of block", ex);
+        }
+    }
+
+    protected void skipFully(final int length) throws IOException
+    {
+        int remaining = length;
+        while (remaining > 0)
+        {
+            final long skipped = this.sourceStream.skip(remaining);
+            if (skipped <= 0)
+            {
+                if (this.sourceStream.read() == -1)
+                {
+                    throw new EOFException("Unexpected end of compressed content");
+                }
+                remaining--;
+            }
+            else
+            {
+                remaining -= skipped;
+            }
+        }
+    }
+}
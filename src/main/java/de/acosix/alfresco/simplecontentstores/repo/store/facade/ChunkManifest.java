@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.codec.binary.Hex;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
+
+/**
+ * Instances of this class represent the manifest of content written by the {@link ChunkingContentWriter chunking content writer},
+ * recording the sequence of content-defined chunks from which the content is reassembled. Chunks are stored separately in the backing
+ * store, using a content URL derived from their digest, so that identical chunks of any content are only stored once. Content written
+ * without the chunking facade is identified by the lack of the {@link #MAGIC magic bytes} at the start of the content.
+ *
+ * The manifest is structured as follows:
+ * <ol>
+ * <li>{@link #MAGIC magic bytes}</li>
+ * <li>one byte for the format version</li>
+ * <li>one byte for the length of the digest algorithm, followed by the algorithm name in US-ASCII</li>
+ * <li>one byte for the length of chunk digests</li>
+ * <li>eight bytes for the length of the reassembled content</li>
+ * <li>four bytes for the number of chunks</li>
+ * <li>for each chunk, four bytes for its length, followed by its digest</li>
+ * </ol>
+ *
+ * Instances of this class are thread-safe, so that chunks referenced by manifests still being written can be inspected concurrently.
+ *
+ * @author Axel Faust
+ */
+public class ChunkManifest
+{
+
+    /**
+     * The magic bytes identifying a manifest.
+     */
+    protected static final byte[] MAGIC = { 'A', 'C', 'S', 'X', 'C', 'D', 'C', 0x1A };
+
+    /**
+     * The initial format version.
+     */
+    public static final int VERSION_1 = 1;
+
+    /**
+     * The number of bytes which need to be read from the start of content to determine if it is a manifest.
+     */
+    public static final int PREFIX_LENGTH = MAGIC.length + 1;
+
+    /**
+     * The path in the backing store below which chunks are stored.
+     */
+    public static final String CHUNK_PATH = "chunks";
+
+    protected final String digestAlgorithm;
+
+    protected final int digestLength;
+
+    protected int chunkCount;
+
+    protected int[] chunkLengths;
+
+    protected byte[] chunkDigests;
+
+    protected long totalLength;
+
+    /**
+     * Creates a new, empty manifest.
+     *
+     * @param digestAlgorithm
+     *     the name of the algorithm used to calculate the digests of chunks
+     * @param digestLength
+     *     the length of chunk digests in bytes
+     */
+    public ChunkManifest(final String digestAlgorithm, final int digestLength)
+    {
+        this(digestAlgorithm, digestLength, 16);
+    }
+
+    protected ChunkManifest(final String digestAlgorithm, final int digestLength, final int initialCapacity)
+    {
+        ParameterCheck.mandatoryString("digestAlgorithm", digestAlgorithm);
+        if (digestAlgorithm.length() > 255)
+        {
+            throw new IllegalArgumentException("digestAlgorithm must not be longer than 255 characters");
+        }
+        if (digestLength <= 0 || digestLength > 255)
+        {
+            throw new IllegalArgumentException("digestLength must be between 1 and 255");
+        }
+
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestLength = digestLength;
+        this.chunkLengths = new int[Math.max(1, initialCapacity)];
+        this.chunkDigests = new byte[this.chunkLengths.length * digestLength];
+    }
+
+    /**
+     * Reads a manifest from the start of content, resetting the stream to its start if the content is not a manifest.
+     *
+     * @param inputStream
+     *     the stream from which to read the manifest - must {@link InputStream#markSupported() support marking}
+     * @return the manifest, or {@code null} if the content is not a manifest
+     * @throws IOException
+     *     if an error occurs reading from the stream or the manifest is invalid
+     */
+    public static ChunkManifest readManifest(final InputStream inputStream) throws IOException
+    {
+        ParameterCheck.mandatory("inputStream", inputStream);
+        if (!inputStream.markSupported())
+        {
+            throw new IllegalArgumentException("inputStream must support marking");
+        }
+
+        inputStream.mark(PREFIX_LENGTH);
+        final byte[] prefix = new byte[PREFIX_LENGTH];
+        int prefixLength = 0;
+        int bytesRead = 0;
+        while (prefixLength < PREFIX_LENGTH && (bytesRead = inputStream.read(prefix, prefixLength, PREFIX_LENGTH - prefixLength)) != -1)
+        {
+            prefixLength += bytesRead;
+        }
+
+        ChunkManifest manifest = null;
+        if (prefixLength == PREFIX_LENGTH && Arrays.equals(MAGIC, Arrays.copyOf(prefix, MAGIC.length)))
+        {
+            final int version = prefix[MAGIC.length] & 0xFF;
+            if (version != VERSION_1)
+            {
+                throw new IOException("Unsupported chunk manifest format version " + version);
+            }
+
+            final DataInputStream dataInputStream = new DataInputStream(inputStream);
+            try
+            {
+                final byte[] digestAlgorithm = new byte[dataInputStream.readUnsignedByte()];
+                dataInputStream.readFully(digestAlgorithm);
+                final int digestLength = dataInputStream.readUnsignedByte();
+                final long totalLength = dataInputStream.readLong();
+                final int chunkCount = dataInputStream.readInt();
+                if (digestAlgorithm.length == 0 || digestLength == 0 || totalLength < 0 || chunkCount < 0)
+                {
+                    throw new IOException("Invalid chunk manifest");
+                }
+
+                // don't trust the count for pre-allocation in case of corrupt content
+                manifest = new ChunkManifest(new String(digestAlgorithm, StandardCharsets.US_ASCII), digestLength,
+                        Math.min(chunkCount, 1024));
+                final byte[] digest = new byte[digestLength];
+                for (int idx = 0; idx < chunkCount; idx++)
+                {
+                    final int chunkLength = dataInputStream.readInt();
+                    dataInputStream.readFully(digest);
+                    manifest.addChunk(chunkLength, digest);
+                }
+
+                if (manifest.getTotalLength() != totalLength)
+                {
+                    throw new IOException("Length of chunks does not match length recorded in chunk manifest");
+                }
+            }
+            catch (final EOFException eofEx)
+            {
+                throw new IOException("Truncated chunk manifest", eofEx);
+            }
+            catch (final IllegalArgumentException iaex)
+            {
+                throw new IOException("Invalid chunk manifest", iaex);
+            }
+        }
+        else
+        {
+            inputStream.reset();
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Builds the content URL of a chunk with the wildcard protocol, so that the backing store can resolve it to its own protocol.
+     *
+     * @param digestHex
+     *     the upper-case, hex-encoded digest of the chunk
+     * @return the content URL of the chunk
+     */
+    public static String makeChunkContentUrl(final String digestHex)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+
+        final StringBuilder contentUrlBuilder = new StringBuilder(StoreConstants.WILDCARD_PROTOCOL.length() + digestHex.length() + 24);
+        contentUrlBuilder.append(StoreConstants.WILDCARD_PROTOCOL);
+        contentUrlBuilder.append(ContentStore.PROTOCOL_DELIMITER);
+        contentUrlBuilder.append(CHUNK_PATH).append('/');
+        // two levels of 256 directories each keep directories of file stores reasonably small
+        if (digestHex.length() >= 4)
+        {
+            contentUrlBuilder.append(digestHex, 0, 2).append('/');
+            contentUrlBuilder.append(digestHex, 2, 4).append('/');
+        }
+        contentUrlBuilder.append(digestHex);
+        contentUrlBuilder.append(".bin");
+        return contentUrlBuilder.toString();
+    }
+
+    /**
+     * Adds a chunk to the end of this manifest.
+     *
+     * @param chunkLength
+     *     the length of the chunk
+     * @param digest
+     *     the digest of the chunk
+     */
+    public synchronized void addChunk(final int chunkLength, final byte[] digest)
+    {
+        ParameterCheck.mandatory("digest", digest);
+        if (chunkLength <= 0)
+        {
+            throw new IllegalArgumentException("chunkLength must be a positive integer");
+        }
+        if (digest.length != this.digestLength)
+        {
+            throw new IllegalArgumentException("digest must have a length of " + this.digestLength + " bytes");
+        }
+
+        if (this.chunkCount == this.chunkLengths.length)
+        {
+            final int capacity = this.chunkLengths.length + (this.chunkLengths.length >> 1) + 1;
+            this.chunkLengths = Arrays.copyOf(this.chunkLengths, capacity);
+            this.chunkDigests = Arrays.copyOf(this.chunkDigests, capacity * this.digestLength);
+        }
+
+        this.chunkLengths[this.chunkCount] = chunkLength;
+        System.arraycopy(digest, 0, this.chunkDigests, this.chunkCount * this.digestLength, this.digestLength);
+        this.chunkCount++;
+        this.totalLength += chunkLength;
+    }
+
+    /**
+     * Writes this manifest to a stream.
+     *
+     * @param outputStream
+     *     the stream to which to write - will not be closed by this operation
+     * @throws IOException
+     *     if an error occurs writing to the stream
+     */
+    public synchronized void writeManifest(final OutputStream outputStream) throws IOException
+    {
+        ParameterCheck.mandatory("outputStream", outputStream);
+
+        final DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.write(MAGIC);
+        dataOutputStream.writeByte(VERSION_1);
+        final byte[] digestAlgorithm = this.digestAlgorithm.getBytes(StandardCharsets.US_ASCII);
+        dataOutputStream.writeByte(digestAlgorithm.length);
+        dataOutputStream.write(digestAlgorithm);
+        dataOutputStream.writeByte(this.digestLength);
+        dataOutputStream.writeLong(this.totalLength);
+        dataOutputStream.writeInt(this.chunkCount);
+        for (int idx = 0; idx < this.chunkCount; idx++)
+        {
+            dataOutputStream.writeInt(this.chunkLengths[idx]);
+            dataOutputStream.write(this.chunkDigests, idx * this.digestLength, this.digestLength);
+        }
+        dataOutputStream.flush();
+    }
+
+    /**
+     * @return the name of the algorithm used to calculate the digests of chunks
+     */
+    public String getDigestAlgorithm()
+    {
+        return this.digestAlgorithm;
+    }
+
+    /**
+     * @return the number of chunks
+     */
+    public synchronized int getChunkCount()
+    {
+        return this.chunkCount;
+    }
+
+    /**
+     * @return the length of the content reassembled from all chunks
+     */
+    public synchronized long getTotalLength()
+    {
+        return this.totalLength;
+    }
+
+    /**
+     * Retrieves the length of a chunk.
+     *
+     * @param chunkIndex
+     *     the index of the chunk
+     * @return the length of the chunk
+     */
+    public synchronized int getChunkLength(final int chunkIndex)
+    {
+        this.checkChunkIndex(chunkIndex);
+        return this.chunkLengths[chunkIndex];
+    }
+
+    /**
+     * Retrieves the digest of a chunk.
+     *
+     * @param chunkIndex
+     *     the index of the chunk
+     * @return the upper-case, hex-encoded digest of the chunk
+     */
+    public synchronized String getChunkDigestHex(final int chunkIndex)
+    {
+        this.checkChunkIndex(chunkIndex);
+        return new String(Hex.encodeHex(
+                Arrays.copyOfRange(this.chunkDigests, chunkIndex * this.digestLength, (chunkIndex + 1) * this.digestLength), false));
+    }
+
+    /**
+     * Retrieves the content URL of a chunk.
+     *
+     * @param chunkIndex
+     *     the index of the chunk
+     * @return the content URL of the chunk with the wildcard protocol
+     */
+    public String getChunkContentUrl(final int chunkIndex)
+    {
+        return makeChunkContentUrl(this.getChunkDigestHex(chunkIndex));
+    }
+
+    protected void checkChunkIndex(final int chunkIndex)
+    {
+        if (chunkIndex < 0 || chunkIndex >= this.chunkCount)
+        {
+            throw new IndexOutOfBoundsException("Chunk index " + chunkIndex + " is out of range for " + this.chunkCount + " chunks");
+        }
+    }
+}
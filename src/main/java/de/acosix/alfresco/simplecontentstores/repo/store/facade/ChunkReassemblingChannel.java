@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class provide a sequential channel over content reassembled from the chunks referenced in a {@link ChunkManifest
+ * manifest}. If an executor is provided, a configurable number of chunks following the chunk currently being read are loaded ahead in the
+ * background, so that the latency of loading chunks from the backing store is hidden from the consumer of the channel.
+ *
+ * @author Axel Faust
+ */
+public class ChunkReassemblingChannel implements ReadableByteChannel
+{
+
+    protected final ChunkManifest manifest;
+
+    protected final ContentStore backingContentStore;
+
+    protected final Executor readAheadExecutor;
+
+    protected final int readAheadChunks;
+
+    protected final Closeable manifestSource;
+
+    protected final Deque<Future<byte[]>> pendingChunks = new ArrayDeque<>();
+
+    protected int nextChunkIndex;
+
+    protected ByteBuffer currentChunk;
+
+    protected boolean closed;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param manifest
+     *     the manifest of the content to reassemble
+     * @param backingContentStore
+     *     the store from which to load chunks
+     * @param readAheadExecutor
+     *     the executor with which to load chunks ahead of time, or {@code null} if chunks should only be loaded when needed
+     * @param readAheadChunks
+     *     the number of chunks to load ahead of time
+     * @param manifestSource
+     *     the source from which the manifest has been read, which will be closed when this channel is closed
+     */
+    public ChunkReassemblingChannel(final ChunkManifest manifest, final ContentStore backingContentStore,
+            final Executor readAheadExecutor, final int readAheadChunks, final Closeable manifestSource)
+    {
+        ParameterCheck.mandatory("manifest", manifest);
+        ParameterCheck.mandatory("backingContentStore", backingContentStore);
+        ParameterCheck.mandatory("manifestSource", manifestSource);
+
+        this.manifest = manifest;
+        this.backingContentStore = backingContentStore;
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAheadChunks = readAheadExecutor != null ? Math.max(0, readAheadChunks) : 0;
+        this.manifestSource = manifestSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen()
+    {
+        return !this.closed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final ByteBuffer dst) throws IOException
+    {
+        if (this.closed)
+        {
+            throw new ClosedChannelException();
+        }
+
+        int bytesRead = 0;
+        boolean endOfContent = false;
+        while (dst.hasRemaining() && !endOfContent)
+        {
+            if (this.currentChunk == null || !this.currentChunk.hasRemaining())
+            {
+                this.currentChunk = this.nextChunk();
+            }
+
+            if (this.currentChunk == null)
+            {
+                endOfContent = true;
+            }
+            else
+            {
+                final int bytesToCopy = Math.min(dst.remaining(), this.currentChunk.remaining());
+                final ByteBuffer slice = this.currentChunk.duplicate();
+                slice.limit(slice.position() + bytesToCopy);
+                dst.put(slice);
+                this.currentChunk.position(this.currentChunk.position() + bytesToCopy);
+                bytesRead += bytesToCopy;
+            }
+        }
+
+        return bytesRead == 0 && endOfContent ? -1 : bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!this.closed)
+        {
+            this.closed = true;
+            this.currentChunk = null;
+            // chunks already being loaded cannot be interrupted, but any which have not been started yet need not be loaded at all
+            for (final Future<byte[]> pendingChunk : this.pendingChunks)
+            {
+                pendingChunk.cancel(false);
+            }
+            this.pendingChunks.clear();
+            this.manifestSource.close();
+        }
+    }
+
+    protected ByteBuffer nextChunk() throws IOException
+    {
+        ByteBuffer chunk = null;
+        if (this.readAheadChunks > 0)
+        {
+            this.scheduleReadAhead();
+            final Future<byte[]> pendingChunk = this.pendingChunks.poll();
+            if (pendingChunk != null)
+            {
+                chunk = ByteBuffer.wrap(this.awaitChunk(pendingChunk));
+                this.scheduleReadAhead();
+            }
+        }
+        else if (this.nextChunkIndex < this.manifest.getChunkCount())
+        {
+            try
+            {
+                chunk = ByteBuffer.wrap(this.loadChunk(this.nextChunkIndex++));
+            }
+            catch (final ContentIOException ciex)
+            {
+                throw new IOException("Failed to load chunk of content", ciex);
+            }
+        }
+        return chunk;
+    }
+
+    protected void scheduleReadAhead()
+    {
+        final int chunkCount = this.manifest.getChunkCount();
+        while (this.pendingChunks.size() <= this.readAheadChunks && this.nextChunkIndex < chunkCount)
+        {
+            final int chunkIndex = this.nextChunkIndex++;
+            this.pendingChunks.add(CompletableFuture.supplyAsync(() -> this.loadChunk(chunkIndex), this.readAheadExecutor));
+        }
+    }
+
+    protected byte[] awaitChunk(final Future<byte[]> pendingChunk) throws IOException
+    {
+        try
+        {
+            return pendingChunk.get();
+        }
+        catch (final InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException iioex = new InterruptedIOException("Interrupted while waiting for chunk of content");
+            iioex.initCause(iex);
+            throw iioex;
+        }
+        catch (final ExecutionException eex)
+        {
+            throw new IOException("Failed to load chunk of content", eex.getCause());
+        }
+    }
+
+    protected byte[] loadChunk(final int chunkIndex)
+    {
+        final String chunkContentUrl = this.manifest.getChunkContentUrl(chunkIndex);
+        final int chunkLength = this.manifest.getChunkLength(chunkIndex);
+
+        final ContentReader chunkReader = this.backingContentStore.getReader(chunkContentUrl);
+        final byte[] chunk = new byte[chunkLength];
+        try (InputStream chunkInputStream = chunkReader.getContentInputStream())
+        {
+            int offset = 0;
+            int bytesRead = 0;
+            while (offset < chunkLength && (bytesRead = chunkInputStream.read(chunk, offset, chunkLength - offset)) != -1)
+            {
+                offset += bytesRead;
+            }
+
+            if (offset != chunkLength || chunkInputStream.read() != -1)
+            {
+                throw new ContentIOException("Chunk " + chunkContentUrl + " does not have the length recorded in the chunk manifest");
+            }
+        }
+        catch (final IOException ioex)
+        {
+            throw new ContentIOException("Failed to read chunk " + chunkContentUrl, ioex);
+        }
+        return chunk;
+    }
+}
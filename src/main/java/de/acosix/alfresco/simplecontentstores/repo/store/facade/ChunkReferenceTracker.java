@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class track the chunks referenced by {@link ChunkManifest manifests} which are still being written, so that a sweep
+ * for orphaned chunks does not delete chunks which are about to be referenced by content not yet visible in the backing store. Only
+ * manifests written on the current server are tracked.
+ *
+ * Writers checking whether a chunk already exists and a sweep deleting an orphaned chunk are serialised via a fixed number of striped
+ * locks, so that a sweep cannot delete a chunk after a writer decided to reuse it.
+ *
+ * @author Axel Faust
+ */
+public class ChunkReferenceTracker
+{
+
+    protected static final int DEFAULT_LOCK_STRIPES = 64;
+
+    protected final Set<ChunkManifest> activeManifests = ConcurrentHashMap.newKeySet();
+
+    protected final Lock[] locks;
+
+    protected volatile DigestBloomFilter sweepFilter;
+
+    /**
+     * Creates a new instance of this class with a default number of lock stripes.
+     */
+    public ChunkReferenceTracker()
+    {
+        this(DEFAULT_LOCK_STRIPES);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param lockStripes
+     *     the number of locks over which chunk digests are distributed
+     */
+    public ChunkReferenceTracker(final int lockStripes)
+    {
+        if (lockStripes <= 0)
+        {
+            throw new IllegalArgumentException("Only a positive number of lock stripes is allowed");
+        }
+
+        this.locks = new Lock[lockStripes];
+        for (int idx = 0; idx < lockStripes; idx++)
+        {
+            this.locks[idx] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Retrieves the lock to hold while checking whether a chunk exists to reuse it, or while deleting an orphaned chunk.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the chunk
+     * @return the lock for the chunk
+     */
+    public Lock getLock(final String digestHex)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+        return this.locks[Math.floorMod(digestHex.hashCode(), this.locks.length)];
+    }
+
+    /**
+     * Registers a manifest which is about to be written.
+     *
+     * @param manifest
+     *     the manifest
+     */
+    public void manifestStarted(final ChunkManifest manifest)
+    {
+        ParameterCheck.mandatory("manifest", manifest);
+        this.activeManifests.add(manifest);
+    }
+
+    /**
+     * Unregisters a manifest once it has been written to the backing store or writing its content has failed.
+     *
+     * @param manifest
+     *     the manifest
+     */
+    public void manifestCompleted(final ChunkManifest manifest)
+    {
+        ParameterCheck.mandatory("manifest", manifest);
+        this.activeManifests.remove(manifest);
+    }
+
+    /**
+     * Records a reference to a chunk which has been {@link ChunkManifest#addChunk(int, byte[]) added} to an active manifest.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the chunk
+     */
+    public void chunkReferenced(final String digestHex)
+    {
+        // read after the chunk has been added to the manifest
+        // either a concurrent sweep sees the chunk in the manifest or we see the filter of the sweep
+        final DigestBloomFilter sweepFilter = this.sweepFilter;
+        if (sweepFilter != null)
+        {
+            sweepFilter.put(digestHex);
+        }
+    }
+
+    /**
+     * Starts a sweep for orphaned chunks, marking all chunks referenced by active manifests, as well as any chunks referenced until the
+     * sweep {@link #endSweep() ends}, in the provided filter.
+     *
+     * @param sweepFilter
+     *     the filter in which to mark referenced chunks
+     */
+    public synchronized void startSweep(final DigestBloomFilter sweepFilter)
+    {
+        ParameterCheck.mandatory("sweepFilter", sweepFilter);
+        if (this.sweepFilter != null)
+        {
+            throw new IllegalStateException("A sweep is already in progress");
+        }
+
+        this.sweepFilter = sweepFilter;
+        for (final ChunkManifest manifest : this.activeManifests)
+        {
+            for (int idx = 0, count = manifest.getChunkCount(); idx < count; idx++)
+            {
+                sweepFilter.put(manifest.getChunkDigestHex(idx));
+            }
+        }
+    }
+
+    /**
+     * Ends the current sweep for orphaned chunks.
+     */
+    public synchronized void endSweep()
+    {
+        this.sweepFilter = null;
+    }
+}
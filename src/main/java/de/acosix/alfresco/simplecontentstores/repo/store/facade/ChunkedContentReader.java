@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class reassemble content from the chunks referenced in its {@link ChunkManifest manifest}. Content which has not been
+ * written via a chunking content writer, e.g. as it already existed before the chunking facade was configured, is read as-is.
+ *
+ * @author Axel Faust
+ */
+public class ChunkedContentReader extends ContentReaderFacade
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedContentReader.class);
+
+    protected final ContentStore backingContentStore;
+
+    protected final Executor readAheadExecutor;
+
+    protected final int readAheadChunks;
+
+    protected long properSize;
+
+    protected ChunkedContentReader(final ContentReader delegate, final ContentStore backingContentStore, final Executor readAheadExecutor,
+            final int readAheadChunks, final long properSize)
+    {
+        super(delegate);
+
+        this.backingContentStore = backingContentStore;
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAheadChunks = readAheadChunks;
+        this.properSize = properSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentReader getReader() throws ContentIOException
+    {
+        this.ensureDelegate();
+        return new ChunkedContentReader(this.delegate.getReader(), this.backingContentStore, this.readAheadExecutor, this.readAheadChunks,
+                this.properSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize()
+    {
+        if (this.properSize < 0)
+        {
+            this.properSize = this.determineReassembledSize();
+        }
+        return this.properSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentData getContentData()
+    {
+        final ContentData contentData = super.getContentData();
+        // correct size
+        final ContentData updatedData = new ContentData(contentData.getContentUrl(), contentData.getMimetype(), this.getSize(),
+                contentData.getEncoding(), contentData.getLocale());
+        return updatedData;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized ReadableByteChannel getReadableChannel() throws ContentIOException
+    {
+        this.ensureDelegate();
+
+        ReadableByteChannel channel;
+        final ReadableByteChannel backingChannel = this.delegate.getReadableChannel();
+        final InputStream contentInputStream = new BufferedInputStream(Channels.newInputStream(backingChannel));
+        try
+        {
+            final ChunkManifest manifest = ChunkManifest.readManifest(contentInputStream);
+            if (manifest != null)
+            {
+                LOGGER.debug("Content will be reassembled from {} chunks (url={})", manifest.getChunkCount(), this.getContentUrl());
+                this.properSize = manifest.getTotalLength();
+                // backing channel is only closed with the reassembling channel, so that listeners are notified at the expected time
+                channel = new ChunkReassemblingChannel(manifest, this.backingContentStore, this.readAheadExecutor, this.readAheadChunks,
+                        contentInputStream);
+            }
+            else
+            {
+                LOGGER.debug("Content was not stored in chunks in backing store (url={})", this.getContentUrl());
+                channel = Channels.newChannel(contentInputStream);
+            }
+        }
+        catch (final IOException | ContentIOException e)
+        {
+            try
+            {
+                contentInputStream.close();
+            }
+            catch (final IOException ignore)
+            {
+                // NO-OP
+            }
+            LOGGER.error("Failed to open reassembling channel", e);
+            throw new ContentIOException("Failed to open channel: " + this, e);
+        }
+
+        return channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getContentInputStream() throws ContentIOException
+    {
+        final ReadableByteChannel channel = this.getReadableChannel();
+        final InputStream is = new BufferedInputStream(Channels.newInputStream(channel));
+        return is;
+    }
+
+    protected long determineReassembledSize()
+    {
+        final long storedSize = super.getSize();
+        long size = storedSize;
+        if (storedSize >= ChunkManifest.PREFIX_LENGTH)
+        {
+            // use a separate reader as our delegate only supports opening a single channel
+            try (ReadableByteChannel channel = super.getReader().getReadableChannel();
+                    InputStream contentInputStream = new BufferedInputStream(Channels.newInputStream(channel)))
+            {
+                final ChunkManifest manifest = ChunkManifest.readManifest(contentInputStream);
+                if (manifest != null)
+                {
+                    size = manifest.getTotalLength();
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to determine reassembled size of content", e);
+            }
+        }
+        return size;
+    }
+}
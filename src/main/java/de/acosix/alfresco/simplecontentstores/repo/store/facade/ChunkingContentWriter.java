@@ -0,0 +1,414 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+
+import org.alfresco.repo.content.AbstractContentWriter;
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentExistsException;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.MimetypeServiceAware;
+import org.alfresco.util.EqualsHelper;
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
+import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext.ContentStoreContextRestorator;
+
+/**
+ * Instances of this class split content into content-defined chunks while it is being written, storing each chunk not yet contained in
+ * the backing store under a content URL derived from its digest, and write a {@link ChunkManifest manifest} of all chunks to the actual
+ * backing writer once the content has been completely written.
+ *
+ * @author Axel Faust
+ */
+public class ChunkingContentWriter extends AbstractContentWriter
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkingContentWriter.class);
+
+    protected final ContentStoreContextRestorator<Void> contextRestorator = ContentStoreContext.getContextRestorationHandle();
+
+    protected final ContentContext context;
+
+    protected final ContentStore backingContentStore;
+
+    protected final ContentWriter backingWriter;
+
+    protected final int minChunkSize;
+
+    protected final int averageChunkSize;
+
+    protected final int maxChunkSize;
+
+    protected final String digestAlgorithm;
+
+    protected final String digestAlgorithmProvider;
+
+    protected final ChunkReferenceTracker referenceTracker;
+
+    protected final Path backingStoreRoot;
+
+    protected final Executor readAheadExecutor;
+
+    protected final int readAheadChunks;
+
+    protected ChunkManifest manifest;
+
+    protected boolean writtenToBackingWriter;
+
+    protected MimetypeService mimetypeService;
+
+    protected ChunkingContentWriter(final ContentContext context, final ContentStore backingContentStore,
+            final ContentWriter backingWriter, final int minChunkSize, final int averageChunkSize, final int maxChunkSize,
+            final String digestAlgorithm, final String digestAlgorithmProvider, final ChunkReferenceTracker referenceTracker,
+            final Path backingStoreRoot, final Executor readAheadExecutor, final int readAheadChunks)
+    {
+        super(backingWriter.getContentUrl() != null ? backingWriter.getContentUrl() : context.getContentUrl(),
+                context.getExistingContentReader());
+
+        ParameterCheck.mandatory("context", context);
+        ParameterCheck.mandatory("backingContentStore", backingContentStore);
+        ParameterCheck.mandatory("backingWriter", backingWriter);
+        ParameterCheck.mandatoryString("digestAlgorithm", digestAlgorithm);
+        ParameterCheck.mandatory("referenceTracker", referenceTracker);
+        FastCdcChunker.validateChunkSizes(minChunkSize, averageChunkSize, maxChunkSize);
+
+        this.context = context;
+        this.backingContentStore = backingContentStore;
+        this.backingWriter = backingWriter;
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestAlgorithmProvider = digestAlgorithmProvider;
+        this.referenceTracker = referenceTracker;
+        this.backingStoreRoot = backingStoreRoot;
+        this.readAheadExecutor = readAheadExecutor;
+        this.readAheadChunks = readAheadChunks;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSize()
+    {
+        return this.manifest != null ? this.manifest.getTotalLength() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setMimetypeService(final MimetypeService mimetypeService)
+    {
+        this.mimetypeService = mimetypeService;
+        super.setMimetypeService(mimetypeService);
+
+        if (this.backingWriter instanceof MimetypeServiceAware)
+        {
+            ((MimetypeServiceAware) this.backingWriter).setMimetypeService(mimetypeService);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected ContentReader createReader() throws ContentIOException
+    {
+        if (!this.writtenToBackingWriter)
+        {
+            throw new IllegalStateException("Content has not been completely written yet");
+        }
+        return new ChunkedContentReader(this.backingWriter.getReader(), this.backingContentStore, this.readAheadExecutor,
+                this.readAheadChunks, this.manifest.getTotalLength());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected WritableByteChannel getDirectWritableChannel() throws ContentIOException
+    {
+        final MessageDigest digest = this.createMessageDigest();
+        final int digestLength = digest.getDigestLength() > 0 ? digest.getDigestLength() : digest.digest().length;
+        this.manifest = new ChunkManifest(this.digestAlgorithm, digestLength);
+
+        LOGGER.debug("Content will be split into chunks while being written (url={})", this.getContentUrl());
+        return new ChunkingChannel(digest);
+    }
+
+    protected void storeChunk(final MessageDigest digest, final byte[] buffer, final int length)
+    {
+        digest.update(buffer, 0, length);
+        final byte[] chunkDigest = digest.digest();
+        final String digestHex = new String(Hex.encodeHex(chunkDigest, false));
+
+        this.manifest.addChunk(length, chunkDigest);
+        this.referenceTracker.chunkReferenced(digestHex);
+
+        final String chunkContentUrl = ChunkManifest.makeChunkContentUrl(digestHex);
+        // a sweep for orphaned chunks re-checks references under the same lock, so it cannot delete a chunk we decided to reuse
+        final Lock lock = this.referenceTracker.getLock(digestHex);
+        lock.lock();
+        try
+        {
+            this.contextRestorator.withRestoredContext(() -> {
+                if (this.backingStoreRoot != null ? this.touchChunk(chunkContentUrl) : this.backingContentStore.exists(chunkContentUrl))
+                {
+                    LOGGER.trace("Chunk {} already exists in backing store", digestHex);
+                }
+                else
+                {
+                    this.writeChunk(chunkContentUrl, buffer, length);
+                }
+                return null;
+            });
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the last modified time of an existing chunk in a backing store which can be swept for orphaned chunks, so that sweeps on
+     * other servers which are not aware of the chunk being reused treat it as a new chunk.
+     *
+     * @param chunkContentUrl
+     *     the content URL of the chunk
+     * @return {@code true} if the chunk exists and has been touched, {@code false} if it does not exist
+     */
+    protected boolean touchChunk(final String chunkContentUrl)
+    {
+        final String relativePath = chunkContentUrl
+                .substring(chunkContentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER) + ContentStore.PROTOCOL_DELIMITER.length());
+        final Path chunkPath = this.backingStoreRoot.resolve(relativePath);
+
+        boolean touched;
+        try
+        {
+            Files.setLastModifiedTime(chunkPath, FileTime.fromMillis(System.currentTimeMillis()));
+            touched = true;
+        }
+        catch (final NoSuchFileException nsfex)
+        {
+            touched = false;
+        }
+        catch (final IOException ioex)
+        {
+            throw new ContentIOException("Failed to update last modified time of chunk " + chunkContentUrl, ioex);
+        }
+        return touched;
+    }
+
+    protected void writeChunk(final String chunkContentUrl, final byte[] buffer, final int length)
+    {
+        final ContentWriter chunkWriter;
+        try
+        {
+            // chunks are shared by any content, so they are not tied to the context of the current content
+            chunkWriter = this.backingContentStore.getWriter(new ContentContext(null, chunkContentUrl));
+        }
+        catch (final ContentExistsException ceex)
+        {
+            LOGGER.debug("Chunk {} has been written concurrently", chunkContentUrl);
+            return;
+        }
+
+        // chunks are deliberately not registered for deletion on rollback as concurrent content may already reference them
+        chunkWriter.putContent(new ByteArrayInputStream(buffer, 0, length));
+
+        // since we use a wildcard protocol in our expectation and don't know backing store protocol, do a relative match
+        final String expectedRelativeUrl = chunkContentUrl
+                .substring(chunkContentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER) + ContentStore.PROTOCOL_DELIMITER.length());
+        final String actualContentUrl = chunkWriter.getContentUrl();
+        final String actualRelativeUrl = actualContentUrl
+                .substring(actualContentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER) + ContentStore.PROTOCOL_DELIMITER.length());
+        if (!EqualsHelper.nullSafeEquals(expectedRelativeUrl, actualRelativeUrl))
+        {
+            throw new IllegalStateException("Backing content store did not use the required target content URL");
+        }
+        LOGGER.trace("Wrote new chunk {} with {} bytes", actualContentUrl, length);
+    }
+
+    protected void writeToBackingStore()
+    {
+        this.contextRestorator.withRestoredContext(() -> {
+            try (OutputStream contentOutputStream = this.backingWriter.getContentOutputStream())
+            {
+                this.manifest.writeManifest(contentOutputStream);
+            }
+            catch (final IOException ioex)
+            {
+                throw new ContentIOException("Error writing chunk manifest", ioex);
+            }
+            return null;
+        });
+
+        this.writtenToBackingWriter = true;
+        LOGGER.debug("Wrote manifest of {} chunks for {} bytes of content (url={})", this.manifest.getChunkCount(),
+                this.manifest.getTotalLength(), this.getContentUrl());
+    }
+
+    protected MessageDigest createMessageDigest()
+    {
+        MessageDigest digest;
+        try
+        {
+            if (this.digestAlgorithmProvider != null && this.digestAlgorithmProvider.trim().length() > 0)
+            {
+                digest = MessageDigest.getInstance(this.digestAlgorithm, this.digestAlgorithmProvider);
+            }
+            else
+            {
+                digest = MessageDigest.getInstance(this.digestAlgorithm);
+            }
+        }
+        catch (final NoSuchProviderException nspEx)
+        {
+            LOGGER.error("Hash algorithm provider {} is not available", this.digestAlgorithmProvider);
+            throw new ContentIOException("Hash algorithm provider for deduplication not available", nspEx);
+        }
+        catch (final NoSuchAlgorithmException nsaEx)
+        {
+            LOGGER.error("Hash algorithm {} is not available", this.digestAlgorithm);
+            throw new ContentIOException("Hash algorithm for deduplication not available", nsaEx);
+        }
+        return digest;
+    }
+
+    /**
+     * Instances of this class buffer the content of the current chunk until its boundary has been found.
+     *
+     * @author Axel Faust
+     */
+    protected class ChunkingChannel implements WritableByteChannel
+    {
+
+        protected final MessageDigest digest;
+
+        protected final FastCdcChunker chunker = new FastCdcChunker(ChunkingContentWriter.this.minChunkSize,
+                ChunkingContentWriter.this.averageChunkSize, ChunkingContentWriter.this.maxChunkSize);
+
+        protected final byte[] buffer = new byte[ChunkingContentWriter.this.maxChunkSize];
+
+        protected int bufferLength;
+
+        protected boolean closed;
+
+        protected ChunkingChannel(final MessageDigest digest)
+        {
+            this.digest = digest;
+            ChunkingContentWriter.this.referenceTracker.manifestStarted(ChunkingContentWriter.this.manifest);
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isOpen()
+        {
+            return !this.closed;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public int write(final ByteBuffer src) throws IOException
+        {
+            if (this.closed)
+            {
+                throw new ClosedChannelException();
+            }
+
+            final int bytesWritten = src.remaining();
+            while (src.hasRemaining())
+            {
+                // the chunker always cuts at the maximum chunk size, so the buffer never overflows
+                final int bytesToScan = Math.min(src.remaining(), this.buffer.length - this.bufferLength);
+                src.get(this.buffer, this.bufferLength, bytesToScan);
+                int scanPosition = this.bufferLength;
+                this.bufferLength += bytesToScan;
+
+                int boundary;
+                while (scanPosition < this.bufferLength
+                        && (boundary = this.chunker.findBoundary(this.buffer, scanPosition, this.bufferLength - scanPosition)) != -1)
+                {
+                    final int chunkLength = scanPosition + boundary;
+                    ChunkingContentWriter.this.storeChunk(this.digest, this.buffer, chunkLength);
+
+                    this.bufferLength -= chunkLength;
+                    System.arraycopy(this.buffer, chunkLength, this.buffer, 0, this.bufferLength);
+                    scanPosition = 0;
+                }
+            }
+            return bytesWritten;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (!this.closed)
+            {
+                this.closed = true;
+                try
+                {
+                    if (this.bufferLength > 0)
+                    {
+                        ChunkingContentWriter.this.storeChunk(this.digest, this.buffer, this.bufferLength);
+                        this.bufferLength = 0;
+                    }
+                    ChunkingContentWriter.this.writeToBackingStore();
+                }
+                finally
+                {
+                    ChunkingContentWriter.this.referenceTracker.manifestCompleted(ChunkingContentWriter.this.manifest);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.transaction.TransactionSupportUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
+import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
+
+/**
+ * @author Axel Faust
+ */
+public class ChunkingDeduplicatingContentStore extends CommonFacadingContentStore implements DisposableBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkingDeduplicatingContentStore.class);
+
+    protected final ChunkReferenceTracker referenceTracker = new ChunkReferenceTracker();
+
+    protected int minChunkSize = 16 * 1024;
+
+    protected int averageChunkSize = 64 * 1024;
+
+    protected int maxChunkSize = 256 * 1024;
+
+    protected String digestAlgorithm = "SHA-256";
+
+    protected String digestAlgorithmProvider;
+
+    protected int readAheadChunks = 2;
+
+    protected int readAheadThreads = 4;
+
+    protected long orphanedChunkMinAge = TimeUnit.DAYS.toSeconds(1);
+
+    protected transient ExecutorService readAheadExecutor;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        super.afterPropertiesSet();
+
+        PropertyCheck.mandatory(this, "digestAlgorithm", this.digestAlgorithm);
+        FastCdcChunker.validateChunkSizes(this.minChunkSize, this.averageChunkSize, this.maxChunkSize);
+
+        if (this.readAheadChunks > 0 && this.readAheadThreads > 0)
+        {
+            // fork-join workers are daemon threads, so an undisposed store will not block shutdown
+            this.readAheadExecutor = new ForkJoinPool(this.readAheadThreads);
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.readAheadExecutor != null)
+        {
+            this.readAheadExecutor.shutdown();
+            this.readAheadExecutor = null;
+        }
+    }
+
+    /**
+     * @param minChunkSize
+     *            the minimum size of chunks in bytes - only the last chunk of content may be smaller
+     */
+    public void setMinChunkSize(final int minChunkSize)
+    {
+        this.minChunkSize = minChunkSize;
+    }
+
+    /**
+     * @param averageChunkSize
+     *            the targeted average size of chunks in bytes, rounded down to the next power of two
+     */
+    public void setAverageChunkSize(final int averageChunkSize)
+    {
+        this.averageChunkSize = averageChunkSize;
+    }
+
+    /**
+     * @param maxChunkSize
+     *            the maximum size of chunks in bytes
+     */
+    public void setMaxChunkSize(final int maxChunkSize)
+    {
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @param digestAlgorithm
+     *            the digestAlgorithm to set
+     */
+    public void setDigestAlgorithm(final String digestAlgorithm)
+    {
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * @param digestAlgorithmProvider
+     *            the digestAlgorithmProvider to set
+     */
+    public void setDigestAlgorithmProvider(final String digestAlgorithmProvider)
+    {
+        this.digestAlgorithmProvider = digestAlgorithmProvider;
+    }
+
+    /**
+     * @param readAheadChunks
+     *            the number of chunks to load from the backing store ahead of the chunk currently being read
+     */
+    public void setReadAheadChunks(final int readAheadChunks)
+    {
+        this.readAheadChunks = readAheadChunks;
+    }
+
+    /**
+     * @param readAheadThreads
+     *            the number of threads used to load chunks ahead of time for all content read via this store
+     */
+    public void setReadAheadThreads(final int readAheadThreads)
+    {
+        this.readAheadThreads = readAheadThreads;
+    }
+
+    /**
+     * @param orphanedChunkMinAge
+     *            the minimum age in seconds of chunks no longer referenced by any content before they are deleted by
+     *            {@link #deleteOrphanedChunks()}
+     */
+    public void setOrphanedChunkMinAge(final long orphanedChunkMinAge)
+    {
+        this.orphanedChunkMinAge = orphanedChunkMinAge;
+    }
+
+    /**
+     * Deletes chunks which are no longer referenced by any content in the backing store. As chunks may be shared by any number of contents,
+     * deleting content via this store only deletes its manifest, and any chunks it referenced need to be cleaned up via this operation.
+     * Chunks referenced by content still being written via this store are retained, but the operation is not aware of content concurrently
+     * written via other servers, which is why chunks are only deleted once they have reached a minimum age.
+     *
+     * @return the number of deleted chunks
+     */
+    public synchronized long deleteOrphanedChunks()
+    {
+        final Path rootPath = this.getScannableBackingStoreRoot();
+        if (rootPath == null)
+        {
+            throw new IllegalStateException("Backing store of " + this + " cannot be scanned for orphaned chunks");
+        }
+
+        final Path chunkRootPath = rootPath.resolve(ChunkManifest.CHUNK_PATH);
+        long deletedChunks = 0;
+        if (Files.isDirectory(chunkRootPath))
+        {
+            try
+            {
+                final long chunkCount;
+                try (Stream<Path> paths = Files.walk(chunkRootPath, FileVisitOption.FOLLOW_LINKS))
+                {
+                    chunkCount = paths.filter(Files::isRegularFile).count();
+                }
+
+                // false positives only retain orphaned chunks until a later sweep
+                final DigestBloomFilter referencedChunks = new DigestBloomFilter(Math.max(1024, chunkCount), 0.001);
+                this.referenceTracker.startSweep(referencedChunks);
+                try
+                {
+                    final long manifestCount = this.markReferencedChunks(rootPath, chunkRootPath, referencedChunks);
+                    LOGGER.debug("Marked chunks referenced by {} manifests in store {}", manifestCount, this);
+
+                    deletedChunks = this.deleteUnreferencedChunks(rootPath, chunkRootPath, referencedChunks);
+                }
+                finally
+                {
+                    this.referenceTracker.endSweep();
+                }
+            }
+            catch (final IOException ioex)
+            {
+                throw new ContentIOException("Failed to scan backing store for orphaned chunks", ioex);
+            }
+        }
+
+        LOGGER.info("Deleted {} orphaned chunks from backing store of {}", deletedChunks, this);
+        return deletedChunks;
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentReader getReader(final String contentUrl)
+    {
+        // use information from context (if call came via ContentService#getReader(NodeRef, QName)) to avoid reading manifest for the size
+        long properSize = -1;
+        final Object contentDataCandidate = ContentStoreContext.getContextAttribute(ContentStoreContext.DEFAULT_ATTRIBUTE_CONTENT_DATA);
+        if (contentDataCandidate instanceof ContentData)
+        {
+            final ContentData contentData = (ContentData) contentDataCandidate;
+            if (contentUrl.equals(contentData.getContentUrl()))
+            {
+                properSize = contentData.getSize();
+            }
+        }
+
+        LOGGER.debug("Wrapping reader for {} in reassembling wrapper in store {}", contentUrl, this);
+        final ContentReader backingReader = super.getReader(contentUrl);
+        return new ChunkedContentReader(backingReader, this.backingStore, this.readAheadExecutor, this.readAheadChunks, properSize);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentWriter getWriter(final ContentContext context)
+    {
+        final ContentWriter writer;
+        if (this.isSpecialHandlingRequired(context))
+        {
+            LOGGER.debug("Creating chunking writer for context {} in store {}", context, this);
+            final ContentWriter backingWriter = super.getWriter(context);
+
+            if (TransactionSupportUtil.isActualTransactionActive())
+            {
+                // this is a new URL so register for rollback handling
+                final Set<String> urlsToDelete = TransactionalResourceHelper.getSet(StoreConstants.KEY_POST_ROLLBACK_DELETION_URLS);
+                urlsToDelete.add(backingWriter.getContentUrl());
+            }
+
+            writer = new ChunkingContentWriter(context, this.backingStore, backingWriter, this.minChunkSize, this.averageChunkSize,
+                    this.maxChunkSize, this.digestAlgorithm, this.digestAlgorithmProvider, this.referenceTracker,
+                    this.getScannableBackingStoreRoot(), this.readAheadExecutor, this.readAheadChunks);
+        }
+        else
+        {
+            LOGGER.debug("Context {} does not match configured conditions for chunking in store {}", context, this);
+            writer = super.getWriter(context);
+        }
+        return writer;
+    }
+
+    protected long markReferencedChunks(final Path rootPath, final Path chunkRootPath, final DigestBloomFilter referencedChunks)
+            throws IOException
+    {
+        long manifestCount = 0;
+        try (Stream<Path> paths = Files.walk(rootPath, FileVisitOption.FOLLOW_LINKS))
+        {
+            final Iterator<Path> candidates = paths.filter(path -> !path.startsWith(chunkRootPath) && Files.isRegularFile(path))
+                    .iterator();
+            while (candidates.hasNext())
+            {
+                final ContentReader reader = this.backingStore.getReader(this.toWildcardContentUrl(rootPath, candidates.next()));
+                // content may be deleted concurrently
+                if (reader.exists())
+                {
+                    try (InputStream contentInputStream = new BufferedInputStream(reader.getContentInputStream()))
+                    {
+                        final ChunkManifest manifest = ChunkManifest.readManifest(contentInputStream);
+                        if (manifest != null)
+                        {
+                            for (int idx = 0, count = manifest.getChunkCount(); idx < count; idx++)
+                            {
+                                referencedChunks.put(manifest.getChunkDigestHex(idx));
+                            }
+                            manifestCount++;
+                        }
+                    }
+                }
+            }
+        }
+        return manifestCount;
+    }
+
+    protected long deleteUnreferencedChunks(final Path rootPath, final Path chunkRootPath, final DigestBloomFilter referencedChunks)
+            throws IOException
+    {
+        final long maxLastModified = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(this.orphanedChunkMinAge);
+
+        long deletedChunks = 0;
+        try (Stream<Path> paths = Files.walk(chunkRootPath, FileVisitOption.FOLLOW_LINKS))
+        {
+            final Iterator<Path> chunks = paths.filter(Files::isRegularFile).iterator();
+            while (chunks.hasNext())
+            {
+                final Path chunk = chunks.next();
+                final String fileName = chunk.getFileName().toString();
+                if (fileName.endsWith(".bin"))
+                {
+                    final String digestHex = fileName.substring(0, fileName.length() - 4);
+                    if (!referencedChunks.mightContain(digestHex) && Files.getLastModifiedTime(chunk).toMillis() < maxLastModified)
+                    {
+                        // re-check under the lock of writers, as the chunk may have been reused since it was checked
+                        final Lock lock = this.referenceTracker.getLock(digestHex);
+                        lock.lock();
+                        try
+                        {
+                            if (!referencedChunks.mightContain(digestHex) && Files.getLastModifiedTime(chunk).toMillis() < maxLastModified
+                                    && this.backingStore.delete(this.toWildcardContentUrl(rootPath, chunk)))
+                            {
+                                LOGGER.trace("Deleted orphaned chunk {}", digestHex);
+                                deletedChunks++;
+                            }
+                        }
+                        finally
+                        {
+                            lock.unlock();
+                        }
+                    }
+                }
+            }
+        }
+        return deletedChunks;
+    }
+
+    protected String toWildcardContentUrl(final Path rootPath, final Path path)
+    {
+        final String relativePath = rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+        return StoreConstants.WILDCARD_PROTOCOL + ContentStore.PROTOCOL_DELIMITER + relativePath;
+    }
+}
@@ -15,6 +15,10 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.facade;
 
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -242,6 +246,29 @@ public abstract class CommonFacadingContentStore implements ContentStore, Initia
         return result;
     }
 
+    protected Path getScannableBackingStoreRoot()
+    {
+        Path rootPath = null;
+        try
+        {
+            final String rootLocation = this.backingStore.getRootLocation();
+            // routing stores and other stores without a single directory report relative / no locations
+            if (rootLocation != null)
+            {
+                final Path path = Paths.get(rootLocation);
+                if (path.isAbsolute() && Files.isDirectory(path))
+                {
+                    rootPath = path;
+                }
+            }
+        }
+        catch (final UnsupportedOperationException | InvalidPathException ex)
+        {
+            LOGGER.debug("Backing store of {} does not provide a valid root location", this, ex);
+        }
+        return rootPath;
+    }
+
     private void afterPropertiesSet_setupHandleContentProperties()
     {
         if (this.handleContentPropertyNames != null && !this.handleContentPropertyNames.isEmpty())
@@ -0,0 +1,477 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class represent the header of content written by the {@link CompressingContentWriter compressing content writer},
+ * recording the per-content decision whether the content has been compressed or stored as-is, how it has been compressed and the length
+ * of the uncompressed content. Content written by older versions of this addon may not have a header and is identified by the lack of the
+ * {@link #MAGIC magic bytes} at the start of the content.
+ *
+ * The header is structured as follows:
+ * <ol>
+ * <li>{@link #MAGIC magic bytes}</li>
+ * <li>one byte for the format version</li>
+ * <li>one byte of flags, see {@link #FLAG_COMPRESSED}, {@link #FLAG_DICTIONARY}, {@link #FLAG_BLOCKS} and {@link #FLAG_LENGTH}</li>
+ * <li>if {@link #FLAG_LENGTH} is set, eight bytes for the length of the uncompressed content - at a fixed position, so that it can be
+ * recorded once the content has been completely written</li>
+ * <li>one byte for the length of the compression type, followed by the type in US-ASCII - empty if the content is not compressed</li>
+ * <li>if {@link #FLAG_DICTIONARY} is set, four bytes for the ID of the dictionary used to compress the content</li>
+ * <li>if {@link #FLAG_BLOCKS} is set, four bytes for the size of the independently compressed blocks of the content</li>
+ * </ol>
+ *
+ * @author Axel Faust
+ */
+public class CompressedContentHeader
+{
+
+    /**
+     * The magic bytes identifying content with a header. None of the compression formats with a signature supported by Commons Compress
+     * start with these bytes, so that content without a header can still be reliably processed.
+     */
+    protected static final byte[] MAGIC = { 'A', 'C', 'S', 'X', 'C', 'M', 'P', 0x1A };
+
+    /**
+     * The initial format version.
+     */
+    public static final int VERSION_1 = 1;
+
+    /**
+     * The flag denoting that the content following the header is compressed.
+     */
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    /**
+     * The flag denoting that the content following the header has been compressed using a dictionary.
+     */
+    public static final int FLAG_DICTIONARY = 0x02;
+
+    /**
+     * The flag denoting that the content following the header has been compressed in independent blocks with a trailing block index.
+     */
+    public static final int FLAG_BLOCKS = 0x04;
+
+    /**
+     * The flag denoting that the header contains a field for the length of the uncompressed content.
+     */
+    public static final int FLAG_LENGTH = 0x08;
+
+    /**
+     * The block size value denoting that content has not been compressed in independent blocks.
+     */
+    public static final int NO_BLOCKS = 0;
+
+    /**
+     * The value for the length of uncompressed content if it could not be recorded.
+     */
+    public static final long UNKNOWN_LENGTH = -1;
+
+    private static final int KNOWN_FLAGS = FLAG_COMPRESSED | FLAG_DICTIONARY | FLAG_BLOCKS | FLAG_LENGTH;
+
+    /**
+     * The number of bytes which need to be read from the start of content to determine if it has a header.
+     */
+    public static final int PREFIX_LENGTH = MAGIC.length + 2;
+
+    protected final int version;
+
+    protected final int flags;
+
+    protected final String compressionType;
+
+    protected final int dictionaryId;
+
+    protected final int blockSize;
+
+    protected final long uncompressedLength;
+
+    protected CompressedContentHeader(final int version, final int flags, final String compressionType, final int dictionaryId,
+            final int blockSize, final long uncompressedLength)
+    {
+        this.version = version;
+        this.flags = flags;
+        this.compressionType = compressionType;
+        this.dictionaryId = dictionaryId;
+        this.blockSize = blockSize;
+        this.uncompressedLength = uncompressedLength;
+    }
+
+    /**
+     * Creates a new header for content to be compressed.
+     *
+     * @param compressionType
+     *     the type of compression applied to the content
+     * @return the new header
+     */
+    public static CompressedContentHeader newHeader(final String compressionType)
+    {
+        return newHeader(compressionType, CompressionCodec.NO_DICTIONARY);
+    }
+
+    /**
+     * Creates a new header for content to be compressed.
+     *
+     * @param compressionType
+     *     the type of compression applied to the content
+     * @param dictionaryId
+     *     the ID of the dictionary used to compress the content, or {@link CompressionCodec#NO_DICTIONARY}
+     * @return the new header
+     */
+    public static CompressedContentHeader newHeader(final String compressionType, final int dictionaryId)
+    {
+        return newHeader(compressionType, dictionaryId, NO_BLOCKS);
+    }
+
+    /**
+     * Creates a new header for content to be compressed.
+     *
+     * @param compressionType
+     *     the type of compression applied to the content
+     * @param dictionaryId
+     *     the ID of the dictionary used to compress the content, or {@link CompressionCodec#NO_DICTIONARY}
+     * @param blockSize
+     *     the size of the independently compressed blocks of the content, or {@link #NO_BLOCKS}
+     * @return the new header
+     */
+    public static CompressedContentHeader newHeader(final String compressionType, final int dictionaryId, final int blockSize)
+    {
+        return newHeader(compressionType, dictionaryId, blockSize, false, UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Creates a new header for content to be compressed, including a {@link #FLAG_LENGTH field} for the length of the uncompressed
+     * content.
+     *
+     * @param compressionType
+     *     the type of compression applied to the content
+     * @param dictionaryId
+     *     the ID of the dictionary used to compress the content, or {@link CompressionCodec#NO_DICTIONARY}
+     * @param blockSize
+     *     the size of the independently compressed blocks of the content, or {@link #NO_BLOCKS}
+     * @param uncompressedLength
+     *     the length of the uncompressed content if known in advance, or {@link #UNKNOWN_LENGTH}
+     * @return the new header
+     */
+    public static CompressedContentHeader newHeader(final String compressionType, final int dictionaryId, final int blockSize,
+            final long uncompressedLength)
+    {
+        return newHeader(compressionType, dictionaryId, blockSize, true, uncompressedLength);
+    }
+
+    protected static CompressedContentHeader newHeader(final String compressionType, final int dictionaryId, final int blockSize,
+            final boolean withLength, final long uncompressedLength)
+    {
+        ParameterCheck.mandatoryString("compressionType", compressionType);
+        if (blockSize < 0)
+        {
+            throw new IllegalArgumentException("blockSize must not be negative");
+        }
+
+        int flags = FLAG_COMPRESSED;
+        if (withLength)
+        {
+            flags |= FLAG_LENGTH;
+        }
+        if (dictionaryId != CompressionCodec.NO_DICTIONARY)
+        {
+            flags |= FLAG_DICTIONARY;
+        }
+        if (blockSize != NO_BLOCKS)
+        {
+            flags |= FLAG_BLOCKS;
+        }
+        return new CompressedContentHeader(VERSION_1, flags, compressionType, dictionaryId, blockSize,
+                withLength && uncompressedLength >= 0 ? uncompressedLength : UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Creates a new header for content to be stored without compression.
+     *
+     * @return the new header
+     */
+    public static CompressedContentHeader newUncompressedHeader()
+    {
+        return new CompressedContentHeader(VERSION_1, 0, "", CompressionCodec.NO_DICTIONARY, NO_BLOCKS, UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Creates a new header for content to be stored without compression, including a {@link #FLAG_LENGTH field} for the length of the
+     * content.
+     *
+     * @param uncompressedLength
+     *     the length of the content if known in advance, or {@link #UNKNOWN_LENGTH}
+     * @return the new header
+     */
+    public static CompressedContentHeader newUncompressedHeader(final long uncompressedLength)
+    {
+        return new CompressedContentHeader(VERSION_1, FLAG_LENGTH, "", CompressionCodec.NO_DICTIONARY, NO_BLOCKS,
+                uncompressedLength >= 0 ? uncompressedLength : UNKNOWN_LENGTH);
+    }
+
+    /**
+     * Reads the header from the start of a content stream. If the content does not have a header, the stream is reset to its start so
+     * that callers can process the content without a header.
+     *
+     * @param inputStream
+     *     the stream from which to read - must {@link InputStream#markSupported() support marking}
+     * @return the header or {@code null} if the content does not have a header
+     * @throws IOException
+     *     if an error occurs reading from the stream or the content has a header in an unsupported version of the format
+     */
+    public static CompressedContentHeader readHeader(final InputStream inputStream) throws IOException
+    {
+        ParameterCheck.mandatory("inputStream", inputStream);
+        if (!inputStream.markSupported())
+        {
+            throw new IllegalArgumentException("inputStream must support marking");
+        }
+
+        inputStream.mark(PREFIX_LENGTH);
+        final byte[] prefix = new byte[PREFIX_LENGTH];
+        final int prefixLength = readFully(inputStream, prefix);
+
+        CompressedContentHeader header = null;
+        if (prefixLength == PREFIX_LENGTH && Arrays.equals(MAGIC, Arrays.copyOf(prefix, MAGIC.length)))
+        {
+            final int version = prefix[MAGIC.length] & 0xFF;
+            final int flags = prefix[MAGIC.length + 1] & 0xFF;
+            if (version != VERSION_1)
+            {
+                throw new IOException("Unsupported compressed content format version " + version);
+            }
+            if ((flags & ~KNOWN_FLAGS) != 0)
+            {
+                throw new IOException("Unsupported compressed content format flags " + flags);
+            }
+
+            final DataInputStream dataInputStream = new DataInputStream(inputStream);
+            try
+            {
+                final long uncompressedLength = (flags & FLAG_LENGTH) != 0 ? dataInputStream.readLong() : UNKNOWN_LENGTH;
+                final byte[] compressionType = new byte[dataInputStream.readUnsignedByte()];
+                dataInputStream.readFully(compressionType);
+                final int dictionaryId = (flags & FLAG_DICTIONARY) != 0 ? dataInputStream.readInt() : CompressionCodec.NO_DICTIONARY;
+                final int blockSize = (flags & FLAG_BLOCKS) != 0 ? dataInputStream.readInt() : NO_BLOCKS;
+                if ((flags & FLAG_BLOCKS) != 0 && blockSize <= 0)
+                {
+                    throw new IOException("Invalid block size " + blockSize + " in compressed content header");
+                }
+                header = new CompressedContentHeader(version, flags, new String(compressionType, StandardCharsets.US_ASCII), dictionaryId,
+                        blockSize, uncompressedLength >= 0 ? uncompressedLength : UNKNOWN_LENGTH);
+            }
+            catch (final EOFException eofEx)
+            {
+                throw new IOException("Truncated compressed content header", eofEx);
+            }
+        }
+        else
+        {
+            inputStream.reset();
+        }
+
+        return header;
+    }
+
+    /**
+     * @return the version of the format
+     */
+    public int getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * @return the length of the header in bytes
+     */
+    public int getLength()
+    {
+        return PREFIX_LENGTH + (this.hasLengthField() ? 8 : 0) + 1 + this.compressionType.length() + (this.usesDictionary() ? 4 : 0)
+                + (this.isBlockIndexed() ? 4 : 0);
+    }
+
+    /**
+     * @return {@code true} if the content following the header is compressed, {@code false} if it is stored as-is
+     */
+    public boolean isCompressed()
+    {
+        return (this.flags & FLAG_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return {@code true} if the content following the header has been compressed using a dictionary, {@code false} otherwise
+     */
+    public boolean usesDictionary()
+    {
+        return (this.flags & FLAG_DICTIONARY) != 0;
+    }
+
+    /**
+     * @return {@code true} if the content following the header has been compressed in independent blocks, {@code false} otherwise
+     */
+    public boolean isBlockIndexed()
+    {
+        return (this.flags & FLAG_BLOCKS) != 0;
+    }
+
+    /**
+     * @return {@code true} if the header contains a field for the length of the uncompressed content, {@code false} otherwise
+     */
+    public boolean hasLengthField()
+    {
+        return (this.flags & FLAG_LENGTH) != 0;
+    }
+
+    /**
+     * @return the length of the uncompressed content as recorded in this header, or {@link #UNKNOWN_LENGTH} if it has not been recorded
+     */
+    public long getUncompressedLength()
+    {
+        return this.uncompressedLength;
+    }
+
+    /**
+     * @return the size of the independently compressed blocks of the content, or {@link #NO_BLOCKS}
+     */
+    public int getBlockSize()
+    {
+        return this.blockSize;
+    }
+
+    /**
+     * @return the ID of the dictionary used to compress the content, or {@link CompressionCodec#NO_DICTIONARY}
+     */
+    public int getDictionaryId()
+    {
+        return this.dictionaryId;
+    }
+
+    /**
+     * @return the type of compression applied to the content, or an empty string if the content is not compressed
+     */
+    public String getCompressionType()
+    {
+        return this.compressionType;
+    }
+
+    /**
+     * Writes the binary form of this header to a stream.
+     *
+     * @param outputStream
+     *     the stream to which to write
+     * @throws IOException
+     *     if an error occurs writing to the stream
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException
+    {
+        ParameterCheck.mandatory("outputStream", outputStream);
+
+        final byte[] compressionType = this.compressionType.getBytes(StandardCharsets.US_ASCII);
+        final byte[] header = Arrays.copyOf(MAGIC, this.getLength());
+        header[MAGIC.length] = (byte) this.version;
+        header[MAGIC.length + 1] = (byte) this.flags;
+        int offset = PREFIX_LENGTH;
+        if (this.hasLengthField())
+        {
+            writeInt(header, offset, (int) (this.uncompressedLength >>> 32));
+            writeInt(header, offset + 4, (int) this.uncompressedLength);
+            offset += 8;
+        }
+        header[offset] = (byte) compressionType.length;
+        System.arraycopy(compressionType, 0, header, offset + 1, compressionType.length);
+        offset += 1 + compressionType.length;
+        if (this.usesDictionary())
+        {
+            writeInt(header, offset, this.dictionaryId);
+            offset += 4;
+        }
+        if (this.isBlockIndexed())
+        {
+            writeInt(header, offset, this.blockSize);
+        }
+        outputStream.write(header);
+    }
+
+    /**
+     * Records the length of the uncompressed content in a header with a {@link #hasLengthField() length field} already written to a
+     * channel. This is only possible if the channel supports writing at absolute positions, as the length is generally not known when the
+     * header is written at the start of the content.
+     *
+     * @param channel
+     *     the channel to which the header and content have been written
+     * @param uncompressedLength
+     *     the length of the uncompressed content
+     * @return {@code true} if the length has been recorded, {@code false} otherwise
+     * @throws IOException
+     *     if an error occurs writing to the channel
+     */
+    public static boolean recordUncompressedLength(final WritableByteChannel channel, final long uncompressedLength) throws IOException
+    {
+        ParameterCheck.mandatory("channel", channel);
+
+        boolean recorded = false;
+        if (channel instanceof FileChannel)
+        {
+            final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+            lengthBuffer.putLong(uncompressedLength);
+            lengthBuffer.flip();
+
+            // the length field is always the first field after the prefix
+            long position = PREFIX_LENGTH;
+            while (lengthBuffer.hasRemaining())
+            {
+                position += ((FileChannel) channel).write(lengthBuffer, position);
+            }
+            recorded = true;
+        }
+        return recorded;
+    }
+
+    protected static void writeInt(final byte[] buffer, final int offset, final int value)
+    {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    protected static int readFully(final InputStream inputStream, final byte[] buffer) throws IOException
+    {
+        int offset = 0;
+        int bytesRead = 0;
+        while (offset < buffer.length && bytesRead != -1)
+        {
+            bytesRead = inputStream.read(buffer, offset, buffer.length - offset);
+            if (bytesRead > 0)
+            {
+                offset += bytesRead;
+            }
+        }
+        return offset;
+    }
+}
@@ -16,7 +16,10 @@
 package de.acosix.alfresco.simplecontentstores.repo.store.facade;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.ContentStore;
@@ -26,16 +29,19 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.util.PropertyCheck;
 import org.alfresco.util.transaction.TransactionSupportUtil;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
 import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingContentStore;
 
 /**
  * @author Axel Faust
  */
-public class CompressingContentStore extends CommonFacadingContentStore
+public class CompressingContentStore extends CommonFacadingContentStore implements DisposableBean
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CompressingContentStore.class);
@@ -46,6 +52,36 @@ public class CompressingContentStore extends CommonFacadingContentStore
 
     protected Collection<String> mimetypesToCompress;
 
+    protected boolean adaptiveCompression;
+
+    protected int adaptiveSampleSize = 64 * 1024;
+
+    protected double minCompressionRatio = 1.1;
+
+    protected int adaptiveStatisticsMinSamples = 100;
+
+    protected final CompressionStatistics compressionStatistics = new CompressionStatistics();
+
+    protected AdaptiveCompressionSettings adaptiveCompressionSettings;
+
+    protected Map<String, Integer> compressionLevels;
+
+    protected Collection<String> dictionaryMimetypes;
+
+    protected CompressionDictionaryRegistry dictionaryRegistry;
+
+    protected int blockSize = CompressedContentHeader.NO_BLOCKS;
+
+    protected int parallelCompressionThreads;
+
+    protected int parallelCompressionMaxBlocksInFlight;
+
+    protected ExecutorService parallelCompressionExecutor;
+
+    protected ParallelCompressionSettings parallelCompressionSettings;
+
+    protected boolean recordUncompressedLength;
+
     /**
      *
      * {@inheritDoc}
@@ -56,6 +92,72 @@ public class CompressingContentStore extends CommonFacadingContentStore
         super.afterPropertiesSet();
 
         PropertyCheck.mandatory(this, "temporaryStore", this.temporaryStore);
+
+        if (this.adaptiveCompression)
+        {
+            this.adaptiveCompressionSettings = new AdaptiveCompressionSettings(this.adaptiveSampleSize, this.minCompressionRatio,
+                    this.adaptiveStatisticsMinSamples, this.compressionStatistics);
+        }
+
+        if (this.dictionaryMimetypes != null && !this.dictionaryMimetypes.isEmpty())
+        {
+            if (!CompressorStreamFactory.ZSTANDARD.equals(this.compressionType))
+            {
+                throw new IllegalStateException("Compression dictionaries are only supported for " + CompressorStreamFactory.ZSTANDARD);
+            }
+            PropertyCheck.mandatory(this, "dictionaryRegistry", this.dictionaryRegistry);
+
+            // dictionaries are trained on plain content and persisted unencrypted, so they would leak parts of encrypted content
+            ContentStore store = this.backingStore;
+            while (store instanceof CommonFacadingContentStore)
+            {
+                if (store instanceof EncryptingContentStore)
+                {
+                    throw new IllegalStateException("Compression dictionaries must not be used with an encrypting backing store");
+                }
+                store = ((CommonFacadingContentStore) store).backingStore;
+            }
+        }
+
+        if (this.blockSize < 0)
+        {
+            throw new IllegalStateException("blockSize must not be negative");
+        }
+        if (this.blockSize != CompressedContentHeader.NO_BLOCKS && this.adaptiveCompression)
+        {
+            LOGGER.warn("Adaptive compression is not applied in store {} as content is compressed in blocks", this);
+        }
+
+        if (this.parallelCompressionThreads > 1)
+        {
+            if (this.blockSize == CompressedContentHeader.NO_BLOCKS)
+            {
+                LOGGER.warn("Parallel compression has been configured for store {} without enabling the block-indexed format - "
+                        + "it will not be used for newly written content", this);
+            }
+            else
+            {
+                // fork-join workers are daemon threads, so an undisposed store will not block shutdown
+                this.parallelCompressionExecutor = new ForkJoinPool(this.parallelCompressionThreads);
+                this.parallelCompressionSettings = new ParallelCompressionSettings(this.parallelCompressionExecutor,
+                        this.parallelCompressionMaxBlocksInFlight > 0 ? this.parallelCompressionMaxBlocksInFlight
+                                : 2 * this.parallelCompressionThreads);
+            }
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.parallelCompressionExecutor != null)
+        {
+            this.parallelCompressionExecutor.shutdown();
+            this.parallelCompressionExecutor = null;
+        }
     }
 
     /**
@@ -85,6 +187,118 @@ public class CompressingContentStore extends CommonFacadingContentStore
         this.mimetypesToCompress = mimetypesToCompress;
     }
 
+    /**
+     * @param adaptiveCompression
+     *            the adaptiveCompression to set
+     */
+    public void setAdaptiveCompression(final boolean adaptiveCompression)
+    {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    /**
+     * @param adaptiveSampleSize
+     *            the adaptiveSampleSize to set
+     */
+    public void setAdaptiveSampleSize(final int adaptiveSampleSize)
+    {
+        this.adaptiveSampleSize = adaptiveSampleSize;
+    }
+
+    /**
+     * @param minCompressionRatio
+     *            the minCompressionRatio to set
+     */
+    public void setMinCompressionRatio(final double minCompressionRatio)
+    {
+        this.minCompressionRatio = minCompressionRatio;
+    }
+
+    /**
+     * @param adaptiveStatisticsMinSamples
+     *            the adaptiveStatisticsMinSamples to set
+     */
+    public void setAdaptiveStatisticsMinSamples(final int adaptiveStatisticsMinSamples)
+    {
+        this.adaptiveStatisticsMinSamples = adaptiveStatisticsMinSamples;
+    }
+
+    /**
+     * @param compressionLevels
+     *            the compression levels to use, keyed by mimetype (may be wildcard mimetypes, e.g. {@code text/*})
+     */
+    public void setCompressionLevels(final Map<String, Integer> compressionLevels)
+    {
+        this.compressionLevels = compressionLevels;
+    }
+
+    /**
+     * @param dictionaryMimetypes
+     *            the mimetypes (may be wildcard mimetypes, e.g. {@code text/*}) for which to train and use compression dictionaries
+     */
+    public void setDictionaryMimetypes(final Collection<String> dictionaryMimetypes)
+    {
+        this.dictionaryMimetypes = dictionaryMimetypes;
+    }
+
+    /**
+     * @param dictionaryRegistry
+     *            the dictionaryRegistry to set
+     */
+    public void setDictionaryRegistry(final CompressionDictionaryRegistry dictionaryRegistry)
+    {
+        this.dictionaryRegistry = dictionaryRegistry;
+    }
+
+    /**
+     * @param blockSize
+     *            the size of independently compressed blocks to support efficient random access / range reads, or {@code 0} to compress
+     *            content as a single stream
+     */
+    public void setBlockSize(final int blockSize)
+    {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param parallelCompressionThreads
+     *            the number of threads to use for compressing blocks of content in parallel - values of {@code 1} or less disable parallel
+     *            compression
+     */
+    public void setParallelCompressionThreads(final int parallelCompressionThreads)
+    {
+        this.parallelCompressionThreads = parallelCompressionThreads;
+    }
+
+    /**
+     * @param parallelCompressionMaxBlocksInFlight
+     *            the maximum number of blocks compressed / buffered at the same time for a single content - values of {@code 0} or less
+     *            default to twice the number of threads
+     */
+    public void setParallelCompressionMaxBlocksInFlight(final int parallelCompressionMaxBlocksInFlight)
+    {
+        this.parallelCompressionMaxBlocksInFlight = parallelCompressionMaxBlocksInFlight;
+    }
+
+    /**
+     * @param recordUncompressedLength
+     *            {@code true} if the length of the uncompressed content should be recorded in a header of newly written content
+     */
+    public void setRecordUncompressedLength(final boolean recordUncompressedLength)
+    {
+        this.recordUncompressedLength = recordUncompressedLength;
+    }
+
+    /**
+     * Retrieves the per-mimetype statistics of compression ratios and decisions collected in adaptive compression mode.
+     *
+     * @return the statistics, keyed by mimetype
+     */
+    public Map<String, Map<String, Long>> getCompressionStatistics()
+    {
+        return this.compressionStatistics.toStatistics();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -119,7 +333,8 @@ public class CompressingContentStore extends CommonFacadingContentStore
         if (shouldCompress)
         {
             LOGGER.debug("Wrapping reader for {} in decompressing wrapper in store {}", contentUrl, this);
-            reader = new DecompressingContentReader(backingReader, this.compressionType, this.mimetypesToCompress, properSize);
+            reader = new DecompressingContentReader(backingReader, this.compressionType, this.mimetypesToCompress, properSize,
+                    this.dictionaryRegistry);
         }
         else
         {
@@ -148,8 +363,9 @@ public class CompressingContentStore extends CommonFacadingContentStore
                 urlsToDelete.add(backingWriter.getContentUrl());
             }
 
-            writer = new CompressingContentWriter(context, this.temporaryStore, backingWriter,
-                    this.compressionType, this.mimetypesToCompress);
+            writer = new CompressingContentWriter(context, this.temporaryStore, backingWriter, this.compressionType,
+                    this.mimetypesToCompress, this.adaptiveCompressionSettings, this.compressionLevels, this.dictionaryMimetypes,
+                    this.dictionaryRegistry, this.blockSize, this.parallelCompressionSettings, this.recordUncompressedLength);
         }
         else
         {
@@ -16,12 +16,17 @@
 package de.acosix.alfresco.simplecontentstores.repo.store.facade;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 import org.alfresco.repo.content.AbstractContentWriter;
 import org.alfresco.repo.content.ContentContext;
@@ -39,7 +44,8 @@ import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.FileCopyUtils;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentWriterImpl;
 
 /**
  * @author Axel Faust
@@ -49,28 +55,61 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CompressingContentWriter.class);
 
-    private static final CompressorStreamFactory COMPRESSOR_STREAM_FACTORY = new CompressorStreamFactory();
-
     protected final ContentContext context;
 
     protected final ContentStore temporaryContentStore;
 
     protected final ContentWriter backingWriter;
 
-    protected final ContentWriter temporaryWriter;
+    protected ContentWriter temporaryWriter;
 
     protected final String compressionType;
 
     protected final Collection<String> mimetypesToCompress;
 
+    protected final AdaptiveCompressionSettings adaptiveCompressionSettings;
+
+    protected final Map<String, Integer> compressionLevels;
+
+    protected final Collection<String> dictionaryMimetypes;
+
+    protected final CompressionDictionaryRegistry dictionaryRegistry;
+
+    protected final int blockSize;
+
+    protected final ParallelCompressionSettings parallelCompressionSettings;
+
+    protected final boolean recordUncompressedLength;
+
     protected boolean writtenToBackingWriter = false;
 
+    protected boolean mimetypeGuessPending = false;
+
+    protected Boolean compressed;
+
     protected long properSize = -1;
 
     protected MimetypeService mimetypeService;
 
     protected CompressingContentWriter(final ContentContext context, final ContentStore temporaryContentStore,
             final ContentWriter backingWriter, final String compressionType, final Collection<String> mimetypesToCompress)
+    {
+        this(context, temporaryContentStore, backingWriter, compressionType, mimetypesToCompress, null);
+    }
+
+    protected CompressingContentWriter(final ContentContext context, final ContentStore temporaryContentStore,
+            final ContentWriter backingWriter, final String compressionType, final Collection<String> mimetypesToCompress,
+            final AdaptiveCompressionSettings adaptiveCompressionSettings)
+    {
+        this(context, temporaryContentStore, backingWriter, compressionType, mimetypesToCompress, adaptiveCompressionSettings,
+                Collections.emptyMap(), Collections.emptySet(), null, CompressedContentHeader.NO_BLOCKS, null, false);
+    }
+
+    protected CompressingContentWriter(final ContentContext context, final ContentStore temporaryContentStore,
+            final ContentWriter backingWriter, final String compressionType, final Collection<String> mimetypesToCompress,
+            final AdaptiveCompressionSettings adaptiveCompressionSettings, final Map<String, Integer> compressionLevels,
+            final Collection<String> dictionaryMimetypes, final CompressionDictionaryRegistry dictionaryRegistry, final int blockSize,
+            final ParallelCompressionSettings parallelCompressionSettings, final boolean recordUncompressedLength)
     {
         super(backingWriter.getContentUrl() != null ? backingWriter.getContentUrl() : context.getContentUrl(),
                 context.getExistingContentReader());
@@ -85,12 +124,16 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
 
         this.compressionType = compressionType;
         this.mimetypesToCompress = mimetypesToCompress;
+        this.adaptiveCompressionSettings = adaptiveCompressionSettings;
+        this.compressionLevels = compressionLevels != null ? compressionLevels : Collections.emptyMap();
+        this.dictionaryMimetypes = dictionaryMimetypes != null ? dictionaryMimetypes : Collections.emptySet();
+        this.dictionaryRegistry = dictionaryRegistry;
+        this.blockSize = blockSize;
+        this.parallelCompressionSettings = parallelCompressionSettings;
+        this.recordUncompressedLength = recordUncompressedLength;
 
         // we are the first real listener (DoGuessingOnCloseListener always is first)
         super.addListener(this);
-
-        final ContentContext temporaryContext = new ContentContext(context.getExistingContentReader(), null);
-        this.temporaryWriter = this.temporaryContentStore.getWriter(temporaryContext);
     }
 
     /**
@@ -103,7 +146,7 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         // if mimetype requires compression only properSize or temporaryWriter.getSize() should ever be used
         // if mimetype is excluded from compression, backingWriter.getSize() is perfectly fine
         final long size;
-        if (this.properSize > 0)
+        if (this.properSize >= 0)
         {
             size = this.properSize;
         }
@@ -111,10 +154,14 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         {
             size = this.backingWriter.getSize();
         }
-        else
+        else if (this.temporaryWriter != null)
         {
             size = this.temporaryWriter.getSize();
         }
+        else
+        {
+            size = 0;
+        }
         return size;
     }
 
@@ -131,6 +178,17 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void guessMimetype(final String filename)
+    {
+        // mimetype may change when guessed after the write, so it cannot be used to decide on compression when the channel is opened
+        this.mimetypeGuessPending = true;
+        super.guessMimetype(filename);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -145,7 +203,7 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
             ((MimetypeServiceAware) this.backingWriter).setMimetypeService(mimetypeService);
         }
 
-        if (this.temporaryWriter instanceof MimetypeServiceAware)
+        if (this.temporaryWriter != null && this.temporaryWriter instanceof MimetypeServiceAware)
         {
             ((MimetypeServiceAware) this.temporaryWriter).setMimetypeService(mimetypeService);
         }
@@ -161,14 +219,13 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
 
         if (this.writtenToBackingWriter)
         {
-            final String mimetype = this.getMimetype();
-            final boolean shouldCompress = this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty() || (mimetype != null
-                    && (this.mimetypesToCompress.contains(mimetype) || this.isMimetypeToCompressWildcardMatch(mimetype)));
+            final boolean shouldCompress = this.compressed != null ? this.compressed.booleanValue()
+                    : this.shouldCompress(this.getMimetype());
 
             if (shouldCompress)
             {
                 reader = new DecompressingContentReader(this.backingWriter.getReader(), this.compressionType, this.mimetypesToCompress,
-                        this.properSize);
+                        this.properSize, this.dictionaryRegistry);
             }
             else
             {
@@ -178,7 +235,7 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         else
         {
             // reader with faked content url to match expectation of super.getReader()
-            reader = new ContentReaderFacade(this.temporaryWriter.getReader())
+            reader = new ContentReaderFacade(this.getTemporaryWriter().getReader())
             {
 
                 /**
@@ -210,12 +267,77 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
      */
     @Override
     protected WritableByteChannel getDirectWritableChannel() throws ContentIOException
+    {
+        final WritableByteChannel channel;
+
+        final Boolean compressInline = this.determineInlineCompression();
+        if (compressInline == null)
+        {
+            LOGGER.debug("Mimetype of content is not yet known - content will be staged in temporary store (url={})",
+                    this.getContentUrl());
+            channel = this.getTemporaryWritableChannel();
+        }
+        else if (compressInline.booleanValue())
+        {
+            LOGGER.debug("Content will be compressed to backing store while being written (url={})", this.getContentUrl());
+            channel = new InlineCompressingChannel();
+        }
+        else
+        {
+            LOGGER.debug("Content will not be compressed to backing store (url={})", this.getContentUrl());
+            channel = new InlinePassThroughChannel();
+        }
+
+        return channel;
+    }
+
+    /**
+     * Determines whether content can be written to the backing store inline, i.e. without staging it in the temporary store first, and if
+     * so, whether it needs to be compressed.
+     *
+     * @return {@link Boolean#TRUE true} if content should be compressed inline, {@link Boolean#FALSE false} if content should be written
+     *         inline without compression, or {@code null} if content needs to be staged as the mimetype is not yet known
+     */
+    protected Boolean determineInlineCompression()
+    {
+        Boolean compressInline = null;
+        if (this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty())
+        {
+            compressInline = Boolean.TRUE;
+        }
+        else if (!this.mimetypeGuessPending)
+        {
+            final String mimetype = this.getMimetype();
+            if (mimetype != null && !MimetypeMap.MIMETYPE_BINARY.equals(mimetype))
+            {
+                compressInline = Boolean.valueOf(this.shouldCompress(mimetype));
+            }
+        }
+        return compressInline;
+    }
+
+    protected ContentWriter getTemporaryWriter()
+    {
+        if (this.temporaryWriter == null)
+        {
+            final ContentContext temporaryContext = new ContentContext(this.context.getExistingContentReader(), null);
+            this.temporaryWriter = this.temporaryContentStore.getWriter(temporaryContext);
+
+            if (this.mimetypeService != null && this.temporaryWriter instanceof MimetypeServiceAware)
+            {
+                ((MimetypeServiceAware) this.temporaryWriter).setMimetypeService(this.mimetypeService);
+            }
+        }
+        return this.temporaryWriter;
+    }
+
+    protected WritableByteChannel getTemporaryWritableChannel()
     {
         // need to wrap this to avoid issue of CallbackFileChannel rejection in CallbackFileChannel constructor
         final WritableByteChannel channel = new WritableByteChannel()
         {
 
-            private final WritableByteChannel channel = CompressingContentWriter.this.temporaryWriter.getWritableChannel();
+            private final WritableByteChannel channel = CompressingContentWriter.this.getTemporaryWriter().getWritableChannel();
 
             /**
              *
@@ -268,23 +390,19 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
             }
         }
 
-        final boolean shouldCompress = this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty()
-                || (mimetype != null && (this.mimetypesToCompress.contains(mimetype) || this.isMimetypeToCompressWildcardMatch(mimetype)));
+        final boolean shouldCompress = this.shouldCompress(mimetype);
 
         if (shouldCompress)
         {
             LOGGER.debug("Content will be compressed to backing store (url={})", this.getContentUrl());
-            final String compressiongType = this.compressionType != null && !this.compressionType.trim().isEmpty() ? this.compressionType
-                    : CompressorStreamFactory.GZIP;
             try (final OutputStream contentOutputStream = this.backingWriter.getContentOutputStream())
             {
-                try (OutputStream compressedOutputStream = COMPRESSOR_STREAM_FACTORY.createCompressorOutputStream(compressiongType,
-                        contentOutputStream))
+                final long uncompressedSize = this.temporaryWriter.getSize();
+                try (OutputStream compressedOutputStream = this.createCompressingOutputStream(contentOutputStream, mimetype,
+                        uncompressedSize); InputStream contentInputStream = this.temporaryWriter.getReader().getContentInputStream())
                 {
-                    final ContentReader reader = this.temporaryWriter.getReader();
-                    final InputStream contentInputStream = reader.getContentInputStream();
-                    FileCopyUtils.copy(contentInputStream, compressedOutputStream);
-                    this.properSize = this.temporaryWriter.getSize();
+                    CompressionContextPool.getSharedInstance().copy(contentInputStream, compressedOutputStream);
+                    this.properSize = uncompressedSize;
                 }
             }
             catch (final IOException | CompressorException ex)
@@ -295,20 +413,160 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         else
         {
             LOGGER.debug("Content will not be compressed to backing store (url={})", this.getContentUrl());
-            this.backingWriter.putContent(this.createReader());
+            if (this.backingWriter instanceof FileContentWriterImpl && this.temporaryWriter instanceof FileContentWriterImpl)
+            {
+                // temporary content is cleaned up right after, so avoid writing it a second time if possible
+                ((FileContentWriterImpl) this.backingWriter).promoteContent(((FileContentWriterImpl) this.temporaryWriter).getFile());
+            }
+            else
+            {
+                this.backingWriter.putContent(this.createReader());
+            }
         }
 
+        this.markWrittenToBackingWriter(shouldCompress);
+
+        this.cleanupTemporaryContent();
+    }
+
+    protected void markWrittenToBackingWriter(final boolean compressed)
+    {
         this.writtenToBackingWriter = true;
+        this.compressed = Boolean.valueOf(compressed);
 
         final String finalContentUrl = this.backingWriter.getContentUrl();
         // we don't expect a different content URL, but just to make sure
         this.setContentUrl(finalContentUrl);
+    }
 
-        this.cleanupTemporaryContent();
+    protected boolean shouldCompress(final String mimetype)
+    {
+        return this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty()
+                || (mimetype != null && (this.mimetypesToCompress.contains(mimetype) || this.isMimetypeToCompressWildcardMatch(mimetype)));
+    }
+
+    /**
+     * Creates the stream to compress content into the backing writer. If adaptive compression is enabled, the stream may decide to not
+     * compress the content based on the compressibility of a sample.
+     *
+     * @param contentOutputStream
+     *     the stream of the backing writer
+     * @param mimetype
+     *     the mimetype of the content
+     * @param uncompressedLength
+     *     the length of the uncompressed content if known in advance, or {@link CompressedContentHeader#UNKNOWN_LENGTH}
+     * @return the compressing stream
+     * @throws CompressorException
+     *     if the configured compression type is not supported
+     * @throws IOException
+     *     if an error occurs writing to the stream of the backing writer
+     */
+    protected OutputStream createCompressingOutputStream(final OutputStream contentOutputStream, final String mimetype,
+            final long uncompressedLength) throws CompressorException, IOException
+    {
+        final CompressionCodec codec = this.resolveCodec(mimetype);
+        LOGGER.debug("Resolved {} for content with mimetype {} (url={})", codec, mimetype, this.getContentUrl());
+
+        OutputStream compressingOutputStream;
+        if (this.blockSize != CompressedContentHeader.NO_BLOCKS)
+        {
+            // blocks which do not compress are stored as-is, so adaptive compression is not applied on top
+            compressingOutputStream = new BlockCompressingOutputStream(contentOutputStream, codec, this.blockSize,
+                    this.parallelCompressionSettings, this.recordUncompressedLength, uncompressedLength);
+        }
+        else if (this.adaptiveCompressionSettings != null)
+        {
+            compressingOutputStream = new AdaptiveCompressingOutputStream(contentOutputStream, codec, this.adaptiveCompressionSettings,
+                    mimetype, this.recordUncompressedLength, uncompressedLength);
+        }
+        else
+        {
+            if (this.recordUncompressedLength)
+            {
+                // header records the uncompressed length and - if used - the dictionary which needs to be resolvable when reading
+                codec.newHeader(CompressedContentHeader.NO_BLOCKS, uncompressedLength).writeTo(contentOutputStream);
+            }
+            else if (codec.usesDictionary())
+            {
+                // dictionary needs to be resolvable when reading, so the header is required
+                codec.newHeader().writeTo(contentOutputStream);
+            }
+            compressingOutputStream = codec.createCompressorOutputStream(contentOutputStream);
+        }
+
+        if (!codec.usesDictionary() && this.isDictionaryMimetype(mimetype)
+                && this.dictionaryRegistry.isCollectingTrainingSamples(mimetype))
+        {
+            compressingOutputStream = new TrainingSampleCapturingOutputStream(compressingOutputStream, mimetype);
+        }
+
+        return compressingOutputStream;
+    }
+
+    /**
+     * Resolves the codec to compress content of a specific mimetype with, applying any configured compression level and - if the type of
+     * compression supports it - the current dictionary of the mimetype.
+     *
+     * @param mimetype
+     *     the mimetype of the content
+     * @return the codec
+     */
+    protected CompressionCodec resolveCodec(final String mimetype)
+    {
+        final String compressionType = this.getCompressionType();
+
+        Integer level = mimetype != null ? this.compressionLevels.get(mimetype) : null;
+        if (level == null && mimetype != null)
+        {
+            for (final Map.Entry<String, Integer> levelEntry : this.compressionLevels.entrySet())
+            {
+                final String levelMimetype = levelEntry.getKey();
+                if (levelMimetype.endsWith("/*") && mimetype.startsWith(levelMimetype.substring(0, levelMimetype.length() - 1)))
+                {
+                    level = levelEntry.getValue();
+                    break;
+                }
+            }
+        }
+
+        int dictionaryId = CompressionCodec.NO_DICTIONARY;
+        byte[] dictionary = null;
+        if (this.isDictionaryMimetype(mimetype))
+        {
+            dictionaryId = this.dictionaryRegistry.getCurrentDictionaryId(mimetype);
+            if (dictionaryId != CompressionCodec.NO_DICTIONARY)
+            {
+                dictionary = this.dictionaryRegistry.getDictionary(dictionaryId);
+            }
+        }
+
+        return new CompressionCodec(compressionType, level != null ? level.intValue() : CompressionCodec.DEFAULT_LEVEL, dictionaryId,
+                dictionary);
+    }
+
+    protected boolean isDictionaryMimetype(final String mimetype)
+    {
+        boolean isDictionaryMimetype = false;
+        if (mimetype != null && this.dictionaryRegistry != null && CompressorStreamFactory.ZSTANDARD.equals(this.getCompressionType()))
+        {
+            isDictionaryMimetype = this.dictionaryMimetypes.contains(mimetype) || this.dictionaryMimetypes.stream()
+                    .anyMatch(m -> m.endsWith("/*") && mimetype.startsWith(m.substring(0, m.length() - 1)));
+        }
+        return isDictionaryMimetype;
+    }
+
+    protected String getCompressionType()
+    {
+        return this.compressionType != null && !this.compressionType.trim().isEmpty() ? this.compressionType : CompressorStreamFactory.GZIP;
     }
 
     protected void cleanupTemporaryContent()
     {
+        if (this.temporaryWriter == null)
+        {
+            return;
+        }
+
         // check if we can trigger eager clean up
         // (standard temp lifetime of between 1:00 and 1:59 hours just causes too much build-up)
         if (this.temporaryWriter instanceof FileContentWriter)
@@ -345,4 +603,261 @@ public class CompressingContentWriter extends AbstractContentWriter implements C
         }
         return isMatch;
     }
+
+    /**
+     * Instances of this class compress content while it is being written, streaming the compressed content directly into the backing
+     * writer.
+     *
+     * @author Axel Faust
+     */
+    protected class InlineCompressingChannel implements WritableByteChannel
+    {
+
+        protected final UncompressedLengthRecordingOutputStream contentOutputStream;
+
+        protected final OutputStream compressedOutputStream;
+
+        protected final WritableByteChannel compressedChannel;
+
+        protected long bytesWritten;
+
+        protected boolean open = true;
+
+        protected InlineCompressingChannel()
+        {
+            this.contentOutputStream = new UncompressedLengthRecordingOutputStream(
+                    CompressingContentWriter.this.backingWriter.getWritableChannel());
+            try
+            {
+                this.compressedOutputStream = CompressingContentWriter.this.createCompressingOutputStream(this.contentOutputStream,
+                        CompressingContentWriter.this.getMimetype(), CompressedContentHeader.UNKNOWN_LENGTH);
+            }
+            catch (final CompressorException | IOException ex)
+            {
+                try
+                {
+                    this.contentOutputStream.close();
+                }
+                catch (final IOException ignore)
+                {
+                    // NO-OP
+                }
+                throw new ContentIOException("Error initialising compression of content", ex);
+            }
+            this.compressedChannel = Channels.newChannel(this.compressedOutputStream);
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isOpen()
+        {
+            return this.open;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (this.open)
+            {
+                this.open = false;
+                // closes the backing writer's stream as well, after recording the uncompressed length in the header (if enabled)
+                if (CompressingContentWriter.this.recordUncompressedLength)
+                {
+                    this.contentOutputStream.uncompressedLength = this.bytesWritten;
+                }
+                this.compressedOutputStream.close();
+
+                CompressingContentWriter.this.properSize = this.bytesWritten;
+                CompressingContentWriter.this.markWrittenToBackingWriter(true);
+            }
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public int write(final ByteBuffer src) throws IOException
+        {
+            final int bytesWritten = this.compressedChannel.write(src);
+            this.bytesWritten += bytesWritten;
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * Instances of this class write compressed content to the channel of the backing writer and record the length of the uncompressed
+     * content in the header of the compressed content before the channel is closed, if the length was not known when the header was
+     * written and the channel supports writing at absolute positions.
+     *
+     * @author Axel Faust
+     */
+    protected static class UncompressedLengthRecordingOutputStream extends FilterOutputStream
+    {
+
+        protected final WritableByteChannel channel;
+
+        protected long uncompressedLength = CompressedContentHeader.UNKNOWN_LENGTH;
+
+        protected UncompressedLengthRecordingOutputStream(final WritableByteChannel channel)
+        {
+            super(Channels.newOutputStream(channel));
+            this.channel = channel;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            this.out.write(b, off, len);
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                if (this.channel.isOpen() && this.uncompressedLength != CompressedContentHeader.UNKNOWN_LENGTH)
+                {
+                    this.flush();
+                    if (!CompressedContentHeader.recordUncompressedLength(this.channel, this.uncompressedLength))
+                    {
+                        LOGGER.debug("Backing channel does not support recording the uncompressed length in the content header");
+                    }
+                }
+            }
+            finally
+            {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Instances of this class capture a sample from the start of content being compressed and provide it to the
+     * {@link CompressionDictionaryRegistry dictionary registry} for training a dictionary once the content has been completely written.
+     *
+     * @author Axel Faust
+     */
+    protected class TrainingSampleCapturingOutputStream extends FilterOutputStream
+    {
+
+        protected final String mimetype;
+
+        protected final byte[] sample = new byte[CompressingContentWriter.this.dictionaryRegistry.getTrainingSampleSize()];
+
+        protected int sampleLength;
+
+        protected boolean closed;
+
+        protected TrainingSampleCapturingOutputStream(final OutputStream out, final String mimetype)
+        {
+            super(out);
+            this.mimetype = mimetype;
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final int b) throws IOException
+        {
+            this.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            this.out.write(b, off, len);
+
+            final int sampled = Math.min(len, this.sample.length - this.sampleLength);
+            if (sampled > 0)
+            {
+                System.arraycopy(b, off, this.sample, this.sampleLength, sampled);
+                this.sampleLength += sampled;
+            }
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            super.close();
+
+            if (!this.closed)
+            {
+                this.closed = true;
+                CompressingContentWriter.this.dictionaryRegistry.recordTrainingSample(this.mimetype,
+                        Arrays.copyOf(this.sample, this.sampleLength));
+            }
+        }
+    }
+
+    /**
+     * Instances of this class write content which is not to be compressed directly to the backing writer.
+     *
+     * @author Axel Faust
+     */
+    protected class InlinePassThroughChannel implements WritableByteChannel
+    {
+
+        // need to wrap this to avoid issue of CallbackFileChannel rejection in CallbackFileChannel constructor
+        protected final WritableByteChannel channel = CompressingContentWriter.this.backingWriter.getWritableChannel();
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isOpen()
+        {
+            return this.channel.isOpen();
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (this.channel.isOpen())
+            {
+                this.channel.close();
+                CompressingContentWriter.this.markWrittenToBackingWriter(false);
+            }
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        public int write(final ByteBuffer src) throws IOException
+        {
+            return this.channel.write(src);
+        }
+    }
 }
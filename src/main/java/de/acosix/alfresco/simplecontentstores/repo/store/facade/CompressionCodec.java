@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.alfresco.util.ParameterCheck;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream.BlockSize;
+import org.apache.commons.compress.compressors.lz77support.Parameters;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import com.github.luben.zstd.RecyclingBufferPool;
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Instances of this class represent the fully resolved compression codec for a specific content, consisting of the type of compression,
+ * the compression level and - for {@link CompressorStreamFactory#ZSTANDARD Zstandard} - an optional, pre-trained dictionary.
+ *
+ * The level is interpreted in the native range of the respective compression type, i.e. {@code 1-9} for {@code gz} / {@code deflate} /
+ * {@code bzip2} (block size in 100k units), {@code 0-9} for {@code xz} and {@code 1-22} for {@code zstd}. Since the LZ4 implementations
+ * do not support levels, any level of {@code 9} or higher selects parameters tuned for compression ratio over speed. Levels are ignored
+ * for any other type of compression.
+ *
+ * Streams for {@code gz} / {@code deflate} use native zlib contexts and buffers from the {@link CompressionContextPool#getSharedInstance()
+ * shared pool}, and streams for {@code zstd} use the recycling buffer pool of the Zstandard library, so that compressing / decompressing
+ * large numbers of small contents does not allocate these resources for each content.
+ *
+ * @author Axel Faust
+ */
+public class CompressionCodec
+{
+
+    /**
+     * The level value denoting the default level of the respective compression type.
+     */
+    public static final int DEFAULT_LEVEL = -1;
+
+    /**
+     * The dictionary ID value denoting that no dictionary is used.
+     */
+    public static final int NO_DICTIONARY = 0;
+
+    private static final CompressorStreamFactory COMPRESSOR_STREAM_FACTORY = new CompressorStreamFactory();
+
+    private static final int LZ4_HIGH_COMPRESSION_LEVEL = 9;
+
+    protected final String compressionType;
+
+    protected final int level;
+
+    protected final int dictionaryId;
+
+    protected final byte[] dictionary;
+
+    /**
+     * Creates a new instance of this class for a compression type using its default level.
+     *
+     * @param compressionType
+     *     the type of compression
+     */
+    public CompressionCodec(final String compressionType)
+    {
+        this(compressionType, DEFAULT_LEVEL, NO_DICTIONARY, null);
+    }
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param compressionType
+     *     the type of compression
+     * @param level
+     *     the compression level or {@link #DEFAULT_LEVEL}
+     * @param dictionaryId
+     *     the ID of the dictionary or {@link #NO_DICTIONARY}
+     * @param dictionary
+     *     the dictionary - must be provided if a dictionary ID is specified
+     */
+    public CompressionCodec(final String compressionType, final int level, final int dictionaryId, final byte[] dictionary)
+    {
+        ParameterCheck.mandatoryString("compressionType", compressionType);
+        if (dictionaryId != NO_DICTIONARY)
+        {
+            ParameterCheck.mandatory("dictionary", dictionary);
+            if (!CompressorStreamFactory.ZSTANDARD.equals(compressionType))
+            {
+                throw new IllegalArgumentException("Dictionaries are only supported for " + CompressorStreamFactory.ZSTANDARD);
+            }
+        }
+
+        this.compressionType = compressionType;
+        this.level = level;
+        this.dictionaryId = dictionaryId;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * @return the compressionType
+     */
+    public String getCompressionType()
+    {
+        return this.compressionType;
+    }
+
+    /**
+     * @return the level
+     */
+    public int getLevel()
+    {
+        return this.level;
+    }
+
+    /**
+     * @return the dictionaryId
+     */
+    public int getDictionaryId()
+    {
+        return this.dictionaryId;
+    }
+
+    /**
+     * @return {@code true} if this codec uses a dictionary, {@code false} otherwise
+     */
+    public boolean usesDictionary()
+    {
+        return this.dictionaryId != NO_DICTIONARY;
+    }
+
+    /**
+     * Creates a new header for content compressed with this codec.
+     *
+     * @return the new header
+     */
+    public CompressedContentHeader newHeader()
+    {
+        return CompressedContentHeader.newHeader(this.compressionType, this.dictionaryId);
+    }
+
+    /**
+     * Creates a new header for content compressed with this codec in independent blocks.
+     *
+     * @param blockSize
+     *     the size of the independently compressed blocks
+     * @return the new header
+     */
+    public CompressedContentHeader newHeader(final int blockSize)
+    {
+        return CompressedContentHeader.newHeader(this.compressionType, this.dictionaryId, blockSize);
+    }
+
+    /**
+     * Creates a new header for content compressed with this codec.
+     *
+     * @param blockSize
+     *     the size of the independently compressed blocks, or {@link CompressedContentHeader#NO_BLOCKS}
+     * @param uncompressedLength
+     *     the length of the uncompressed content if known in advance, or {@link CompressedContentHeader#UNKNOWN_LENGTH}
+     * @return the new header
+     */
+    public CompressedContentHeader newHeader(final int blockSize, final long uncompressedLength)
+    {
+        return CompressedContentHeader.newHeader(this.compressionType, this.dictionaryId, blockSize, uncompressedLength);
+    }
+
+    /**
+     * Creates a stream compressing content into a target stream.
+     *
+     * @param outputStream
+     *     the stream to which to write compressed content
+     * @return the compressing stream
+     * @throws CompressorException
+     *     if the compressing stream could not be created
+     */
+    public OutputStream createCompressorOutputStream(final OutputStream outputStream) throws CompressorException
+    {
+        ParameterCheck.mandatory("outputStream", outputStream);
+
+        try
+        {
+            final OutputStream compressorOutputStream;
+            switch (this.compressionType)
+            {
+                case CompressorStreamFactory.ZSTANDARD:
+                    final ZstdOutputStream zstdOutputStream = new ZstdOutputStream(outputStream, RecyclingBufferPool.INSTANCE,
+                            this.level != DEFAULT_LEVEL ? this.level : Zstd.defaultCompressionLevel());
+                    if (this.dictionary != null)
+                    {
+                        zstdOutputStream.setDict(this.dictionary);
+                    }
+                    compressorOutputStream = zstdOutputStream;
+                    break;
+                case CompressorStreamFactory.GZIP:
+                case CompressorStreamFactory.DEFLATE:
+                    compressorOutputStream = new PooledDeflaterOutputStream(outputStream, CompressionContextPool.getSharedInstance(),
+                            this.getDeflaterLevel(), CompressorStreamFactory.GZIP.equals(this.compressionType));
+                    break;
+                case CompressorStreamFactory.BZIP2:
+                    compressorOutputStream = this.level != DEFAULT_LEVEL ? new BZip2CompressorOutputStream(outputStream, this.level)
+                            : new BZip2CompressorOutputStream(outputStream);
+                    break;
+                case CompressorStreamFactory.XZ:
+                    compressorOutputStream = this.level != DEFAULT_LEVEL ? new XZCompressorOutputStream(outputStream, this.level)
+                            : new XZCompressorOutputStream(outputStream);
+                    break;
+                case CompressorStreamFactory.LZ4_BLOCK:
+                    compressorOutputStream = new BlockLZ4CompressorOutputStream(outputStream, this.getLZ77Parameters());
+                    break;
+                case CompressorStreamFactory.LZ4_FRAMED:
+                    compressorOutputStream = new FramedLZ4CompressorOutputStream(outputStream,
+                            new FramedLZ4CompressorOutputStream.Parameters(BlockSize.M4, true, false, false, this.getLZ77Parameters()));
+                    break;
+                default:
+                    compressorOutputStream = COMPRESSOR_STREAM_FACTORY.createCompressorOutputStream(this.compressionType, outputStream);
+            }
+            return compressorOutputStream;
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+            throw new CompressorException("Could not create compressor output stream for " + this.compressionType, ex);
+        }
+    }
+
+    /**
+     * Creates a stream decompressing content from a source stream.
+     *
+     * @param inputStream
+     *     the stream from which to read compressed content
+     * @return the decompressing stream
+     * @throws CompressorException
+     *     if the decompressing stream could not be created
+     */
+    public InputStream createCompressorInputStream(final InputStream inputStream) throws CompressorException
+    {
+        ParameterCheck.mandatory("inputStream", inputStream);
+
+        try
+        {
+            final InputStream compressorInputStream;
+            switch (this.compressionType)
+            {
+                case CompressorStreamFactory.ZSTANDARD:
+                    final ZstdInputStream zstdInputStream = new ZstdInputStream(inputStream, RecyclingBufferPool.INSTANCE);
+                    if (this.dictionary != null)
+                    {
+                        zstdInputStream.setDict(this.dictionary);
+                    }
+                    compressorInputStream = zstdInputStream;
+                    break;
+                case CompressorStreamFactory.GZIP:
+                case CompressorStreamFactory.DEFLATE:
+                    compressorInputStream = new PooledInflaterInputStream(inputStream, CompressionContextPool.getSharedInstance(),
+                            CompressorStreamFactory.GZIP.equals(this.compressionType));
+                    break;
+                default:
+                    compressorInputStream = COMPRESSOR_STREAM_FACTORY.createCompressorInputStream(this.compressionType, inputStream);
+            }
+            return compressorInputStream;
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+            throw new CompressorException("Could not create compressor input stream for " + this.compressionType, ex);
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("CompressionCodec [compressionType=");
+        builder.append(this.compressionType);
+        builder.append(", level=");
+        builder.append(this.level);
+        builder.append(", dictionaryId=");
+        builder.append(this.dictionaryId);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    protected int getDeflaterLevel()
+    {
+        final int level;
+        if (this.level == DEFAULT_LEVEL)
+        {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        else if (this.level < Deflater.NO_COMPRESSION || this.level > Deflater.BEST_COMPRESSION)
+        {
+            throw new IllegalArgumentException("Invalid compression level " + this.level + " for " + this.compressionType);
+        }
+        else
+        {
+            level = this.level;
+        }
+        return level;
+    }
+
+    protected Parameters getLZ77Parameters()
+    {
+        final Parameters.Builder builder = BlockLZ4CompressorOutputStream.createParameterBuilder();
+        if (this.level >= LZ4_HIGH_COMPRESSION_LEVEL)
+        {
+            builder.tunedForCompressionRatio();
+        }
+        return builder.build();
+    }
+}
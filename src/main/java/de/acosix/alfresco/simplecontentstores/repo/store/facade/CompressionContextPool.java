@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class pool the native zlib contexts of {@link Deflater deflaters} / {@link Inflater inflaters} and the byte buffers
+ * used to compress / decompress and copy content, so that processing large numbers of small contents does not allocate and finalise
+ * these resources for every single content. Pooled resources are reset when they are released, and any resources released while the
+ * pool is full are discarded / ended immediately.
+ *
+ * @author Axel Faust
+ */
+public class CompressionContextPool
+{
+
+    /**
+     * The size of buffers provided by this pool.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final CompressionContextPool SHARED_INSTANCE = new CompressionContextPool(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    protected final int maxIdle;
+
+    protected final ConcurrentMap<Integer, BlockingQueue<Deflater>> deflaters = new ConcurrentHashMap<>();
+
+    protected final BlockingQueue<Inflater> inflaters;
+
+    protected final BlockingQueue<Inflater> nowrapInflaters;
+
+    protected final BlockingQueue<byte[]> buffers;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param maxIdle
+     *     the maximum number of idle resources to keep for each type of resource
+     */
+    public CompressionContextPool(final int maxIdle)
+    {
+        if (maxIdle <= 0)
+        {
+            throw new IllegalArgumentException("maxIdle must be a positive integer");
+        }
+
+        this.maxIdle = maxIdle;
+        this.inflaters = new ArrayBlockingQueue<>(maxIdle);
+        this.nowrapInflaters = new ArrayBlockingQueue<>(maxIdle);
+        // streams typically use two buffers each
+        this.buffers = new ArrayBlockingQueue<>(2 * maxIdle);
+    }
+
+    /**
+     * Retrieves the pool shared by all compression facades, sized according to the number of available processors.
+     *
+     * @return the shared pool
+     */
+    public static CompressionContextPool getSharedInstance()
+    {
+        return SHARED_INSTANCE;
+    }
+
+    /**
+     * Acquires a deflater from this pool, creating a new one if no idle deflater is available.
+     *
+     * @param level
+     *     the compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param nowrap
+     *     {@code true} if the deflater should produce raw deflate data without the zlib wrapper, e.g. for use in the GZIP format
+     * @return the deflater
+     */
+    public Deflater acquireDeflater(final int level, final boolean nowrap)
+    {
+        final Deflater deflater = this.getDeflaters(level, nowrap).poll();
+        return deflater != null ? deflater : new Deflater(level, nowrap);
+    }
+
+    /**
+     * Releases a deflater previously {@link #acquireDeflater(int, boolean) acquired} from this pool.
+     *
+     * @param deflater
+     *     the deflater to release
+     * @param level
+     *     the compression level with which the deflater was acquired
+     * @param nowrap
+     *     the wrapping mode with which the deflater was acquired
+     */
+    public void releaseDeflater(final Deflater deflater, final int level, final boolean nowrap)
+    {
+        ParameterCheck.mandatory("deflater", deflater);
+
+        deflater.reset();
+        if (!this.getDeflaters(level, nowrap).offer(deflater))
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Acquires an inflater from this pool, creating a new one if no idle inflater is available.
+     *
+     * @param nowrap
+     *     {@code true} if the inflater should consume raw deflate data without the zlib wrapper, e.g. for use in the GZIP format
+     * @return the inflater
+     */
+    public Inflater acquireInflater(final boolean nowrap)
+    {
+        final Inflater inflater = (nowrap ? this.nowrapInflaters : this.inflaters).poll();
+        return inflater != null ? inflater : new Inflater(nowrap);
+    }
+
+    /**
+     * Releases an inflater previously {@link #acquireInflater(boolean) acquired} from this pool.
+     *
+     * @param inflater
+     *     the inflater to release
+     * @param nowrap
+     *     the wrapping mode with which the inflater was acquired
+     */
+    public void releaseInflater(final Inflater inflater, final boolean nowrap)
+    {
+        ParameterCheck.mandatory("inflater", inflater);
+
+        inflater.reset();
+        if (!(nowrap ? this.nowrapInflaters : this.inflaters).offer(inflater))
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Acquires a buffer of {@link #BUFFER_SIZE} bytes from this pool, creating a new one if no idle buffer is available. The contents of
+     * the buffer are undefined.
+     *
+     * @return the buffer
+     */
+    public byte[] acquireBuffer()
+    {
+        final byte[] buffer = this.buffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Releases a buffer previously {@link #acquireBuffer() acquired} from this pool.
+     *
+     * @param buffer
+     *     the buffer to release
+     */
+    public void releaseBuffer(final byte[] buffer)
+    {
+        ParameterCheck.mandatory("buffer", buffer);
+        if (buffer.length == BUFFER_SIZE)
+        {
+            this.buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Copies the contents of an input stream to an output stream using a pooled buffer. In contrast to similar utilities, neither stream is
+     * closed by this operation.
+     *
+     * @param inputStream
+     *     the stream from which to copy
+     * @param outputStream
+     *     the stream to which to copy
+     * @return the number of bytes copied
+     * @throws IOException
+     *     if an error occurs reading from / writing to the streams
+     */
+    public long copy(final InputStream inputStream, final OutputStream outputStream) throws IOException
+    {
+        ParameterCheck.mandatory("inputStream", inputStream);
+        ParameterCheck.mandatory("outputStream", outputStream);
+
+        final byte[] buffer = this.acquireBuffer();
+        try
+        {
+            long bytesCopied = 0;
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1)
+            {
+                outputStream.write(buffer, 0, bytesRead);
+                bytesCopied += bytesRead;
+            }
+            outputStream.flush();
+            return bytesCopied;
+        }
+        finally
+        {
+            this.releaseBuffer(buffer);
+        }
+    }
+
+    protected BlockingQueue<Deflater> getDeflaters(final int level, final boolean nowrap)
+    {
+        final Integer key = Integer.valueOf((level + 1) * 2 + (nowrap ? 1 : 0));
+        BlockingQueue<Deflater> deflaters = this.deflaters.get(key);
+        if (deflaters == null)
+        {
+            deflaters = this.deflaters.computeIfAbsent(key, k -> new ArrayBlockingQueue<>(this.maxIdle));
+        }
+        return deflaters;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+
+/**
+ * Instances of this class manage the dictionaries for {@link org.apache.commons.compress.compressors.CompressorStreamFactory#ZSTANDARD
+ * Zstandard} compression, which can significantly improve the compression ratio of small content with a common structure, e.g. XML / JSON
+ * documents or email bodies. Dictionaries are trained per mimetype on samples from the start of content written to compressing stores, and
+ * are persisted via the {@link AttributeService attribute service} by their ID, so that content compressed with any dictionary remains
+ * readable on all servers of a cluster and across restarts. Once trained, a dictionary becomes the current dictionary of its mimetype and
+ * is used for any further content of that mimetype.
+ *
+ * Since dictionaries contain fragments of the content they have been trained on, and are persisted without any encryption, they must not
+ * be used for content which is meant to be stored encrypted.
+ *
+ * @author Axel Faust
+ */
+public class CompressionDictionaryRegistry implements InitializingBean, DisposableBean
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressionDictionaryRegistry.class);
+
+    private static final String ATTR_KEY_DICTIONARIES = "acosix/alfresco-simple-content-stores/compressionDictionaries";
+
+    private static final String ATTR_KEY_CURRENT_DICTIONARIES = "acosix/alfresco-simple-content-stores/currentCompressionDictionaries";
+
+    protected final ConcurrentMap<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, CurrentDictionary> currentDictionaries = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, List<byte[]>> trainingSamples = new ConcurrentHashMap<>();
+
+    protected TransactionService transactionService;
+
+    protected AttributeService attributeService;
+
+    protected int dictionarySize = 112640;
+
+    protected int trainingSampleCount = 1000;
+
+    protected int trainingSampleSize = 16384;
+
+    protected int currentDictionaryCheckIntervalSeconds = 300;
+
+    protected ExecutorService trainingExecutor;
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterPropertiesSet()
+    {
+        PropertyCheck.mandatory(this, "transactionService", this.transactionService);
+        PropertyCheck.mandatory(this, "attributeService", this.attributeService);
+
+        if (this.dictionarySize <= 0)
+        {
+            throw new IllegalStateException("dictionarySize must be a positive integer");
+        }
+        if (this.trainingSampleSize <= 0)
+        {
+            throw new IllegalStateException("trainingSampleSize must be a positive integer");
+        }
+
+        // training is expensive and must not delay writers of content - a single thread avoids concurrent training for a mimetype
+        // fork-join workers are daemon threads, so an undisposed registry will not block shutdown
+        this.trainingExecutor = new ForkJoinPool(1);
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.trainingExecutor != null)
+        {
+            this.trainingExecutor.shutdownNow();
+            this.trainingExecutor = null;
+        }
+    }
+
+    /**
+     * @param transactionService
+     *     the transactionService to set
+     */
+    public void setTransactionService(final TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    /**
+     * @param attributeService
+     *     the attributeService to set
+     */
+    public void setAttributeService(final AttributeService attributeService)
+    {
+        this.attributeService = attributeService;
+    }
+
+    /**
+     * @param dictionarySize
+     *     the maximum size of dictionaries in bytes
+     */
+    public void setDictionarySize(final int dictionarySize)
+    {
+        this.dictionarySize = dictionarySize;
+    }
+
+    /**
+     * @param trainingSampleCount
+     *     the number of samples to collect for a mimetype before a dictionary is trained - if {@code 0} or less, dictionaries will only be
+     *     trained via {@link #trainDictionary(String, Collection) explicit calls}
+     */
+    public void setTrainingSampleCount(final int trainingSampleCount)
+    {
+        this.trainingSampleCount = trainingSampleCount;
+    }
+
+    /**
+     * @param trainingSampleSize
+     *     the maximum number of bytes from the start of content to use as a training sample
+     */
+    public void setTrainingSampleSize(final int trainingSampleSize)
+    {
+        this.trainingSampleSize = trainingSampleSize;
+    }
+
+    /**
+     * @param currentDictionaryCheckIntervalSeconds
+     *     the interval in which to check for new dictionaries trained on other servers in a cluster
+     */
+    public void setCurrentDictionaryCheckIntervalSeconds(final int currentDictionaryCheckIntervalSeconds)
+    {
+        this.currentDictionaryCheckIntervalSeconds = currentDictionaryCheckIntervalSeconds;
+    }
+
+    /**
+     * @return the maximum number of bytes from the start of content to use as a training sample
+     */
+    public int getTrainingSampleSize()
+    {
+        return this.trainingSampleSize;
+    }
+
+    /**
+     * Retrieves the ID of the current dictionary of a mimetype.
+     *
+     * @param mimetype
+     *     the mimetype
+     * @return the ID of the current dictionary, or {@link CompressionCodec#NO_DICTIONARY} if no dictionary has been trained for the
+     *         mimetype
+     */
+    public int getCurrentDictionaryId(final String mimetype)
+    {
+        ParameterCheck.mandatoryString("mimetype", mimetype);
+
+        CurrentDictionary currentDictionary = this.currentDictionaries.get(mimetype);
+        if (currentDictionary == null || currentDictionary.isStale(this.currentDictionaryCheckIntervalSeconds))
+        {
+            final Serializable dictionaryId = this.transactionService.getRetryingTransactionHelper()
+                    .doInTransaction(() -> this.attributeService.getAttribute(ATTR_KEY_CURRENT_DICTIONARIES, mimetype), true, false);
+            currentDictionary = new CurrentDictionary(
+                    dictionaryId instanceof Integer ? ((Integer) dictionaryId).intValue() : CompressionCodec.NO_DICTIONARY);
+            this.currentDictionaries.put(mimetype, currentDictionary);
+        }
+        return currentDictionary.dictionaryId;
+    }
+
+    /**
+     * Retrieves a dictionary by its ID.
+     *
+     * @param dictionaryId
+     *     the ID of the dictionary
+     * @return the dictionary
+     * @throws ContentIOException
+     *     if no dictionary with the specified ID exists
+     */
+    public byte[] getDictionary(final int dictionaryId)
+    {
+        return this.dictionaries.computeIfAbsent(Integer.valueOf(dictionaryId), id -> {
+            final Serializable dictionary = this.transactionService.getRetryingTransactionHelper()
+                    .doInTransaction(() -> this.attributeService.getAttribute(ATTR_KEY_DICTIONARIES, id), true, false);
+            if (!(dictionary instanceof byte[]))
+            {
+                throw new ContentIOException("Compression dictionary " + id + " does not exist");
+            }
+            return (byte[]) dictionary;
+        });
+    }
+
+    /**
+     * Checks whether samples should be {@link #recordTrainingSample(String, byte[]) recorded} for a specific mimetype.
+     *
+     * @param mimetype
+     *     the mimetype
+     * @return {@code true} if no dictionary has been trained for the mimetype yet, {@code false} otherwise
+     */
+    public boolean isCollectingTrainingSamples(final String mimetype)
+    {
+        return this.trainingSampleCount > 0 && this.getCurrentDictionaryId(mimetype) == CompressionCodec.NO_DICTIONARY;
+    }
+
+    /**
+     * Records a sample from the start of content for training the dictionary of a mimetype. Once enough samples have been collected, the
+     * dictionary is trained asynchronously in the background and becomes the current dictionary of the mimetype.
+     *
+     * @param mimetype
+     *     the mimetype
+     * @param sample
+     *     the sample
+     */
+    public void recordTrainingSample(final String mimetype, final byte[] sample)
+    {
+        ParameterCheck.mandatoryString("mimetype", mimetype);
+        ParameterCheck.mandatory("sample", sample);
+
+        if (sample.length > 0 && this.trainingSampleCount > 0)
+        {
+            List<byte[]> samplesToTrain = null;
+            final List<byte[]> samples = this.trainingSamples.computeIfAbsent(mimetype, m -> new ArrayList<>());
+            synchronized (samples)
+            {
+                samples.add(sample);
+                if (samples.size() >= this.trainingSampleCount)
+                {
+                    samplesToTrain = new ArrayList<>(samples);
+                    samples.clear();
+                }
+            }
+
+            final ExecutorService trainingExecutor = this.trainingExecutor;
+            if (samplesToTrain != null && trainingExecutor != null)
+            {
+                final List<byte[]> samplesForTraining = samplesToTrain;
+                trainingExecutor.execute(() -> {
+                    try
+                    {
+                        this.trainDictionary(mimetype, samplesForTraining);
+                    }
+                    catch (final ContentIOException ex)
+                    {
+                        LOGGER.warn("Failed to train compression dictionary for {} from {} samples", mimetype, samplesForTraining.size(),
+                                ex);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Trains a dictionary for a mimetype, persists it and registers it as the current dictionary of the mimetype. This operation is
+     * executed on the calling thread.
+     *
+     * @param mimetype
+     *     the mimetype
+     * @param samples
+     *     the samples to train the dictionary on
+     * @return the ID of the new dictionary
+     * @throws ContentIOException
+     *     if the dictionary could not be trained, or its ID is already used by a different dictionary
+     */
+    public int trainDictionary(final String mimetype, final Collection<byte[]> samples)
+    {
+        ParameterCheck.mandatoryString("mimetype", mimetype);
+        ParameterCheck.mandatoryCollection("samples", samples);
+
+        final long totalSampleSize = samples.stream().mapToLong(sample -> Math.min(sample.length, this.trainingSampleSize)).sum();
+        final ZstdDictTrainer trainer = new ZstdDictTrainer((int) Math.min(Integer.MAX_VALUE, totalSampleSize), this.dictionarySize);
+        samples.forEach(sample -> trainer
+                .addSample(sample.length > this.trainingSampleSize ? Arrays.copyOf(sample, this.trainingSampleSize) : sample));
+
+        final byte[] dictionary;
+        try
+        {
+            dictionary = trainer.trainSamples();
+        }
+        catch (final ZstdException ex)
+        {
+            throw new ContentIOException("Failed to train compression dictionary for " + mimetype, ex);
+        }
+
+        final int dictionaryId = (int) Zstd.getDictIdFromDict(dictionary);
+        if (dictionaryId == CompressionCodec.NO_DICTIONARY)
+        {
+            throw new ContentIOException("Trained compression dictionary for " + mimetype + " does not have an ID");
+        }
+
+        this.transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+            // dictionary IDs are derived from the dictionary content and may collide - existing content relies on the stored dictionary
+            final Integer key = Integer.valueOf(dictionaryId);
+            final Serializable existingDictionary = this.attributeService.getAttribute(ATTR_KEY_DICTIONARIES, key);
+            if (existingDictionary == null)
+            {
+                this.attributeService.setAttribute(dictionary, ATTR_KEY_DICTIONARIES, key);
+            }
+            else if (!(existingDictionary instanceof byte[]) || !Arrays.equals((byte[]) existingDictionary, dictionary))
+            {
+                throw new ContentIOException("Trained compression dictionary for " + mimetype + " has the same ID " + dictionaryId
+                        + " as an existing, different dictionary");
+            }
+            this.attributeService.setAttribute(key, ATTR_KEY_CURRENT_DICTIONARIES, mimetype);
+            return null;
+        }, false, true);
+
+        this.dictionaries.put(Integer.valueOf(dictionaryId), dictionary);
+        this.currentDictionaries.put(mimetype, new CurrentDictionary(dictionaryId));
+        this.trainingSamples.remove(mimetype);
+
+        LOGGER.info("Trained compression dictionary {} of {} bytes for {} from {} samples", dictionaryId, dictionary.length, mimetype,
+                samples.size());
+
+        return dictionaryId;
+    }
+
+    /**
+     * Instances of this class hold the ID of the current dictionary of a mimetype as last checked.
+     *
+     * @author Axel Faust
+     */
+    protected static class CurrentDictionary
+    {
+
+        protected final int dictionaryId;
+
+        protected final long checked = System.currentTimeMillis();
+
+        protected CurrentDictionary(final int dictionaryId)
+        {
+            this.dictionaryId = dictionaryId;
+        }
+
+        protected boolean isStale(final int checkIntervalSeconds)
+        {
+            return System.currentTimeMillis() - this.checked > checkIntervalSeconds * 1000L;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.MimetypeMap;
+
+/**
+ * Instances of this class collect per-mimetype statistics about the compression ratios achieved on samples of content written in adaptive
+ * mode, and the resulting decisions to store content compressed or as-is. All operations are thread-safe.
+ *
+ * @author Axel Faust
+ */
+public class CompressionStatistics
+{
+
+    protected final ConcurrentMap<String, MimetypeStatistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * Retrieves the statistics for a specific mimetype.
+     *
+     * @param mimetype
+     *     the mimetype - if {@code null}, the statistics of the generic {@link MimetypeMap#MIMETYPE_BINARY binary mimetype} will be
+     *     retrieved
+     * @return the statistics
+     */
+    public MimetypeStatistics getStatistics(final String mimetype)
+    {
+        return this.statistics.computeIfAbsent(mimetype != null ? mimetype : MimetypeMap.MIMETYPE_BINARY, m -> new MimetypeStatistics());
+    }
+
+    /**
+     * Removes all collected statistics.
+     */
+    public void clear()
+    {
+        this.statistics.clear();
+    }
+
+    /**
+     * @return the statistics of all mimetypes, keyed by mimetype
+     */
+    public Map<String, Map<String, Long>> toStatistics()
+    {
+        final Map<String, Map<String, Long>> statistics = new TreeMap<>();
+        this.statistics.forEach((mimetype, mimetypeStatistics) -> statistics.put(mimetype, mimetypeStatistics.toStatistics()));
+        return statistics;
+    }
+
+    /**
+     * Instances of this class collect the statistics of a single mimetype.
+     *
+     * @author Axel Faust
+     */
+    public static class MimetypeStatistics
+    {
+
+        protected final AtomicLong samples = new AtomicLong();
+
+        protected final AtomicLong sampledBytes = new AtomicLong();
+
+        protected final AtomicLong sampledCompressedBytes = new AtomicLong();
+
+        protected final AtomicLong storedCompressed = new AtomicLong();
+
+        protected final AtomicLong storedUncompressed = new AtomicLong();
+
+        protected final AtomicLong predictions = new AtomicLong();
+
+        /**
+         * Records the result of trial-compressing a sample of content.
+         *
+         * @param sampleLength
+         *     the length of the sample
+         * @param compressedLength
+         *     the length of the compressed sample
+         */
+        public void recordSample(final long sampleLength, final long compressedLength)
+        {
+            this.samples.incrementAndGet();
+            this.sampledBytes.addAndGet(sampleLength);
+            this.sampledCompressedBytes.addAndGet(compressedLength);
+        }
+
+        /**
+         * Records the decision to store content compressed or as-is.
+         *
+         * @param compressed
+         *     {@code true} if content is stored compressed, {@code false} otherwise
+         */
+        public void recordDecision(final boolean compressed)
+        {
+            (compressed ? this.storedCompressed : this.storedUncompressed).incrementAndGet();
+        }
+
+        /**
+         * @return the average compression ratio (uncompressed to compressed length) of all samples, or {@code 0} if no samples have been
+         *         recorded
+         */
+        public double getAverageRatio()
+        {
+            final long compressedBytes = this.sampledCompressedBytes.get();
+            return compressedBytes > 0 ? (double) this.sampledBytes.get() / compressedBytes : 0;
+        }
+
+        /**
+         * Predicts the decision to store content compressed or as-is, based on the samples recorded so far. A decision is only predicted
+         * if sufficient samples have been recorded and their average ratio is clearly above / below the minimum ratio. In order for the
+         * statistics to reflect any changes in the characteristics of content, no decision is predicted for every {@code minSamples}-th
+         * call, requiring the content to be sampled again.
+         *
+         * @param minRatio
+         *     the minimum ratio at which content should be compressed
+         * @param minSamples
+         *     the minimum number of samples before a decision may be predicted - if {@code 0} or less, no decision will be predicted
+         * @return {@link Boolean#TRUE true} if content should be compressed, {@link Boolean#FALSE false} if content should be stored
+         *         as-is, or {@code null} if the content needs to be sampled
+         */
+        public Boolean predictDecision(final double minRatio, final int minSamples)
+        {
+            Boolean decision = null;
+            if (minSamples > 0 && this.samples.get() >= minSamples && this.predictions.incrementAndGet() % minSamples != 0)
+            {
+                final double averageRatio = this.getAverageRatio();
+                final double margin = minRatio - 1;
+                if (averageRatio >= minRatio + margin)
+                {
+                    decision = Boolean.TRUE;
+                }
+                else if (averageRatio < 1 + margin / 2)
+                {
+                    decision = Boolean.FALSE;
+                }
+            }
+            return decision;
+        }
+
+        /**
+         * @return the statistics of the mimetype
+         */
+        public Map<String, Long> toStatistics()
+        {
+            final Map<String, Long> statistics = new LinkedHashMap<>();
+            statistics.put("samples", Long.valueOf(this.samples.get()));
+            statistics.put("sampledBytes", Long.valueOf(this.sampledBytes.get()));
+            statistics.put("sampledCompressedBytes", Long.valueOf(this.sampledCompressedBytes.get()));
+            statistics.put("averageRatioPercent", Long.valueOf(Math.round(this.getAverageRatio() * 100)));
+            statistics.put("storedCompressed", Long.valueOf(this.storedCompressed.get()));
+            statistics.put("storedUncompressed", Long.valueOf(this.storedUncompressed.get()));
+            return statistics;
+        }
+    }
+}
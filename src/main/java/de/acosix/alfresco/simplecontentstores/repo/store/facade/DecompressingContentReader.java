@@ -15,14 +15,18 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.facade;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Collection;
 
+import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,16 +39,22 @@ public class DecompressingContentReader extends ContentReaderFacade
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DecompressingContentReader.class);
 
-    private static final CompressorStreamFactory COMPRESSOR_STREAM_FACTORY = new CompressorStreamFactory();
-
     protected final String compressionType;
 
     protected final Collection<String> mimetypesToCompress;
 
-    protected final long properSize;
+    protected long properSize;
+
+    protected final CompressionDictionaryRegistry dictionaryRegistry;
 
     protected DecompressingContentReader(final ContentReader delegate, final String compressionType,
             final Collection<String> mimetypesToCompress, final long properSize)
+    {
+        this(delegate, compressionType, mimetypesToCompress, properSize, null);
+    }
+
+    protected DecompressingContentReader(final ContentReader delegate, final String compressionType,
+            final Collection<String> mimetypesToCompress, final long properSize, final CompressionDictionaryRegistry dictionaryRegistry)
     {
         super(delegate);
 
@@ -52,6 +62,7 @@ public class DecompressingContentReader extends ContentReaderFacade
         this.mimetypesToCompress = mimetypesToCompress;
 
         this.properSize = properSize;
+        this.dictionaryRegistry = dictionaryRegistry;
     }
 
     /**
@@ -61,7 +72,8 @@ public class DecompressingContentReader extends ContentReaderFacade
     public ContentReader getReader() throws ContentIOException
     {
         this.ensureDelegate();
-        return new DecompressingContentReader(this.delegate.getReader(), this.compressionType, this.mimetypesToCompress, this.properSize);
+        return new DecompressingContentReader(this.delegate.getReader(), this.compressionType, this.mimetypesToCompress, this.properSize,
+                this.dictionaryRegistry);
     }
 
     /**
@@ -70,8 +82,24 @@ public class DecompressingContentReader extends ContentReaderFacade
     @Override
     public long getSize()
     {
-        final long size = this.properSize > 0 ? this.properSize : super.getSize();
-        return size;
+        if (this.properSize < 0)
+        {
+            this.properSize = this.determineUncompressedSize();
+        }
+        return this.properSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ContentData getContentData()
+    {
+        final ContentData contentData = super.getContentData();
+        // correct size
+        final ContentData updatedData = new ContentData(contentData.getContentUrl(), contentData.getMimetype(), this.getSize(),
+                contentData.getEncoding(), contentData.getLocale());
+        return updatedData;
     }
 
     /**
@@ -86,35 +114,158 @@ public class DecompressingContentReader extends ContentReaderFacade
         LOGGER.debug("Determined mimetype {} as provided via setter / content data - mimetypes to compress are {}", mimetype,
                 this.mimetypesToCompress);
 
-        final boolean shouldCompress = this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty()
-                || (mimetype != null && (this.mimetypesToCompress.contains(mimetype) || this.isMimetypeToCompressWildcardMatch(mimetype)));
-
         ReadableByteChannel channel;
-        if (shouldCompress)
+        // a header records how content was compressed, so it takes precedence over the (possibly unknown) mimetype
+        final ReadableByteChannel backingChannel = this.delegate.getReadableChannel();
+        final InputStream contentInputStream = new BufferedInputStream(Channels.newInputStream(backingChannel));
+        try
         {
-            LOGGER.debug("Content will be decompressed from backing store (url={})", this.getContentUrl());
+            final CompressedContentHeader header = CompressedContentHeader.readHeader(contentInputStream);
+            if (header == null && !this.shouldDecompress(mimetype))
+            {
+                LOGGER.debug("Content will not be decompressed from backing store (url={})", this.getContentUrl());
+                if (backingChannel instanceof SeekableByteChannel)
+                {
+                    // retain random access - rewind past the bytes buffered when checking for the header
+                    channel = ((SeekableByteChannel) backingChannel).position(0);
+                }
+                else
+                {
+                    channel = Channels.newChannel(contentInputStream);
+                }
+            }
+            else if (header != null && !header.isCompressed())
+            {
+                LOGGER.debug("Content was stored without compression in backing store (url={})", this.getContentUrl());
+                channel = Channels.newChannel(contentInputStream);
+            }
+            else
+            {
+                LOGGER.debug("Content will be decompressed from backing store (url={})", this.getContentUrl());
 
-            final String compressiongType = this.compressionType != null && !this.compressionType.trim().isEmpty() ? this.compressionType
-                    : CompressorStreamFactory.GZIP;
+                final CompressionCodec codec;
+                if (header != null && header.usesDictionary())
+                {
+                    if (this.dictionaryRegistry == null)
+                    {
+                        throw new IOException("Content was compressed using dictionary " + header.getDictionaryId()
+                                + " but no dictionary registry is available");
+                    }
+                    codec = new CompressionCodec(header.getCompressionType(), CompressionCodec.DEFAULT_LEVEL, header.getDictionaryId(),
+                            this.dictionaryRegistry.getDictionary(header.getDictionaryId()));
+                }
+                else if (header != null)
+                {
+                    codec = new CompressionCodec(header.getCompressionType());
+                }
+                else
+                {
+                    codec = new CompressionCodec(this.compressionType != null && !this.compressionType.trim().isEmpty()
+                            ? this.compressionType
+                            : CompressorStreamFactory.GZIP);
+                }
+
+                if (header != null && header.isBlockIndexed() && backingChannel instanceof SeekableByteChannel)
+                {
+                    // header has been read via buffered stream, but block channel only uses absolute positions
+                    channel = new BlockDecompressingFileChannel((SeekableByteChannel) backingChannel, header, codec);
+                }
+                else if (header != null && header.isBlockIndexed())
+                {
+                    channel = Channels.newChannel(new BlockDecompressingInputStream(contentInputStream, codec, header.getBlockSize()));
+                }
+                else
+                {
+                    final InputStream is = codec.createCompressorInputStream(contentInputStream);
+                    channel = Channels.newChannel(is);
+                }
+            }
+        }
+        catch (final IOException | CompressorException | ContentIOException e)
+        {
             try
             {
-                final CompressorInputStream is = COMPRESSOR_STREAM_FACTORY.createCompressorInputStream(compressiongType,
-                        this.delegate.getContentInputStream());
-                channel = Channels.newChannel(is);
+                contentInputStream.close();
             }
-            catch (final CompressorException e)
+            catch (final IOException ignore)
             {
-                LOGGER.error("Failed to open decompressing channel", e);
-                throw new ContentIOException("Failed to open channel: " + this, e);
+                // NO-OP
             }
+            LOGGER.error("Failed to open decompressing channel", e);
+            throw new ContentIOException("Failed to open channel: " + this, e);
+        }
+
+        return channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputStream getContentInputStream() throws ContentIOException
+    {
+        final ReadableByteChannel channel = this.getReadableChannel();
+        final InputStream is;
+        if (channel instanceof SeekableByteChannel)
+        {
+            // support efficient skipping, e.g. for HTTP range requests
+            is = new BufferedInputStream(new SeekableChannelInputStream((SeekableByteChannel) channel));
         }
         else
         {
-            LOGGER.debug("Content will not be decompressed from backing store (url={})", this.getContentUrl());
-            channel = super.getReadableChannel();
+            is = new BufferedInputStream(Channels.newInputStream(channel));
         }
+        return is;
+    }
 
-        return channel;
+    protected long determineUncompressedSize()
+    {
+        final long storedSize = super.getSize();
+        long size = storedSize;
+        // a header may be present regardless of the mimetype, e.g. if the mimetype is not known as no content data was provided
+        if (storedSize > 0)
+        {
+            // use a separate reader as our delegate only supports opening a single channel
+            try (ReadableByteChannel channel = super.getReader().getReadableChannel();
+                    InputStream contentInputStream = new BufferedInputStream(Channels.newInputStream(channel),
+                            CompressedContentHeader.PREFIX_LENGTH + 8))
+            {
+                final CompressedContentHeader header = CompressedContentHeader.readHeader(contentInputStream);
+                if (header != null && header.getUncompressedLength() != CompressedContentHeader.UNKNOWN_LENGTH)
+                {
+                    size = header.getUncompressedLength();
+                }
+                else if (header != null && !header.isCompressed())
+                {
+                    size = storedSize - header.getLength();
+                }
+                else if (header != null && header.isBlockIndexed() && channel instanceof SeekableByteChannel)
+                {
+                    // trailer of block-indexed format always records the uncompressed length
+                    try (BlockDecompressingFileChannel blockChannel = new BlockDecompressingFileChannel((SeekableByteChannel) channel,
+                            header, new CompressionCodec(header.getCompressionType())))
+                    {
+                        size = blockChannel.size();
+                    }
+                }
+                else
+                {
+                    // without decompressing, the compressed size is the best available approximation
+                    LOGGER.debug("Uncompressed size of content {} has not been recorded - using compressed size", this.getContentUrl());
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new ContentIOException("Failed to determine uncompressed size of content", e);
+            }
+        }
+        return size;
+    }
+
+    protected boolean shouldDecompress(final String mimetype)
+    {
+        return this.mimetypesToCompress == null || this.mimetypesToCompress.isEmpty()
+                || (mimetype != null && (this.mimetypesToCompress.contains(mimetype) || this.isMimetypeToCompressWildcardMatch(mimetype)));
     }
 
     protected boolean isMimetypeToCompressWildcardMatch(final String mimetype)
@@ -15,27 +15,44 @@
  */
 package de.acosix.alfresco.simplecontentstores.repo.store.facade;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.MessageFormat;
+import java.util.Iterator;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
 
 /**
  * @author Axel Faust
  */
-public class DeduplicatingContentStore extends CommonFacadingContentStore
+public class DeduplicatingContentStore extends CommonFacadingContentStore implements DisposableBean
 {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicatingContentStore.class);
 
+    private static final Pattern DIGEST_FILE_NAME_PATTERN = Pattern.compile("^([0-9A-F]{16,})\\.bin$");
+
     protected ContentStore temporaryStore;
 
     protected String digestAlgorithm = "SHA-512";
@@ -46,8 +63,26 @@ public class DeduplicatingContentStore extends CommonFacadingContentStore
 
     protected int bytesPerPathSegment = 2;
 
+    protected boolean useDigestIndex;
+
+    protected long digestIndexExpectedEntries = 1000000;
+
+    protected double digestIndexFalsePositiveProbability = 0.01;
+
+    protected String digestIndexDirectory;
+
+    protected int digestIndexCompactionThreshold = 10000;
+
+    protected int writeLockStripes = 256;
+
     protected transient String dummyUrlPrefix;
 
+    protected transient ExecutorService digestIndexExecutor;
+
+    protected transient DeduplicationDigestIndex digestIndex;
+
+    protected transient DeduplicationWriteCoordinator writeCoordinator;
+
     /**
      *
      * {@inheritDoc}
@@ -61,6 +96,75 @@ public class DeduplicatingContentStore extends CommonFacadingContentStore
 
         final MessageFormat mf = new MessageFormat("{0}{1}dummy/", Locale.ENGLISH);
         this.dummyUrlPrefix = mf.format(new Object[] { StoreConstants.WILDCARD_PROTOCOL, ContentStore.PROTOCOL_DELIMITER });
+
+        this.writeCoordinator = new DeduplicationWriteCoordinator(this.writeLockStripes, this);
+
+        if (this.useDigestIndex)
+        {
+            // fork-join workers are daemon threads, so an undisposed store will not block shutdown
+            this.digestIndexExecutor = new ForkJoinPool(1);
+            try
+            {
+                this.digestIndex = new DeduplicationDigestIndex(this.digestIndexExpectedEntries, this.digestIndexFalsePositiveProbability,
+                        this.digestIndexDirectory != null && !this.digestIndexDirectory.trim().isEmpty()
+                                ? new File(this.digestIndexDirectory.trim())
+                                : null,
+                        this.digestIndexCompactionThreshold, this.digestIndexExecutor);
+            }
+            catch (final IOException ioex)
+            {
+                throw new ContentIOException("Failed to load the digest index", ioex);
+            }
+
+            if (!this.digestIndex.isComplete())
+            {
+                if (this.getScannableBackingStoreRoot() != null)
+                {
+                    LOGGER.info("Rebuilding digest index of store {} in the background", this);
+                    this.digestIndexExecutor.execute(() -> {
+                        try
+                        {
+                            this.rebuildDigestIndex();
+                        }
+                        catch (final RuntimeException rex)
+                        {
+                            LOGGER.error("Failed to rebuild digest index of store {}", this, rex);
+                        }
+                    });
+                }
+                else
+                {
+                    LOGGER.warn("Backing store of {} cannot be scanned to rebuild the digest index - "
+                            + "index will only be used once it has been rebuilt via an explicit call", this);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void destroy()
+    {
+        if (this.digestIndexExecutor != null)
+        {
+            this.digestIndexExecutor.shutdown();
+            this.digestIndexExecutor = null;
+        }
+        if (this.digestIndex != null)
+        {
+            try
+            {
+                this.digestIndex.close();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to close digest index of store {}", this, ioex);
+            }
+            this.digestIndex = null;
+        }
     }
 
     /**
@@ -116,6 +220,97 @@ public class DeduplicatingContentStore extends CommonFacadingContentStore
         this.bytesPerPathSegment = bytesPerPathSegment;
     }
 
+    /**
+     * @param useDigestIndex
+     *            {@code true} if an index of content digests should be used to avoid lookups in the backing store for new content
+     */
+    public void setUseDigestIndex(final boolean useDigestIndex)
+    {
+        this.useDigestIndex = useDigestIndex;
+    }
+
+    /**
+     * @param digestIndexExpectedEntries
+     *            the number of content digests expected to be held in the index, used to size its in-memory Bloom filter
+     */
+    public void setDigestIndexExpectedEntries(final long digestIndexExpectedEntries)
+    {
+        this.digestIndexExpectedEntries = digestIndexExpectedEntries;
+    }
+
+    /**
+     * @param digestIndexFalsePositiveProbability
+     *            the probability of the in-memory Bloom filter of the index wrongly considering new content to potentially exist
+     */
+    public void setDigestIndexFalsePositiveProbability(final double digestIndexFalsePositiveProbability)
+    {
+        this.digestIndexFalsePositiveProbability = digestIndexFalsePositiveProbability;
+    }
+
+    /**
+     * @param digestIndexDirectory
+     *            the directory in which to persist the index as a map of content digests to content URLs - if not set, the index will only
+     *            consist of an in-memory Bloom filter which needs to be rebuilt on every startup
+     */
+    public void setDigestIndexDirectory(final String digestIndexDirectory)
+    {
+        this.digestIndexDirectory = digestIndexDirectory;
+    }
+
+    /**
+     * @param digestIndexCompactionThreshold
+     *            the number of journalled changes to a persistent index after which these are merged into its sorted segment file
+     */
+    public void setDigestIndexCompactionThreshold(final int digestIndexCompactionThreshold)
+    {
+        this.digestIndexCompactionThreshold = digestIndexCompactionThreshold;
+    }
+
+    /**
+     * @param writeLockStripes
+     *            the number of locks over which the digests of content written concurrently are distributed to coordinate writes of
+     *            identical content
+     */
+    public void setWriteLockStripes(final int writeLockStripes)
+    {
+        if (writeLockStripes <= 0)
+        {
+            throw new IllegalArgumentException("Only positive number of write lock stripes are allowed");
+        }
+        this.writeLockStripes = writeLockStripes;
+    }
+
+    /**
+     * Rebuilds the digest index of this store by scanning all content in the directory of the backing store. This operation is performed
+     * automatically in the background on startup if no complete index could be loaded, and may need to be performed explicitly if content
+     * in the backing store has been changed by other means than this store.
+     */
+    public void rebuildDigestIndex()
+    {
+        if (this.digestIndex == null)
+        {
+            throw new IllegalStateException("Store " + this + " does not use a digest index");
+        }
+
+        final Path rootPath = this.getScannableBackingStoreRoot();
+        if (rootPath == null)
+        {
+            throw new IllegalStateException("Backing store of " + this + " cannot be scanned to rebuild the digest index");
+        }
+
+        final String[] protocolPrefix = new String[1];
+        try (Stream<Path> paths = Files.walk(rootPath, FileVisitOption.FOLLOW_LINKS))
+        {
+            final Iterator<Pair<String, String>> entries = paths.filter(Files::isRegularFile)
+                    .map(path -> this.toDigestIndexEntry(rootPath, path, protocolPrefix)).filter(entry -> entry != null).iterator();
+            this.digestIndex.rebuild(entries);
+        }
+        catch (final IOException ioex)
+        {
+            throw new ContentIOException("Failed to rebuild the digest index", ioex);
+        }
+    }
+
     /**
      *
      * {@inheritDoc}
@@ -148,7 +343,7 @@ public class DeduplicatingContentStore extends CommonFacadingContentStore
             LOGGER.debug("Creating deduplication enabled writer for context {} in store {}", context, this);
             final String dummyContentUrl = this.dummyUrlPrefix + UUID.randomUUID();
             writer = new DeduplicatingContentWriter(dummyContentUrl, context, this.temporaryStore, this.backingStore, this.digestAlgorithm,
-                    this.digestAlgorithmProvider, this.pathSegments, this.bytesPerPathSegment);
+                    this.digestAlgorithmProvider, this.pathSegments, this.bytesPerPathSegment, this.digestIndex, this.writeCoordinator);
         }
         else
         {
@@ -172,8 +367,69 @@ public class DeduplicatingContentStore extends CommonFacadingContentStore
         }
         else
         {
-            result = super.delete(contentUrl);
+            String digestHex = null;
+            if (contentUrl != null)
+            {
+                final String fileName = contentUrl.substring(contentUrl.lastIndexOf('/') + 1);
+                final Matcher matcher = DIGEST_FILE_NAME_PATTERN.matcher(fileName);
+                if (matcher.matches())
+                {
+                    digestHex = matcher.group(1);
+                }
+            }
+
+            // content may be reused concurrently, and must not be deleted while in use by other, uncommitted transactions
+            final Lock digestLock = digestHex != null && this.writeCoordinator != null ? this.writeCoordinator.getLock(digestHex) : null;
+            if (digestLock != null)
+            {
+                digestLock.lock();
+            }
+            try
+            {
+                if (digestLock != null && this.writeCoordinator.isDeletionVetoed(digestHex))
+                {
+                    LOGGER.debug("Not deleting {} as it is used by other transactions", contentUrl);
+                    result = false;
+                }
+                else
+                {
+                    result = super.delete(contentUrl);
+
+                    final DeduplicationDigestIndex digestIndex = this.digestIndex;
+                    if (result && digestIndex != null && digestHex != null)
+                    {
+                        digestIndex.remove(digestHex);
+                    }
+                }
+            }
+            finally
+            {
+                if (digestLock != null)
+                {
+                    digestLock.unlock();
+                }
+            }
         }
         return result;
     }
+
+    protected Pair<String, String> toDigestIndexEntry(final Path rootPath, final Path path, final String[] protocolPrefix)
+    {
+        Pair<String, String> entry = null;
+        final Matcher matcher = DIGEST_FILE_NAME_PATTERN.matcher(path.getFileName().toString());
+        if (matcher.matches())
+        {
+            final String relativePath = rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+            if (protocolPrefix[0] == null)
+            {
+                // all content in the directory of a (file) store uses the same protocol
+                final String contentUrl = this.backingStore
+                        .getReader(StoreConstants.WILDCARD_PROTOCOL + ContentStore.PROTOCOL_DELIMITER + relativePath).getContentUrl();
+                protocolPrefix[0] = contentUrl.substring(0,
+                        contentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER) + ContentStore.PROTOCOL_DELIMITER.length());
+            }
+            entry = new Pair<>(matcher.group(1), protocolPrefix[0] + relativePath);
+        }
+        return entry;
+    }
 }
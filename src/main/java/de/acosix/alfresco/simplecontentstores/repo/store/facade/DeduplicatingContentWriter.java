@@ -24,9 +24,11 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import org.alfresco.repo.content.AbstractContentWriter;
 import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentExistsException;
 import org.alfresco.repo.content.ContentStore;
 import org.alfresco.repo.content.NodeContentContext;
 import org.alfresco.repo.content.filestore.FileContentWriter;
@@ -47,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
 import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
 import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext.ContentStoreContextRestorator;
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentWriterImpl;
 
 /**
  * @author Axel Faust
@@ -76,6 +79,10 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
 
     protected final String originalContentUrl;
 
+    protected final DeduplicationDigestIndex digestIndex;
+
+    protected final DeduplicationWriteCoordinator writeCoordinator;
+
     protected String digestHex;
 
     protected String deduplicatedContentUrl;
@@ -85,6 +92,23 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
     protected DeduplicatingContentWriter(final String contentUrl, final ContentContext context, final ContentStore temporaryContentStore,
             final ContentStore backingContentStore, final String digestAlgorithm, final String digestAlgorithmProvider,
             final int pathSegments, final int bytesPerPathSegment)
+    {
+        this(contentUrl, context, temporaryContentStore, backingContentStore, digestAlgorithm, digestAlgorithmProvider, pathSegments,
+                bytesPerPathSegment, null);
+    }
+
+    protected DeduplicatingContentWriter(final String contentUrl, final ContentContext context, final ContentStore temporaryContentStore,
+            final ContentStore backingContentStore, final String digestAlgorithm, final String digestAlgorithmProvider,
+            final int pathSegments, final int bytesPerPathSegment, final DeduplicationDigestIndex digestIndex)
+    {
+        this(contentUrl, context, temporaryContentStore, backingContentStore, digestAlgorithm, digestAlgorithmProvider, pathSegments,
+                bytesPerPathSegment, digestIndex, null);
+    }
+
+    protected DeduplicatingContentWriter(final String contentUrl, final ContentContext context, final ContentStore temporaryContentStore,
+            final ContentStore backingContentStore, final String digestAlgorithm, final String digestAlgorithmProvider,
+            final int pathSegments, final int bytesPerPathSegment, final DeduplicationDigestIndex digestIndex,
+            final DeduplicationWriteCoordinator writeCoordinator)
     {
         super(contentUrl, context.getExistingContentReader());
 
@@ -109,6 +133,8 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
         this.bytesPerPathSegment = bytesPerPathSegment;
 
         this.originalContentUrl = contentUrl;
+        this.digestIndex = digestIndex;
+        this.writeCoordinator = writeCoordinator;
 
         // we are the first real listener (DoGuessingOnCloseListener always is first)
         super.addListener(this);
@@ -138,16 +164,40 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
         {
             try
             {
-                // try to de-duplicate
-                this.findExistingContent();
-                if (this.deduplicatedContentUrl == null)
+                // concurrent writers of identical content wait for the first one to store it, so that they can reuse it
+                final Lock digestLock = this.writeCoordinator != null ? this.writeCoordinator.getLock(this.getDigestHex()) : null;
+                final boolean existingContent;
+                if (digestLock != null)
                 {
-                    this.contextRestorator.withRestoredContext(() -> {
-                        DeduplicatingContentWriter.this.writeToBackingStore();
-                        return null;
-                    });
+                    digestLock.lock();
                 }
-                else if (this.backingContentStore.isWriteSupported() && this.backingContentStore.exists(this.originalContentUrl))
+                try
+                {
+                    // try to de-duplicate
+                    this.findExistingContent();
+                    existingContent = this.deduplicatedContentUrl != null;
+                    if (!existingContent)
+                    {
+                        this.contextRestorator.withRestoredContext(() -> {
+                            DeduplicatingContentWriter.this.writeToBackingStore();
+                            return null;
+                        });
+                    }
+                    else if (this.writeCoordinator != null)
+                    {
+                        this.writeCoordinator.contentReused(this.digestHex);
+                    }
+                }
+                finally
+                {
+                    if (digestLock != null)
+                    {
+                        digestLock.unlock();
+                    }
+                }
+
+                if (existingContent && this.backingContentStore.isWriteSupported()
+                        && this.backingContentStore.exists(this.originalContentUrl))
                 {
                     // we did not use the writer so delete any backend remnant that may have been pre-emptively created
                     try
@@ -235,12 +285,17 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
     @Override
     protected WritableByteChannel getDirectWritableChannel() throws ContentIOException
     {
+        // digest is calculated as content flows into the temporary writer, avoiding a full re-read of the content once written
+        final MessageDigest digest = this.createMessageDigest();
+
         // need to wrap this to avoid issue of CallbackFileChannel rejection in CallbackFileChannel constructor
         final WritableByteChannel channel = new WritableByteChannel()
         {
 
             private final WritableByteChannel channel = DeduplicatingContentWriter.this.temporaryWriter.getWritableChannel();
 
+            private boolean closed;
+
             /**
              *
              * {@inheritDoc}
@@ -259,6 +314,11 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
             public void close() throws IOException
             {
                 this.channel.close();
+                if (!this.closed)
+                {
+                    this.closed = true;
+                    DeduplicatingContentWriter.this.digestHex = new String(Hex.encodeHex(digest.digest(), false));
+                }
             }
 
             /**
@@ -268,7 +328,15 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
             @Override
             public int write(final ByteBuffer src) throws IOException
             {
-                return this.channel.write(src);
+                // only digest what has actually been written in case of partial writes
+                final ByteBuffer written = src.duplicate();
+                final int bytesWritten = this.channel.write(src);
+                if (bytesWritten > 0)
+                {
+                    written.limit(written.position() + bytesWritten);
+                    digest.update(written);
+                }
+                return bytesWritten;
             }
         };
         return channel;
@@ -314,7 +382,7 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
         return deduplicatedContentReader;
     }
 
-    protected void findExistingContent()
+    protected String getDigestHex()
     {
         if (this.digestHex == null)
         {
@@ -322,36 +390,68 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
             final char[] digestHex = Hex.encodeHex(digest, false);
             this.digestHex = new String(digestHex);
         }
+        return this.digestHex;
+    }
 
-        final String deduplicatedContentUrl = this.makeContentUrl(this.digestHex);
+    protected void findExistingContent()
+    {
+        this.getDigestHex();
 
-        if (this.backingContentStore.isContentUrlSupported(deduplicatedContentUrl))
+        // a complete index can tell us without any lookup in the backing store if content is new or - if persistent - where it exists
+        final boolean indexComplete = this.digestIndex != null && this.digestIndex.isComplete();
+        if (indexComplete && !this.digestIndex.mightContain(this.digestHex))
+        {
+            LOGGER.debug("Digest index considers content with digest {} to be new", this.digestHex);
+        }
+        else
         {
-            final ContentReader reader = this.backingContentStore.getReader(deduplicatedContentUrl);
-            if (reader != null && reader.exists())
+            String indexedContentUrl = indexComplete ? this.digestIndex.lookup(this.digestHex) : null;
+            // content may have been deleted behind the index, e.g. via another server or while this server was down
+            if (indexedContentUrl != null && !this.backingContentStore.exists(indexedContentUrl))
             {
-                // TODO lookup existing content data entity to copy mimetype + encoding
-                // (mimetype and encoding must be identical to guarantee identical access behaviour, e.g. when using compressing content
-                // store facade)
+                LOGGER.debug("Digest index contains stale entry {} for digest {} - removing entry", indexedContentUrl, this.digestHex);
+                this.digestIndex.remove(this.digestHex);
+                indexedContentUrl = null;
+            }
 
-                this.deduplicatedContentUrl = reader.getContentUrl();
+            if (indexedContentUrl != null)
+            {
+                LOGGER.debug("Digest index contains existing content {} for digest {}", indexedContentUrl, this.digestHex);
+                this.deduplicatedContentUrl = indexedContentUrl;
                 super.setContentUrl(this.deduplicatedContentUrl);
             }
+            else
+            {
+                final String deduplicatedContentUrl = this.makeContentUrl(this.digestHex);
+
+                if (this.backingContentStore.isContentUrlSupported(deduplicatedContentUrl))
+                {
+                    final ContentReader reader = this.backingContentStore.getReader(deduplicatedContentUrl);
+                    if (reader != null && reader.exists())
+                    {
+                        // TODO lookup existing content data entity to copy mimetype + encoding
+                        // (mimetype and encoding must be identical to guarantee identical access behaviour, e.g. when using compressing
+                        // content store facade)
+
+                        this.deduplicatedContentUrl = reader.getContentUrl();
+                        super.setContentUrl(this.deduplicatedContentUrl);
+
+                        if (this.digestIndex != null)
+                        {
+                            this.digestIndex.add(this.digestHex, this.deduplicatedContentUrl);
+                        }
+                    }
+                }
+            }
         }
     }
 
     protected void writeToBackingStore()
     {
-        if (this.digestHex == null)
-        {
-            final byte[] digest = this.createDigest();
-            final char[] digestHex = Hex.encodeHex(digest, false);
-            this.digestHex = new String(digestHex);
-        }
+        this.getDigestHex();
 
         final String suggestedContentUrl = this.makeContentUrl(this.digestHex);
 
-        final ContentReader reader = this.getReader();
         final ContentContext backingContext;
         if (this.context instanceof NodeContentContext)
         {
@@ -363,12 +463,41 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
             backingContext = new ContentContext(null, suggestedContentUrl);
         }
 
-        final ContentWriter backingWriter = this.backingContentStore.getWriter(backingContext);
+        final ContentWriter backingWriter;
+        try
+        {
+            backingWriter = this.backingContentStore.getWriter(backingContext);
+        }
+        catch (final ContentExistsException ceex)
+        {
+            // identical content has been written concurrently or was not known to the digest index
+            LOGGER.debug("Content for digest {} already exists in backing store", this.digestHex);
+            this.deduplicatedContentUrl = this.backingContentStore.getReader(suggestedContentUrl).getContentUrl();
+            super.setContentUrl(this.deduplicatedContentUrl);
+            if (this.digestIndex != null)
+            {
+                this.digestIndex.add(this.digestHex, this.deduplicatedContentUrl);
+            }
+            if (this.writeCoordinator != null)
+            {
+                this.writeCoordinator.contentReused(this.digestHex);
+            }
+            return;
+        }
+
         if (backingWriter instanceof MimetypeServiceAware && this.mimetypeService != null)
         {
             ((MimetypeServiceAware) backingWriter).setMimetypeService(this.mimetypeService);
         }
-        backingWriter.putContent(reader);
+        if (backingWriter instanceof FileContentWriterImpl && this.temporaryWriter instanceof FileContentWriterImpl)
+        {
+            // temporary content is cleaned up right after, so avoid writing it a second time if possible
+            ((FileContentWriterImpl) backingWriter).promoteContent(((FileContentWriterImpl) this.temporaryWriter).getFile());
+        }
+        else
+        {
+            backingWriter.putContent(this.getReader());
+        }
 
         // since we use a wildcard protocol in our expectation and don't know backing store protocol, do a relative match
         final String expectedRelativeUrl = suggestedContentUrl
@@ -384,40 +513,28 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
         this.deduplicatedContentUrl = actualContentUrl;
         super.setContentUrl(this.deduplicatedContentUrl);
 
+        if (this.digestIndex != null)
+        {
+            this.digestIndex.add(this.digestHex, this.deduplicatedContentUrl);
+        }
+
         if (TransactionSupportUtil.isActualTransactionActive())
         {
             // this is a new URL so register for rollback handling
             final Set<String> urlsToDelete = TransactionalResourceHelper.getSet(StoreConstants.KEY_POST_ROLLBACK_DELETION_URLS);
             urlsToDelete.add(this.deduplicatedContentUrl);
         }
+
+        if (this.writeCoordinator != null)
+        {
+            this.writeCoordinator.contentWritten(this.digestHex, this.deduplicatedContentUrl);
+        }
     }
 
     protected byte[] createDigest()
     {
         final ContentReader reader = this.getReader();
-
-        MessageDigest digest;
-        try
-        {
-            if (this.digestAlgorithmProvider != null && this.digestAlgorithmProvider.trim().length() > 0)
-            {
-                digest = MessageDigest.getInstance(this.digestAlgorithm, this.digestAlgorithmProvider);
-            }
-            else
-            {
-                digest = MessageDigest.getInstance(this.digestAlgorithm);
-            }
-        }
-        catch (final NoSuchProviderException nspEx)
-        {
-            LOGGER.error("Hash algorithm provider {} is not available", this.digestAlgorithmProvider);
-            throw new ContentIOException("Hash algorithm provider for deduplication not available", nspEx);
-        }
-        catch (final NoSuchAlgorithmException nsaEx)
-        {
-            LOGGER.error("Hash algorithm {} is not available", this.digestAlgorithm);
-            throw new ContentIOException("Hash algorithm for deduplication not available", nsaEx);
-        }
+        final MessageDigest digest = this.createMessageDigest();
 
         final InputStream contentInputStream = reader.getContentInputStream();
         try
@@ -453,6 +570,33 @@ public class DeduplicatingContentWriter extends AbstractContentWriter implements
         return digestBytes;
     }
 
+    protected MessageDigest createMessageDigest()
+    {
+        MessageDigest digest;
+        try
+        {
+            if (this.digestAlgorithmProvider != null && this.digestAlgorithmProvider.trim().length() > 0)
+            {
+                digest = MessageDigest.getInstance(this.digestAlgorithm, this.digestAlgorithmProvider);
+            }
+            else
+            {
+                digest = MessageDigest.getInstance(this.digestAlgorithm);
+            }
+        }
+        catch (final NoSuchProviderException nspEx)
+        {
+            LOGGER.error("Hash algorithm provider {} is not available", this.digestAlgorithmProvider);
+            throw new ContentIOException("Hash algorithm provider for deduplication not available", nspEx);
+        }
+        catch (final NoSuchAlgorithmException nsaEx)
+        {
+            LOGGER.error("Hash algorithm {} is not available", this.digestAlgorithm);
+            throw new ContentIOException("Hash algorithm for deduplication not available", nsaEx);
+        }
+        return digest;
+    }
+
     protected String makeContentUrl(final String digest)
     {
         final StringBuilder contentUrlBuilder = new StringBuilder();
@@ -0,0 +1,1020 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.alfresco.util.Pair;
+import org.alfresco.util.ParameterCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class index the digests of content stored via a {@link DeduplicatingContentStore deduplicating store}, so that the
+ * majority of writes - which typically are for unique content - can skip any lookup in the backing store. The index consists of
+ * <ul>
+ * <li>an in-memory {@link DigestBloomFilter Bloom filter}, answering whether a digest is definitely new without any I/O</li>
+ * <li>an optional, persistent map of digests to content URLs, answering whether a digest is known to exist and under which content URL,
+ * consisting of a sorted segment file - of which only the first digest of every block of {@value #SPARSE_INDEX_INTERVAL} entries is held in
+ * memory - and journals of changes not yet merged into the segment file</li>
+ * </ul>
+ *
+ * An index only provides authoritative answers once it is {@link #isComplete() complete}, i.e. once it has been {@link #rebuild(Iterator)
+ * rebuilt} from all content in the backing store or a persistent index from a previous run has been loaded. Since the index is kept by each
+ * server individually, it can only be authoritative if all content in the backing store is written and deleted via this server.
+ *
+ * @author Axel Faust
+ */
+public class DeduplicationDigestIndex implements Closeable
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicationDigestIndex.class);
+
+    private static final String SEGMENT_FILE_NAME = "digests.idx";
+
+    private static final String JOURNAL_FILE_PREFIX = "digests.journal.";
+
+    private static final String RUN_FILE_PREFIX = "digests.run.";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final String TOMBSTONE = "";
+
+    private static final int SPARSE_INDEX_INTERVAL = 128;
+
+    private static final int RUN_SIZE = 100000;
+
+    protected final long expectedEntries;
+
+    protected final double falsePositiveProbability;
+
+    protected final Path directory;
+
+    protected final int compactionThreshold;
+
+    protected final Executor maintenanceExecutor;
+
+    protected final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    protected final Object maintenanceLock = new Object();
+
+    protected final Object journalLock = new Object();
+
+    protected final AtomicInteger journalEntries = new AtomicInteger();
+
+    protected final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    protected volatile DigestBloomFilter filter;
+
+    protected volatile DigestBloomFilter rebuildFilter;
+
+    protected volatile boolean complete;
+
+    protected volatile ConcurrentNavigableMap<String, String> pendingChanges = new ConcurrentSkipListMap<>();
+
+    protected volatile NavigableMap<String, String> compactingChanges = Collections.emptyNavigableMap();
+
+    protected volatile Segment segment;
+
+    protected Writer journalWriter;
+
+    protected int journalSequence;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param expectedEntries
+     *     the number of digests expected to be held in the index, used to size the Bloom filter
+     * @param falsePositiveProbability
+     *     the probability of the Bloom filter wrongly answering that a digest may exist
+     * @param directory
+     *     the directory in which to persist the map of digests to content URLs, or {@code null} if only an in-memory Bloom filter should be
+     *     used
+     * @param compactionThreshold
+     *     the number of journalled changes after which these are merged into the segment file
+     * @param maintenanceExecutor
+     *     the executor on which to perform compactions triggered by the number of journalled changes
+     * @throws IOException
+     *     if an error occurs loading a persistent index
+     */
+    public DeduplicationDigestIndex(final long expectedEntries, final double falsePositiveProbability, final File directory,
+            final int compactionThreshold, final Executor maintenanceExecutor) throws IOException
+    {
+        ParameterCheck.mandatory("maintenanceExecutor", maintenanceExecutor);
+        if (compactionThreshold <= 0)
+        {
+            throw new IllegalArgumentException("compactionThreshold must be a positive integer");
+        }
+
+        this.expectedEntries = expectedEntries;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.directory = directory != null ? directory.toPath() : null;
+        this.compactionThreshold = compactionThreshold;
+        this.maintenanceExecutor = maintenanceExecutor;
+        this.filter = new DigestBloomFilter(expectedEntries, falsePositiveProbability);
+
+        if (this.directory != null)
+        {
+            Files.createDirectories(this.directory);
+            this.load();
+        }
+    }
+
+    /**
+     * Checks whether this index is complete and may be used to answer whether a digest exists without consulting the backing store.
+     *
+     * @return {@code true} if the index is complete, {@code false} otherwise
+     */
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
+    /**
+     * Checks whether this index is backed by a persistent map of digests to content URLs.
+     *
+     * @return {@code true} if this index is persistent, {@code false} if it only consists of an in-memory Bloom filter
+     */
+    public boolean isPersistent()
+    {
+        return this.directory != null;
+    }
+
+    /**
+     * Checks whether a digest may exist in the backing store.
+     *
+     * @param digest
+     *     the hex-encoded digest
+     * @return {@code false} if the digest definitely does not exist (provided the index is {@link #isComplete() complete}), {@code true} if
+     *     it may exist
+     */
+    public boolean mightContain(final String digest)
+    {
+        return this.filter.mightContain(digest);
+    }
+
+    /**
+     * Looks up the content URL of a digest in the persistent map of this index.
+     *
+     * @param digest
+     *     the hex-encoded digest
+     * @return the content URL of existing content with the digest, or {@code null} if the digest is not contained in the persistent map, or
+     *     this index is not persistent
+     */
+    public String lookup(final String digest)
+    {
+        ParameterCheck.mandatoryString("digest", digest);
+
+        String contentUrl = null;
+        if (this.directory != null)
+        {
+            this.stateLock.readLock().lock();
+            try
+            {
+                contentUrl = this.pendingChanges.get(digest);
+                if (contentUrl == null)
+                {
+                    contentUrl = this.compactingChanges.get(digest);
+                }
+                if (contentUrl == null && this.segment != null)
+                {
+                    contentUrl = this.segment.lookup(digest);
+                }
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to look up digest {} in segment file of index in {}", digest, this.directory, ioex);
+                contentUrl = null;
+            }
+            finally
+            {
+                this.stateLock.readLock().unlock();
+            }
+        }
+        return TOMBSTONE.equals(contentUrl) ? null : contentUrl;
+    }
+
+    /**
+     * Adds the digest of content stored in the backing store to this index.
+     *
+     * @param digest
+     *     the hex-encoded digest
+     * @param contentUrl
+     *     the content URL of the content
+     */
+    public void add(final String digest, final String contentUrl)
+    {
+        ParameterCheck.mandatoryString("digest", digest);
+        ParameterCheck.mandatoryString("contentUrl", contentUrl);
+
+        this.stateLock.readLock().lock();
+        try
+        {
+            this.filter.put(digest);
+            final DigestBloomFilter rebuildFilter = this.rebuildFilter;
+            if (rebuildFilter != null)
+            {
+                rebuildFilter.put(digest);
+            }
+
+            if (this.directory != null)
+            {
+                this.pendingChanges.put(digest, contentUrl);
+                this.appendJournal("+" + digest + " " + contentUrl);
+            }
+        }
+        finally
+        {
+            this.stateLock.readLock().unlock();
+        }
+
+        this.checkCompaction();
+    }
+
+    /**
+     * Removes the digest of content deleted from the backing store from this index. Since entries cannot be removed from the Bloom filter,
+     * this only affects the persistent map of this index.
+     *
+     * @param digest
+     *     the hex-encoded digest
+     */
+    public void remove(final String digest)
+    {
+        ParameterCheck.mandatoryString("digest", digest);
+
+        if (this.directory != null)
+        {
+            this.stateLock.readLock().lock();
+            try
+            {
+                this.pendingChanges.put(digest, TOMBSTONE);
+                this.appendJournal("-" + digest);
+            }
+            finally
+            {
+                this.stateLock.readLock().unlock();
+            }
+
+            this.checkCompaction();
+        }
+    }
+
+    /**
+     * Rebuilds this index from the digests of all content in the backing store, replacing any previous state of the index. Changes made
+     * concurrently to the rebuild are retained, and the index is {@link #isComplete() complete} once the rebuild has finished.
+     *
+     * @param entries
+     *     the pairs of hex-encoded digest and content URL of all content in the backing store
+     * @throws IOException
+     *     if an error occurs writing the persistent map of digests to content URLs
+     */
+    public void rebuild(final Iterator<Pair<String, String>> entries) throws IOException
+    {
+        ParameterCheck.mandatory("entries", entries);
+
+        synchronized (this.maintenanceLock)
+        {
+            final DigestBloomFilter newFilter = new DigestBloomFilter(this.expectedEntries, this.falsePositiveProbability);
+            this.rebuildFilter = newFilter;
+            try
+            {
+                if (this.directory != null)
+                {
+                    this.rebuildPersistentMap(entries, newFilter);
+                }
+                else
+                {
+                    long count = 0;
+                    while (entries.hasNext())
+                    {
+                        newFilter.put(entries.next().getFirst());
+                        count++;
+                    }
+
+                    this.stateLock.writeLock().lock();
+                    try
+                    {
+                        this.filter = newFilter;
+                        this.complete = true;
+                    }
+                    finally
+                    {
+                        this.stateLock.writeLock().unlock();
+                    }
+                    this.checkExpectedEntries(count);
+                }
+            }
+            finally
+            {
+                this.rebuildFilter = null;
+            }
+        }
+    }
+
+    /**
+     * Merges all journalled changes into the segment file of the persistent map of digests to content URLs. Compaction is only performed if
+     * this index is persistent and {@link #isComplete() complete}.
+     *
+     * @throws IOException
+     *     if an error occurs writing the segment file
+     */
+    public void compact() throws IOException
+    {
+        if (this.directory != null)
+        {
+            synchronized (this.maintenanceLock)
+            {
+                if (this.complete)
+                {
+                    final List<Path> compactedJournals = this.snapshotPendingChanges();
+                    if (!this.compactingChanges.isEmpty())
+                    {
+                        final List<SortedSource> sources = new ArrayList<>();
+                        final SegmentData segmentData;
+                        try
+                        {
+                            if (this.segment != null)
+                            {
+                                sources.add(new ReaderSource(Files.newBufferedReader(this.segment.path, StandardCharsets.UTF_8), 0));
+                            }
+                            sources.add(new MapSource(this.compactingChanges, 1));
+                            segmentData = this.writeSegment(sources, null);
+                        }
+                        finally
+                        {
+                            // segment file must not be open when it is replaced
+                            closeSources(sources);
+                        }
+                        this.replaceSegment(segmentData, null);
+                    }
+                    else
+                    {
+                        this.compactingChanges = Collections.emptyNavigableMap();
+                    }
+                    deleteFiles(compactedJournals);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes this index, compacting any journalled changes if this index is persistent and {@link #isComplete() complete}.
+     *
+     * @throws IOException
+     *     if an error occurs compacting the index or closing the underlying files
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.directory != null)
+        {
+            synchronized (this.maintenanceLock)
+            {
+                try
+                {
+                    this.compact();
+                }
+                finally
+                {
+                    this.stateLock.writeLock().lock();
+                    try
+                    {
+                        synchronized (this.journalLock)
+                        {
+                            if (this.journalWriter != null)
+                            {
+                                this.journalWriter.close();
+                                this.journalWriter = null;
+                            }
+                        }
+                        if (this.segment != null)
+                        {
+                            this.segment.close();
+                        }
+                    }
+                    finally
+                    {
+                        this.stateLock.writeLock().unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    protected void load() throws IOException
+    {
+        final Path segmentFile = this.directory.resolve(SEGMENT_FILE_NAME);
+        if (Files.exists(segmentFile))
+        {
+            final NavigableMap<String, Long> blockOffsets = new TreeMap<>();
+            long offset = 0;
+            long count = 0;
+            try (BufferedReader reader = Files.newBufferedReader(segmentFile, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    final String digest = line.substring(0, line.indexOf(' '));
+                    if (count % SPARSE_INDEX_INTERVAL == 0)
+                    {
+                        blockOffsets.put(digest, Long.valueOf(offset));
+                    }
+                    this.filter.put(digest);
+                    offset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                    count++;
+                }
+            }
+
+            this.segment = new Segment(segmentFile, new SegmentData(null, blockOffsets, offset, count));
+            // segment file is only ever written from complete state
+            this.complete = true;
+            this.checkExpectedEntries(count);
+            LOGGER.info("Loaded {} digests from segment file of index in {}", count, this.directory);
+        }
+
+        final List<Path> journals = this.listJournals();
+        for (final Path journal : journals)
+        {
+            try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (line.startsWith("+") && line.indexOf(' ') > 1)
+                    {
+                        final String digest = line.substring(1, line.indexOf(' '));
+                        this.filter.put(digest);
+                        this.pendingChanges.put(digest, line.substring(line.indexOf(' ') + 1));
+                    }
+                    else if (line.startsWith("-") && line.length() > 1)
+                    {
+                        this.pendingChanges.put(line.substring(1), TOMBSTONE);
+                    }
+                    // anything else can only be an incomplete line from an aborted write
+                    this.journalEntries.incrementAndGet();
+                }
+            }
+            this.journalSequence = Math.max(this.journalSequence, getJournalSequence(journal));
+        }
+        this.openJournal();
+
+        if (!journals.isEmpty())
+        {
+            LOGGER.info("Replayed {} journalled changes of index in {}", this.journalEntries.get(), this.directory);
+            this.checkCompaction();
+        }
+    }
+
+    protected void rebuildPersistentMap(final Iterator<Pair<String, String>> entries, final DigestBloomFilter newFilter)
+            throws IOException
+    {
+        final List<Path> runs = new ArrayList<>();
+        final List<SortedSource> sources = new ArrayList<>();
+        try
+        {
+            // content is not enumerated in digest order, so sort in bounded runs and merge these
+            final TreeMap<String, String> run = new TreeMap<>();
+            while (entries.hasNext())
+            {
+                final Pair<String, String> entry = entries.next();
+                run.put(entry.getFirst(), entry.getSecond());
+                if (run.size() >= RUN_SIZE || !entries.hasNext())
+                {
+                    final Path runFile = this.directory.resolve(RUN_FILE_PREFIX + runs.size());
+                    runs.add(runFile);
+                    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(runFile)))
+                    {
+                        for (final Map.Entry<String, String> runEntry : run.entrySet())
+                        {
+                            os.write(toLine(runEntry.getKey(), runEntry.getValue()));
+                        }
+                    }
+                    run.clear();
+                }
+            }
+
+            final List<Path> compactedJournals = this.snapshotPendingChanges();
+            for (final Path runFile : runs)
+            {
+                sources.add(new ReaderSource(Files.newBufferedReader(runFile, StandardCharsets.UTF_8), sources.size()));
+            }
+            // changes made while the backing store was scanned take precedence
+            sources.add(new MapSource(this.compactingChanges, sources.size()));
+
+            final SegmentData segmentData = this.writeSegment(sources, newFilter);
+            closeSources(sources);
+            this.replaceSegment(segmentData, newFilter);
+            this.checkExpectedEntries(segmentData.count);
+            LOGGER.info("Rebuilt index in {} with {} digests", this.directory, segmentData.count);
+
+            deleteFiles(compactedJournals);
+        }
+        finally
+        {
+            closeSources(sources);
+            deleteFiles(runs);
+        }
+    }
+
+    protected List<Path> snapshotPendingChanges() throws IOException
+    {
+        this.stateLock.writeLock().lock();
+        try
+        {
+            // pending changes of an aborted compaction have not yet been merged
+            final ConcurrentNavigableMap<String, String> snapshot = this.pendingChanges;
+            if (!this.compactingChanges.isEmpty())
+            {
+                this.compactingChanges.forEach(snapshot::putIfAbsent);
+            }
+            this.compactingChanges = snapshot;
+            this.pendingChanges = new ConcurrentSkipListMap<>();
+
+            synchronized (this.journalLock)
+            {
+                final List<Path> journals = this.listJournals();
+                if (this.journalWriter != null)
+                {
+                    this.journalWriter.close();
+                    this.journalWriter = null;
+                }
+                this.journalSequence++;
+                this.openJournal();
+                this.journalEntries.set(0);
+                return journals;
+            }
+        }
+        finally
+        {
+            this.stateLock.writeLock().unlock();
+        }
+    }
+
+    protected SegmentData writeSegment(final List<SortedSource> sources, final DigestBloomFilter newFilter) throws IOException
+    {
+        final Path tempFile = this.directory.resolve(SEGMENT_FILE_NAME + TEMP_FILE_SUFFIX);
+        final NavigableMap<String, Long> blockOffsets = new TreeMap<>();
+        long offset = 0;
+        long count = 0;
+
+        // sources with higher precedence win for identical digests
+        final PriorityQueue<SortedSource> queue = new PriorityQueue<>(Math.max(1, sources.size()),
+                Comparator.comparing((final SortedSource source) -> source.digest).thenComparing(source -> -source.precedence));
+        for (final SortedSource source : sources)
+        {
+            if (source.next())
+            {
+                queue.add(source);
+            }
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(tempFile.toFile()))
+        {
+            final OutputStream os = new BufferedOutputStream(fos);
+            while (!queue.isEmpty())
+            {
+                final SortedSource winner = queue.poll();
+                final String digest = winner.digest;
+                final String contentUrl = winner.contentUrl;
+                while (!queue.isEmpty() && queue.peek().digest.equals(digest))
+                {
+                    final SortedSource superseded = queue.poll();
+                    if (superseded.next())
+                    {
+                        queue.add(superseded);
+                    }
+                }
+
+                if (!TOMBSTONE.equals(contentUrl))
+                {
+                    if (count % SPARSE_INDEX_INTERVAL == 0)
+                    {
+                        blockOffsets.put(digest, Long.valueOf(offset));
+                    }
+                    final byte[] line = toLine(digest, contentUrl);
+                    os.write(line);
+                    offset += line.length;
+                    count++;
+
+                    if (newFilter != null)
+                    {
+                        newFilter.put(digest);
+                    }
+                }
+
+                if (winner.next())
+                {
+                    queue.add(winner);
+                }
+            }
+            os.flush();
+            fos.getChannel().force(true);
+        }
+
+        return new SegmentData(tempFile, blockOffsets, offset, count);
+    }
+
+    protected void replaceSegment(final SegmentData segmentData, final DigestBloomFilter newFilter) throws IOException
+    {
+        this.stateLock.writeLock().lock();
+        try
+        {
+            if (this.segment != null)
+            {
+                this.segment.close();
+                this.segment = null;
+            }
+
+            final Path segmentFile = this.directory.resolve(SEGMENT_FILE_NAME);
+            Files.move(segmentData.tempFile, segmentFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.segment = new Segment(segmentFile, segmentData);
+            this.compactingChanges = Collections.emptyNavigableMap();
+
+            if (newFilter != null)
+            {
+                // changes made after the snapshot have been added to the new filter as well
+                this.filter = newFilter;
+                this.complete = true;
+            }
+        }
+        finally
+        {
+            this.stateLock.writeLock().unlock();
+        }
+    }
+
+    protected void appendJournal(final String line)
+    {
+        synchronized (this.journalLock)
+        {
+            if (this.journalWriter != null)
+            {
+                try
+                {
+                    this.journalWriter.write(line);
+                    this.journalWriter.write('\n');
+                    this.journalWriter.flush();
+                    this.journalEntries.incrementAndGet();
+                }
+                catch (final IOException ioex)
+                {
+                    // in-memory state is still consistent, and an incomplete journal will at most cause lookups in the backing store
+                    LOGGER.warn("Failed to journal change to index in {}", this.directory, ioex);
+                }
+            }
+        }
+    }
+
+    protected void openJournal() throws IOException
+    {
+        final Path journal = this.directory.resolve(JOURNAL_FILE_PREFIX + this.journalSequence);
+        this.journalWriter = new BufferedWriter(Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    protected List<Path> listJournals() throws IOException
+    {
+        final List<Path> journals = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, JOURNAL_FILE_PREFIX + "*"))
+        {
+            for (final Path journal : stream)
+            {
+                if (getJournalSequence(journal) >= 0)
+                {
+                    journals.add(journal);
+                }
+            }
+        }
+        journals.sort(Comparator.comparingInt(DeduplicationDigestIndex::getJournalSequence));
+        return journals;
+    }
+
+    protected void checkCompaction()
+    {
+        if (this.complete && this.journalEntries.get() >= this.compactionThreshold && this.compactionScheduled.compareAndSet(false, true))
+        {
+            this.maintenanceExecutor.execute(() -> {
+                try
+                {
+                    this.compact();
+                }
+                catch (final IOException ioex)
+                {
+                    LOGGER.warn("Failed to compact index in {}", this.directory, ioex);
+                }
+                finally
+                {
+                    this.compactionScheduled.set(false);
+                }
+            });
+        }
+    }
+
+    protected void checkExpectedEntries(final long count)
+    {
+        if (count > this.expectedEntries)
+        {
+            LOGGER.warn("Index {} contains {} digests, exceeding the expected number of {} - Bloom filter will yield more false positives",
+                    this.directory != null ? this.directory : "in memory", count, this.expectedEntries);
+        }
+    }
+
+    protected static int getJournalSequence(final Path journal)
+    {
+        final String fileName = journal.getFileName().toString();
+        int sequence;
+        try
+        {
+            sequence = Integer.parseInt(fileName.substring(JOURNAL_FILE_PREFIX.length()));
+        }
+        catch (final NumberFormatException nfe)
+        {
+            sequence = -1;
+        }
+        return sequence;
+    }
+
+    protected static byte[] toLine(final String digest, final String contentUrl)
+    {
+        return (digest + " " + contentUrl + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected static void deleteFiles(final List<Path> files)
+    {
+        for (final Path file : files)
+        {
+            try
+            {
+                Files.deleteIfExists(file);
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to delete obsolete index file {}", file, ioex);
+            }
+        }
+    }
+
+    protected static void closeSources(final List<SortedSource> sources)
+    {
+        for (final SortedSource source : sources)
+        {
+            try
+            {
+                source.close();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.debug("Failed to close index source", ioex);
+            }
+        }
+    }
+
+    /**
+     * Instances of this class hold the data of a segment file as it was written / loaded.
+     *
+     * @author Axel Faust
+     */
+    protected static class SegmentData
+    {
+
+        protected final Path tempFile;
+
+        protected final NavigableMap<String, Long> blockOffsets;
+
+        protected final long size;
+
+        protected final long count;
+
+        protected SegmentData(final Path tempFile, final NavigableMap<String, Long> blockOffsets, final long size, final long count)
+        {
+            this.tempFile = tempFile;
+            this.blockOffsets = blockOffsets;
+            this.size = size;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Instances of this class provide lookups in a segment file of entries sorted by digest, only reading the single block of entries which
+     * may contain a digest.
+     *
+     * @author Axel Faust
+     */
+    protected static class Segment implements Closeable
+    {
+
+        protected final Path path;
+
+        protected final NavigableMap<String, Long> blockOffsets;
+
+        protected final long size;
+
+        protected final FileChannel channel;
+
+        protected Segment(final Path path, final SegmentData data) throws IOException
+        {
+            this.path = path;
+            this.blockOffsets = data.blockOffsets;
+            this.size = data.size;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        protected String lookup(final String digest) throws IOException
+        {
+            String contentUrl = null;
+            final Map.Entry<String, Long> block = this.blockOffsets.floorEntry(digest);
+            if (block != null)
+            {
+                final Map.Entry<String, Long> nextBlock = this.blockOffsets.higherEntry(block.getKey());
+                final long start = block.getValue().longValue();
+                final long end = nextBlock != null ? nextBlock.getValue().longValue() : this.size;
+
+                final ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+                while (buffer.hasRemaining())
+                {
+                    if (this.channel.read(buffer, start + buffer.position()) == -1)
+                    {
+                        throw new EOFException("Unexpected end of segment file " + this.path);
+                    }
+                }
+
+                final String lines = new String(buffer.array(), StandardCharsets.UTF_8);
+                int lineStart = 0;
+                while (lineStart < lines.length())
+                {
+                    final int separator = lines.indexOf(' ', lineStart);
+                    final int lineEnd = lines.indexOf('\n', lineStart);
+                    final int comparison = digest.compareTo(lines.substring(lineStart, separator));
+                    if (comparison == 0)
+                    {
+                        contentUrl = lines.substring(separator + 1, lineEnd);
+                    }
+                    // entries are sorted, so there is no point to continue after a match or a larger digest
+                    lineStart = comparison > 0 ? lineEnd + 1 : lines.length();
+                }
+            }
+            return contentUrl;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Instances of this class provide sequential access to entries sorted by digest for merging.
+     *
+     * @author Axel Faust
+     */
+    protected abstract static class SortedSource implements Closeable
+    {
+
+        protected final int precedence;
+
+        protected String digest;
+
+        protected String contentUrl;
+
+        protected SortedSource(final int precedence)
+        {
+            this.precedence = precedence;
+        }
+
+        protected abstract boolean next() throws IOException;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            // NO-OP
+        }
+    }
+
+    /**
+     * Instances of this class provide sorted entries from a segment or run file.
+     *
+     * @author Axel Faust
+     */
+    protected static class ReaderSource extends SortedSource
+    {
+
+        protected final BufferedReader reader;
+
+        protected ReaderSource(final BufferedReader reader, final int precedence)
+        {
+            super(precedence);
+            this.reader = reader;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean next() throws IOException
+        {
+            final String line = this.reader.readLine();
+            if (line != null)
+            {
+                final int separator = line.indexOf(' ');
+                this.digest = line.substring(0, separator);
+                this.contentUrl = line.substring(separator + 1);
+            }
+            return line != null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException
+        {
+            this.reader.close();
+        }
+    }
+
+    /**
+     * Instances of this class provide sorted entries from an in-memory map of changes.
+     *
+     * @author Axel Faust
+     */
+    protected static class MapSource extends SortedSource
+    {
+
+        protected final Iterator<Map.Entry<String, String>> entries;
+
+        protected MapSource(final NavigableMap<String, String> changes, final int precedence)
+        {
+            super(precedence);
+            this.entries = changes.entrySet().iterator();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean next()
+        {
+            final boolean hasNext = this.entries.hasNext();
+            if (hasNext)
+            {
+                final Map.Entry<String, String> entry = this.entries.next();
+                this.digest = entry.getKey();
+                this.contentUrl = entry.getValue();
+            }
+            return hasNext;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.transaction.TransactionalResourceHelper;
+import org.alfresco.util.ParameterCheck;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.alfresco.util.transaction.TransactionSupportUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
+
+/**
+ * Instances of this class coordinate concurrent writes of identical content via a {@link DeduplicatingContentStore deduplicating store}.
+ * Writers of content with the same digest are serialised via a fixed number of striped locks, so that only the first writer stores the
+ * content in the backing store and any concurrent writers wait for it and reuse the result.
+ *
+ * Since content written in a transaction is deleted when that transaction is rolled back, this class also tracks the transactions which
+ * wrote or reused content not yet committed. Deletion of such content is vetoed while any other of these transactions is still active or
+ * has been committed, and the last of these transactions to be rolled back takes care of deleting the content if none has been committed.
+ * Only transactions on the current server are tracked.
+ *
+ * @author Axel Faust
+ */
+public class DeduplicationWriteCoordinator extends TransactionListenerAdapter
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicationWriteCoordinator.class);
+
+    protected final Lock[] locks;
+
+    protected final ContentStore contentStore;
+
+    protected final String txnDigestsKey;
+
+    protected final Map<String, UncommittedContent> uncommittedContents = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param lockStripes
+     *     the number of locks over which content digests are distributed
+     * @param contentStore
+     *     the store via which to delete content of rolled back transactions
+     */
+    public DeduplicationWriteCoordinator(final int lockStripes, final ContentStore contentStore)
+    {
+        ParameterCheck.mandatory("contentStore", contentStore);
+        if (lockStripes <= 0)
+        {
+            throw new IllegalArgumentException("Only a positive number of lock stripes is allowed");
+        }
+
+        this.locks = new Lock[lockStripes];
+        for (int idx = 0; idx < lockStripes; idx++)
+        {
+            this.locks[idx] = new ReentrantLock();
+        }
+        this.contentStore = contentStore;
+        this.txnDigestsKey = DeduplicationWriteCoordinator.class.getName() + "-" + System.identityHashCode(this) + "-digests";
+    }
+
+    /**
+     * Retrieves the lock to hold while looking up or writing content with a specific digest, or while deleting such content.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the content
+     * @return the lock for the digest
+     */
+    public Lock getLock(final String digestHex)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+        return this.locks[Math.floorMod(digestHex.hashCode(), this.locks.length)];
+    }
+
+    /**
+     * Records that content has been newly written in the current transaction. This operation must only be called while holding the
+     * {@link #getLock(String) lock} for the digest.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the content
+     * @param contentUrl
+     *     the URL of the content
+     */
+    public void contentWritten(final String digestHex, final String contentUrl)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+        ParameterCheck.mandatoryString("contentUrl", contentUrl);
+
+        if (TransactionSupportUtil.isActualTransactionActive())
+        {
+            final UncommittedContent content = this.uncommittedContents.computeIfAbsent(digestHex, k -> new UncommittedContent(contentUrl));
+            this.participate(digestHex, content);
+        }
+    }
+
+    /**
+     * Records that existing content has been reused in the current transaction. This operation must only be called while holding the
+     * {@link #getLock(String) lock} for the digest.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the content
+     */
+    public void contentReused(final String digestHex)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+
+        if (TransactionSupportUtil.isActualTransactionActive())
+        {
+            final UncommittedContent content = this.uncommittedContents.get(digestHex);
+            // content written by an already committed transaction needs no tracking
+            if (content != null)
+            {
+                this.participate(digestHex, content);
+            }
+        }
+    }
+
+    /**
+     * Checks whether content may not be deleted as it is still used by an active transaction other than the current one, or has been used
+     * by a committed transaction. This operation must only be called while holding the {@link #getLock(String) lock} for the digest.
+     *
+     * @param digestHex
+     *     the hex-encoded digest of the content
+     * @return {@code true} if the content must not be deleted, {@code false} otherwise
+     */
+    public boolean isDeletionVetoed(final String digestHex)
+    {
+        ParameterCheck.mandatoryString("digestHex", digestHex);
+
+        final UncommittedContent content = this.uncommittedContents.get(digestHex);
+        boolean vetoed = false;
+        if (content != null)
+        {
+            final String txnId = TransactionSupportUtil.getTransactionId();
+            vetoed = content.committed || content.transactionIds.stream().anyMatch(id -> !id.equals(txnId));
+        }
+        return vetoed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterCommit()
+    {
+        this.transactionCompleted(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void afterRollback()
+    {
+        this.transactionCompleted(false);
+    }
+
+    protected void participate(final String digestHex, final UncommittedContent content)
+    {
+        final Set<String> txnDigests = TransactionalResourceHelper.getSet(this.txnDigestsKey);
+        if (txnDigests.isEmpty())
+        {
+            TransactionSupportUtil.bindListener(this, 0);
+        }
+        txnDigests.add(digestHex);
+        content.transactionIds.add(TransactionSupportUtil.getTransactionId());
+    }
+
+    protected void transactionCompleted(final boolean committed)
+    {
+        final String txnId = TransactionSupportUtil.getTransactionId();
+        final Set<String> txnDigests = TransactionalResourceHelper.getSet(this.txnDigestsKey);
+        for (final String digestHex : txnDigests)
+        {
+            final Lock lock = this.getLock(digestHex);
+            lock.lock();
+            try
+            {
+                final UncommittedContent content = this.uncommittedContents.get(digestHex);
+                if (content != null && content.transactionIds.remove(txnId))
+                {
+                    content.committed = content.committed || committed;
+                    final boolean lastTransaction = content.transactionIds.isEmpty();
+                    if (lastTransaction)
+                    {
+                        this.uncommittedContents.remove(digestHex);
+                    }
+
+                    if (!committed)
+                    {
+                        // responsibility for deletion on rollback has to be retained by any other transaction(s) using the content
+                        // our own registration must not be processed if the transaction cleanup listener runs after us
+                        final Set<String> urlsToDelete = TransactionalResourceHelper.getSet(StoreConstants.KEY_POST_ROLLBACK_DELETION_URLS);
+                        urlsToDelete.remove(content.contentUrl);
+
+                        if (lastTransaction && !content.committed)
+                        {
+                            LOGGER.debug("Deleting content {} as all transactions using it have been rolled back", content.contentUrl);
+                            this.contentStore.delete(content.contentUrl);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Instances of this class track the transactions using content not yet committed.
+     *
+     * @author Axel Faust
+     */
+    protected static class UncommittedContent
+    {
+
+        protected final String contentUrl;
+
+        protected final Set<String> transactionIds = new HashSet<>();
+
+        protected boolean committed;
+
+        protected UncommittedContent(final String contentUrl)
+        {
+            this.contentUrl = contentUrl;
+        }
+    }
+}
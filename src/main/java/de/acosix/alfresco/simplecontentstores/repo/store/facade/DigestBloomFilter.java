@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class implement a thread-safe Bloom filter for content digests, which can answer whether a digest has
+ * <b>definitely not</b> been added to the filter without any I/O. Positive answers are only probabilistic and subject to the configured
+ * false positive probability, as long as the number of added digests does not significantly exceed the expected number of entries.
+ *
+ * @author Axel Faust
+ */
+public class DigestBloomFilter
+{
+
+    private static final double LN2 = Math.log(2);
+
+    private static final long MAX_BITS = (long) Integer.MAX_VALUE * Long.SIZE;
+
+    protected final AtomicLongArray words;
+
+    protected final long bitCount;
+
+    protected final int hashCount;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param expectedEntries
+     *     the number of digests expected to be added to the filter
+     * @param falsePositiveProbability
+     *     the probability of a false positive answer once the expected number of digests has been added
+     */
+    public DigestBloomFilter(final long expectedEntries, final double falsePositiveProbability)
+    {
+        if (expectedEntries <= 0)
+        {
+            throw new IllegalArgumentException("expectedEntries must be a positive integer");
+        }
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+        {
+            throw new IllegalArgumentException("falsePositiveProbability must be between 0 and 1 (exclusive)");
+        }
+
+        final double optimalBits = -expectedEntries * Math.log(falsePositiveProbability) / (LN2 * LN2);
+        final long bits = Math.min(MAX_BITS, Math.max(Long.SIZE, (long) Math.ceil(optimalBits)));
+        final int wordCount = (int) ((bits + Long.SIZE - 1) / Long.SIZE);
+
+        this.words = new AtomicLongArray(wordCount);
+        this.bitCount = (long) wordCount * Long.SIZE;
+        this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / expectedEntries * LN2));
+    }
+
+    /**
+     * Adds a digest to this filter.
+     *
+     * @param digest
+     *     the (hex-encoded) digest to add
+     */
+    public void put(final CharSequence digest)
+    {
+        ParameterCheck.mandatory("digest", digest);
+
+        final long hash1 = hash(digest, 0x9E3779B97F4A7C15L);
+        final long hash2 = hash(digest, 0xC2B2AE3D27D4EB4FL);
+        for (int idx = 0; idx < this.hashCount; idx++)
+        {
+            final long bit = Long.remainderUnsigned(hash1 + idx * hash2, this.bitCount);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            if ((this.words.get(word) & mask) == 0)
+            {
+                this.words.accumulateAndGet(word, mask, (current, added) -> current | added);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a digest may have been added to this filter.
+     *
+     * @param digest
+     *     the (hex-encoded) digest to check
+     * @return {@code false} if the digest has definitely not been added to this filter, {@code true} if it may have been added
+     */
+    public boolean mightContain(final CharSequence digest)
+    {
+        ParameterCheck.mandatory("digest", digest);
+
+        final long hash1 = hash(digest, 0x9E3779B97F4A7C15L);
+        final long hash2 = hash(digest, 0xC2B2AE3D27D4EB4FL);
+        boolean result = true;
+        for (int idx = 0; idx < this.hashCount && result; idx++)
+        {
+            final long bit = Long.remainderUnsigned(hash1 + idx * hash2, this.bitCount);
+            result = (this.words.get((int) (bit >>> 6)) & (1L << bit)) != 0;
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bits used by this filter
+     */
+    public long getBitCount()
+    {
+        return this.bitCount;
+    }
+
+    /**
+     * @return the number of hash functions used by this filter
+     */
+    public int getHashCount()
+    {
+        return this.hashCount;
+    }
+
+    protected static long hash(final CharSequence digest, final long seed)
+    {
+        long hash = seed;
+        for (int idx = 0, length = digest.length(); idx < length; idx++)
+        {
+            hash = (hash ^ digest.charAt(idx)) * 0x100000001B3L;
+        }
+
+        // finalisation step of MurmurHash3 to spread bits of the otherwise weakly mixed result
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE1A85B53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class determine content-defined chunk boundaries in a stream of bytes using a FastCDC-style gear rolling hash with
+ * normalised chunking, i.e. using a stricter boundary condition before and a more lenient condition after the average chunk size has been
+ * reached. As boundaries only depend on the bytes immediately preceding them, inserting or removing bytes in content only affects the
+ * chunks around the change, while all other chunks remain identical and can be deduplicated.
+ *
+ * Instances of this class keep the state of the current chunk and are not thread-safe, so a separate instance must be used for each stream
+ * of bytes.
+ *
+ * @author Axel Faust
+ */
+public class FastCdcChunker
+{
+
+    /**
+     * The smallest supported chunk size.
+     */
+    public static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * The largest supported chunk size.
+     */
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private static final long[] GEAR = new long[256];
+
+    static
+    {
+        // fixed seed, as chunk boundaries (and thus deduplication) must remain stable across restarts and versions
+        long state = 0x41435358434443L;
+        for (int idx = 0; idx < GEAR.length; idx++)
+        {
+            // splitmix64
+            state += 0x9E3779B97F4A7C15L;
+            long value = state;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[idx] = value ^ (value >>> 31);
+        }
+    }
+
+    protected final int minChunkSize;
+
+    protected final int averageChunkSize;
+
+    protected final int maxChunkSize;
+
+    protected final long strictMask;
+
+    protected final long lenientMask;
+
+    protected long fingerprint;
+
+    protected int chunkLength;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param minChunkSize
+     *     the minimum size of chunks - only the last chunk of a stream may be smaller
+     * @param averageChunkSize
+     *     the targeted average size of chunks - if not a power of two, the next lower power of two is targeted
+     * @param maxChunkSize
+     *     the maximum size of chunks
+     */
+    public FastCdcChunker(final int minChunkSize, final int averageChunkSize, final int maxChunkSize)
+    {
+        validateChunkSizes(minChunkSize, averageChunkSize, maxChunkSize);
+
+        this.minChunkSize = minChunkSize;
+        this.averageChunkSize = averageChunkSize;
+        this.maxChunkSize = maxChunkSize;
+
+        // high bits of the gear hash depend on the most preceding bytes, so masks are aligned to the top
+        final int bits = 31 - Integer.numberOfLeadingZeros(averageChunkSize);
+        this.strictMask = -1L << (Long.SIZE - Math.min(Long.SIZE - 1, bits + 2));
+        this.lenientMask = -1L << (Long.SIZE - Math.max(1, bits - 2));
+    }
+
+    /**
+     * Validates a combination of chunk sizes.
+     *
+     * @param minChunkSize
+     *     the minimum size of chunks
+     * @param averageChunkSize
+     *     the targeted average size of chunks
+     * @param maxChunkSize
+     *     the maximum size of chunks
+     * @throws IllegalArgumentException
+     *     if the combination of chunk sizes is not valid
+     */
+    public static void validateChunkSizes(final int minChunkSize, final int averageChunkSize, final int maxChunkSize)
+    {
+        if (minChunkSize < MIN_CHUNK_SIZE)
+        {
+            throw new IllegalArgumentException("minChunkSize must be at least " + MIN_CHUNK_SIZE);
+        }
+        if (averageChunkSize < minChunkSize)
+        {
+            throw new IllegalArgumentException("averageChunkSize must not be smaller than minChunkSize");
+        }
+        if (maxChunkSize < averageChunkSize)
+        {
+            throw new IllegalArgumentException("maxChunkSize must not be smaller than averageChunkSize");
+        }
+        if (maxChunkSize > MAX_CHUNK_SIZE)
+        {
+            throw new IllegalArgumentException("maxChunkSize must not be larger than " + MAX_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Scans bytes of the stream for the boundary of the current chunk. If a boundary is found, the state of this instance is reset so that
+     * any remaining bytes must be scanned again as the start of the next chunk.
+     *
+     * @param buffer
+     *     the buffer holding the bytes to scan
+     * @param offset
+     *     the offset of the first byte to scan
+     * @param length
+     *     the number of bytes to scan
+     * @return the number of scanned bytes which complete the current chunk, or {@code -1} if all bytes belong to the current chunk
+     *         without reaching its boundary
+     */
+    public int findBoundary(final byte[] buffer, final int offset, final int length)
+    {
+        ParameterCheck.mandatory("buffer", buffer);
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        int boundary = -1;
+        int idx = offset;
+        final int end = offset + length;
+
+        // bytes before the minimum chunk size can never be a boundary and are skipped without hashing
+        if (this.chunkLength < this.minChunkSize)
+        {
+            final int skipped = Math.min(end - idx, this.minChunkSize - this.chunkLength);
+            idx += skipped;
+            this.chunkLength += skipped;
+            if (this.chunkLength >= this.maxChunkSize)
+            {
+                boundary = idx - offset;
+            }
+        }
+
+        long fingerprint = this.fingerprint;
+        int chunkLength = this.chunkLength;
+        while (boundary == -1 && idx < end)
+        {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[idx++] & 0xFF];
+            chunkLength++;
+
+            final long mask = chunkLength < this.averageChunkSize ? this.strictMask : this.lenientMask;
+            if ((fingerprint & mask) == 0 || chunkLength >= this.maxChunkSize)
+            {
+                boundary = idx - offset;
+            }
+        }
+
+        if (boundary != -1)
+        {
+            this.reset();
+        }
+        else
+        {
+            this.fingerprint = fingerprint;
+            this.chunkLength = chunkLength;
+        }
+        return boundary;
+    }
+
+    /**
+     * Resets the state of this instance to the start of a new chunk.
+     */
+    public void reset()
+    {
+        this.fingerprint = 0;
+        this.chunkLength = 0;
+    }
+
+    /**
+     * @return the maximum size of chunks
+     */
+    public int getMaxChunkSize()
+    {
+        return this.maxChunkSize;
+    }
+}
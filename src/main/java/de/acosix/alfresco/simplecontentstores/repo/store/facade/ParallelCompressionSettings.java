@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class hold the settings for parallel compression of content in the {@link BlockCompressingOutputStream block-indexed
+ * format}. Since blocks are compressed independently of each other, multiple blocks of the same content can be compressed concurrently and
+ * written in order.
+ *
+ * @author Axel Faust
+ */
+public class ParallelCompressionSettings
+{
+
+    protected final ExecutorService executor;
+
+    protected final int maxBlocksInFlight;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param executor
+     *     the executor on which to compress blocks
+     * @param maxBlocksInFlight
+     *     the maximum number of blocks being compressed / buffered at any time for a single content, limiting memory use to about
+     *     {@code 2 * blockSize * maxBlocksInFlight}
+     */
+    public ParallelCompressionSettings(final ExecutorService executor, final int maxBlocksInFlight)
+    {
+        ParameterCheck.mandatory("executor", executor);
+        if (maxBlocksInFlight <= 0)
+        {
+            throw new IllegalArgumentException("maxBlocksInFlight must be a positive integer");
+        }
+
+        this.executor = executor;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /**
+     * @return the executor
+     */
+    public ExecutorService getExecutor()
+    {
+        return this.executor;
+    }
+
+    /**
+     * @return the maxBlocksInFlight
+     */
+    public int getMaxBlocksInFlight()
+    {
+        return this.maxBlocksInFlight;
+    }
+
+    /**
+     * Submits the compression of a single block to the executor. If the executor rejects the task, e.g. because it is being shut down, the
+     * block is compressed on the calling thread instead.
+     *
+     * @param task
+     *     the task compressing the block
+     * @return the future result of the task
+     */
+    protected <T> Future<T> submitBlock(final Callable<T> task)
+    {
+        Future<T> future;
+        try
+        {
+            future = this.executor.submit(task);
+        }
+        catch (final RejectedExecutionException ree)
+        {
+            final CompletableFuture<T> inline = new CompletableFuture<>();
+            try
+            {
+                inline.complete(task.call());
+            }
+            catch (final Exception e)
+            {
+                inline.completeExceptionally(e);
+            }
+            future = inline;
+        }
+        return future;
+    }
+
+    /**
+     * Waits for the result of compressing a single block.
+     *
+     * @param future
+     *     the future result of the block
+     * @return the compressed block
+     * @throws IOException
+     *     if the compression failed or the calling thread was interrupted while waiting
+     */
+    protected static <T> T awaitBlock(final Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException iioe = new InterruptedIOException("Interrupted while waiting for block to be compressed");
+            iioe.initCause(e);
+            throw iioe;
+        }
+        catch (final ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unexpected error compressing block", cause);
+        }
+    }
+}
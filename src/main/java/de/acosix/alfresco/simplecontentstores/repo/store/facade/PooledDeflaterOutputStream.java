@@ -0,0 +1,240 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class compress content in the zlib ({@code deflate}) or GZIP ({@code gz}) format using a deflater and buffer
+ * {@link CompressionContextPool acquired from a pool}, which are returned to the pool when the stream is closed. The output is
+ * compatible with the corresponding streams of Commons Compress.
+ *
+ * @author Axel Faust
+ */
+public class PooledDeflaterOutputStream extends OutputStream
+{
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int GZIP_METHOD_DEFLATE = 8;
+
+    private static final int GZIP_OS_UNKNOWN = 255;
+
+    protected final OutputStream targetStream;
+
+    protected final CompressionContextPool pool;
+
+    protected final int level;
+
+    protected final boolean gzip;
+
+    protected final CRC32 crc;
+
+    protected Deflater deflater;
+
+    protected byte[] buffer;
+
+    protected long uncompressedLength;
+
+    protected boolean finished;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param targetStream
+     *     the stream to which to write compressed content
+     * @param pool
+     *     the pool from which to acquire the deflater and buffer
+     * @param level
+     *     the compression level, or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param gzip
+     *     {@code true} if content should be compressed in the GZIP format, {@code false} for the zlib format
+     * @throws IOException
+     *     if an error occurs writing the GZIP header
+     */
+    public PooledDeflaterOutputStream(final OutputStream targetStream, final CompressionContextPool pool, final int level,
+            final boolean gzip) throws IOException
+    {
+        ParameterCheck.mandatory("targetStream", targetStream);
+        ParameterCheck.mandatory("pool", pool);
+
+        this.targetStream = targetStream;
+        this.pool = pool;
+        this.level = level;
+        this.gzip = gzip;
+        this.crc = gzip ? new CRC32() : null;
+
+        this.deflater = pool.acquireDeflater(level, gzip);
+        this.buffer = pool.acquireBuffer();
+
+        if (gzip)
+        {
+            this.writeGzipHeader();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException
+    {
+        this.write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        this.ensureOpen();
+        if (len > 0)
+        {
+            this.deflater.setInput(b, off, len);
+            while (!this.deflater.needsInput())
+            {
+                this.deflate();
+            }
+
+            if (this.crc != null)
+            {
+                this.crc.update(b, off, len);
+            }
+            this.uncompressedLength += len;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        // partially compressed data is only written once the deflater decides to, so as not to hurt the compression ratio
+        this.targetStream.flush();
+    }
+
+    /**
+     * Finishes writing compressed content to the target stream without closing it.
+     *
+     * @throws IOException
+     *     if an error occurs writing to the target stream
+     */
+    public void finish() throws IOException
+    {
+        if (!this.finished)
+        {
+            this.ensureOpen();
+            this.deflater.finish();
+            while (!this.deflater.finished())
+            {
+                this.deflate();
+            }
+
+            if (this.gzip)
+            {
+                this.writeGzipTrailer();
+            }
+            this.finished = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.deflater != null)
+        {
+            try
+            {
+                this.finish();
+            }
+            finally
+            {
+                this.pool.releaseDeflater(this.deflater, this.level, this.gzip);
+                this.pool.releaseBuffer(this.buffer);
+                this.deflater = null;
+                this.buffer = null;
+
+                this.targetStream.close();
+            }
+        }
+    }
+
+    protected void deflate() throws IOException
+    {
+        final int length = this.deflater.deflate(this.buffer, 0, this.buffer.length);
+        if (length > 0)
+        {
+            this.targetStream.write(this.buffer, 0, length);
+        }
+    }
+
+    protected void writeGzipHeader() throws IOException
+    {
+        // no modification time, file name or comment
+        final byte[] header = new byte[10];
+        header[0] = (byte) GZIP_MAGIC;
+        header[1] = (byte) (GZIP_MAGIC >> 8);
+        header[2] = GZIP_METHOD_DEFLATE;
+        if (this.level == Deflater.BEST_COMPRESSION)
+        {
+            header[8] = 2;
+        }
+        else if (this.level == Deflater.BEST_SPEED)
+        {
+            header[8] = 4;
+        }
+        header[9] = (byte) GZIP_OS_UNKNOWN;
+        this.targetStream.write(header);
+    }
+
+    protected void writeGzipTrailer() throws IOException
+    {
+        final byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, this.crc.getValue());
+        writeIntLE(trailer, 4, this.uncompressedLength);
+        this.targetStream.write(trailer);
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (this.deflater == null)
+        {
+            throw new IOException("Stream has already been closed");
+        }
+        if (this.finished)
+        {
+            throw new IOException("Stream has already been finished");
+        }
+    }
+
+    protected static void writeIntLE(final byte[] buffer, final int offset, final long value)
+    {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+        buffer[offset + 2] = (byte) (value >>> 16);
+        buffer[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class decompress content in the zlib ({@code deflate}) or GZIP ({@code gz}) format using an inflater and buffer
+ * {@link CompressionContextPool acquired from a pool}, which are returned to the pool when the stream is closed. Like the corresponding
+ * streams of Commons Compress in their default configuration, only the first member of GZIP content is decompressed.
+ *
+ * @author Axel Faust
+ */
+public class PooledInflaterInputStream extends InputStream
+{
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int GZIP_METHOD_DEFLATE = 8;
+
+    private static final int GZIP_FLAG_HEADER_CRC = 0x02;
+
+    private static final int GZIP_FLAG_EXTRA = 0x04;
+
+    private static final int GZIP_FLAG_NAME = 0x08;
+
+    private static final int GZIP_FLAG_COMMENT = 0x10;
+
+    protected final InputStream sourceStream;
+
+    protected final CompressionContextPool pool;
+
+    protected final boolean gzip;
+
+    protected final CRC32 crc;
+
+    protected final byte[] singleByte = new byte[1];
+
+    protected Inflater inflater;
+
+    protected byte[] buffer;
+
+    protected int bufferPosition;
+
+    protected int bufferLimit;
+
+    protected boolean endOfContent;
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param sourceStream
+     *     the stream from which to read compressed content
+     * @param pool
+     *     the pool from which to acquire the inflater and buffer
+     * @param gzip
+     *     {@code true} if content has been compressed in the GZIP format, {@code false} for the zlib format
+     * @throws IOException
+     *     if an error occurs reading the GZIP header or the content is not in the GZIP format
+     */
+    public PooledInflaterInputStream(final InputStream sourceStream, final CompressionContextPool pool, final boolean gzip)
+            throws IOException
+    {
+        ParameterCheck.mandatory("sourceStream", sourceStream);
+        ParameterCheck.mandatory("pool", pool);
+
+        this.sourceStream = sourceStream;
+        this.pool = pool;
+        this.gzip = gzip;
+        this.crc = gzip ? new CRC32() : null;
+
+        this.inflater = pool.acquireInflater(gzip);
+        this.buffer = pool.acquireBuffer();
+
+        if (gzip)
+        {
+            try
+            {
+                this.readGzipHeader();
+            }
+            catch (final IOException ioex)
+            {
+                this.release();
+                throw ioex;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        final int bytesRead = this.read(this.singleByte, 0, 1);
+        return bytesRead == -1 ? -1 : this.singleByte[0] & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        this.ensureOpen();
+
+        int bytesRead = 0;
+        if (this.endOfContent)
+        {
+            bytesRead = -1;
+        }
+        else if (len > 0)
+        {
+            try
+            {
+                while (bytesRead == 0 && !this.endOfContent)
+                {
+                    bytesRead = this.inflater.inflate(b, off, len);
+                    if (bytesRead == 0)
+                    {
+                        if (this.inflater.finished())
+                        {
+                            this.endOfContent = true;
+                        }
+                        else if (this.inflater.needsDictionary())
+                        {
+                            throw new ZipException("Content requires a preset dictionary");
+                        }
+                        else if (this.inflater.needsInput())
+                        {
+                            if (this.bufferPosition == this.bufferLimit && !this.fill())
+                            {
+                                throw new EOFException("Unexpected end of compressed content");
+                            }
+                            this.inflater.setInput(this.buffer, this.bufferPosition, this.bufferLimit - this.bufferPosition);
+                            this.bufferPosition = this.bufferLimit;
+                        }
+                    }
+                }
+            }
+            catch (final DataFormatException dfex)
+            {
+                final ZipException zex = new ZipException(dfex.getMessage() != null ? dfex.getMessage() : "Invalid compressed content");
+                zex.initCause(dfex);
+                throw zex;
+            }
+
+            if (bytesRead > 0 && this.crc != null)
+            {
+                this.crc.update(b, off, bytesRead);
+            }
+
+            if (this.endOfContent)
+            {
+                // bytes handed to the inflater but not consumed belong to the trailer
+                this.bufferPosition = this.bufferLimit - this.inflater.getRemaining();
+                if (this.gzip)
+                {
+                    this.readGzipTrailer();
+                }
+                bytesRead = bytesRead > 0 ? bytesRead : -1;
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException
+    {
+        this.ensureOpen();
+        return this.endOfContent ? 0 : 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.inflater != null)
+        {
+            try
+            {
+                this.sourceStream.close();
+            }
+            finally
+            {
+                this.release();
+            }
+        }
+    }
+
+    protected void release()
+    {
+        this.pool.releaseInflater(this.inflater, this.gzip);
+        this.pool.releaseBuffer(this.buffer);
+        this.inflater = null;
+        this.buffer = null;
+    }
+
+    protected boolean fill() throws IOException
+    {
+        final int bytesRead = this.sourceStream.read(this.buffer, 0, this.buffer.length);
+        this.bufferPosition = 0;
+        this.bufferLimit = Math.max(0, bytesRead);
+        return bytesRead > 0;
+    }
+
+    protected int readUnsignedByte() throws IOException
+    {
+        if (this.bufferPosition == this.bufferLimit && !this.fill())
+        {
+            throw new EOFException("Unexpected end of compressed content");
+        }
+        return this.buffer[this.bufferPosition++] & 0xFF;
+    }
+
+    protected int readUnsignedShortLE() throws IOException
+    {
+        return this.readUnsignedByte() | (this.readUnsignedByte() << 8);
+    }
+
+    protected long readUnsignedIntLE() throws IOException
+    {
+        return this.readUnsignedShortLE() | ((long) this.readUnsignedShortLE() << 16);
+    }
+
+    protected void readGzipHeader() throws IOException
+    {
+        if (this.readUnsignedShortLE() != GZIP_MAGIC || this.readUnsignedByte() != GZIP_METHOD_DEFLATE)
+        {
+            throw new ZipException("Input is not in the GZIP format");
+        }
+
+        final int flags = this.readUnsignedByte();
+        // modification time, extra flags and operating system
+        for (int idx = 0; idx < 6; idx++)
+        {
+            this.readUnsignedByte();
+        }
+
+        if ((flags & GZIP_FLAG_EXTRA) != 0)
+        {
+            final int extraLength = this.readUnsignedShortLE();
+            for (int idx = 0; idx < extraLength; idx++)
+            {
+                this.readUnsignedByte();
+            }
+        }
+        if ((flags & GZIP_FLAG_NAME) != 0)
+        {
+            while (this.readUnsignedByte() != 0)
+            {
+                // NO-OP - skip zero-terminated name
+            }
+        }
+        if ((flags & GZIP_FLAG_COMMENT) != 0)
+        {
+            while (this.readUnsignedByte() != 0)
+            {
+                // NO-OP - skip zero-terminated comment
+            }
+        }
+        if ((flags & GZIP_FLAG_HEADER_CRC) != 0)
+        {
+            this.readUnsignedShortLE();
+        }
+    }
+
+    protected void readGzipTrailer() throws IOException
+    {
+        final long crc = this.readUnsignedIntLE();
+        final long uncompressedLength = this.readUnsignedIntLE();
+        if (crc != this.crc.getValue())
+        {
+            throw new ZipException("Checksum of decompressed content does not match GZIP trailer");
+        }
+        if (uncompressedLength != (this.inflater.getBytesWritten() & 0xFFFFFFFFL))
+        {
+            throw new ZipException("Length of decompressed content does not match GZIP trailer");
+        }
+    }
+
+    protected void ensureOpen() throws IOException
+    {
+        if (this.inflater == null)
+        {
+            throw new IOException("Stream has already been closed");
+        }
+    }
+}
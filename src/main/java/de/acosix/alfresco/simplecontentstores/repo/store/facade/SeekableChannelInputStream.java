@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.facade;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+
+import org.alfresco.util.ParameterCheck;
+
+/**
+ * Instances of this class provide an input stream view on a seekable channel, supporting efficient {@link #skip(long) skipping} by
+ * repositioning the channel instead of reading and discarding bytes. This is relevant e.g. for HTTP range requests, which are processed by
+ * Alfresco by skipping to the start of the range on the content input stream.
+ *
+ * @author Axel Faust
+ */
+public class SeekableChannelInputStream extends InputStream
+{
+
+    protected final SeekableByteChannel channel;
+
+    protected final ByteBuffer singleByteBuffer = ByteBuffer.allocate(1);
+
+    public SeekableChannelInputStream(final SeekableByteChannel channel)
+    {
+        ParameterCheck.mandatory("channel", channel);
+        this.channel = channel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException
+    {
+        this.singleByteBuffer.clear();
+        int bytesRead = 0;
+        while (bytesRead == 0)
+        {
+            bytesRead = this.channel.read(this.singleByteBuffer);
+        }
+        return bytesRead == -1 ? -1 : this.singleByteBuffer.get(0) & 0xFF;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+        return this.channel.read(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long skip(final long n) throws IOException
+    {
+        long skipped = 0;
+        if (n > 0)
+        {
+            final long position = this.channel.position();
+            final long size = this.channel.size();
+            skipped = Math.max(0, Math.min(n, size - position));
+            this.channel.position(position + skipped);
+        }
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() throws IOException
+    {
+        final long remaining = Math.max(0, this.channel.size() - this.channel.position());
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.channel.close();
+    }
+}
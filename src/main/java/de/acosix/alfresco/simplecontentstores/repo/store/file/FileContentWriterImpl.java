@@ -21,13 +21,25 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
 
 import org.alfresco.repo.content.AbstractContentWriter;
+import org.alfresco.repo.content.ContentLimitProvider;
+import org.alfresco.repo.content.ContentLimitViolationException;
 import org.alfresco.repo.content.ContentStore;
 import org.alfresco.repo.content.filestore.FileContentStore;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.util.ParameterCheck;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +60,8 @@ public class FileContentWriterImpl extends AbstractContentWriter
 
     protected boolean allowRandomAccess;
 
+    protected ContentLimitProvider contentLimitProvider;
+
     /**
      * Constructor that builds a URL based on the absolute path of the file.
      *
@@ -132,6 +146,107 @@ public class FileContentWriterImpl extends AbstractContentWriter
         this.allowRandomAccess = allow;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setContentLimitProvider(final ContentLimitProvider contentLimitProvider)
+    {
+        super.setContentLimitProvider(contentLimitProvider);
+        // keep our own reference as the limit needs to be checked for promoted content, which does not go through putContent
+        this.contentLimitProvider = contentLimitProvider;
+    }
+
+    /**
+     * Promotes a fully written file, e.g. content staged in a temporary file content store, to become the content of this writer. If the
+     * file is located on the same file system as the file of this writer, it is atomically moved in place, avoiding a full copy of the
+     * content. Otherwise, the content is copied and the source file left as is, so callers must always handle clean up of the source file
+     * as if it had been copied.
+     *
+     * Just as with any of the {@code putContent} operations, this writer is closed and any listeners are notified once the content has
+     * been promoted.
+     *
+     * @param sourceFile
+     *     the file to promote - this file must no longer be written to or read from by any other party
+     * @throws ContentIOException
+     *     if the file could neither be moved nor copied
+     */
+    public void promoteContent(final File sourceFile) throws ContentIOException
+    {
+        ParameterCheck.mandatory("sourceFile", sourceFile);
+
+        final Path sourcePath = sourceFile.toPath();
+        final Path targetPath = this.file.toPath();
+        try
+        {
+            final long size = Files.size(sourcePath);
+            final long sizeLimit = this.contentLimitProvider != null ? this.contentLimitProvider.getSizeLimit()
+                    : ContentLimitProvider.NO_LIMIT;
+            if (sizeLimit != ContentLimitProvider.NO_LIMIT && size > sizeLimit)
+            {
+                throw new ContentLimitViolationException("Content size violation, limit = " + sizeLimit);
+            }
+
+            // open channel like for any regular write to mark the writer as in use and handle closing / listener notification
+            try (WritableByteChannel channel = this.getWritableChannel())
+            {
+                // a moved file retains its own permissions instead of those the store applies to any new file
+                Set<PosixFilePermission> permissions = null;
+                try
+                {
+                    permissions = Files.getPosixFilePermissions(targetPath);
+                }
+                catch (final UnsupportedOperationException ex)
+                {
+                    LOGGER.debug("File system does not support posix file attributes - unable to ensure permissions of promoted content");
+                }
+
+                boolean moved;
+                try
+                {
+                    // replaces the (empty) file while still opened by the channel - works on POSIX, but may fail e.g. on Windows
+                    Files.move(sourcePath, targetPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    moved = true;
+                }
+                catch (final AtomicMoveNotSupportedException amnsex)
+                {
+                    LOGGER.debug("Cannot move {} to {} across file systems - falling back to copying content", sourcePath, targetPath);
+                    moved = false;
+                }
+                catch (final FileSystemException fsex)
+                {
+                    LOGGER.debug("Failed to move {} to {} - falling back to copying content", sourcePath, targetPath, fsex);
+                    moved = false;
+                }
+
+                if (moved)
+                {
+                    if (permissions != null)
+                    {
+                        Files.setPosixFilePermissions(targetPath, permissions);
+                    }
+                    LOGGER.debug("Promoted {} to {} without copying content", sourcePath, targetPath);
+                }
+                else
+                {
+                    try (FileChannel sourceChannel = FileChannel.open(sourcePath, StandardOpenOption.READ))
+                    {
+                        long position = 0;
+                        long bytesTransferred = 0;
+                        while (position < size && (bytesTransferred = sourceChannel.transferTo(position, size - position, channel)) > 0)
+                        {
+                            position += bytesTransferred;
+                        }
+                    }
+                }
+            }
+        }
+        catch (final IOException ioex)
+        {
+            throw new ContentIOException("Failed to promote " + sourceFile + " to " + this, ioex);
+        }
+    }
+
     /**
      *
      * {@inheritDoc}
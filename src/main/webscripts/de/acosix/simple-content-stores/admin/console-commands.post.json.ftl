@@ -38,7 +38,19 @@ limitations under the License.
                 "\t${msg("console-commands.listEncryptionKeysEligibleForReEncryption.description")}",
                 "",
                 "reEncryptSymmetricKeys <masterKey>",
-                "\t${msg("console-commands.reEncryptSymmetricKeys.description")}"
+                "\t${msg("console-commands.reEncryptSymmetricKeys.description")}",
+                "",
+                "showDecryptedKeyCacheStatistics",
+                "\t${msg("console-commands.showDecryptedKeyCacheStatistics.description")}",
+                "",
+                "showCipherPoolStatistics",
+                "\t${msg("console-commands.showCipherPoolStatistics.description")}",
+                "",
+                "showBufferPoolStatistics",
+                "\t${msg("console-commands.showBufferPoolStatistics.description")}",
+                "",
+                "showReEncryptionStatistics",
+                "\t${msg("console-commands.showReEncryptionStatistics.description")}"
                 <#break>
             <#case "listEncryptionKeys">
             <#case "listEncryptionKeysEligibleForReEncryption">
@@ -71,6 +83,14 @@ limitations under the License.
             <#case "reEncryptSymmetricKeys">
                     "${msg("console-commands.reEncrypted", key.keystoreId, key.alias)}"
                 <#break>
+            <#case "showDecryptedKeyCacheStatistics">
+            <#case "showCipherPoolStatistics">
+            <#case "showBufferPoolStatistics">
+            <#case "showReEncryptionStatistics">
+                <#list cacheStatistics?keys as statistic>
+                    "${msg("console-commands.cacheStatistic", statistic, cacheStatistics[statistic]?c)}"<#if statistic_has_next>,</#if>
+                </#list>
+                <#break>
         </#switch>
     ]
 }
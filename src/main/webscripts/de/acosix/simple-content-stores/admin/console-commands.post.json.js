@@ -172,6 +172,18 @@ function main()
         case 'reEncryptSymmetricKeys':
             reEncryptSymmetricKeys(reqArgs);
             break;
+        case 'showDecryptedKeyCacheStatistics':
+            model.cacheStatistics = getEncryptingContentStoreManager().decryptedKeyCacheStatistics;
+            break;
+        case 'showCipherPoolStatistics':
+            model.cacheStatistics = getEncryptingContentStoreManager().cipherPoolStatistics;
+            break;
+        case 'showBufferPoolStatistics':
+            model.cacheStatistics = getEncryptingContentStoreManager().bufferPoolStatistics;
+            break;
+        case 'showReEncryptionStatistics':
+            model.cacheStatistics = getEncryptingContentStoreManager().reEncryptionStatistics;
+            break;
         default:
             status.setCode(status.STATUS_NOT_FOUND, 'Command not found');
     }
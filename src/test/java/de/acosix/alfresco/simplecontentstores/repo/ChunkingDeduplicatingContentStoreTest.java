@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo;
+
+import com.thedeanda.lorem.Lorem;
+import com.thedeanda.lorem.LoremIpsum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.namespace.DynamicNamespacePrefixResolver;
+import org.alfresco.service.namespace.NamespaceService;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.ChunkingDeduplicatingContentStore;
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentStore;
+
+/**
+ *
+ * @author Axel Faust
+ */
+public class ChunkingDeduplicatingContentStoreTest
+{
+
+    private static final String STORE_PROTOCOL = ChunkingDeduplicatingContentStoreTest.class.getSimpleName();
+
+    private static final SecureRandom SEED_PRNG;
+    static
+    {
+        try
+        {
+            SEED_PRNG = new SecureRandom(ChunkingDeduplicatingContentStoreTest.class.getName().getBytes(StandardCharsets.UTF_8.name()));
+        }
+        catch (final UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException("Java does not support UTF-8 anymore, so run for your lives...", ex);
+        }
+    }
+
+    private static DynamicNamespacePrefixResolver PREFIX_RESOLVER;
+
+    private File backingStoreFolder;
+
+    private ChunkingDeduplicatingContentStore chunkingContentStore;
+
+    @BeforeClass
+    public static void staticSetup()
+    {
+        if (PREFIX_RESOLVER == null)
+        {
+            PREFIX_RESOLVER = new DynamicNamespacePrefixResolver();
+            PREFIX_RESOLVER.registerNamespace(NamespaceService.SYSTEM_MODEL_PREFIX, NamespaceService.SYSTEM_MODEL_1_0_URI);
+            PREFIX_RESOLVER.registerNamespace(NamespaceService.CONTENT_MODEL_PREFIX, NamespaceService.CONTENT_MODEL_1_0_URI);
+        }
+    }
+
+    @Before
+    public void setup() throws IOException
+    {
+        this.backingStoreFolder = TestUtilities.createFolder();
+
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        this.chunkingContentStore = new ChunkingDeduplicatingContentStore();
+        this.chunkingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        this.chunkingContentStore.setDictionaryService(dictionaryService);
+        // small chunks so that generated text is split into a reasonable number of chunks
+        this.chunkingContentStore.setMinChunkSize(256);
+        this.chunkingContentStore.setAverageChunkSize(1024);
+        this.chunkingContentStore.setMaxChunkSize(4096);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(this.backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol(STORE_PROTOCOL);
+        this.chunkingContentStore.setBackingStore(fileContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        this.chunkingContentStore.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.chunkingContentStore.destroy();
+        TestUtilities.delete(this.backingStoreFolder);
+    }
+
+    @Test
+    public void nearDuplicateDeduplication() throws Exception
+    {
+        final String baseText = generateText(SEED_PRNG.nextLong());
+        final String insertedText = generateText(SEED_PRNG.nextLong()).substring(0, 100);
+        final int insertPosition = baseText.length() / 2;
+        final String modifiedText = baseText.substring(0, insertPosition) + insertedText + baseText.substring(insertPosition);
+
+        final ContentWriter firstWriter = testIndividualWriteAndRead(this.chunkingContentStore, baseText);
+        final long chunkCountAfterFirstWrite = this.countChunks();
+        Assert.assertTrue("Content should have been split into multiple chunks", chunkCountAfterFirstWrite > 5);
+        Assert.assertTrue("Manifest in backing store should be much smaller than the content",
+                Files.size(this.toPath(firstWriter.getContentUrl())) < baseText.length() / 10);
+
+        final ContentWriter secondWriter = testIndividualWriteAndRead(this.chunkingContentStore, baseText);
+        Assert.assertNotEquals("Each content should have its own content URL", firstWriter.getContentUrl(), secondWriter.getContentUrl());
+        Assert.assertEquals("Number of chunks should not change by writing same content twice", chunkCountAfterFirstWrite,
+                this.countChunks());
+
+        testIndividualWriteAndRead(this.chunkingContentStore, modifiedText);
+        final long newChunkCount = this.countChunks() - chunkCountAfterFirstWrite;
+        Assert.assertTrue("Inserting text should only affect the chunks around the change", newChunkCount > 0 && newChunkCount <= 3);
+    }
+
+    @Test
+    public void orphanedChunkDeletion() throws Exception
+    {
+        final String firstText = generateText(SEED_PRNG.nextLong());
+        final String secondText = generateText(SEED_PRNG.nextLong());
+
+        final ContentWriter firstWriter = testIndividualWriteAndRead(this.chunkingContentStore, firstText);
+        final long chunkCountAfterFirstWrite = this.countChunks();
+        final ContentWriter secondWriter = testIndividualWriteAndRead(this.chunkingContentStore, secondText);
+
+        this.chunkingContentStore.setOrphanedChunkMinAge(0);
+        Assert.assertEquals("No chunks should be deleted while all chunks are referenced", 0,
+                this.chunkingContentStore.deleteOrphanedChunks());
+
+        Assert.assertTrue("Manifest of content should have been deleted", this.chunkingContentStore.delete(secondWriter.getContentUrl()));
+        Assert.assertNotEquals("Chunks of deleted content should have been deleted", 0, this.chunkingContentStore.deleteOrphanedChunks());
+        Assert.assertEquals("Only chunks of deleted content should have been deleted", chunkCountAfterFirstWrite, this.countChunks());
+
+        final ContentReader reader = this.chunkingContentStore.getReader(firstWriter.getContentUrl());
+        Assert.assertEquals("Content should still be readable after deleting chunks of other content", firstText,
+                reader.getContentString());
+    }
+
+    @Test
+    public void reusedChunksTouched() throws Exception
+    {
+        final String text = generateText(SEED_PRNG.nextLong());
+
+        final ContentWriter firstWriter = testIndividualWriteAndRead(this.chunkingContentStore, text);
+        Assert.assertTrue("Manifest of content should have been deleted", this.chunkingContentStore.delete(firstWriter.getContentUrl()));
+
+        // orphaned chunks old enough to be deleted by any sweep
+        final long backdatedTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        final Path chunkRootPath = this.backingStoreFolder.toPath().resolve("chunks");
+        TestUtilities.walkAndProcess(chunkRootPath, stream -> {
+            stream.filter(Files::isRegularFile).forEach(path -> path.toFile().setLastModified(backdatedTime));
+            return null;
+        }, FileVisitOption.FOLLOW_LINKS);
+
+        final ContentWriter secondWriter = testIndividualWriteAndRead(this.chunkingContentStore, text);
+        final long staleChunks = TestUtilities.walkAndProcess(chunkRootPath,
+                stream -> stream.filter(Files::isRegularFile).filter(path -> path.toFile().lastModified() <= backdatedTime).count(),
+                FileVisitOption.FOLLOW_LINKS);
+        Assert.assertEquals("Reused chunks should have been touched", 0, staleChunks);
+
+        // sweeps on other servers unaware of content still being written must not consider the reused chunks as old orphans
+        Assert.assertTrue("Manifest of content should have been deleted", this.chunkingContentStore.delete(secondWriter.getContentUrl()));
+        Assert.assertEquals("Recently reused chunks should not be deleted", 0, this.chunkingContentStore.deleteOrphanedChunks());
+    }
+
+    private long countChunks() throws IOException
+    {
+        final Path chunkRootPath = this.backingStoreFolder.toPath().resolve("chunks");
+        return TestUtilities.walkAndProcess(chunkRootPath, stream -> stream.filter(Files::isRegularFile).count(),
+                FileVisitOption.FOLLOW_LINKS);
+    }
+
+    private Path toPath(final String contentUrl)
+    {
+        final String relativePath = contentUrl
+                .substring(contentUrl.indexOf(ContentStore.PROTOCOL_DELIMITER) + ContentStore.PROTOCOL_DELIMITER.length());
+        return this.backingStoreFolder.toPath().resolve(relativePath);
+    }
+
+    private static ContentWriter testIndividualWriteAndRead(final ChunkingDeduplicatingContentStore chunkingContentStore,
+            final String testText)
+    {
+        return ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = chunkingContentStore.getWriter(new ContentContext(null, null));
+            writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+            writer.setEncoding(StandardCharsets.UTF_8.name());
+            writer.setLocale(Locale.ENGLISH);
+            writer.putContent(testText);
+
+            final String contentUrl = writer.getContentUrl();
+            Assert.assertNotNull("Content URL was not set after writing content", contentUrl);
+            Assert.assertTrue("Content URL does not start with the configured protocol",
+                    contentUrl.startsWith(STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER));
+
+            final ContentReader properReader = chunkingContentStore.getReader(contentUrl);
+            Assert.assertTrue("Reader does not refer to existing file for freshly written content", properReader.exists());
+            properReader.setEncoding(StandardCharsets.UTF_8.name());
+            Assert.assertEquals("Reader does not report size of reassembled content", testText.getBytes(StandardCharsets.UTF_8).length,
+                    properReader.getSize());
+
+            final String readText = properReader.getContentString();
+            Assert.assertEquals("Read content does not match written test content", testText, readText);
+
+            return writer;
+        });
+    }
+
+    private static String generateText(final long seed)
+    {
+        final Lorem lorem = new LoremIpsum(Long.valueOf(seed));
+        final String text = lorem.getParagraphs(20, 40);
+        return text;
+    }
+}
@@ -18,21 +18,39 @@ package de.acosix.alfresco.simplecontentstores.repo;
 import com.thedeanda.lorem.Lorem;
 import com.thedeanda.lorem.LoremIpsum;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.MimetypeServiceAware;
 import org.alfresco.service.namespace.DynamicNamespacePrefixResolver;
 import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 import org.easymock.EasyMock;
@@ -40,10 +58,16 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.springframework.util.FileCopyUtils;
 
 import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingContentStore;
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.CompressedContentHeader;
 import de.acosix.alfresco.simplecontentstores.repo.store.facade.CompressingContentStore;
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.CompressionCodec;
+import de.acosix.alfresco.simplecontentstores.repo.store.facade.CompressionDictionaryRegistry;
 import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentStore;
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentWriterImpl;
 
 /**
  *
@@ -104,7 +128,8 @@ public class CompressingContentStoreTest
         temporaryContentStore.afterPropertiesSet();
         compressingContentStore.afterPropertiesSet();
 
-        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.GZIP);
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.GZIP,
+                false);
     }
 
     @Test
@@ -131,8 +156,9 @@ public class CompressingContentStoreTest
         temporaryContentStore.afterPropertiesSet();
         compressingContentStore.afterPropertiesSet();
 
-        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.GZIP);
-        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_XML, CompressorStreamFactory.GZIP);
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.GZIP,
+                false);
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_XML, CompressorStreamFactory.GZIP, false);
         testUncompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_PDF);
     }
 
@@ -160,11 +186,621 @@ public class CompressingContentStoreTest
         temporaryContentStore.afterPropertiesSet();
         compressingContentStore.afterPropertiesSet();
 
-        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.BZIP2);
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.BZIP2,
+                false);
+    }
+
+    @Test
+    public void levelledZstdCompression() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setCompressionType(CompressorStreamFactory.ZSTANDARD);
+        compressingContentStore.setCompressionLevels(Collections.singletonMap("text/*", Integer.valueOf(19)));
+        compressingContentStore.setRecordUncompressedLength(true);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN,
+                CompressorStreamFactory.ZSTANDARD, true);
+    }
+
+    @Test
+    public void headerBasedDecompressionWithoutMimetype() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setMimetypesToCompress(Arrays.asList(MimetypeMap.MIMETYPE_TEXT_PLAIN, MimetypeMap.MIMETYPE_XML));
+        compressingContentStore.setRecordUncompressedLength(true);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            final String testText = CompressingContentStoreTest.generateCopmressableText();
+            writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+            writer.setEncoding(StandardCharsets.UTF_8.name());
+            writer.putContent(testText);
+
+            final String contentUrl = writer.getContentUrl();
+            Assert.assertTrue("Content was not compressed",
+                    fileContentStore.getReader(contentUrl).getSize() < testText.getBytes(StandardCharsets.UTF_8).length);
+
+            // neither reader nor context know about mimetype - header alone determines how content is decompressed
+            final ContentReader properReader = compressingContentStore.getReader(contentUrl);
+            properReader.setEncoding(StandardCharsets.UTF_8.name());
+            Assert.assertEquals("Reader did not report size of uncompressed content", testText.getBytes(StandardCharsets.UTF_8).length,
+                    properReader.getSize());
+            Assert.assertEquals("Read content does not match written test content", testText, properReader.getContentString());
+
+            return null;
+        });
+    }
+
+    @Test
+    public void inlineWriteWithKnownMimetype() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setMimetypesToCompress(Arrays.asList(MimetypeMap.MIMETYPE_TEXT_PLAIN, MimetypeMap.MIMETYPE_XML));
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final List<ContentWriter> temporaryWriters = new ArrayList<>();
+        final FileContentStore temporaryContentStore = createRecordingTemporaryStore(temporaryWriters);
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        // known mimetype allows to decide on compression when content is written, both for compressed and uncompressed content
+        testCompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_TEXT_PLAIN, CompressorStreamFactory.GZIP,
+                false);
+        testUncompressableMimetype(compressingContentStore, fileContentStore, MimetypeMap.MIMETYPE_PDF);
+
+        Assert.assertTrue("Content with known mimetype should not have been staged in temporary store", temporaryWriters.isEmpty());
+    }
+
+    @Test
+    public void stagedWriteWithUnknownMimetype() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+        final MimetypeService mimetypeService = EasyMock.mock(MimetypeService.class);
+        EasyMock.expect(mimetypeService.guessMimetype(EasyMock.<String> anyObject(), EasyMock.anyObject(ContentReader.class)))
+                .andReturn(MimetypeMap.MIMETYPE_TEXT_PLAIN).anyTimes();
+        EasyMock.replay(mimetypeService);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setMimetypesToCompress(Arrays.asList(MimetypeMap.MIMETYPE_TEXT_PLAIN, MimetypeMap.MIMETYPE_XML));
+        compressingContentStore.setRecordUncompressedLength(true);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final List<ContentWriter> temporaryWriters = new ArrayList<>();
+        final FileContentStore temporaryContentStore = createRecordingTemporaryStore(temporaryWriters);
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        final String testText = CompressingContentStoreTest.generateCopmressableText();
+        final byte[] testBytes = testText.getBytes(StandardCharsets.UTF_8);
+
+        // without mimetype (and without MimetypeService to guess it), staged content is promoted to the backing store as is
+        ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            writer.setEncoding(StandardCharsets.UTF_8.name());
+            writer.putContent(testText);
+
+            Assert.assertEquals("Content without mimetype should have been staged in temporary store", 1, temporaryWriters.size());
+            Assert.assertFalse("Staged content should have been cleaned up",
+                    ((FileContentWriterImpl) temporaryWriters.get(0)).getFile().exists());
+
+            final String contentUrl = writer.getContentUrl();
+            final ContentReader backingReader = fileContentStore.getReader(contentUrl);
+            backingReader.setEncoding(StandardCharsets.UTF_8.name());
+            Assert.assertEquals("Content without mimetype should have been stored uncompressed", testText,
+                    backingReader.getContentString());
+
+            final ContentReader properReader = compressingContentStore.getReader(contentUrl);
+            properReader.setEncoding(StandardCharsets.UTF_8.name());
+            Assert.assertEquals("Read content does not match written test content", testText, properReader.getContentString());
+
+            return null;
+        });
+
+        // a mimetype guessed from the name / content is only known once all content has been staged
+        ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            ((MimetypeServiceAware) writer).setMimetypeService(mimetypeService);
+            writer.setEncoding(StandardCharsets.UTF_8.name());
+            writer.guessMimetype("test.txt");
+            writer.putContent(testText);
+
+            Assert.assertEquals("Content with mimetype still to be guessed should have been staged in temporary store", 2,
+                    temporaryWriters.size());
+            Assert.assertFalse("Staged content should have been cleaned up",
+                    ((FileContentWriterImpl) temporaryWriters.get(1)).getFile().exists());
+
+            final String contentUrl = writer.getContentUrl();
+            final ContentReader backingReader = fileContentStore.getReader(contentUrl);
+            Assert.assertTrue("Content with guessed mimetype was not compressed", backingReader.getSize() < testBytes.length);
+            try (InputStream contentInputStream = new BufferedInputStream(backingReader.getContentInputStream()))
+            {
+                final CompressedContentHeader header = CompressedContentHeader.readHeader(contentInputStream);
+                Assert.assertNotNull("Compressed content does not have a header", header);
+                Assert.assertEquals("Header does not record compression type", CompressorStreamFactory.GZIP, header.getCompressionType());
+                Assert.assertEquals("Header does not record uncompressed length", testBytes.length, header.getUncompressedLength());
+            }
+
+            final ContentReader properReader = compressingContentStore.getReader(contentUrl);
+            properReader.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+            properReader.setEncoding(StandardCharsets.UTF_8.name());
+            Assert.assertEquals("Reader did not report size of uncompressed content", testBytes.length, properReader.getSize());
+            Assert.assertEquals("Read content does not match written test content", testText, properReader.getContentString());
+
+            return null;
+        });
+    }
+
+    @Test
+    public void blockIndexedCompression() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setBlockSize(1024);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        testBlockIndexedCompression(compressingContentStore, fileContentStore);
+    }
+
+    @Test
+    public void parallelBlockIndexedCompression() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setBlockSize(1024);
+        compressingContentStore.setParallelCompressionThreads(4);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        try
+        {
+            testBlockIndexedCompression(compressingContentStore, fileContentStore);
+        }
+        finally
+        {
+            compressingContentStore.destroy();
+        }
+    }
+
+    @Test
+    public void adaptiveCompression() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setMimetypesToCompress(Arrays.asList(MimetypeMap.MIMETYPE_TEXT_PLAIN, MimetypeMap.MIMETYPE_PDF));
+        compressingContentStore.setAdaptiveCompression(true);
+        compressingContentStore.setRecordUncompressedLength(true);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        final byte[] compressibleContent = generateCopmressableText().getBytes(StandardCharsets.UTF_8);
+        final byte[] incompressibleContent = new byte[256 * 1024];
+        new Random(CompressingContentStoreTest.class.getName().hashCode()).nextBytes(incompressibleContent);
+
+        final long compressibleBackingSize = testAdaptiveCompression(compressingContentStore, fileContentStore,
+                MimetypeMap.MIMETYPE_TEXT_PLAIN, compressibleContent);
+        Assert.assertTrue("Compressible content was not compressed", compressibleBackingSize < compressibleContent.length);
+
+        final long incompressibleBackingSize = testAdaptiveCompression(compressingContentStore, fileContentStore,
+                MimetypeMap.MIMETYPE_PDF, incompressibleContent);
+        Assert.assertTrue("Incompressible content was not stored as-is",
+                incompressibleBackingSize > incompressibleContent.length && incompressibleBackingSize < incompressibleContent.length + 64);
+
+        final Map<String, Map<String, Long>> statistics = compressingContentStore.getCompressionStatistics();
+        Assert.assertEquals("Decision for compressible content not recorded", Long.valueOf(1),
+                statistics.get(MimetypeMap.MIMETYPE_TEXT_PLAIN).get("storedCompressed"));
+        Assert.assertEquals("Decision for incompressible content not recorded", Long.valueOf(1),
+                statistics.get(MimetypeMap.MIMETYPE_PDF).get("storedUncompressed"));
+    }
+
+    @Test
+    public void dictionaryCompression() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final CompressionDictionaryRegistry dictionaryRegistry = createDictionaryRegistry(new HashMap<>());
+        dictionaryRegistry.setTrainingSampleCount(100);
+
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(dictionaryService);
+        compressingContentStore.setCompressionType(CompressorStreamFactory.ZSTANDARD);
+        compressingContentStore.setDictionaryMimetypes(Collections.singleton(MimetypeMap.MIMETYPE_JSON));
+        compressingContentStore.setDictionaryRegistry(dictionaryRegistry);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+        compressingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        dictionaryRegistry.afterPropertiesSet();
+        compressingContentStore.afterPropertiesSet();
+
+        try
+        {
+            final List<byte[]> samples = generateJsonSamples(101);
+            for (final byte[] sample : samples.subList(0, 100))
+            {
+                testDictionaryCompression(compressingContentStore, fileContentStore, sample, CompressionCodec.NO_DICTIONARY);
+            }
+
+            // dictionary is trained in the background once enough samples have been collected
+            final long timeout = System.currentTimeMillis() + 60000;
+            int dictionaryId = dictionaryRegistry.getCurrentDictionaryId(MimetypeMap.MIMETYPE_JSON);
+            while (dictionaryId == CompressionCodec.NO_DICTIONARY && System.currentTimeMillis() < timeout)
+            {
+                Thread.sleep(100);
+                dictionaryId = dictionaryRegistry.getCurrentDictionaryId(MimetypeMap.MIMETYPE_JSON);
+            }
+            Assert.assertNotEquals("Dictionary was not trained", CompressionCodec.NO_DICTIONARY, dictionaryId);
+
+            testDictionaryCompression(compressingContentStore, fileContentStore, samples.get(100), dictionaryId);
+        }
+        finally
+        {
+            dictionaryRegistry.destroy();
+        }
+    }
+
+    @Test
+    public void dictionaryIdCollisionDetected() throws Exception
+    {
+        final Map<List<Serializable>, Serializable> attributes = new HashMap<>();
+        final List<byte[]> samples = generateJsonSamples(100);
+
+        final CompressionDictionaryRegistry dictionaryRegistry = createDictionaryRegistry(attributes);
+        dictionaryRegistry.afterPropertiesSet();
+        final byte[] otherDictionary;
+        try
+        {
+            final int dictionaryId = dictionaryRegistry.trainDictionary(MimetypeMap.MIMETYPE_JSON, samples);
+
+            // training on the same samples yields the same dictionary, which is not a collision
+            Assert.assertEquals("Training on the same samples did not yield the same dictionary", dictionaryId,
+                    dictionaryRegistry.trainDictionary(MimetypeMap.MIMETYPE_JSON, samples));
+
+            // simulate a different dictionary with the same ID having been trained on another server
+            final byte[] dictionary = dictionaryRegistry.getDictionary(dictionaryId);
+            otherDictionary = Arrays.copyOf(dictionary, dictionary.length);
+            otherDictionary[otherDictionary.length - 1]++;
+            attributes.replaceAll((key, value) -> value instanceof byte[] ? otherDictionary : value);
+        }
+        finally
+        {
+            dictionaryRegistry.destroy();
+        }
+
+        final CompressionDictionaryRegistry otherDictionaryRegistry = createDictionaryRegistry(attributes);
+        otherDictionaryRegistry.afterPropertiesSet();
+        try
+        {
+            otherDictionaryRegistry.trainDictionary(MimetypeMap.MIMETYPE_JSON, samples);
+            Assert.fail("Dictionary with the ID of an existing, different dictionary should not have been stored");
+        }
+        catch (final ContentIOException expected)
+        {
+            Assert.assertArrayEquals("Existing dictionary has been overwritten", otherDictionary,
+                    (byte[]) attributes.values().stream().filter(byte[].class::isInstance).findFirst().get());
+        }
+        finally
+        {
+            otherDictionaryRegistry.destroy();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void dictionariesRejectedForEncryptingBackingStore() throws Exception
+    {
+        final CompressingContentStore compressingContentStore = new CompressingContentStore();
+        compressingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        compressingContentStore.setDictionaryService(EasyMock.mock(DictionaryService.class));
+        compressingContentStore.setCompressionType(CompressorStreamFactory.ZSTANDARD);
+        compressingContentStore.setDictionaryMimetypes(Collections.singleton(MimetypeMap.MIMETYPE_JSON));
+        compressingContentStore.setDictionaryRegistry(createDictionaryRegistry(new HashMap<>()));
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol("store");
+
+        final EncryptingContentStore encryptingContentStore = new EncryptingContentStore();
+        encryptingContentStore.setBackingStore(fileContentStore);
+        compressingContentStore.setBackingStore(encryptingContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        compressingContentStore.setTemporaryStore(temporaryContentStore);
+
+        compressingContentStore.afterPropertiesSet();
+    }
+
+    private static void testDictionaryCompression(final CompressingContentStore compressingContentStore,
+            final FileContentStore fileContentStore, final byte[] content, final int expectedDictionaryId) throws Exception
+    {
+        ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            writer.setMimetype(MimetypeMap.MIMETYPE_JSON);
+            writer.putContent(new ByteArrayInputStream(content));
+
+            final String contentUrl = writer.getContentUrl();
+            final ContentReader backingReader = fileContentStore.getReader(contentUrl);
+            try (InputStream is = new BufferedInputStream(backingReader.getContentInputStream()))
+            {
+                final CompressedContentHeader header = CompressedContentHeader.readHeader(is);
+                if (expectedDictionaryId != CompressionCodec.NO_DICTIONARY)
+                {
+                    Assert.assertNotNull("Content compressed with a dictionary does not have a header", header);
+                }
+                Assert.assertEquals("Header does not record expected dictionary", expectedDictionaryId,
+                        header != null ? header.getDictionaryId() : CompressionCodec.NO_DICTIONARY);
+            }
+
+            final ContentReader reader = compressingContentStore.getReader(contentUrl);
+            reader.setMimetype(MimetypeMap.MIMETYPE_JSON);
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            reader.getContent(os);
+            Assert.assertArrayEquals("Read content does not match written test content", content, os.toByteArray());
+
+            return null;
+        });
+    }
+
+    private static CompressionDictionaryRegistry createDictionaryRegistry(final Map<List<Serializable>, Serializable> attributes)
+    {
+        final RetryingTransactionHelper retryingTransactionHelper = new RetryingTransactionHelper()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public <R> R doInTransaction(final RetryingTransactionCallback<R> cb, final boolean readOnly, final boolean requiresNew)
+            {
+                try
+                {
+                    return cb.execute();
+                }
+                catch (final RuntimeException ex)
+                {
+                    throw ex;
+                }
+                catch (final Throwable t)
+                {
+                    throw new IllegalStateException(t);
+                }
+            }
+        };
+        final TransactionService transactionService = EasyMock.mock(TransactionService.class);
+        EasyMock.expect(transactionService.getRetryingTransactionHelper()).andReturn(retryingTransactionHelper).anyTimes();
+        EasyMock.replay(transactionService);
+
+        // simple in-memory attribute service for the operations used by the registry
+        final AttributeService attributeService = (AttributeService) Proxy.newProxyInstance(
+                CompressingContentStoreTest.class.getClassLoader(), new Class<?>[] { AttributeService.class }, (proxy, method, args) -> {
+                    final Serializable[] keys = (Serializable[]) args[args.length - 1];
+                    switch (method.getName())
+                    {
+                        case "getAttribute":
+                            return attributes.get(Arrays.asList(keys));
+                        case "setAttribute":
+                            attributes.put(Arrays.asList(keys), (Serializable) args[0]);
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+
+        final CompressionDictionaryRegistry dictionaryRegistry = new CompressionDictionaryRegistry();
+        dictionaryRegistry.setTransactionService(transactionService);
+        dictionaryRegistry.setAttributeService(attributeService);
+        dictionaryRegistry.setDictionarySize(16384);
+        return dictionaryRegistry;
+    }
+
+    private static FileContentStore createRecordingTemporaryStore(final List<ContentWriter> temporaryWriters)
+    {
+        final FileContentStore temporaryContentStore = new FileContentStore()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            protected ContentWriter getWriterInternal(final ContentReader existingContentReader, final String newContentUrl)
+            {
+                final ContentWriter writer = super.getWriterInternal(existingContentReader, newContentUrl);
+                temporaryWriters.add(writer);
+                return writer;
+            }
+        };
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol("store");
+        return temporaryContentStore;
+    }
+
+    private static List<byte[]> generateJsonSamples(final int count)
+    {
+        final Lorem lorem = new LoremIpsum(Long.valueOf(CompressingContentStoreTest.class.getName().hashCode()));
+        final List<byte[]> samples = new ArrayList<>(count);
+        for (int idx = 0; idx < count; idx++)
+        {
+            final String json = "{\"id\":" + idx + ",\"type\":\"document\",\"title\":\"" + lorem.getTitle(2, 6)
+                    + "\",\"author\":{\"name\":\"" + lorem.getName() + "\",\"email\":\"" + lorem.getEmail() + "\"},\"tags\":[\""
+                    + lorem.getWords(1) + "\",\"" + lorem.getWords(1) + "\"],\"body\":\"" + lorem.getParagraphs(1, 2) + "\"}";
+            samples.add(json.getBytes(StandardCharsets.UTF_8));
+        }
+        return samples;
+    }
+
+    private static void testBlockIndexedCompression(final CompressingContentStore compressingContentStore,
+            final FileContentStore fileContentStore) throws Exception
+    {
+        final byte[] content = generateCopmressableText().getBytes(StandardCharsets.UTF_8);
+        final int rangeStart = content.length / 2 + 17;
+
+        ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            writer.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+            writer.putContent(new ByteArrayInputStream(content));
+
+            final String contentUrl = writer.getContentUrl();
+            Assert.assertTrue("Content was not compressed", fileContentStore.getReader(contentUrl).getSize() < content.length);
+
+            final ContentReader reader = compressingContentStore.getReader(contentUrl);
+            reader.setMimetype(MimetypeMap.MIMETYPE_TEXT_PLAIN);
+            try (InputStream is = reader.getContentInputStream())
+            {
+                Assert.assertEquals("Range start was not skipped to", rangeStart, is.skip(rangeStart));
+
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                FileCopyUtils.copy(is, os);
+                Assert.assertArrayEquals("Read content range does not match written test content",
+                        Arrays.copyOfRange(content, rangeStart, content.length), os.toByteArray());
+            }
+
+            return null;
+        });
+    }
+
+    private static long testAdaptiveCompression(final CompressingContentStore compressingContentStore,
+            final FileContentStore fileContentStore, final String mimetype, final byte[] content) throws Exception
+    {
+        return ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
+            writer.setMimetype(mimetype);
+            writer.putContent(new ByteArrayInputStream(content));
+
+            final String contentUrl = writer.getContentUrl();
+            Assert.assertNotNull("Content URL was not set after writing content", contentUrl);
+
+            final ContentReader properReader = compressingContentStore.getReader(contentUrl);
+            Assert.assertTrue("Reader does not refer to existing file for freshly written content", properReader.exists());
+
+            // reader does not know about mimetype (provided via persisted ContentData at server runtime)
+            properReader.setMimetype(mimetype);
+            Assert.assertEquals("Reader did not report size of uncompressed content", content.length, properReader.getSize());
+
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            properReader.getContent(os);
+            Assert.assertArrayEquals("Read content does not match written test content", content, os.toByteArray());
+
+            return Long.valueOf(fileContentStore.getReader(contentUrl).getSize());
+        }).longValue();
     }
 
     private static void testCompressableMimetype(final CompressingContentStore compressingContentStore,
-            final FileContentStore fileContentStore, final String mimetype, final String compression) throws Exception
+            final FileContentStore fileContentStore, final String mimetype, final String compression,
+            final boolean recordUncompressedLength) throws Exception
     {
         ContentStoreContext.executeInNewContext(() -> {
             final ContentWriter writer = compressingContentStore.getWriter(new ContentContext(null, null));
@@ -183,6 +819,11 @@ public class CompressingContentStoreTest
 
             // reader does not know about mimetype (provided via persisted ContentData at server runtime)
             properReader.setMimetype(mimetype);
+            if (recordUncompressedLength)
+            {
+                Assert.assertEquals("Reader did not report size of uncompressed content", testText.getBytes(StandardCharsets.UTF_8).length,
+                        properReader.getSize());
+            }
 
             final String readText = properReader.getContentString();
             Assert.assertEquals("Read content does not match written test content", testText, readText);
@@ -201,8 +842,23 @@ public class CompressingContentStoreTest
             backingReader.setMimetype(mimetype);
             try
             {
+                // compressed content is only preceded by a header recording how it was compressed if length recording is enabled
+                final InputStream contentInputStream = new BufferedInputStream(backingReader.getContentInputStream());
+                final CompressedContentHeader header = CompressedContentHeader.readHeader(contentInputStream);
+                if (recordUncompressedLength)
+                {
+                    Assert.assertNotNull("Compressed content does not have a header", header);
+                    Assert.assertEquals("Header does not record compression type", compression, header.getCompressionType());
+                    Assert.assertEquals("Header does not record uncompressed length", testText.getBytes(StandardCharsets.UTF_8).length,
+                            header.getUncompressedLength());
+                }
+                else
+                {
+                    Assert.assertNull("Compressed content has a header though length recording is disabled", header);
+                }
+
                 final CompressorInputStream inputStream = COMPRESSOR_STREAM_FACTORY.createCompressorInputStream(compression,
-                        backingReader.getContentInputStream());
+                        contentInputStream);
                 final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8.name()));
                 final StringBuilder sb = new StringBuilder();
                 final char[] buf = new char[1024];
@@ -23,9 +23,18 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.alfresco.repo.content.ContentContext;
 import org.alfresco.repo.content.ContentStore;
@@ -258,6 +267,149 @@ public class DeduplicatingContentStoreTest
                         .matches("^" + STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER + "([a-fA-F0-9]{4}/){3}[a-fA-F0-9]{64}\\.bin$"));
     }
 
+    @Test
+    public void digestIndexDeduplication() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+        final File digestIndexFolder = TestUtilities.createFolder();
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol(STORE_PROTOCOL);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol(TEMPORARY_STORE_PROTOCOL);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+
+        final DeduplicatingContentStore unindexedContentStore = new DeduplicatingContentStore();
+        unindexedContentStore.setNamespaceService(PREFIX_RESOLVER);
+        unindexedContentStore.setDictionaryService(dictionaryService);
+        unindexedContentStore.setBackingStore(fileContentStore);
+        unindexedContentStore.setTemporaryStore(temporaryContentStore);
+        unindexedContentStore.afterPropertiesSet();
+
+        final String existingText = generateText(SEED_PRNG.nextLong());
+        final String newText = generateText(SEED_PRNG.nextLong());
+        final ContentWriter existingWriter = testIndividualWriteAndRead(unindexedContentStore, existingText);
+
+        try
+        {
+            final DeduplicatingContentStore indexedContentStore = new DeduplicatingContentStore();
+            indexedContentStore.setNamespaceService(PREFIX_RESOLVER);
+            indexedContentStore.setDictionaryService(dictionaryService);
+            indexedContentStore.setBackingStore(fileContentStore);
+            indexedContentStore.setTemporaryStore(temporaryContentStore);
+            indexedContentStore.setUseDigestIndex(true);
+            indexedContentStore.setDigestIndexDirectory(digestIndexFolder.getAbsolutePath());
+            indexedContentStore.afterPropertiesSet();
+            // make sure the index is complete instead of waiting for the background rebuild
+            indexedContentStore.rebuildDigestIndex();
+
+            final ContentWriter duplicateWriter = testIndividualWriteAndRead(indexedContentStore, existingText);
+            Assert.assertEquals("Content URL of writer does not match existing content found via digest index",
+                    existingWriter.getContentUrl(), duplicateWriter.getContentUrl());
+
+            final ContentWriter newWriter = testIndividualWriteAndRead(indexedContentStore, newText);
+            Assert.assertNotEquals("Content URL of writer for new content matches existing content", existingWriter.getContentUrl(),
+                    newWriter.getContentUrl());
+            indexedContentStore.destroy();
+
+            final DeduplicatingContentStore reloadedContentStore = new DeduplicatingContentStore();
+            reloadedContentStore.setNamespaceService(PREFIX_RESOLVER);
+            reloadedContentStore.setDictionaryService(dictionaryService);
+            reloadedContentStore.setBackingStore(fileContentStore);
+            reloadedContentStore.setTemporaryStore(temporaryContentStore);
+            reloadedContentStore.setUseDigestIndex(true);
+            reloadedContentStore.setDigestIndexDirectory(digestIndexFolder.getAbsolutePath());
+            reloadedContentStore.afterPropertiesSet();
+
+            final ContentWriter reloadedWriter = testIndividualWriteAndRead(reloadedContentStore, newText);
+            Assert.assertEquals("Content URL of writer does not match content found via persisted digest index", newWriter.getContentUrl(),
+                    reloadedWriter.getContentUrl());
+
+            Assert.assertTrue("Content could not be deleted", reloadedContentStore.delete(newWriter.getContentUrl()));
+            final ContentWriter rewrittenWriter = testIndividualWriteAndRead(reloadedContentStore, newText);
+            Assert.assertEquals("Content URL of writer for deleted content does not match previous content URL", newWriter.getContentUrl(),
+                    rewrittenWriter.getContentUrl());
+
+            // content deleted behind the index must not be deduplicated onto
+            Assert.assertTrue("Content could not be deleted in backing store", fileContentStore.delete(rewrittenWriter.getContentUrl()));
+            final ContentWriter staleIndexWriter = testIndividualWriteAndRead(reloadedContentStore, newText);
+            Assert.assertEquals("Content URL of writer for content deleted behind index does not match previous content URL",
+                    newWriter.getContentUrl(), staleIndexWriter.getContentUrl());
+            Assert.assertTrue("Content deleted behind index should have been written again",
+                    fileContentStore.exists(staleIndexWriter.getContentUrl()));
+            reloadedContentStore.destroy();
+        }
+        finally
+        {
+            TestUtilities.delete(digestIndexFolder);
+        }
+    }
+
+    @Test
+    public void concurrentDeduplication() throws Exception
+    {
+        final DictionaryService dictionaryService = EasyMock.mock(DictionaryService.class);
+
+        final DeduplicatingContentStore deduplicatingContentStore = new DeduplicatingContentStore();
+        deduplicatingContentStore.setNamespaceService(PREFIX_RESOLVER);
+        deduplicatingContentStore.setDictionaryService(dictionaryService);
+
+        final FileContentStore fileContentStore = new FileContentStore();
+        fileContentStore.setRootDirectory(backingStoreFolder.getAbsolutePath());
+        fileContentStore.setProtocol(STORE_PROTOCOL);
+        deduplicatingContentStore.setBackingStore(fileContentStore);
+
+        final FileContentStore temporaryContentStore = new FileContentStore();
+        temporaryContentStore.setRootDirectory(temporaryStoreFolder.getAbsolutePath());
+        temporaryContentStore.setProtocol(TEMPORARY_STORE_PROTOCOL);
+        deduplicatingContentStore.setTemporaryStore(temporaryContentStore);
+
+        fileContentStore.afterPropertiesSet();
+        temporaryContentStore.afterPropertiesSet();
+        deduplicatingContentStore.afterPropertiesSet();
+
+        final String commonText = generateText(SEED_PRNG.nextLong());
+        final Path rootPath = backingStoreFolder.toPath();
+        final long fileCountBeforeWrites = TestUtilities.walkAndProcess(rootPath, stream -> stream.filter(Files::isRegularFile).count(),
+                FileVisitOption.FOLLOW_LINKS);
+
+        final int writerCount = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(writerCount);
+        try
+        {
+            final CyclicBarrier barrier = new CyclicBarrier(writerCount);
+            final List<Future<ContentWriter>> writers = new ArrayList<>();
+            for (int idx = 0; idx < writerCount; idx++)
+            {
+                writers.add(executor.submit(() -> {
+                    barrier.await();
+                    return testIndividualWriteAndRead(deduplicatingContentStore, commonText);
+                }));
+            }
+
+            final Set<String> contentUrls = new HashSet<>();
+            for (final Future<ContentWriter> writer : writers)
+            {
+                contentUrls.add(writer.get().getContentUrl());
+            }
+            Assert.assertEquals("Concurrent writers of identical content should all use the same content URL", 1, contentUrls.size());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        final long fileCountAfterWrites = TestUtilities.walkAndProcess(rootPath, stream -> stream.filter(Files::isRegularFile).count(),
+                FileVisitOption.FOLLOW_LINKS);
+        Assert.assertEquals("Concurrent writers of identical content should only have stored one content file", fileCountBeforeWrites + 1,
+                fileCountAfterWrites);
+    }
+
     @Test
     public void backingStoreContentURLSupportOnly()
     {
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.DecryptingFileChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.DecryptingReadableByteChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptedContentHeader;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingWritableByteChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelCipherSettings;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelDecryptingFileChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelEncryptingWritableByteChannel;
+
+/**
+ *
+ * @author Axel Faust
+ */
+public class EncryptedContentFormatTest
+{
+
+    private static File folder;
+
+    @BeforeClass
+    public static void staticSetup() throws IOException
+    {
+        folder = TestUtilities.createFolder();
+    }
+
+    @AfterClass
+    public static void staticTearDown()
+    {
+        TestUtilities.delete(folder);
+    }
+
+    @Test
+    public void legacyFormatReadable() throws Exception
+    {
+        final Key key = generateKey();
+        final byte[] content = generateContent(100000);
+        final File file = new File(folder, "legacy.bin");
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key);
+            channel.write(ByteBuffer.wrap(content));
+            channel.close();
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final ByteBuffer prefix = ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH);
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(fileChannel, prefix);
+            Assert.assertNull("Legacy content should not have been detected as having a header", header);
+
+            final DecryptingReadableByteChannel channel = new DecryptingReadableByteChannel(fileChannel, key, prefix);
+            final ByteBuffer decrypted = ByteBuffer.allocate(content.length + 1024);
+            while (channel.read(decrypted) != -1)
+            {
+                // NO-OP
+            }
+            decrypted.flip();
+
+            Assert.assertEquals("Decrypted legacy content has wrong size", content.length, decrypted.remaining());
+            Assert.assertEquals("Decrypted legacy content does not match", ByteBuffer.wrap(content), decrypted);
+        }
+    }
+
+    @Test
+    public void seekableFormatRandomAccess() throws Exception
+    {
+        final Key key = generateKey();
+        final byte[] content = generateContent(250007);
+        final File file = new File(folder, "seekable.bin");
+
+        final EncryptedContentHeader writeHeader = EncryptedContentHeader.newHeader(key);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key, writeHeader);
+            // write in uneven chunks to cover partial blocks
+            int offset = 0;
+            while (offset < content.length)
+            {
+                final int length = Math.min(3001, content.length - offset);
+                channel.write(ByteBuffer.wrap(content, offset, length));
+                offset += length;
+            }
+            channel.close();
+        }
+
+        Assert.assertEquals("Encrypted content should only be larger by the header", content.length + writeHeader.getLength(),
+                file.length());
+
+        final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final ByteBuffer prefix = ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH);
+        final EncryptedContentHeader header = EncryptedContentHeader.readHeader(fileChannel, prefix);
+        Assert.assertNotNull("Header should have been detected", header);
+        Assert.assertEquals("Header version does not match", EncryptedContentHeader.VERSION_CTR, header.getVersion());
+
+        try (DecryptingFileChannel channel = new DecryptingFileChannel(fileChannel, key, header))
+        {
+            Assert.assertEquals("Size of decrypting channel does not match unencrypted size", content.length, channel.size());
+
+            final Random rn = new Random(42);
+            for (int idx = 0; idx < 50; idx++)
+            {
+                final int position = rn.nextInt(content.length);
+                final int length = Math.min(1 + rn.nextInt(20000), content.length - position);
+
+                final ByteBuffer decrypted = ByteBuffer.allocate(length);
+                channel.position(position);
+                while (decrypted.hasRemaining() && channel.read(decrypted) != -1)
+                {
+                    // NO-OP
+                }
+                decrypted.flip();
+
+                Assert.assertEquals("Decrypted range at " + position + " does not match", ByteBuffer.wrap(content, position, length),
+                        decrypted);
+            }
+
+            final ByteBuffer tail = ByteBuffer.allocate(16);
+            Assert.assertEquals("Read at end of content should indicate end of stream", -1, channel.read(tail, content.length));
+
+            // transfers span multiple buffers and reuse the same intermediary buffer across calls
+            channel.position(12345);
+            for (final int[] range : new int[][] { { 0, content.length }, { 70001, 150000 }, { 70001, 150000 }, { 249000, 5000 } })
+            {
+                final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                final long transferred = channel.transferTo(range[0], range[1], Channels.newChannel(bos));
+                final int expectedLength = Math.min(range[1], content.length - range[0]);
+                Assert.assertEquals("Transferred byte count at " + range[0] + " does not match", expectedLength, transferred);
+                Assert.assertEquals("Transferred range at " + range[0] + " does not match",
+                        ByteBuffer.wrap(content, range[0], expectedLength), ByteBuffer.wrap(bos.toByteArray()));
+            }
+            Assert.assertEquals("Transfer should not change channel position", 12345, channel.position());
+        }
+    }
+
+    @Test
+    public void selfDescribingFormatRecordsDetails() throws Exception
+    {
+        final Key key = generateKey();
+        final byte[] content = generateContent(70001);
+        final File file = new File(folder, "selfDescribing.bin");
+
+        final EncryptedContentHeader writeHeader = EncryptedContentHeader.newHeader(key, true);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key, writeHeader);
+            channel.write(ByteBuffer.wrap(content));
+            channel.close();
+        }
+
+        Assert.assertEquals("Encrypted content should only be larger by the header", content.length + writeHeader.getLength(),
+                file.length());
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(fileChannel,
+                    ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+            Assert.assertNotNull("Header should have been detected", header);
+            Assert.assertEquals("Header version does not match", EncryptedContentHeader.VERSION_CTR_SELF_DESCRIBING, header.getVersion());
+            Assert.assertEquals("Header length does not match", writeHeader.getLength(), header.getLength());
+            Assert.assertEquals("Recorded unencrypted length does not match", content.length, header.getRecordedPlaintextLength());
+            Assert.assertEquals("Key algorithm does not match", key.getAlgorithm(), header.getKeyAlgorithm());
+            Assert.assertEquals("Key size does not match", 128, header.getKeySize());
+            Assert.assertTrue("Key should match check value", header.matchesKey(key));
+            Assert.assertFalse("Different key should not match check value", header.matchesKey(generateKey()));
+
+            try (DecryptingFileChannel channel = new DecryptingFileChannel(fileChannel, key, header))
+            {
+                final ByteBuffer decrypted = ByteBuffer.allocate(content.length);
+                while (decrypted.hasRemaining() && channel.read(decrypted) != -1)
+                {
+                    // NO-OP
+                }
+                decrypted.flip();
+                Assert.assertEquals("Decrypted content does not match", ByteBuffer.wrap(content), decrypted);
+            }
+        }
+    }
+
+    @Test
+    public void parallelSegmentedFormatMatchesSequential() throws Exception
+    {
+        final Key key = generateKey();
+        final byte[] content = generateContent(1000003);
+        final File sequentialFile = new File(folder, "sequential.bin");
+        final File parallelFile = new File(folder, "parallel.bin");
+
+        final ExecutorService executor = new ForkJoinPool(4);
+        try
+        {
+            // small segments with few in flight to cover segment boundaries and back pressure
+            final ParallelCipherSettings settings = new ParallelCipherSettings(executor, 65536 + 5, 3);
+            final EncryptedContentHeader writeHeader = EncryptedContentHeader.newHeader(key);
+
+            try (FileChannel fileChannel = FileChannel.open(sequentialFile.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE))
+            {
+                final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key, writeHeader);
+                channel.write(ByteBuffer.wrap(content));
+                channel.close();
+            }
+
+            try (FileChannel fileChannel = FileChannel.open(parallelFile.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE))
+            {
+                final ParallelEncryptingWritableByteChannel channel = new ParallelEncryptingWritableByteChannel(fileChannel, key,
+                        writeHeader, settings);
+                int offset = 0;
+                while (offset < content.length)
+                {
+                    final int length = Math.min(3001, content.length - offset);
+                    channel.write(ByteBuffer.wrap(content, offset, length));
+                    offset += length;
+                }
+                channel.close();
+            }
+
+            Assert.assertArrayEquals("Parallel encryption should yield the same result as sequential encryption",
+                    Files.readAllBytes(sequentialFile.toPath()), Files.readAllBytes(parallelFile.toPath()));
+
+            final FileChannel fileChannel = FileChannel.open(parallelFile.toPath(), StandardOpenOption.READ);
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(fileChannel,
+                    ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+            try (ParallelDecryptingFileChannel channel = new ParallelDecryptingFileChannel(fileChannel, key, header, settings))
+            {
+                final ByteBuffer head = ByteBuffer.allocate(100000);
+                while (head.hasRemaining() && channel.read(head) != -1)
+                {
+                    // NO-OP
+                }
+                head.flip();
+                Assert.assertEquals("Decrypted content before skip does not match", ByteBuffer.wrap(content, 0, 100000), head);
+
+                // skip ahead outside of read-ahead segments
+                channel.position(700000);
+                final ByteBuffer tail = ByteBuffer.allocate(content.length - 700000 + 1024);
+                while (channel.read(tail) != -1)
+                {
+                    // NO-OP
+                }
+                tail.flip();
+                Assert.assertEquals("Decrypted content after skip does not match", ByteBuffer.wrap(content, 700000, content.length - 700000),
+                        tail);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelSegmentedTruncatedContent() throws Exception
+    {
+        final Key key = generateKey();
+        final byte[] content = generateContent(300007);
+        final File file = new File(folder, "truncated.bin");
+
+        final EncryptedContentHeader writeHeader = EncryptedContentHeader.newHeader(key);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key, writeHeader);
+            channel.write(ByteBuffer.wrap(content));
+            channel.close();
+        }
+
+        // content is truncated while being read, i.e. after its size has been determined
+        final int truncatedLength = 200003;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+        {
+            fileChannel.truncate(writeHeader.getLength() + truncatedLength);
+        }
+
+        final ExecutorService executor = new ForkJoinPool(4);
+        try
+        {
+            final ParallelCipherSettings settings = new ParallelCipherSettings(executor, 65536 + 5, 3);
+            final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            final EncryptedContentHeader header = EncryptedContentHeader.readHeader(fileChannel,
+                    ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+            final SeekableByteChannel staleSizeChannel = new StaleSizeChannel(fileChannel, writeHeader.getLength() + content.length);
+            try (ParallelDecryptingFileChannel channel = new ParallelDecryptingFileChannel(staleSizeChannel, key, header, settings))
+            {
+                final ByteBuffer decrypted = ByteBuffer.allocate(content.length);
+                int bytesRead = 0;
+                while (decrypted.hasRemaining() && (bytesRead = channel.read(decrypted)) != -1)
+                {
+                    // NO-OP
+                }
+                Assert.assertEquals("Read of truncated content should end with end of stream", -1, bytesRead);
+                Assert.assertEquals("Read past truncated content should indicate end of stream", -1,
+                        channel.read(ByteBuffer.allocate(16)));
+
+                decrypted.flip();
+                Assert.assertEquals("Decrypted content before truncation does not match", ByteBuffer.wrap(content, 0, truncatedLength),
+                        decrypted);
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static Key generateKey() throws Exception
+    {
+        final KeyGenerator keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+        return keygen.generateKey();
+    }
+
+    private static byte[] generateContent(final int size)
+    {
+        final byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Simple wrapper reporting the size of content before it was truncated.
+     *
+     * @author Axel Faust
+     */
+    private static class StaleSizeChannel implements SeekableByteChannel
+    {
+
+        private final SeekableByteChannel delegate;
+
+        private final long size;
+
+        private StaleSizeChannel(final SeekableByteChannel delegate, final long size)
+        {
+            this.delegate = delegate;
+            this.size = size;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return this.delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.delegate.close();
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException
+        {
+            return this.delegate.read(dst);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException
+        {
+            return this.delegate.write(src);
+        }
+
+        @Override
+        public long position() throws IOException
+        {
+            return this.delegate.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(final long newPosition) throws IOException
+        {
+            this.delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size()
+        {
+            return this.size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(final long size) throws IOException
+        {
+            this.delegate.truncate(size);
+            return this;
+        }
+    }
+}
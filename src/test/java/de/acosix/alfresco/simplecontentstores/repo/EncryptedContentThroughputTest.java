@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.DecryptingFileChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptedContentHeader;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.EncryptingWritableByteChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelCipherSettings;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelDecryptingFileChannel;
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.ParallelEncryptingWritableByteChannel;
+
+/**
+ * Benchmarks the throughput of sequential vs. parallel encryption / decryption of content in the seekable format. As the results depend on
+ * the hardware and are only meaningful for manual comparison, this benchmark is skipped unless the system property
+ * {@code acosix.simpleContentStores.benchmark} is set to {@code true}, e.g. via {@code -Dacosix.simpleContentStores.benchmark=true}. The
+ * size of the content (in MiB) and number of threads can be set via the system properties
+ * {@code acosix.simpleContentStores.benchmark.contentSize} and {@code acosix.simpleContentStores.benchmark.threads}.
+ *
+ * @author Axel Faust
+ */
+public class EncryptedContentThroughputTest
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EncryptedContentThroughputTest.class);
+
+    private static final String PROPERTY_PREFIX = "acosix.simpleContentStores.benchmark";
+
+    private static final int WARM_UP_ROUNDS = 2;
+
+    private static final int MEASURED_ROUNDS = 3;
+
+    private static final int CHUNK_SIZE = 65536;
+
+    private static File folder;
+
+    @BeforeClass
+    public static void staticSetup() throws IOException
+    {
+        Assume.assumeTrue("Throughput benchmark is only run if enabled via system property " + PROPERTY_PREFIX,
+                Boolean.getBoolean(PROPERTY_PREFIX));
+        folder = TestUtilities.createFolder();
+    }
+
+    @AfterClass
+    public static void staticTearDown()
+    {
+        if (folder != null)
+        {
+            TestUtilities.delete(folder);
+        }
+    }
+
+    @Test
+    public void sequentialVsParallelThroughput() throws Exception
+    {
+        final KeyGenerator keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+        final Key key = keygen.generateKey();
+
+        final int contentSize = Integer.getInteger(PROPERTY_PREFIX + ".contentSize", 64).intValue() * 1024 * 1024;
+        final int threads = Integer.getInteger(PROPERTY_PREFIX + ".threads", Runtime.getRuntime().availableProcessors()).intValue();
+        final byte[] content = new byte[contentSize];
+        new Random(contentSize).nextBytes(content);
+
+        final ExecutorService executor = new ForkJoinPool(threads);
+        try
+        {
+            final ParallelCipherSettings settings = new ParallelCipherSettings(executor, 1024 * 1024, 2 * threads);
+            final EncryptedContentHeader header = EncryptedContentHeader.newHeader(key);
+            final File file = new File(folder, "throughput.bin");
+
+            long sequentialNanos = Long.MAX_VALUE;
+            long parallelNanos = Long.MAX_VALUE;
+            for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++)
+            {
+                final long sequentialStart = System.nanoTime();
+                encrypt(new EncryptingWritableByteChannel(new NullChannel(), key, header), content);
+                final long parallelStart = System.nanoTime();
+                encrypt(new ParallelEncryptingWritableByteChannel(new NullChannel(), key, header, settings), content);
+                final long parallelEnd = System.nanoTime();
+
+                if (round >= WARM_UP_ROUNDS)
+                {
+                    sequentialNanos = Math.min(sequentialNanos, parallelStart - sequentialStart);
+                    parallelNanos = Math.min(parallelNanos, parallelEnd - parallelStart);
+                }
+            }
+            LOGGER.info("Encryption throughput for {} MiB - sequential: {} MiB/s, parallel ({} threads): {} MiB/s",
+                    contentSize / (1024 * 1024), toMiBPerSecond(contentSize, sequentialNanos), threads,
+                    toMiBPerSecond(contentSize, parallelNanos));
+
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                encrypt(new EncryptingWritableByteChannel(fileChannel, key, header), content);
+            }
+
+            sequentialNanos = Long.MAX_VALUE;
+            parallelNanos = Long.MAX_VALUE;
+            for (int round = 0; round < WARM_UP_ROUNDS + MEASURED_ROUNDS; round++)
+            {
+                final long sequentialStart = System.nanoTime();
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    decrypt(new DecryptingFileChannel(fileChannel, key, readHeader(fileChannel)), contentSize);
+                }
+                final long parallelStart = System.nanoTime();
+                try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    decrypt(new ParallelDecryptingFileChannel(fileChannel, key, readHeader(fileChannel), settings), contentSize);
+                }
+                final long parallelEnd = System.nanoTime();
+
+                if (round >= WARM_UP_ROUNDS)
+                {
+                    sequentialNanos = Math.min(sequentialNanos, parallelStart - sequentialStart);
+                    parallelNanos = Math.min(parallelNanos, parallelEnd - parallelStart);
+                }
+            }
+            LOGGER.info("Decryption throughput for {} MiB - sequential: {} MiB/s, parallel ({} threads): {} MiB/s",
+                    contentSize / (1024 * 1024), toMiBPerSecond(contentSize, sequentialNanos), threads,
+                    toMiBPerSecond(contentSize, parallelNanos));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private static EncryptedContentHeader readHeader(final FileChannel fileChannel) throws IOException
+    {
+        return EncryptedContentHeader.readHeader(fileChannel, ByteBuffer.allocate(EncryptedContentHeader.PREFIX_LENGTH));
+    }
+
+    private static void encrypt(final WritableByteChannel channel, final byte[] content) throws IOException
+    {
+        for (int offset = 0; offset < content.length; offset += CHUNK_SIZE)
+        {
+            channel.write(ByteBuffer.wrap(content, offset, Math.min(CHUNK_SIZE, content.length - offset)));
+        }
+        channel.close();
+    }
+
+    private static void decrypt(final ReadableByteChannel channel, final int contentSize) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        long total = 0;
+        int read;
+        while ((read = channel.read(buffer)) != -1)
+        {
+            total += read;
+            buffer.clear();
+        }
+        channel.close();
+
+        if (total != contentSize)
+        {
+            throw new IllegalStateException("Decrypted " + total + " instead of " + contentSize + " bytes");
+        }
+    }
+
+    private static long toMiBPerSecond(final long bytes, final long nanos)
+    {
+        return Math.round(bytes / (1024d * 1024d) / (nanos / 1_000_000_000d));
+    }
+
+    /**
+     * Simple sink to measure cipher throughput without I/O overhead.
+     *
+     * @author Axel Faust
+     */
+    private static class NullChannel implements WritableByteChannel
+    {
+
+        private boolean open = true;
+
+        @Override
+        public boolean isOpen()
+        {
+            return this.open;
+        }
+
+        @Override
+        public void close()
+        {
+            this.open = false;
+        }
+
+        @Override
+        public int write(final ByteBuffer src)
+        {
+            final int bytes = src.remaining();
+            src.position(src.limit());
+            return bytes;
+        }
+    }
+}
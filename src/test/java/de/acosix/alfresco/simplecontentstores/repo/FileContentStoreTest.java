@@ -25,11 +25,14 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.alfresco.repo.content.ContentContext;
@@ -48,6 +51,7 @@ import org.junit.rules.ExpectedException;
 import de.acosix.alfresco.simplecontentstores.repo.store.StoreConstants;
 import de.acosix.alfresco.simplecontentstores.repo.store.context.ContentStoreContext;
 import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentStore;
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentWriterImpl;
 
 /**
  *
@@ -237,6 +241,48 @@ public class FileContentStoreTest
                 store.exists(contentUrl));
     }
 
+    @Test
+    public void promotedContent() throws Exception
+    {
+        final FileContentStore store = this.createDefaultStore();
+
+        store.afterPropertiesSet();
+
+        final String testText = generateText(SEED_PRNG.nextLong());
+        final Path stagedPath = this.storeFolder.toPath().resolve("staged.bin");
+        Files.write(stagedPath, testText.getBytes(StandardCharsets.UTF_8));
+
+        final boolean posixSupported = Files.getFileStore(stagedPath).supportsFileAttributeView("posix");
+        Set<PosixFilePermission> regularPermissions = null;
+        if (posixSupported)
+        {
+            // staged files typically are only accessible by their owner, e.g. if created via File.createTempFile
+            Files.setPosixFilePermissions(stagedPath, PosixFilePermissions.fromString("rw-------"));
+
+            final ContentWriter regularWriter = this.testIndividualWriteAndRead(store, new ContentContext(null, null), testText);
+            regularPermissions = Files.getPosixFilePermissions(((FileContentWriterImpl) regularWriter).getFile().toPath());
+        }
+
+        final ContentWriter writer = ContentStoreContext.executeInNewContext(() -> {
+            final ContentWriter promotingWriter = store.getWriter(new ContentContext(null, null));
+            ((FileContentWriterImpl) promotingWriter).promoteContent(stagedPath.toFile());
+            return promotingWriter;
+        });
+
+        Assert.assertTrue("Writer should have been closed after promoting content", writer.isClosed());
+        Assert.assertFalse("Staged file on same file system should have been moved", Files.exists(stagedPath));
+        if (posixSupported)
+        {
+            Assert.assertEquals("Promoted content should have the same permissions as regularly written content", regularPermissions,
+                    Files.getPosixFilePermissions(((FileContentWriterImpl) writer).getFile().toPath()));
+        }
+
+        final ContentReader reader = store.getReader(writer.getContentUrl());
+        reader.setEncoding(StandardCharsets.UTF_8.name());
+        Assert.assertEquals("Content read from reader for promoted content did not match staged content", testText,
+                reader.getContentString());
+    }
+
     @Test
     public void readOnlyWrite()
     {
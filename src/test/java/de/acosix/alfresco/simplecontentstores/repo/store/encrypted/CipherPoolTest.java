@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the pooling of cipher instances via {@link CipherPool}.
+ *
+ * @author Axel Faust
+ */
+public class CipherPoolTest
+{
+
+    private static final String AES_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private static final String CTR_TRANSFORMATION = "AES/CTR/NoPadding";
+
+    private static final String RSA_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+
+    @Test
+    public void cipherReuse() throws Exception
+    {
+        final CipherPool pool = new CipherPool(2);
+        final Key key = generateKey();
+
+        final Cipher cipher = pool.acquire(AES_TRANSFORMATION, key);
+        Assert.assertEquals("Cipher transformation does not match", AES_TRANSFORMATION, cipher.getAlgorithm());
+        Assert.assertEquals("Acquisition from empty pool should have been a miss", 1, pool.getMisses());
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, new byte[12]));
+        pool.release(cipher, key);
+        Assert.assertEquals("Released cipher should have been pooled", 1, pool.size());
+
+        final Cipher reusedCipher = pool.acquire(AES_TRANSFORMATION, key);
+        Assert.assertSame("Pooled cipher should have been reused", cipher, reusedCipher);
+        Assert.assertEquals("Acquisition from pool should have been a hit", 1, pool.getHits());
+        Assert.assertEquals("Acquired cipher should no longer be pooled", 0, pool.size());
+
+        // re-initialisation by the caller must fully reset the state of a reused cipher
+        final byte[] iv = new byte[12];
+        iv[0] = 1;
+        reusedCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        final byte[] encrypted = reusedCipher.doFinal(new byte[] { 1, 2, 3 });
+        pool.release(reusedCipher, key);
+
+        final Cipher decryptCipher = pool.acquire(AES_TRANSFORMATION, key);
+        decryptCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        Assert.assertArrayEquals("Reused cipher should decrypt correctly", new byte[] { 1, 2, 3 }, decryptCipher.doFinal(encrypted));
+        Assert.assertEquals("Cipher provider should have been remembered", cipher.getProvider(),
+                pool.pools.get(CipherPool.toPoolKey(AES_TRANSFORMATION, key)).provider);
+    }
+
+    @Test
+    public void poolBounded() throws Exception
+    {
+        final CipherPool pool = new CipherPool(2);
+        final Key key = generateKey();
+
+        final Cipher cipher1 = pool.acquire(AES_TRANSFORMATION, key);
+        final Cipher cipher2 = pool.acquire(AES_TRANSFORMATION, key);
+        final Cipher cipher3 = pool.acquire(AES_TRANSFORMATION, key);
+        Assert.assertNotSame("Concurrently acquired ciphers must be distinct", cipher1, cipher2);
+        Assert.assertEquals("All acquisitions should have been misses", 3, pool.getMisses());
+
+        pool.release(cipher1, key);
+        pool.release(cipher2, key);
+        pool.release(cipher3, key);
+        Assert.assertEquals("Pool should be bounded to its maximum per transformation", 2, pool.size());
+        Assert.assertEquals("Pool should have discarded one cipher", 1, pool.getDiscards());
+
+        pool.setMaxPooledPerTransformation(0);
+        Assert.assertEquals("Disabling pooling should clear the pool", 0, pool.size());
+        pool.release(pool.acquire(AES_TRANSFORMATION, key), key);
+        Assert.assertEquals("Disabled pool should not keep any cipher", 0, pool.size());
+        Assert.assertEquals("Disabled pool should have discarded the cipher", 2, pool.getDiscards());
+
+        // release of unknown ciphers or without key must not fail
+        pool.release(null, key);
+        pool.release(cipher1, null);
+        pool.release(Cipher.getInstance("AES/CTR/NoPadding"), key);
+        Assert.assertEquals("Pool should have discarded cipher of unknown transformation", 3, pool.getDiscards());
+    }
+
+    @Test
+    public void poolsSeparatedByTransformationAndKeyClass() throws Exception
+    {
+        final CipherPool pool = new CipherPool(2);
+        final Key secretKey = generateKey();
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        final KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        final Cipher aesCipher = pool.acquire(AES_TRANSFORMATION, secretKey);
+        final Cipher publicKeyCipher = pool.acquire(RSA_TRANSFORMATION, keyPair.getPublic());
+        final Cipher privateKeyCipher = pool.acquire(RSA_TRANSFORMATION, keyPair.getPrivate());
+        pool.release(aesCipher, secretKey);
+        pool.release(publicKeyCipher, keyPair.getPublic());
+        pool.release(privateKeyCipher, keyPair.getPrivate());
+
+        Assert.assertEquals("Ciphers should be pooled per transformation and key class", 3, pool.getTransformationCount());
+        Assert.assertEquals("All released ciphers should have been pooled", 3, pool.size());
+        Assert.assertSame("Pooled cipher for private key should have been reused", privateKeyCipher,
+                pool.acquire(RSA_TRANSFORMATION, keyPair.getPrivate()));
+        Assert.assertSame("Pooled cipher for public key should have been reused", publicKeyCipher,
+                pool.acquire(RSA_TRANSFORMATION, keyPair.getPublic()));
+
+        pool.clear();
+        Assert.assertEquals("Cleared pool should not contain any ciphers", 0, pool.size());
+        Assert.assertEquals("Clearing the pool should retain transformations", 3, pool.getTransformationCount());
+    }
+
+    @Test
+    public void scrubbedRelease() throws Exception
+    {
+        final CipherPool pool = new CipherPool(2);
+        final Key key = generateKey();
+        final IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        final byte[] content = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+        final Cipher cipher = pool.acquire(CTR_TRANSFORMATION, key);
+        cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        final byte[] encrypted = cipher.doFinal(content);
+        pool.releaseScrubbed(cipher, key);
+        Assert.assertEquals("Scrubbed cipher should have been pooled", 1, pool.size());
+
+        // pooled cipher must no longer use the content key but a dummy key of the same algorithm and size
+        final Cipher zeroKeyCipher = Cipher.getInstance(CTR_TRANSFORMATION);
+        zeroKeyCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(new byte[16], "AES"), iv);
+        Assert.assertArrayEquals("Scrubbed cipher should have been re-initialised with a dummy key", zeroKeyCipher.doFinal(encrypted),
+                cipher.doFinal(encrypted));
+
+        final Cipher reusedCipher = pool.acquire(CTR_TRANSFORMATION, key);
+        Assert.assertSame("Scrubbed cipher should have been reused", cipher, reusedCipher);
+        reusedCipher.init(Cipher.DECRYPT_MODE, key, iv);
+        Assert.assertArrayEquals("Reused scrubbed cipher should decrypt correctly", content, reusedCipher.doFinal(encrypted));
+
+        // GCM ciphers can be scrubbed as well despite restrictions on parameter reuse
+        final Cipher gcmCipher = pool.acquire(AES_TRANSFORMATION, key);
+        gcmCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, new byte[12]));
+        gcmCipher.doFinal(content);
+        pool.releaseScrubbed(gcmCipher, key);
+        Assert.assertEquals("Scrubbed GCM cipher should have been pooled", 1, pool.size());
+        Assert.assertEquals("No cipher should have been discarded", 0, pool.getDiscards());
+    }
+
+    @Test
+    public void scrubbedReleaseDiscardsUnscrubbableCiphers() throws Exception
+    {
+        final CipherPool pool = new CipherPool(2);
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        final KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        // asymmetric keys cannot be replaced by a dummy key, so the cipher must never be pooled
+        final Cipher cipher = pool.acquire(RSA_TRANSFORMATION, keyPair.getPrivate());
+        cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+        pool.releaseScrubbed(cipher, keyPair.getPrivate());
+        Assert.assertEquals("Cipher which cannot be scrubbed should not have been pooled", 0, pool.size());
+        Assert.assertEquals("Cipher which cannot be scrubbed should have been discarded", 1, pool.getDiscards());
+
+        pool.releaseScrubbed(null, keyPair.getPrivate());
+        Assert.assertEquals("Release of null cipher should be ignored", 1, pool.getDiscards());
+    }
+
+    private static Key generateKey() throws Exception
+    {
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        return keyGenerator.generateKey();
+    }
+}
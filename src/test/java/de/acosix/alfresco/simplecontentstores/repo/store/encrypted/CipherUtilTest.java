@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Tests the key wrap operations of {@link CipherUtil}, which need to be tested in the same package due to their visibility.
+ *
+ * @author Axel Faust
+ */
+public class CipherUtilTest
+{
+
+    @Test
+    public void keyWrapModeSelection() throws Exception
+    {
+        Assert.assertEquals("Key wrap mode for 128 bit keys does not match", CipherUtil.KEY_WRAP_MODE,
+                CipherUtil.getKeyWrapMode(generateKey("AES", 128)));
+        Assert.assertEquals("Key wrap mode for 256 bit keys does not match", CipherUtil.KEY_WRAP_MODE,
+                CipherUtil.getKeyWrapMode(generateKey("AES", 256)));
+        Assert.assertEquals("Key wrap mode for 64 bit keys does not match", CipherUtil.KEY_WRAP_PADDED_MODE, CipherUtil.getKeyWrapMode(8));
+        Assert.assertEquals("Key wrap mode for 136 bit keys does not match", CipherUtil.KEY_WRAP_PADDED_MODE,
+                CipherUtil.getKeyWrapMode(17));
+
+        Assert.assertTrue("Unpadded key wrap mode should be supported by any JVM",
+                CipherUtil.isKeyWrapModeSupported(CipherUtil.KEY_WRAP_MODE));
+        Assert.assertFalse("Unknown key wrap mode should not be supported", CipherUtil.isKeyWrapModeSupported("XYZ"));
+    }
+
+    @Test
+    public void keyWrapRoundTrip() throws Exception
+    {
+        final Key keyEncryptionKey = generateKey("AES", 256);
+        for (final int keySize : new int[] { 128, 192, 256 })
+        {
+            final Key key = generateKey("AES", keySize);
+            final String wrapMode = CipherUtil.getKeyWrapMode(key);
+
+            final byte[] wrappedKey = CipherUtil.wrapKey(keyEncryptionKey, key, wrapMode);
+            // RFC 3394 adds a single 64 bit integrity check block
+            Assert.assertEquals("Wrapped key has wrong length for key size " + keySize, keySize / 8 + 8, wrappedKey.length);
+
+            final SecretKeySpec unwrappedKey = CipherUtil.unwrapKey(keyEncryptionKey, wrappedKey, "AES", wrapMode);
+            Assert.assertEquals("Unwrapped key algorithm does not match", "AES", unwrappedKey.getAlgorithm());
+            Assert.assertArrayEquals("Unwrapped key does not match for key size " + keySize, key.getEncoded(), unwrappedKey.getEncoded());
+        }
+    }
+
+    @Test
+    public void paddedKeyWrapRoundTrip() throws Exception
+    {
+        Assume.assumeTrue("Padded key wrap mode is not supported by this JVM",
+                CipherUtil.isKeyWrapModeSupported(CipherUtil.KEY_WRAP_PADDED_MODE));
+
+        final Key keyEncryptionKey = generateKey("AES", 128);
+        final Key key = generateKey("DES", 56);
+        final String wrapMode = CipherUtil.getKeyWrapMode(key);
+        Assert.assertEquals("Key wrap mode for DES keys does not match", CipherUtil.KEY_WRAP_PADDED_MODE, wrapMode);
+
+        final byte[] wrappedKey = CipherUtil.wrapKey(keyEncryptionKey, key, wrapMode);
+        final SecretKeySpec unwrappedKey = CipherUtil.unwrapKey(keyEncryptionKey, wrappedKey, "DES", wrapMode);
+        Assert.assertArrayEquals("Unwrapped key does not match", key.getEncoded(), unwrappedKey.getEncoded());
+    }
+
+    @Test
+    public void keyWrapFailures() throws Exception
+    {
+        final Key key = generateKey("AES", 128);
+        final byte[] wrappedKey = CipherUtil.wrapKey(generateKey("AES", 128), key, CipherUtil.KEY_WRAP_MODE);
+
+        try
+        {
+            CipherUtil.unwrapKey(generateKey("AES", 128), wrappedKey, "AES", CipherUtil.KEY_WRAP_MODE);
+            Assert.fail("Unwrapping with a different key-encryption key should fail the integrity check");
+        }
+        catch (final GeneralSecurityException expected)
+        {
+            // expected
+        }
+
+        try
+        {
+            CipherUtil.wrapKey(generateKey("AES", 128), key, "XYZ");
+            Assert.fail("Wrapping with an unknown key wrap mode should fail");
+        }
+        catch (final GeneralSecurityException expected)
+        {
+            // expected
+        }
+    }
+
+    private static Key generateKey(final String algorithm, final int keySize) throws GeneralSecurityException
+    {
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance(algorithm);
+        keyGenerator.init(keySize);
+        return keyGenerator.generateKey();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.acosix.alfresco.simplecontentstores.repo.store.encrypted.DecryptedKeyCache.CachedKey;
+
+/**
+ * Tests the bounding and invalidation of {@link DecryptedKeyCache}, which need to be tested in the same package to verify the zeroing of
+ * key material.
+ *
+ * @author Axel Faust
+ */
+public class DecryptedKeyCacheTest
+{
+
+    private static final SecureRandom RNG = new SecureRandom();
+
+    @Test
+    public void sizeBounded()
+    {
+        final DecryptedKeyCache cache = new DecryptedKeyCache(2, 0);
+        final SecretKeySpec key1 = generateKey();
+        final SecretKeySpec key2 = generateKey();
+        final SecretKeySpec key3 = generateKey();
+
+        cache.put(Long.valueOf(1), key1);
+        cache.put(Long.valueOf(2), key2);
+        // direct map access also counts for the access order, so it must precede the access which makes key 2 the least recently used
+        final CachedKey evictedKey = cache.entries.get(Long.valueOf(2));
+        assertKey(key1, cache.get(Long.valueOf(1)));
+        cache.put(Long.valueOf(3), key3);
+
+        Assert.assertEquals("Cache should be bounded to its maximum number of keys", 2, cache.size());
+        Assert.assertEquals("Cache should have evicted a key", 1, cache.getEvictions());
+        Assert.assertNull("Least recently used key should have been evicted", cache.get(Long.valueOf(2)));
+        assertKey(key1, cache.get(Long.valueOf(1)));
+        assertKey(key3, cache.get(Long.valueOf(3)));
+        assertZeroed(evictedKey);
+
+        Assert.assertEquals("Hits do not match", 3, cache.getHits());
+        Assert.assertEquals("Misses do not match", 1, cache.getMisses());
+    }
+
+    @Test
+    public void cachingDisabled()
+    {
+        final DecryptedKeyCache cache = new DecryptedKeyCache(0, 0);
+        cache.put(Long.valueOf(1), generateKey());
+
+        Assert.assertEquals("Cache without maximum number of keys should not keep any key", 0, cache.size());
+        Assert.assertNull("Cache without maximum number of keys should not provide any key", cache.get(Long.valueOf(1)));
+    }
+
+    @Test
+    public void timeToLiveExpiry() throws Exception
+    {
+        final DecryptedKeyCache cache = new DecryptedKeyCache(10, 1);
+        final SecretKeySpec key1 = generateKey();
+        final SecretKeySpec key2 = generateKey();
+
+        cache.put(Long.valueOf(1), key1);
+        cache.put(Long.valueOf(2), key2);
+        assertKey(key1, cache.get(Long.valueOf(1)));
+        final CachedKey expiredKey1 = cache.entries.get(Long.valueOf(1));
+        final CachedKey expiredKey2 = cache.entries.get(Long.valueOf(2));
+
+        TimeUnit.MILLISECONDS.sleep(1100);
+
+        // access does not extend the time-to-live
+        Assert.assertNull("Key should have expired", cache.get(Long.valueOf(1)));
+        assertZeroed(expiredKey1);
+
+        // any put purges expired keys that have not been accessed
+        cache.put(Long.valueOf(3), generateKey());
+        Assert.assertEquals("Expired keys should have been purged", 1, cache.size());
+        assertZeroed(expiredKey2);
+        Assert.assertEquals("Cache should have evicted expired keys", 2, cache.getEvictions());
+    }
+
+    @Test
+    public void invalidation()
+    {
+        final DecryptedKeyCache cache = new DecryptedKeyCache(10, 0);
+        final SecretKeySpec key1 = generateKey();
+        final SecretKeySpec key2 = generateKey();
+        final SecretKeySpec key3 = generateKey();
+
+        cache.put(Long.valueOf(1), key1);
+        cache.put(Long.valueOf(2), key2);
+        cache.put(Long.valueOf(3), key3);
+        final CachedKey cachedKey1 = cache.entries.get(Long.valueOf(1));
+        final CachedKey cachedKey2 = cache.entries.get(Long.valueOf(2));
+        final CachedKey cachedKey3 = cache.entries.get(Long.valueOf(3));
+
+        cache.remove(Long.valueOf(2));
+        cache.remove(Long.valueOf(4));
+        Assert.assertEquals("Removed key should no longer be cached", 2, cache.size());
+        Assert.assertNull("Removed key should no longer be cached", cache.get(Long.valueOf(2)));
+        assertZeroed(cachedKey2);
+        assertKey(key1, cache.get(Long.valueOf(1)));
+
+        // keys provided by the cache must remain usable after invalidation
+        final SecretKeySpec providedKey3 = cache.get(Long.valueOf(3));
+        cache.clear();
+        Assert.assertEquals("Cleared cache should not contain any keys", 0, cache.size());
+        Assert.assertNull("Cleared cache should not provide any key", cache.get(Long.valueOf(1)));
+        assertZeroed(cachedKey1);
+        assertZeroed(cachedKey3);
+        assertKey(key3, providedKey3);
+
+        // replacing a key zeroes the previous key
+        cache.put(Long.valueOf(1), key1);
+        final CachedKey replacedKey = cache.entries.get(Long.valueOf(1));
+        cache.put(Long.valueOf(1), key2);
+        assertZeroed(replacedKey);
+        assertKey(key2, cache.get(Long.valueOf(1)));
+        Assert.assertEquals("Invalidation should not count as eviction", 0, cache.getEvictions());
+    }
+
+    private static SecretKeySpec generateKey()
+    {
+        final byte[] keyBytes = new byte[16];
+        RNG.nextBytes(keyBytes);
+        // ensure key can never accidentally match a zeroed key
+        keyBytes[0] = 1;
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    private static void assertKey(final SecretKeySpec expected, final SecretKeySpec actual)
+    {
+        Assert.assertNotNull("Key should have been cached", actual);
+        Assert.assertEquals("Key algorithm does not match", expected.getAlgorithm(), actual.getAlgorithm());
+        Assert.assertArrayEquals("Key bytes do not match", expected.getEncoded(), actual.getEncoded());
+    }
+
+    private static void assertZeroed(final CachedKey cachedKey)
+    {
+        Assert.assertNotNull("Cached key should have existed", cachedKey);
+        Assert.assertArrayEquals("Key bytes should have been zeroed", new byte[cachedKey.keyBytes.length], cachedKey.keyBytes);
+    }
+}
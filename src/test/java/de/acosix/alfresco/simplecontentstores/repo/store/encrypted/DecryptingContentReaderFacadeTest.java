@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.acosix.alfresco.simplecontentstores.repo.TestUtilities;
+import de.acosix.alfresco.simplecontentstores.repo.store.file.FileContentReaderImpl;
+
+/**
+ * Tests the {@link DecryptingContentReaderFacade decrypting reader}, which needs to be tested in the same package as its constructors are
+ * not public.
+ *
+ * @author Axel Faust
+ */
+public class DecryptingContentReaderFacadeTest
+{
+
+    private static File folder;
+
+    @BeforeClass
+    public static void staticSetup() throws IOException
+    {
+        folder = TestUtilities.createFolder();
+    }
+
+    @AfterClass
+    public static void staticTearDown()
+    {
+        TestUtilities.delete(folder);
+    }
+
+    @Test
+    public void sizeDeterminedBeforeRead() throws Exception
+    {
+        final KeyGenerator keygen = KeyGenerator.getInstance("AES");
+        keygen.init(128);
+        final Key key = keygen.generateKey();
+        final byte[] content = new byte[50003];
+        new Random(content.length).nextBytes(content);
+        final File file = new File(folder, "sizeBeforeRead.bin");
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            final EncryptingWritableByteChannel channel = new EncryptingWritableByteChannel(fileChannel, key,
+                    EncryptedContentHeader.newHeader(key));
+            channel.write(ByteBuffer.wrap(content));
+            channel.close();
+        }
+
+        // the delegate only supports opening a single channel
+        final DecryptingContentReaderFacade reader = new DecryptingContentReaderFacade(new FileContentReaderImpl(file), key,
+                DecryptingContentReaderFacade.UNKNOWN_SIZE);
+        Assert.assertEquals("Unencrypted size does not match", content.length, reader.getSize());
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length);
+        try (InputStream is = reader.getContentInputStream())
+        {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                bos.write(buffer, 0, read);
+            }
+        }
+        Assert.assertArrayEquals("Content read after determining the size does not match", content, bos.toByteArray());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the pooling of direct buffers via {@link DirectBufferPool}.
+ *
+ * @author Axel Faust
+ */
+public class DirectBufferPoolTest
+{
+
+    @Test
+    public void bufferReuse()
+    {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 2);
+
+        final ByteBuffer buffer1 = pool.acquire();
+        final ByteBuffer buffer2 = pool.acquire();
+        final ByteBuffer buffer3 = pool.acquire();
+        Assert.assertTrue("Buffer should be direct", buffer1.isDirect());
+        Assert.assertEquals("Buffer capacity does not match", 1024, buffer1.capacity());
+        Assert.assertNotSame("Concurrently acquired buffers must be distinct", buffer1, buffer2);
+        Assert.assertEquals("All acquisitions should have been misses", 3, pool.getMisses());
+
+        pool.release(buffer1);
+        pool.release(buffer2);
+        pool.release(buffer3);
+        Assert.assertEquals("Pool should be bounded to its maximum number of idle buffers", 2, pool.size());
+        Assert.assertEquals("Pool should have discarded one buffer", 1, pool.getDiscards());
+
+        final ByteBuffer reusedBuffer = pool.acquire();
+        Assert.assertTrue("Pooled buffer should have been reused", reusedBuffer == buffer1 || reusedBuffer == buffer2);
+        Assert.assertEquals("Acquisition from pool should have been a hit", 1, pool.getHits());
+        Assert.assertEquals("Acquired buffer should no longer be pooled", 1, pool.size());
+
+        // buffers not matching the pool are never pooled
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(2048));
+        pool.release(null);
+        Assert.assertEquals("Mismatched buffers should not have been pooled", 1, pool.size());
+        Assert.assertEquals("Mismatched buffers should have been discarded", 3, pool.getDiscards());
+    }
+
+    @Test
+    public void reconfiguration()
+    {
+        final DirectBufferPool pool = new DirectBufferPool(1024, 2);
+        final ByteBuffer buffer = pool.acquire();
+        pool.release(buffer);
+
+        pool.configure(1024, 4);
+        Assert.assertEquals("Idle buffers should be retained if buffer size does not change", 1, pool.size());
+        Assert.assertEquals("Maximum number of idle buffers does not match", 4, pool.getMaxIdleBuffers());
+
+        pool.configure(2048, 4);
+        Assert.assertEquals("Idle buffers should be discarded if buffer size changes", 0, pool.size());
+        Assert.assertEquals("Buffer size does not match", 2048, pool.getBufferSize());
+        pool.release(buffer);
+        Assert.assertEquals("Buffer of previous size should not have been pooled", 0, pool.size());
+        Assert.assertEquals("New buffer should match reconfigured size", 2048, pool.acquire().capacity());
+
+        pool.release(pool.acquire());
+        pool.configure(2048, 0);
+        Assert.assertEquals("Disabling pooling should clear the pool", 0, pool.size());
+        pool.release(pool.acquire());
+        Assert.assertEquals("Disabled pool should not keep any buffer", 0, pool.size());
+
+        try
+        {
+            pool.configure(0, 4);
+            Assert.fail("Non-positive buffer size should be rejected");
+        }
+        catch (final IllegalArgumentException expected)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void releasedBuffersZeroed()
+    {
+        final DirectBufferPool pool = new DirectBufferPool(1027, 1);
+
+        final ByteBuffer pooledBuffer = pool.acquire();
+        final ByteBuffer discardedBuffer = pool.acquire();
+        fill(pooledBuffer);
+        fill(discardedBuffer);
+        // partially consumed buffers must still be zeroed in their entirety
+        pooledBuffer.flip().position(100);
+
+        pool.release(pooledBuffer);
+        pool.release(discardedBuffer);
+        Assert.assertEquals("Pool should keep one idle buffer", 1, pool.size());
+        Assert.assertEquals("Pool should have discarded one buffer", 1, pool.getDiscards());
+
+        assertZeroed(pooledBuffer);
+        assertZeroed(discardedBuffer);
+
+        final ByteBuffer reusedBuffer = pool.acquire();
+        Assert.assertSame("Pooled buffer should have been reused", pooledBuffer, reusedBuffer);
+        Assert.assertEquals("Reused buffer should be cleared", 0, reusedBuffer.position());
+        Assert.assertEquals("Reused buffer should be cleared", reusedBuffer.capacity(), reusedBuffer.limit());
+    }
+
+    private static void fill(final ByteBuffer buffer)
+    {
+        while (buffer.hasRemaining())
+        {
+            buffer.put((byte) 0x5A);
+        }
+    }
+
+    private static void assertZeroed(final ByteBuffer buffer)
+    {
+        for (int idx = 0; idx < buffer.capacity(); idx++)
+        {
+            Assert.assertEquals("Released buffer should have been zeroed at index " + idx, 0, buffer.get(idx));
+        }
+    }
+}
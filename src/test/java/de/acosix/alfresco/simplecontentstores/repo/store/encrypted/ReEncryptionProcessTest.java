@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 - 2026 Acosix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.acosix.alfresco.simplecontentstores.repo.store.encrypted;
+
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.alfresco.repo.domain.contentdata.ContentUrlKeyEntity;
+import org.alfresco.repo.domain.contentdata.EncryptedKey;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.acosix.alfresco.simplecontentstores.repo.dao.ContentUrlConsistencyDAO;
+import de.acosix.alfresco.simplecontentstores.repo.dao.ContentUrlKeyDAO;
+
+/**
+ * Tests the {@link EncryptingContentStoreManagerImpl.ReEncryptionProcess re-encryption process} of symmetric content encryption keys,
+ * which needs to be tested in the same package as the process is not public. Key (de-/)encryption is replaced by simple stand-ins, and all
+ * database access is simulated in memory.
+ *
+ * @author Axel Faust
+ */
+public class ReEncryptionProcessTest
+{
+
+    private static final List<Serializable> CHECKPOINT_KEYS = Arrays
+            .asList("acosix/alfresco-simple-content-stores/keyReEncryptionCheckpoints", "oldKeystore", "oldAlias");
+
+    private static final MasterKeyReference MASTER_KEY = new MasterKeyReference("oldKeystore", "oldAlias");
+
+    private static final int KEY_COUNT = 10;
+
+    private final Map<List<Serializable>, Serializable> attributes = new ConcurrentHashMap<>();
+
+    private final List<Long> persistedCheckpoints = new CopyOnWriteArrayList<>();
+
+    private final List<Long> updatedKeyIds = new CopyOnWriteArrayList<>();
+
+    private final Set<Long> failingKeyIds = ConcurrentHashMap.newKeySet();
+
+    private TestManager manager;
+
+    @Before
+    public void setup()
+    {
+        this.manager = new TestManager();
+        this.manager.transactionService = createTransactionService();
+        this.manager.attributeService = this.createAttributeService();
+        this.manager.contentUrlKeyDAO = this.createContentUrlKeyDAO();
+        this.manager.contentUrlConsistencyDAO = (ContentUrlConsistencyDAO) Proxy.newProxyInstance(
+                ReEncryptionProcessTest.class.getClassLoader(), new Class<?>[] { ContentUrlConsistencyDAO.class },
+                (proxy, method, args) -> {
+                    if (!"invalidateCachedContentUrlEntitiesById".equals(method.getName()))
+                    {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return null;
+                });
+        this.manager.decryptedKeyCache = new DecryptedKeyCache(KEY_COUNT, 0);
+        this.manager.reEncryptionThreadCount = 2;
+        this.manager.reEncryptionBatchSize = 3;
+        // persist the checkpoint whenever a batch completes
+        this.manager.reEncryptionLogInterval = 1;
+    }
+
+    @Test
+    public void completeRun()
+    {
+        final ReEncryptionProgress progress = this.run();
+
+        Assert.assertEquals("Estimated total does not match", KEY_COUNT, progress.getEstimatedTotal());
+        Assert.assertEquals("Process should not have been resumed", 0, progress.getResumedFromId());
+        Assert.assertEquals("All keys should have been processed", KEY_COUNT, progress.getProcessed());
+        Assert.assertEquals("All keys should have been re-encrypted", KEY_COUNT, progress.getReEncrypted());
+        Assert.assertEquals("All keys should have been updated", keyIds(1, KEY_COUNT), this.sortedUpdatedKeyIds());
+        Assert.assertEquals("Checkpoint should have advanced to the last key", KEY_COUNT, progress.getCheckpointId());
+        // workers may process multiple batches between completions, so only the first persisted checkpoint is deterministic
+        Assert.assertEquals("Checkpoint should have been persisted after the first batch", Long.valueOf(3),
+                this.persistedCheckpoints.get(0));
+        Assert.assertEquals("Persisted checkpoints should only ever advance",
+                this.persistedCheckpoints.stream().sorted().distinct().collect(Collectors.toList()), this.persistedCheckpoints);
+        Assert.assertFalse("Checkpoint should have been removed after completion", this.attributes.containsKey(CHECKPOINT_KEYS));
+    }
+
+    @Test
+    public void resumeFromPersistedCheckpoint()
+    {
+        this.attributes.put(CHECKPOINT_KEYS, Long.valueOf(6));
+
+        final ReEncryptionProgress progress = this.run();
+
+        Assert.assertEquals("Process should have been resumed from persisted checkpoint", 6, progress.getResumedFromId());
+        Assert.assertEquals("Only keys after the checkpoint should have been processed", KEY_COUNT - 6, progress.getProcessed());
+        Assert.assertEquals("Only keys after the checkpoint should have been updated", keyIds(7, KEY_COUNT), this.sortedUpdatedKeyIds());
+        Assert.assertEquals("Checkpoint should have advanced to the last key", KEY_COUNT, progress.getCheckpointId());
+        Assert.assertFalse("Checkpoint should have been removed after completion", this.attributes.containsKey(CHECKPOINT_KEYS));
+    }
+
+    @Test
+    public void failedBatchHoldsCheckpoint()
+    {
+        this.failingKeyIds.add(Long.valueOf(5));
+
+        final ReEncryptionProgress progress = this.run();
+
+        Assert.assertEquals("All keys should have been processed", KEY_COUNT, progress.getProcessed());
+        Assert.assertEquals("Only the failing key should not have been re-encrypted", KEY_COUNT - 1, progress.getReEncrypted());
+        Assert.assertEquals("Failure should have been recorded", 1, progress.getFailed());
+        Assert.assertNotNull("Failure should have been recorded", progress.getLastError());
+
+        final List<Long> expectedUpdatedKeyIds = new ArrayList<>(keyIds(1, KEY_COUNT));
+        expectedUpdatedKeyIds.remove(Long.valueOf(5));
+        Assert.assertEquals("Keys in and after the failed batch should still have been updated", expectedUpdatedKeyIds,
+                this.sortedUpdatedKeyIds());
+
+        // checkpoint must stay before the batch (IDs 4 - 6) containing the failing key
+        Assert.assertEquals("Checkpoint should not have advanced beyond the failed batch", 3, progress.getCheckpointId());
+        Assert.assertEquals("Checkpoint beyond the failed batch should not have been persisted", Collections.singletonList(Long.valueOf(3)),
+                this.persistedCheckpoints);
+    }
+
+    @Test
+    public void throttled()
+    {
+        // 10 keys submitted at 25 keys/s need at least 400 ms
+        this.manager.reEncryptionMaxKeysPerSecond = 25;
+
+        final long start = System.nanoTime();
+        final ReEncryptionProgress progress = this.run();
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals("All keys should have been re-encrypted", KEY_COUNT, progress.getReEncrypted());
+        Assert.assertTrue("Process should have been throttled to the configured rate (took " + elapsedMillis + " ms)",
+                elapsedMillis >= 350);
+    }
+
+    @Test
+    public void throttleInterruptible()
+    {
+        this.manager.reEncryptionMaxKeysPerSecond = 1;
+        final EncryptingContentStoreManagerImpl.ReEncryptionProcess process = this.manager.new ReEncryptionProcess(MASTER_KEY,
+                new ReEncryptionProgress(MASTER_KEY));
+
+        Thread.currentThread().interrupt();
+        try
+        {
+            process.throttle(System.nanoTime(), 10);
+            Assert.fail("Interrupted throttling should have failed");
+        }
+        catch (final ContentIOException expected)
+        {
+            Assert.assertTrue("Interrupt flag should have been restored", Thread.interrupted());
+        }
+    }
+
+    private ReEncryptionProgress run()
+    {
+        final ReEncryptionProgress progress = new ReEncryptionProgress(MASTER_KEY);
+        this.manager.new ReEncryptionProcess(MASTER_KEY, progress).run();
+        progress.complete();
+        return progress;
+    }
+
+    private List<Long> sortedUpdatedKeyIds()
+    {
+        return this.updatedKeyIds.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static List<Long> keyIds(final long from, final long to)
+    {
+        final List<Long> ids = new ArrayList<>();
+        for (long id = from; id <= to; id++)
+        {
+            ids.add(Long.valueOf(id));
+        }
+        return ids;
+    }
+
+    private static TransactionService createTransactionService()
+    {
+        final RetryingTransactionHelper retryingTransactionHelper = new RetryingTransactionHelper()
+        {
+
+            /**
+             *
+             * {@inheritDoc}
+             */
+            @Override
+            public <R> R doInTransaction(final RetryingTransactionCallback<R> cb, final boolean readOnly, final boolean requiresNew)
+            {
+                try
+                {
+                    return cb.execute();
+                }
+                catch (final RuntimeException ex)
+                {
+                    throw ex;
+                }
+                catch (final Throwable t)
+                {
+                    throw new IllegalStateException(t);
+                }
+            }
+        };
+        return (TransactionService) Proxy.newProxyInstance(ReEncryptionProcessTest.class.getClassLoader(),
+                new Class<?>[] { TransactionService.class }, (proxy, method, args) -> {
+                    if (!"getRetryingTransactionHelper".equals(method.getName()))
+                    {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return retryingTransactionHelper;
+                });
+    }
+
+    private AttributeService createAttributeService()
+    {
+        // simple in-memory attribute service for the operations used by the process
+        return (AttributeService) Proxy.newProxyInstance(ReEncryptionProcessTest.class.getClassLoader(),
+                new Class<?>[] { AttributeService.class }, (proxy, method, args) -> {
+                    final Serializable[] keys = (Serializable[]) args[args.length - 1];
+                    switch (method.getName())
+                    {
+                        case "getAttribute":
+                            return this.attributes.get(Arrays.asList(keys));
+                        case "setAttribute":
+                            this.attributes.put(Arrays.asList(keys), (Serializable) args[0]);
+                            this.persistedCheckpoints.add((Long) args[0]);
+                            return null;
+                        case "removeAttribute":
+                            this.attributes.remove(Arrays.asList(keys));
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private ContentUrlKeyDAO createContentUrlKeyDAO()
+    {
+        final Map<Long, ContentUrlKeyEntity> keys = new HashMap<>();
+        for (long id = 1; id <= KEY_COUNT; id++)
+        {
+            final ContentUrlKeyEntity urlKeyEntity = new ContentUrlKeyEntity();
+            urlKeyEntity.setId(Long.valueOf(id));
+            urlKeyEntity.setContentUrlId(Long.valueOf(100 + id));
+            urlKeyEntity.setUnencryptedFileSize(Long.valueOf(1024));
+            keys.put(Long.valueOf(id), urlKeyEntity);
+        }
+
+        // simple in-memory DAO for the keyset-paginated operations used by the process
+        return (ContentUrlKeyDAO) Proxy.newProxyInstance(ReEncryptionProcessTest.class.getClassLoader(),
+                new Class<?>[] { ContentUrlKeyDAO.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "countSymmetricKeys":
+                            return Integer.valueOf(keys.size());
+                        case "getSymmetricKeys":
+                            final long fromId = args[1] != null ? ((Long) args[1]).longValue() : 0;
+                            final int maxResults = ((Integer) args[2]).intValue();
+                            return keys.keySet().stream().filter(id -> id.longValue() > fromId).sorted().limit(maxResults).map(keys::get)
+                                    .collect(Collectors.toList());
+                        case "updateSymmetricKeys":
+                            @SuppressWarnings("unchecked")
+                            final List<ContentUrlKeyEntity> reEncryptedKeys = (List<ContentUrlKeyEntity>) args[1];
+                            reEncryptedKeys.forEach(urlKeyEntity -> this.updatedKeyIds.add(urlKeyEntity.getId()));
+                            return Integer.valueOf(reEncryptedKeys.size());
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Stand-in for the actual manager, replacing the (de-/)encryption of symmetric keys via master keys.
+     *
+     * @author Axel Faust
+     */
+    private class TestManager extends EncryptingContentStoreManagerImpl
+    {
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected SecretKeySpec getKeyForKeyEntity(final ContentUrlKeyEntity urlKeyEntity)
+        {
+            if (ReEncryptionProcessTest.this.failingKeyIds.contains(urlKeyEntity.getId()))
+            {
+                throw new ContentIOException("Simulated failure to decrypt key " + urlKeyEntity.getId());
+            }
+            final byte[] keyBytes = new byte[16];
+            keyBytes[0] = urlKeyEntity.getId().byteValue();
+            return new SecretKeySpec(keyBytes, "AES");
+        }
+
+        /**
+         *
+         * {@inheritDoc}
+         */
+        @Override
+        protected EncryptedKey encryptKey(final Key encryptionKey)
+        {
+            return new EncryptedKey("newKeystore", "newAlias", encryptionKey.getAlgorithm(), ByteBuffer.wrap(encryptionKey.getEncoded()));
+        }
+    }
+}